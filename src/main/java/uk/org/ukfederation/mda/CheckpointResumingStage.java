@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.xml.ParserPool;
+
+/**
+ * Stage which adds the items saved in a checkpoint by a {@link CheckpointWritingStage} to the
+ * collection, together with their item metadata.
+ *
+ * <p>
+ * This is used as the first stage of a pipeline made up of the stages which followed the
+ * checkpoint, so that a failed run can be completed without repeating the earlier stages.
+ * Metadata which {@link ItemCheckpoint} does not save, such as {@link UKEntityFacts}, should be
+ * recreated by the stages following this one.
+ * </p>
+ */
+@ThreadSafe
+public class CheckpointResumingStage extends AbstractStage<Element> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CheckpointResumingStage.class);
+
+    /** File to read the checkpoint from. */
+    @GuardedBy("this") @NonnullAfterInit private File checkpointFile;
+
+    /** Parser pool used to parse the saved elements. */
+    @GuardedBy("this") @NonnullAfterInit private ParserPool parserPool;
+
+    /**
+     * Get the file to read the checkpoint from.
+     *
+     * @return the checkpoint file
+     */
+    @NonnullAfterInit public final synchronized File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Set the file to read the checkpoint from.
+     *
+     * @param file the checkpoint file
+     */
+    public final synchronized void setCheckpointFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        checkpointFile = file;
+    }
+
+    /**
+     * Get the parser pool used to parse the saved elements.
+     *
+     * @return the parser pool
+     */
+    @NonnullAfterInit public final synchronized ParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * Set the parser pool used to parse the saved elements.
+     *
+     * @param pool the parser pool
+     */
+    public final synchronized void setParserPool(@Nonnull final ParserPool pool) {
+        checkSetterPreconditions();
+        parserPool = pool;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        // Read into a separate list so that a damaged checkpoint leaves the collection unchanged.
+        final List<Item<Element>> resumed = new ArrayList<>();
+        try {
+            ItemCheckpoint.read(getParserPool(), getCheckpointFile().toPath(), resumed);
+        } catch (final IOException e) {
+            throw new StageProcessingException("could not read checkpoint " + getCheckpointFile(), e);
+        }
+        items.addAll(resumed);
+        log.debug("{}: resumed {} items from {}", getId(), resumed.size(), getCheckpointFile());
+    }
+
+    @Override
+    protected void doDestroy() {
+        checkpointFile = null;
+        parserPool = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (checkpointFile == null) {
+            throw new ComponentInitializationException("checkpointFile must not be null");
+        }
+        if (parserPool == null) {
+            throw new ComponentInitializationException("parserPool must not be null");
+        }
+    }
+}
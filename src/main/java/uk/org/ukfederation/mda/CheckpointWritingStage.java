@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Stage which saves the collection and its item metadata to a checkpoint file, so that a later
+ * run can resume from this point using a {@link CheckpointResumingStage}.
+ *
+ * <p>
+ * The checkpoint is written in the format described by {@link ItemCheckpoint}, replacing any
+ * earlier checkpoint only once it has been written completely. The collection is not changed.
+ * </p>
+ *
+ * <p>
+ * The stage fails if an item carries metadata which can not be saved in a checkpoint, unless
+ * its class is one of the <code>ignoredMetadata</code>, in which case it is dropped.
+ * </p>
+ */
+@ThreadSafe
+public class CheckpointWritingStage extends AbstractStage<Element> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CheckpointWritingStage.class);
+
+    /** File to write the checkpoint to. */
+    @GuardedBy("this") @NonnullAfterInit private File checkpointFile;
+
+    /** Classes of item metadata which can not be saved but may be dropped. Default value: none. */
+    @GuardedBy("this") @Nonnull @NonnullElements
+    private List<Class<? extends ItemMetadata>> ignoredMetadata = List.of();
+
+    /**
+     * Get the file to write the checkpoint to.
+     *
+     * @return the checkpoint file
+     */
+    @NonnullAfterInit public final synchronized File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Set the file to write the checkpoint to.
+     *
+     * @param file the checkpoint file
+     */
+    public final synchronized void setCheckpointFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        checkpointFile = file;
+    }
+
+    /**
+     * Get the classes of item metadata which can not be saved but may be dropped.
+     *
+     * @return the ignored classes
+     */
+    @Nonnull @NonnullElements public final synchronized List<Class<? extends ItemMetadata>> getIgnoredMetadata() {
+        return ignoredMetadata;
+    }
+
+    /**
+     * Set the classes of item metadata which can not be saved but may be dropped.
+     *
+     * @param classes the ignored classes
+     */
+    public final synchronized void setIgnoredMetadata(
+            @Nonnull @NonnullElements final Collection<Class<? extends ItemMetadata>> classes) {
+        checkSetterPreconditions();
+        ignoredMetadata = List.copyOf(classes);
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        try {
+            ItemCheckpoint.write(items, getCheckpointFile().toPath(), getIgnoredMetadata());
+            log.debug("{}: saved {} items to {}", getId(), items.size(), getCheckpointFile());
+        } catch (final IOException e) {
+            throw new StageProcessingException("could not write checkpoint " + getCheckpointFile(), e);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        checkpointFile = null;
+        ignoredMetadata = List.of();
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (checkpointFile == null) {
+            throw new ComponentInitializationException("checkpointFile must not be null");
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.xml.AttributeSupport;
+
+/**
+ * A stage which keeps only one copy of each <code>entityID</code>, such as when the same entity
+ * arrives both from the UK federation registrar and from interfederation feeds.
+ *
+ * <p>
+ * The collection is scanned once, remembering the preferred item for each <code>entityID</code>
+ * in a hash table. Of two items with the same <code>entityID</code>, the preferred one is:
+ * </p>
+ *
+ * <ol>
+ * <li>if <code>preferUKId</code> is set (the default), the one with a {@link UKId};</li>
+ * <li>otherwise, the one whose registration authority comes earlier in
+ * <code>registrationAuthorities</code>, an authority not in the list coming after all those in it;</li>
+ * <li>otherwise, the one earlier in the collection.</li>
+ * </ol>
+ *
+ * <p>
+ * The UK federation identifier and registration authority are taken from the item's
+ * {@link UKId} and {@link RegistrationAuthority} metadata. Each item removed is given an {@link InfoStatus}
+ * before it is removed, and so is the copy kept in its place. Items other than
+ * <code>EntityDescriptor</code>s are left alone.
+ * </p>
+ */
+@ThreadSafe
+public class DuplicateEntityRemovingStage extends AbstractStage<Element> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(DuplicateEntityRemovingStage.class);
+
+    /** Registration authorities, most preferred first. */
+    @GuardedBy("this") @Nonnull @NonnullElements private List<String> registrationAuthorities = List.of();
+
+    /** Whether an item with a {@link UKId} is preferred to one without. Default value: <code>true</code>. */
+    @GuardedBy("this") private boolean preferUKId = true;
+
+    /**
+     * Get the registration authorities, most preferred first.
+     *
+     * @return the registration authorities
+     */
+    @Nonnull @NonnullElements public final synchronized List<String> getRegistrationAuthorities() {
+        return registrationAuthorities;
+    }
+
+    /**
+     * Set the registration authorities, most preferred first.
+     *
+     * @param authorities the registration authorities
+     */
+    public final synchronized void setRegistrationAuthorities(
+            @Nonnull @NonnullElements final List<String> authorities) {
+        checkSetterPreconditions();
+        registrationAuthorities = List.copyOf(authorities);
+    }
+
+    /**
+     * Get whether an item with a {@link UKId} is preferred to one without.
+     *
+     * @return <code>true</code> if an item with a {@link UKId} is preferred
+     */
+    public final synchronized boolean isPreferUKId() {
+        return preferUKId;
+    }
+
+    /**
+     * Set whether an item with a {@link UKId} is preferred to one without.
+     *
+     * @param prefer <code>true</code> if an item with a {@link UKId} is preferred
+     */
+    public final synchronized void setPreferUKId(final boolean prefer) {
+        checkSetterPreconditions();
+        preferUKId = prefer;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final Map<String, Kept> kept = new HashMap<>();
+        final boolean[] remove = new boolean[items.size()];
+        int removed = 0;
+
+        for (int index = 0; index < items.size(); index++) {
+            final Item<Element> item = items.get(index);
+            final Element element = item.unwrap();
+            if (!SAMLMetadataSupport.isEntityDescriptor(element)) {
+                continue;
+            }
+            final String entityID = AttributeSupport.getAttributeValue(element, null, "entityID");
+            if (entityID == null) {
+                continue;
+            }
+
+            final Kept current = kept.get(entityID);
+            if (current == null) {
+                kept.put(entityID, new Kept(index));
+                continue;
+            }
+
+            // A duplicate: rank both, keeping the earlier one unless the later one is strictly better.
+            if (current.rank < 0) {
+                current.rank = rank(items.get(current.index));
+            }
+            final int rank = rank(item);
+            final int loser;
+            if (rank < current.rank) {
+                loser = current.index;
+                current.index = index;
+                current.rank = rank;
+            } else {
+                loser = index;
+            }
+            remove[loser] = true;
+            removed++;
+            current.removed.add(loser);
+        }
+
+        if (removed == 0) {
+            return;
+        }
+        for (final Map.Entry<String, Kept> e : kept.entrySet()) {
+            final Kept k = e.getValue();
+            if (k.removed.isEmpty()) {
+                continue;
+            }
+            final Item<Element> keeper = items.get(k.index);
+            final List<String> sources = new ArrayList<>(k.removed.size());
+            for (final int loser : k.removed) {
+                final Item<Element> duplicate = items.get(loser);
+                sources.add(describe(duplicate));
+                duplicate.getItemMetadata().put(new InfoStatus(getId(), "duplicate of entity " + e.getKey() +
+                        " from " + describe(keeper) + "; removed"));
+            }
+            keeper.getItemMetadata().put(new InfoStatus(getId(),
+                    "kept in preference to duplicates from " + String.join(", ", sources)));
+        }
+
+        final List<Item<Element>> retained = new ArrayList<>(items.size() - removed);
+        for (int index = 0; index < items.size(); index++) {
+            if (!remove[index]) {
+                retained.add(items.get(index));
+            }
+        }
+        items.clear();
+        items.addAll(retained);
+        log.debug("{}: removed {} duplicate entities", getId(), removed);
+    }
+
+    /**
+     * Rank an item; lower ranks are preferred.
+     *
+     * @param item the item
+     * @return the item's rank
+     */
+    private int rank(@Nonnull final Item<Element> item) {
+        final List<String> authorities = getRegistrationAuthorities();
+        final int authorityIndex = authorities.indexOf(UKEntityFacts.registrationAuthorityOf(item));
+        final int authorityRank = authorityIndex < 0 ? authorities.size() : authorityIndex;
+        if (isPreferUKId() && UKEntityFacts.ukIdOf(item) == null) {
+            return authorities.size() + 1 + authorityRank;
+        }
+        return authorityRank;
+    }
+
+    /**
+     * Describe where an item came from, for status messages.
+     *
+     * @param item the item
+     * @return the item's registration authority, or a placeholder if it has none
+     */
+    @Nonnull private static String describe(@Nonnull final Item<Element> item) {
+        final String authority = UKEntityFacts.registrationAuthorityOf(item);
+        return authority == null ? "(no registration authority)" : authority;
+    }
+
+    @Override
+    protected void doDestroy() {
+        registrationAuthorities = List.of();
+        super.doDestroy();
+    }
+
+    /** The item currently kept for an <code>entityID</code>. */
+    private static final class Kept {
+
+        /** Index of the item in the collection. */
+        private int index;
+
+        /** The item's rank, or -1 if it has not been ranked yet. */
+        private int rank = -1;
+
+        /** Indexes of the items removed in favour of this one. */
+        @Nonnull private final List<Integer> removed = new ArrayList<>(0);
+
+        /**
+         * Constructor.
+         *
+         * @param i index of the item in the collection
+         */
+        Kept(final int i) {
+            index = i;
+        }
+    }
+}
@@ -0,0 +1,562 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.xml.AttributeSupport;
+
+/**
+ * A columnar catalogue of the entities in a collection, for aggregate-wide queries.
+ *
+ * <p>
+ * Each item is a row, identified by its index in the collection the catalogue was built
+ * from. Each fact is held in its own primitive array: the numeric part of the {@link UKId},
+ * the role bitmask, and indexes into sorted dictionaries of UK federation identifiers, entityIDs,
+ * item identifiers, registration authorities, organization IDs, <code>EntitiesDescriptor</code>
+ * names and case-folded display names. Because the dictionaries are sorted, comparing two indexes
+ * gives the same result as comparing the strings they stand for, so the group-by, duplicate and
+ * sort queries work on packed <code>long</code> keys without building any per-query maps.
+ * </p>
+ *
+ * <p>
+ * The item metadata values are read with {@link UKEntityFacts#ukIdOf(Item)},
+ * {@link UKEntityFacts#itemIdOf(Item)} and {@link UKEntityFacts#registrationAuthorityOf(Item)},
+ * and the roles and organization ID from the DOM, so a catalogue reflects the collection as it
+ * was when the catalogue was built. It is not updated afterwards: a component should build its
+ * catalogue immediately before querying it. Missing values are represented by -1.
+ * </p>
+ */
+@Immutable
+public final class EntityCatalogue {
+
+    /** The columns which can be used to group or sort rows. */
+    public enum Column {
+        /** The entity's {@link UKId}. */
+        UKID,
+
+        /** The entity's <code>entityID</code>. */
+        ENTITY_ID,
+
+        /** The item's {@link net.shibboleth.metadata.ItemId}. */
+        ITEM_ID,
+
+        /** The entity's registration authority. */
+        REGISTRATION_AUTHORITY,
+
+        /** The organization ID of the entity's owner. */
+        ORG_ID,
+
+        /** The same value for every <code>EntitiesDescriptor</code>, and missing for every other item. */
+        ENTITIES_DESCRIPTOR,
+
+        /** The <code>Name</code> of an <code>EntitiesDescriptor</code>. */
+        ENTITIES_NAME,
+    }
+
+    /** Row type for an item which is neither an <code>EntityDescriptor</code> nor an <code>EntitiesDescriptor</code>. */
+    private static final byte TYPE_OTHER = 0;
+
+    /** Row type for an <code>EntityDescriptor</code>. */
+    private static final byte TYPE_ENTITY = 1;
+
+    /** Row type for an <code>EntitiesDescriptor</code>. */
+    private static final byte TYPE_ENTITIES = 2;
+
+    /** Number of rows in the catalogue. */
+    private final int size;
+
+    /** Type of each row. */
+    @Nonnull private final byte[] types;
+
+    /** Numeric part of each entity's UK federation identifier. */
+    @Nonnull private final int[] ukIdNumbers;
+
+    /** Role bitmask for each entity, as {@link UKEntityFacts}. */
+    @Nonnull private final int[] roles;
+
+    /** Start of each entity's display name keys in {@link #displayNameKeys}; one extra entry marks the end. */
+    @Nonnull private final int[] displayNameStart;
+
+    /** Dictionary indexes of each entity's distinct case-folded display names. */
+    @Nonnull private final int[] displayNameKeys;
+
+    /** Sorted dictionary of case-folded display names. */
+    @Nonnull private final String[] displayNameDictionary;
+
+    /** Dictionary index of each row's value in each {@link Column}, indexed by column ordinal. */
+    @Nonnull private final int[][] columns;
+
+    /** Sorted dictionary for each {@link Column}, indexed by column ordinal. */
+    @Nonnull private final String[][] dictionaries;
+
+    /**
+     * Constructor.
+     *
+     * @param builder the builder holding the catalogue's contents
+     */
+    private EntityCatalogue(@Nonnull final Builder builder) {
+        size = builder.size;
+        types = builder.types;
+        ukIdNumbers = builder.ukIdNumbers;
+        roles = builder.roles;
+        displayNameStart = builder.displayNameStart;
+        displayNameKeys = builder.displayNames.encode(builder.displayNameValues);
+        displayNameDictionary = builder.displayNames.sorted;
+
+        final int count = Column.values().length;
+        columns = new int[count][];
+        dictionaries = new String[count][];
+        for (int c = 0; c < count; c++) {
+            columns[c] = builder.dictionaries[c].encode(builder.values.get(c));
+            dictionaries[c] = builder.dictionaries[c].sorted;
+        }
+    }
+
+    /**
+     * Get the number of rows in the catalogue.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get whether a row is an <code>EntityDescriptor</code>.
+     *
+     * @param row the row
+     * @return <code>true</code> if the row's item is an <code>EntityDescriptor</code>
+     */
+    public boolean isEntityDescriptor(final int row) {
+        return types[row] == TYPE_ENTITY;
+    }
+
+    /**
+     * Get whether a row is an <code>EntitiesDescriptor</code>.
+     *
+     * @param row the row
+     * @return <code>true</code> if the row's item is an <code>EntitiesDescriptor</code>
+     */
+    public boolean isEntitiesDescriptor(final int row) {
+        return types[row] == TYPE_ENTITIES;
+    }
+
+    /**
+     * Get the numeric part of an entity's UK federation identifier.
+     *
+     * @param row the entity's row
+     * @return the numeric part of the identifier, or -1 if the entity has none, or one not of the
+     *  form <code>uk</code> followed by six digits
+     */
+    public int getUKId(final int row) {
+        return ukIdNumbers[row];
+    }
+
+    /**
+     * Get an entity's roles.
+     *
+     * @param row the entity's row
+     * @return the entity's roles, as a bitmask of the {@link UKEntityFacts} <code>ROLE_</code> constants
+     */
+    public int getRoles(final int row) {
+        return roles[row];
+    }
+
+    /**
+     * Get a row's value in a column.
+     *
+     * @param row the row
+     * @param column the column
+     * @return the value, or <code>null</code> if the row has none
+     */
+    @Nullable public String getValue(final int row, @Nonnull final Column column) {
+        final int index = columns[column.ordinal()][row];
+        return index < 0 ? null : dictionaries[column.ordinal()][index];
+    }
+
+    /**
+     * Get an entity's distinct case-folded display names.
+     *
+     * @param row the entity's row
+     * @return the entity's distinct case-folded display names, in sorted order
+     */
+    @Nonnull @NonnullElements public List<String> getDisplayNameKeys(final int row) {
+        final List<String> names = new ArrayList<>();
+        for (int i = displayNameStart[row]; i < displayNameStart[row + 1]; i++) {
+            names.add(displayNameDictionary[displayNameKeys[i]]);
+        }
+        return names;
+    }
+
+    /**
+     * Group the rows which share a value in a column.
+     *
+     * <p>
+     * Rows with no value in the column are omitted. Rows within a group are in ascending order,
+     * and groups are in order of their first row.
+     * </p>
+     *
+     * @param column the column to group by
+     * @return the groups of rows
+     */
+    @Nonnull public int[][] groupBy(@Nonnull final Column column) {
+        return group(columns[column.ordinal()], false);
+    }
+
+    /**
+     * Find the rows which share a value in a column with at least one other row.
+     *
+     * @param column the column to check
+     * @return the groups of rows sharing a value, as for {@link #groupBy(Column)}
+     */
+    @Nonnull public int[][] findDuplicates(@Nonnull final Column column) {
+        return group(columns[column.ordinal()], true);
+    }
+
+    /**
+     * Find the entities with a given role which share a case-folded display name.
+     *
+     * @param roleMask bitmask of the {@link UKEntityFacts} <code>ROLE_</code> constants, any of which
+     *  an entity must have to be considered; 0 to consider all entities
+     * @return the groups of rows sharing a display name, keyed by that case-folded display name;
+     *  the groups are ordered as for {@link #groupBy(Column)}, with groups sharing a first row
+     *  in order of display name. An entity may appear in more than one group.
+     */
+    @Nonnull public Map<String, int[]> findDisplayNameClashes(final int roleMask) {
+        int count = 0;
+        final long[] packed = new long[displayNameKeys.length];
+        for (int row = 0; row < size; row++) {
+            if (roleMask == 0 || (roles[row] & roleMask) != 0) {
+                for (int i = displayNameStart[row]; i < displayNameStart[row + 1]; i++) {
+                    packed[count++] = pack(displayNameKeys[i], row);
+                }
+            }
+        }
+        final Map<String, int[]> clashes = new LinkedHashMap<>();
+        for (final int[] group : groupPacked(packed, count, true)) {
+            clashes.put(displayNameDictionary[group[0]], Arrays.copyOfRange(group, 1, group.length));
+        }
+        return clashes;
+    }
+
+    /**
+     * Compute the permutation which sorts the rows by one or more columns.
+     *
+     * <p>
+     * Rows are compared on each column in turn, a row with no value in a column coming after
+     * one which has a value. The sort is stable: rows which compare equal on every column stay in
+     * their original order.
+     * </p>
+     *
+     * @param sortColumns the columns to sort by, most significant first
+     * @return the rows, in sorted order
+     */
+    @Nonnull public int[] sortPermutation(@Nonnull final Column... sortColumns) {
+        int[] permutation = new int[size];
+        for (int row = 0; row < size; row++) {
+            permutation[row] = row;
+        }
+
+        // Stable sorts from the least significant column to the most significant.
+        final long[] packed = new long[size];
+        for (int c = sortColumns.length - 1; c >= 0; c--) {
+            final int[] keys = columns[sortColumns[c].ordinal()];
+            for (int i = 0; i < size; i++) {
+                // Missing values become Integer.MAX_VALUE so that they sort last.
+                final int key = keys[permutation[i]];
+                packed[i] = pack(key < 0 ? Integer.MAX_VALUE : key, i);
+            }
+            Arrays.sort(packed);
+            final int[] next = new int[size];
+            for (int i = 0; i < size; i++) {
+                next[i] = permutation[(int) packed[i]];
+            }
+            permutation = next;
+        }
+        return permutation;
+    }
+
+    /**
+     * Build a catalogue of a collection of items, without display names.
+     *
+     * @param items the items to catalogue
+     * @return the catalogue
+     */
+    @Nonnull public static EntityCatalogue build(@Nonnull @NonnullElements final List<Item<Element>> items) {
+        return build(items, Collections.nCopies(items.size(), Collections.emptyList()));
+    }
+
+    /**
+     * Build a catalogue of a collection of items.
+     *
+     * @param items the items to catalogue
+     * @param displayNames the display names of each item, in the same order as the items
+     * @return the catalogue
+     */
+    @Nonnull public static EntityCatalogue build(@Nonnull @NonnullElements final List<Item<Element>> items,
+            @Nonnull @NonnullElements final List<? extends Collection<String>> displayNames) {
+        Constraint.isTrue(items.size() == displayNames.size(), "display names must be given for every item");
+        final Builder builder = new Builder(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            builder.add(items.get(i), displayNames.get(i));
+        }
+        return new EntityCatalogue(builder);
+    }
+
+    /**
+     * Group rows by key.
+     *
+     * @param keys the keys, indexed by row
+     * @param duplicatesOnly whether to return only groups with more than one row
+     * @return the groups of rows
+     */
+    @Nonnull private int[][] group(@Nonnull final int[] keys, final boolean duplicatesOnly) {
+        int count = 0;
+        final long[] packed = new long[size];
+        for (int row = 0; row < size; row++) {
+            if (keys[row] >= 0) {
+                packed[count++] = pack(keys[row], row);
+            }
+        }
+        final List<int[]> groups = groupPacked(packed, count, duplicatesOnly);
+        final int[][] result = new int[groups.size()][];
+        for (int i = 0; i < result.length; i++) {
+            final int[] group = groups.get(i);
+            result[i] = Arrays.copyOfRange(group, 1, group.length);
+        }
+        return result;
+    }
+
+    /**
+     * Group packed (key, row) pairs by key.
+     *
+     * @param packed the packed pairs, which will be sorted in place
+     * @param count the number of pairs in use
+     * @param duplicatesOnly whether to return only groups with more than one distinct row
+     * @return the groups, each being the key followed by the group's distinct rows in ascending order;
+     *  in order of their first row and then of their key
+     */
+    @Nonnull private static List<int[]> groupPacked(@Nonnull final long[] packed, final int count,
+            final boolean duplicatesOnly) {
+        final List<int[]> groups = new ArrayList<>();
+        Arrays.sort(packed, 0, count);
+
+        final int[] rows = new int[count + 1];
+        int start = 0;
+        while (start < count) {
+            final int key = (int) (packed[start] >>> 32);
+            rows[0] = key;
+            int n = 1;
+            int end = start;
+            while (end < count && (int) (packed[end] >>> 32) == key) {
+                final int row = (int) packed[end];
+                if (n == 1 || rows[n - 1] != row) {
+                    rows[n++] = row;
+                }
+                end++;
+            }
+            if (!duplicatesOnly || n > 2) {
+                groups.add(Arrays.copyOf(rows, n));
+            }
+            start = end;
+        }
+
+        // A stable sort, so that groups with the same first row stay in key order.
+        groups.sort((a, b) -> Integer.compare(a[1], b[1]));
+        return groups;
+    }
+
+    /**
+     * Pack a non-negative key and a row into a single sortable value.
+     *
+     * @param key the key
+     * @param row the row
+     * @return the packed value
+     */
+    private static long pack(final int key, final int row) {
+        return (long) key << 32 | row;
+    }
+
+    /** Builds a sorted dictionary of strings. */
+    private static final class Dictionary {
+
+        /** Temporary index of each distinct value, in order of first appearance. */
+        @Nonnull private final Map<String, Integer> provisional = new HashMap<>();
+
+        /** The distinct values, sorted; available after {@link #encode(List)}. */
+        @Nonnull private String[] sorted = new String[0];
+
+        /**
+         * Record a value.
+         *
+         * @param value the value, or <code>null</code>
+         */
+        void add(@Nullable final String value) {
+            if (value != null) {
+                provisional.putIfAbsent(value, provisional.size());
+            }
+        }
+
+        /**
+         * Sort the dictionary and encode a list of values as indexes into it.
+         *
+         * @param values the values, each of which has been recorded or is <code>null</code>
+         * @return the sorted dictionary index of each value, or -1 for <code>null</code>
+         */
+        @Nonnull int[] encode(@Nonnull final List<String> values) {
+            sorted = provisional.keySet().toArray(new String[0]);
+            Arrays.sort(sorted);
+            final Map<String, Integer> index = new HashMap<>(sorted.length * 2);
+            for (int i = 0; i < sorted.length; i++) {
+                index.put(sorted[i], i);
+            }
+            final int[] encoded = new int[values.size()];
+            for (int i = 0; i < encoded.length; i++) {
+                final String value = values.get(i);
+                encoded[i] = value == null ? -1 : index.get(value);
+            }
+            return encoded;
+        }
+    }
+
+    /** Accumulates the rows of a catalogue. */
+    private static final class Builder {
+
+        /** Number of rows added so far. */
+        private int size;
+
+        /** Type of each row. */
+        @Nonnull private final byte[] types;
+
+        /** Numeric part of each entity's UK federation identifier. */
+        @Nonnull private final int[] ukIdNumbers;
+
+        /** Role bitmask for each entity. */
+        @Nonnull private final int[] roles;
+
+        /** Start of each entity's display names. */
+        @Nonnull private final int[] displayNameStart;
+
+        /** Dictionary for each {@link Column}, indexed by column ordinal. */
+        @Nonnull private final Dictionary[] dictionaries;
+
+        /** Each row's value in each {@link Column}, indexed by column ordinal. */
+        @Nonnull private final List<List<String>> values;
+
+        /** Dictionary of case-folded display names. */
+        @Nonnull private final Dictionary displayNames = new Dictionary();
+
+        /** All entities' case-folded display names, in row order. */
+        @Nonnull private final List<String> displayNameValues = new ArrayList<>();
+
+        /**
+         * Constructor.
+         *
+         * @param capacity number of rows to be added
+         */
+        Builder(final int capacity) {
+            types = new byte[capacity];
+            ukIdNumbers = new int[capacity];
+            roles = new int[capacity];
+            displayNameStart = new int[capacity + 1];
+            final int count = Column.values().length;
+            dictionaries = new Dictionary[count];
+            values = new ArrayList<>(count);
+            for (int c = 0; c < count; c++) {
+                dictionaries[c] = new Dictionary();
+                values.add(new ArrayList<>(capacity));
+            }
+        }
+
+        /**
+         * Record a row's value in a column.
+         *
+         * @param column the column
+         * @param value the value, or <code>null</code>
+         */
+        private void set(@Nonnull final Column column, @Nullable final String value) {
+            dictionaries[column.ordinal()].add(value);
+            values.get(column.ordinal()).add(value);
+        }
+
+        /**
+         * Add a row.
+         *
+         * @param item the item to add
+         * @param names the item's display names
+         */
+        void add(@Nonnull final Item<Element> item, @Nonnull final Collection<String> names) {
+            final Element element = item.unwrap();
+            final String ukId = UKEntityFacts.ukIdOf(item);
+            ukIdNumbers[size] = UKId.number(ukId);
+            set(Column.UKID, ukId);
+            set(Column.ITEM_ID, UKEntityFacts.itemIdOf(item));
+            set(Column.REGISTRATION_AUTHORITY, UKEntityFacts.registrationAuthorityOf(item));
+
+            if (SAMLMetadataSupport.isEntityDescriptor(element)) {
+                types[size] = TYPE_ENTITY;
+                roles[size] = UKEntityFacts.rolesOf(element);
+                set(Column.ENTITY_ID, AttributeSupport.getAttributeValue(element, null, "entityID"));
+                set(Column.ORG_ID, UKEntityFacts.orgIDOf(element));
+                set(Column.ENTITIES_DESCRIPTOR, null);
+                set(Column.ENTITIES_NAME, null);
+            } else {
+                types[size] = SAMLMetadataSupport.isEntitiesDescriptor(element) ? TYPE_ENTITIES : TYPE_OTHER;
+                set(Column.ENTITY_ID, null);
+                set(Column.ORG_ID, null);
+                if (types[size] == TYPE_ENTITIES) {
+                    set(Column.ENTITIES_DESCRIPTOR, "");
+                    final Attr name = element.getAttributeNode("Name");
+                    set(Column.ENTITIES_NAME, name == null ? null : name.getTextContent());
+                } else {
+                    set(Column.ENTITIES_DESCRIPTOR, null);
+                    set(Column.ENTITIES_NAME, null);
+                }
+            }
+
+            final TreeSet<String> folded = new TreeSet<>();
+            for (final String name : names) {
+                folded.add(name.toLowerCase());
+            }
+            for (final String name : folded) {
+                displayNames.add(name);
+                displayNameValues.add(name);
+            }
+
+            size++;
+            displayNameStart[size] = displayNameValues.size();
+        }
+    }
+}
@@ -14,9 +14,7 @@
 
 package uk.org.ukfederation.mda;
 
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
@@ -41,6 +39,12 @@ import net.shibboleth.shared.xml.AttributeSupport;
 /**
  * A stage which, for each EntityDescriptor collection element, adds a {@link UKId}, with the entity's ID, to
  * the metadata item.
+ *
+ * <p>
+ * Duplicate ID values are found with an {@link EntityCatalogue} of the collection once every
+ * entity's {@link UKId} has been added. Only the first entity with each value keeps its {@link UKId};
+ * the others are given an {@link ErrorStatus} instead.
+ * </p>
  */
 @ThreadSafe
 public class EntityDescriptorUKIdPopulationStage extends AbstractStage<Element> {
@@ -54,10 +58,11 @@ public class EntityDescriptorUKIdPopulationStage extends AbstractStage<Element>
     protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
             throws StageProcessingException {
 
-        // ID values that we have already seen (they must be unique)
-        final Set<String> ids = new HashSet<>(items.size());
-        
-        for (final Item<Element> item : items) {
+        // The UKId added to each item, if any
+        final UKId[] added = new UKId[items.size()];
+
+        for (int row = 0; row < items.size(); row++) {
+           final Item<Element> item = items.get(row);
            final Element element = item.unwrap();
            final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
            
@@ -72,15 +77,33 @@ public class EntityDescriptorUKIdPopulationStage extends AbstractStage<Element>
                } else if (!pattern.matcher(id).matches()) {
                    metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " has an ID value '" + id +
                            "' that does not look like a UK federation identifier"));
-               } else if (ids.contains(id)) {
-                   metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " has duplicate ID value " + id));
                } else {
-                   metadata.put(new UKId(id));
-                   ids.add(id);
+                   added[row] = new UKId(id);
+                   metadata.put(added[row]);
                }
            }
            
         }
+
+        // The ID values must be unique: only the first entity with each keeps its UKId
+        final EntityCatalogue catalogue = EntityCatalogue.build(items);
+        for (final int[] group : catalogue.findDuplicates(EntityCatalogue.Column.UKID)) {
+            boolean first = true;
+            for (final int row : group) {
+                if (added[row] == null) {
+                    continue;
+                }
+                if (first) {
+                    first = false;
+                } else {
+                    final ClassToInstanceMultiMap<ItemMetadata> metadata = items.get(row).getItemMetadata();
+                    metadata.remove(added[row]);
+                    metadata.put(new ErrorStatus(getId(), "EntityDescriptor " +
+                            Strings.nullToEmpty(catalogue.getValue(row, EntityCatalogue.Column.ENTITY_ID)) +
+                            " has duplicate ID value " + added[row].getId()));
+                }
+            }
+        }
     }
     
     @Override
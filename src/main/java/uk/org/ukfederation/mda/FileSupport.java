@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Helper methods for the files written by the aggregator's stages and indexes.
+ */
+public final class FileSupport {
+
+    /** Lower-case hexadecimal digits. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Constructor. */
+    private FileSupport() {
+    }
+
+    /**
+     * Write a file by way of a temporary file in the same directory, which then replaces it atomically.
+     *
+     * <p>
+     * Readers therefore see either the old content or the new, never a partly written file,
+     * and the old content is kept if writing fails part way through.
+     * </p>
+     *
+     * @param file the file to write
+     * @param writer writes the content to a stream, which it may close once it has finished
+     * @throws IOException if the file can not be written
+     */
+    public static void writeAtomically(@Nonnull final Path file, @Nonnull final ContentWriter writer)
+            throws IOException {
+        final Path temp = Files.createTempFile(file.toAbsolutePath().getParent(),
+                file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                writer.write(out);
+            }
+            replace(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Atomically move a file into place, replacing any file already there.
+     *
+     * @param source the file to move, which must be on the same file system as <code>target</code>
+     * @param target where to move it to
+     * @throws IOException if the file can not be moved
+     */
+    public static void replace(@Nonnull final Path source, @Nonnull final Path target) throws IOException {
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Check whether a file is a temporary file left behind by {@link #writeAtomically(Path, ContentWriter)}.
+     *
+     * @param file the file
+     * @return <code>true</code> if the file's name is that of a temporary file
+     */
+    public static boolean isTemporary(@Nonnull final Path file) {
+        return file.getFileName().toString().endsWith(".tmp");
+    }
+
+    /**
+     * Convert bytes to lower-case hex.
+     *
+     * @param bytes the bytes to convert
+     * @return the hex string
+     */
+    @Nonnull public static String hex(@Nonnull final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /** Writes the content of a file to a stream. */
+    @FunctionalInterface
+    public interface ContentWriter {
+
+        /**
+         * Write the content.
+         *
+         * @param out the stream to write to
+         * @throws IOException if the content can not be written
+         */
+        void write(@Nonnull OutputStream out) throws IOException;
+    }
+}
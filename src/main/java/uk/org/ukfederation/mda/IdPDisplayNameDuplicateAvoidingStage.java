@@ -14,6 +14,7 @@
 
 package uk.org.ukfederation.mda;
 
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -22,6 +23,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -32,7 +34,6 @@ import javax.xml.namespace.QName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -48,7 +49,8 @@ import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.shared.annotation.constraint.NonnullElements;
 import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
 import net.shibboleth.shared.logic.Constraint;
-import net.shibboleth.shared.xml.ElementSupport;
+import net.shibboleth.shared.xml.AttributeSupport;
+import uk.org.ukfederation.mda.dom.ElementCursorSupport;
 
 /**
  * A stage which examines the discovery names used by each of a collection of entities, and deconflicts
@@ -80,6 +82,14 @@ import net.shibboleth.shared.xml.ElementSupport;
  *      The {@link MessageFormat} format string used to compose new display names.
  *      By default, <code>"[{1}] {0}"</code>, resulting in names of the form "<code>[CODE] oldname</code>".
  *   </dd>
+ *
+ *   <dt>displayNameRegistry</dt>
+ *   <dd>
+ *      An optional {@link IdPDisplayNameRegistry} in which the discovery names of all identity
+ *      providers are recorded, before any are deconflicted and in a namespace named by the
+ *      stage's identifier, and which is consulted to find clashes with "our" names.
+ *      By default, <code>null</code>.
+ *   </dd>
  * </dl>
  *   
  *
@@ -88,12 +98,18 @@ import net.shibboleth.shared.xml.ElementSupport;
 @ThreadSafe
 public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element> {
 
-    /** {@link QName} representing an SAML metadata <code>IDPSSODescriptor</code>. */
-    private static final QName MD_IDP_SSO_DESCRIPTOR = new QName(SAMLMetadataSupport.MD_NS, "IDPSSODescriptor");
-    
     /** {@link QName} representing a SAML metadata <code>OrganizationDisplayName</code>. */
     private static final QName MD_ORG_DISPLAY_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName");
 
+    /** Depth below <code>EntityDescriptor</code> of <code>RoleDescriptor/Extensions/UIInfo/DisplayName</code>. */
+    private static final int MDUI_DISPLAY_NAME_DEPTH = 4;
+
+    /**
+     * Depth below <code>EntityDescriptor</code> of <code>RoleDescriptor/Organization/OrganizationDisplayName</code>,
+     * the deepest place an <code>OrganizationDisplayName</code> may appear.
+     */
+    private static final int ORG_DISPLAY_NAME_DEPTH = 3;
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(IdPDisplayNameDuplicateAvoidingStage.class);
 
@@ -132,6 +148,10 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     @Nonnull @GuardedBy("this")
     private String nameFormat = "[{1}] {0}";
 
+    /** Registry of discovery names to record identity providers in, or <code>null</code>. */
+    @Nullable @GuardedBy("this")
+    private IdPDisplayNameRegistry displayNameRegistry;
+
     /**
      * Get the registration authority.
      * 
@@ -213,20 +233,43 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
         nameFormat = newNameFormat;
     }
 
+    /**
+     * Get the discovery name registry in use, if any.
+     *
+     * @return the {@link IdPDisplayNameRegistry}, or <code>null</code>
+     */
+    @Nullable
+    public final synchronized IdPDisplayNameRegistry getDisplayNameRegistry() {
+        return displayNameRegistry;
+    }
+
+    /**
+     * Set the discovery name registry to use.
+     *
+     * @param registry the {@link IdPDisplayNameRegistry} to use, or <code>null</code> for none
+     */
+    public final synchronized void setDisplayNameRegistry(@Nullable final IdPDisplayNameRegistry registry) {
+        checkSetterPreconditions();
+        displayNameRegistry = registry;
+    }
+
     /**
      * Return all elements with the given name within the given entity descriptor.
      * 
      * @param entity the {@link Element} representing the entity's <code>md:EntityDescriptor</code>
      * @param qname the {@link QName} being searched for
+     * @param maxDepth deepest level below <code>entity</code> at which the elements can appear
      * @return a {@link List} of {@link Element}s with the requested name
      */
     @Nonnull @NonnullElements
     private List<Element> extractElements(@Nonnull final Element entity,
-            @Nonnull final QName qname) {
+            @Nonnull final QName qname, final int maxDepth) {
         final List<Element> names = new ArrayList<>();
-        final NodeList elements = entity.getElementsByTagNameNS(qname.getNamespaceURI(), qname.getLocalPart());
-        for (int n = 0; n < elements.getLength(); n++) {
-            final Element element = (Element)elements.item(n);
+        final String ns = qname.getNamespaceURI();
+        final String localName = qname.getLocalPart();
+        for (Element element = ElementCursorSupport.firstDescendantElement(entity, ns, localName, maxDepth);
+                element != null;
+                element = ElementCursorSupport.nextDescendantElement(entity, element, ns, localName, maxDepth)) {
             names.add(element);
         }
         return names;
@@ -244,13 +287,13 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     @Nonnull @NonnullElements
     private List<Element> extractDiscoveryNameElements(@Nonnull final Element entity) {
         // Look at mdui:DisplayName first
-        final List<Element> mduiNames = extractElements(entity, MDUISupport.DISPLAYNAME_NAME);
+        final List<Element> mduiNames = extractElements(entity, MDUISupport.DISPLAYNAME_NAME, MDUI_DISPLAY_NAME_DEPTH);
         if (!mduiNames.isEmpty()) {
             return mduiNames;
         }
 
         // Otherwise, fall back to legacy md:OrganizationDisplayName elements
-        return extractElements(entity, MD_ORG_DISPLAY_NAME);
+        return extractElements(entity, MD_ORG_DISPLAY_NAME, ORG_DISPLAY_NAME_DEPTH);
     }
 
     /**
@@ -283,17 +326,13 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
      */
     @Nullable
     private String extractRegistrationAuthority(@Nonnull final Item<Element> item) {
-        final List<RegistrationAuthority> regAuths = item.getItemMetadata().get(RegistrationAuthority.class);
-        if (regAuths.isEmpty()) {
-            return null;
-        } else {
-            return regAuths.get(0).getRegistrationAuthority();
-        }
+        return UKEntityFacts.registrationAuthorityOf(item);
     }
 
     /**
      * Separate a list of entities into two lists of identity providers, on the basis of
-     * the registration authority associated with each.
+     * the registration authority associated with each, by grouping an {@link EntityCatalogue}
+     * of the entities by registration authority.
      * 
      * <p>Non-entities, and non-IdPs, are ignored.</p>
      * 
@@ -302,39 +341,74 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
      * @param otherIdPs collection of identity providers registered by any other registration authority
      * @param ourRegAuth registration authority to make the distinction between the lists with
      */
-    private void separateEntities(@Nonnull @NonnullElements final Collection<Item<Element>> items,
+    private void separateEntities(@Nonnull @NonnullElements final List<Item<Element>> items,
             @Nonnull @NonnullElements final List<Item<Element>> ourIdPs,
             @Nonnull @NonnullElements final List<Item<Element>> otherIdPs,
             @Nonnull final String ourRegAuth) {
-        for (final Item<Element> item : items) {
-            final Element entity = item.unwrap();
+        final EntityCatalogue catalogue = EntityCatalogue.build(items);
+
+        // Find the entities registered by our registration authority
+        final boolean[] ours = new boolean[items.size()];
+        for (final int[] group : catalogue.groupBy(EntityCatalogue.Column.REGISTRATION_AUTHORITY)) {
+            if (ourRegAuth.equals(catalogue.getValue(group[0], EntityCatalogue.Column.REGISTRATION_AUTHORITY))) {
+                for (final int row : group) {
+                    ours[row] = true;
+                }
+            }
+        }
+
+        for (int row = 0; row < items.size(); row++) {
+            final Item<Element> item = items.get(row);
             final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
 
             // All items must be entities
-            if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
+            if (!catalogue.isEntityDescriptor(row)) {
                 metadata.put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
                 continue;
             }
 
             // All items must have a registrationAuthority
-            final String regAuth = extractRegistrationAuthority(item);
-            if (regAuth == null) {
+            if (catalogue.getValue(row, EntityCatalogue.Column.REGISTRATION_AUTHORITY) == null) {
                 metadata.put(new ErrorStatus(getId(), "item is missing a registration authority"));
                 continue;
             }
 
             // Process only IdPs
-            if (!ElementSupport.getChildElements(entity, MD_IDP_SSO_DESCRIPTOR).isEmpty()) {
-                if (regAuth.equals(ourRegAuth)) {
+            if ((catalogue.getRoles(row) & UKEntityFacts.ROLE_IDP) != 0) {
+                if (ours[row]) {
                     ourIdPs.add(item);
                 } else {
                     otherIdPs.add(item);
                 }
-                
             }
         }        
     }
 
+    /**
+     * Record the discovery names of all of the given identity providers in the registry.
+     *
+     * @param registry the {@link IdPDisplayNameRegistry} to record the names in
+     * @param idps the identity providers to record
+     * @return <code>true</code> if each identity provider could be recorded under a distinct <code>entityID</code>
+     */
+    private boolean updateRegistry(@Nonnull final IdPDisplayNameRegistry registry,
+            @Nonnull @NonnullElements final Collection<Item<Element>> idps) {
+        final Set<String> entityIDs = new HashSet<>();
+        boolean distinct = true;
+        for (final Item<Element> item : idps) {
+            final Element entity = item.unwrap();
+            final String entityID = AttributeSupport.getAttributeValue(entity, null, "entityID");
+            if (entityID == null || !entityIDs.add(entityID)) {
+                distinct = false;
+            } else {
+                final List<String> names = extractDiscoveryNames(extractDiscoveryNameElements(entity));
+                registry.update(getId(), entityID, extractRegistrationAuthority(item), new TreeSet<>(names));
+            }
+        }
+        registry.retainUpdated(getId());
+        return distinct;
+    }
+
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
             throws StageProcessingException {
@@ -347,6 +421,15 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
         final List<Item<Element>> otherIdPs = new ArrayList<>();
         separateEntities(items, ourIdPs, otherIdPs, ourRegAuth);
 
+        // Bring the registry, if we have one, up to date with all of the IdPs
+        final IdPDisplayNameRegistry registry = getDisplayNameRegistry();
+        boolean useRegistry = false;
+        if (registry != null) {
+            final List<Item<Element>> allIdPs = new ArrayList<>(ourIdPs);
+            allIdPs.addAll(otherIdPs);
+            useRegistry = updateRegistry(registry, allIdPs);
+        }
+
         // Collect discovery names used by "our" entities
         final Set<String> ourNames = new HashSet<>();
         for (final Item<Element> item : ourIdPs) {
@@ -370,7 +453,9 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
             final List<Element> discoveryNameElements = extractDiscoveryNameElements(item.unwrap());
             for (final Element nameElement : discoveryNameElements) {
                 final String name = nameElement.getTextContent().trim();
-                if (ourNames.contains(name)) {
+                final boolean clashes = useRegistry ?
+                        registry.isNameUsedByAuthority(getId(), name, ourRegAuth) : ourNames.contains(name);
+                if (clashes) {
                     // Deconflict this name
                     String registrationHandle =
                             getRegistrationAuthorityDisplayNames().get(extractRegistrationAuthority(item));
@@ -387,6 +472,21 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
                 }
             }
         }
+
+        if (registry != null) {
+            try {
+                registry.save();
+            } catch (final IOException e) {
+                throw new StageProcessingException("could not save display name registry", e);
+            }
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        displayNameRegistry = null;
+
+        super.doDestroy();
     }
 
 }
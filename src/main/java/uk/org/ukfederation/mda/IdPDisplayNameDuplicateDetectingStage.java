@@ -14,21 +14,22 @@
 
 package uk.org.ukfederation.mda;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.xml.namespace.QName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.FirstItemIdItemIdentificationStrategy;
@@ -42,11 +43,24 @@ import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.shared.annotation.constraint.NonnullElements;
 import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
 import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.xml.AttributeSupport;
+import uk.org.ukfederation.mda.dom.ElementCursorSupport;
 
 /**
  * A stage which, for each <code>EntityDescriptor</code> collection element representing an identity provider,
  * makes sure that the display name or names associated with the entity are not duplicates of any declared by
  * any other identity provider entity.
+ *
+ * <p>
+ * If a {@link IdPDisplayNameRegistry} is supplied as the <code>displayNameRegistry</code> property,
+ * each identity provider's names are recorded in it, in a namespace named by the stage's
+ * identifier, and only those entities sharing a name with some other entity are examined for
+ * clashes. The results are the same either way.
+ * </p>
+ *
+ * <p>
+ * Clashes are found with an {@link EntityCatalogue} of the identity providers examined.
+ * </p>
  */
 @ThreadSafe
 public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element> {
@@ -56,6 +70,15 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
     
     /** {@link QName} representing a SAML metadata <code>OrganizationDisplayName</code>. */
     private static final QName MD_ORG_DISPLAY_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName");
+
+    /** Depth below <code>EntityDescriptor</code> of <code>RoleDescriptor/Extensions/UIInfo/DisplayName</code>. */
+    private static final int MDUI_DISPLAY_NAME_DEPTH = 4;
+
+    /**
+     * Depth below <code>EntityDescriptor</code> of <code>RoleDescriptor/Organization/OrganizationDisplayName</code>,
+     * the deepest place an <code>OrganizationDisplayName</code> may appear.
+     */
+    private static final int ORG_DISPLAY_NAME_DEPTH = 3;
     
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(IdPDisplayNameDuplicateDetectingStage.class);
@@ -67,6 +90,14 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
      */
     @Nonnull
     private ItemIdentificationStrategy<Element> identificationStrategy = new FirstItemIdItemIdentificationStrategy<>();
+
+    /**
+     * Registry of discovery names to record identity providers in.
+     *
+     * Default: <code>null</code>, meaning that no registry is used.
+     */
+    @Nullable
+    private IdPDisplayNameRegistry displayNameRegistry;
     
     /**
      * Gets the item identification strategy to be used.
@@ -88,26 +119,25 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
         Constraint.isNotNull(strategy, "identification strategy may not be null");
         identificationStrategy = strategy;
     }
-    
+
     /**
-     * Determines whether the given <code>element</code> has at least one child named by <code>qname</code>.
-     * 
-     * @param element {@link Element} whose children should be inspected
-     * @param qname {@link QName} to look for
-     * 
-     * @return <code>true</code> if <code>element</code> has at least one child <code>qname</code> element.
+     * Gets the discovery name registry in use, if any.
+     *
+     * @return the {@link IdPDisplayNameRegistry}, or <code>null</code>
      */
-    private boolean hasChildElement(@Nonnull final Element element, @Nonnull final QName qname) {
-        assert element != null;
-        assert qname != null;
-        for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
-            if (n.getNodeType() == Node.ELEMENT_NODE &&
-                    n.getNamespaceURI().equals(qname.getNamespaceURI()) &&
-                    n.getLocalName().equals(qname.getLocalPart())) {
-                return true;
-            }
-        }
-        return false;
+    @Nullable
+    public final synchronized IdPDisplayNameRegistry getDisplayNameRegistry() {
+        return displayNameRegistry;
+    }
+
+    /**
+     * Sets the discovery name registry to use.
+     *
+     * @param registry the {@link IdPDisplayNameRegistry} to use, or <code>null</code> for none
+     */
+    public final synchronized void setDisplayNameRegistry(@Nullable final IdPDisplayNameRegistry registry) {
+        checkSetterPreconditions();
+        displayNameRegistry = registry;
     }
     
     /**
@@ -116,16 +146,19 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
      * 
      * @param entity <code>EntityDescriptor</code> to look for display names inside
      * @param qname element name containing display names
+     * @param maxDepth deepest level below <code>entity</code> at which the elements can appear
      * @param names collection of names to add into
      */
     private void collectNames(@Nonnull final Element entity,
-            @Nonnull final QName qname, @Nonnull final Set<String> names) {
+            @Nonnull final QName qname, final int maxDepth, @Nonnull final Set<String> names) {
         assert entity != null;
         assert qname != null;
         assert names != null;
-        final NodeList elements = entity.getElementsByTagNameNS(qname.getNamespaceURI(), qname.getLocalPart());
-        for (int n = 0; n < elements.getLength(); n++) {
-            final Element element = (Element)elements.item(n);
+        final String ns = qname.getNamespaceURI();
+        final String localName = qname.getLocalPart();
+        for (Element element = ElementCursorSupport.firstDescendantElement(entity, ns, localName, maxDepth);
+                element != null;
+                element = ElementCursorSupport.nextDescendantElement(entity, element, ns, localName, maxDepth)) {
             final String textContent = element.getTextContent();
             if (log.isTraceEnabled()) {
                 log.trace("seen display name '" + textContent + "'");
@@ -151,12 +184,12 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
         final Set<String> displayNames = new HashSet<>();
 
         // Collect display names from any mdui:DisplayName elements present.
-        collectNames(element, MDUISupport.DISPLAYNAME_NAME, displayNames);
+        collectNames(element, MDUISupport.DISPLAYNAME_NAME, MDUI_DISPLAY_NAME_DEPTH, displayNames);
 
         // Collect display names from md:OrganizationDisplayName elements only
         // if there were no mdui:DisplayName elements.
         if (displayNames.isEmpty()) {
-            collectNames(element, MD_ORG_DISPLAY_NAME, displayNames);
+            collectNames(element, MD_ORG_DISPLAY_NAME, ORG_DISPLAY_NAME_DEPTH, displayNames);
         }
 
         return displayNames;
@@ -166,13 +199,13 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
      * Detects whether a given EntityDescriptor represents an identity provider by
      * looking for an IDPSSORoleDescriptor.
      * 
-     * @param entity {@link Element} representing the EntityDescriptor.
+     * @param item {@link Item} representing the EntityDescriptor.
      * 
      * @return true if the entity is an identity provider.
      */
-    private boolean isIdentityProvider(@Nonnull final Element entity) {
-        assert entity != null;
-        return hasChildElement(entity, MD_IDP_SSO_DESCRIPTOR);
+    private boolean isIdentityProvider(@Nonnull final Item<Element> item) {
+        return ElementCursorSupport.hasChildElement(item.unwrap(),
+                MD_IDP_SSO_DESCRIPTOR.getNamespaceURI(), MD_IDP_SSO_DESCRIPTOR.getLocalPart());
     }
     
     /**
@@ -192,20 +225,123 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
         return new ErrorStatus(stageId, message);
     }
     
+    /**
+     * Mark the identity providers which share a display name with an {@link ErrorStatus}.
+     *
+     * <p>
+     * The first identity provider with each (case-folded) name is taken to hold it. Each later
+     * identity provider with the name is marked as clashing with the holder, and the holder is
+     * marked as clashing with the first of them, unless it has already been marked.
+     * </p>
+     *
+     * @param idps the identity providers to check
+     * @param idpNames the display names of each identity provider, in the same order
+     */
+    private void reportClashes(@Nonnull @NonnullElements final List<Item<Element>> idps,
+            @Nonnull @NonnullElements final List<Set<String>> idpNames) {
+        final EntityCatalogue catalogue = EntityCatalogue.build(idps, idpNames);
+        final Map<String, int[]> clashes = catalogue.findDisplayNameClashes(UKEntityFacts.ROLE_IDP);
+
+        /*
+         * Each clash, as the row clashing, the row holding the name and the shared name. They are
+         * handled in order of the clashing row, as if each identity provider were checked against
+         * those before it in turn.
+         */
+        final List<int[]> events = new ArrayList<>();
+        final List<String> eventKeys = new ArrayList<>();
+        for (final Map.Entry<String, int[]> entry : clashes.entrySet()) {
+            final int[] rows = entry.getValue();
+            for (int i = 1; i < rows.length; i++) {
+                events.add(new int[] {rows[i], rows[0], eventKeys.size()});
+                eventKeys.add(entry.getKey());
+            }
+        }
+        events.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+        // Remember which entities we have already marked with errors.
+        final boolean[] marked = new boolean[idps.size()];
+        final var strategy = getIdentificationStrategy();
+        for (final int[] event : events) {
+            final Item<Element> item = idps.get(event[0]);
+            final Item<Element> that = idps.get(event[1]);
+            final String name = findName(idpNames.get(event[0]), eventKeys.get(event[2]));
+            final String thisId = strategy.getItemIdentifier(item);
+            final String thatId = strategy.getItemIdentifier(that);
+
+            item.getItemMetadata().put(makeError(getId(), name, thisId, thatId));
+            marked[event[0]] = true;
+
+            if (!marked[event[1]]) {
+                // only label each entity once
+                that.getItemMetadata().put(makeError(getId(), name, thatId, thisId));
+                marked[event[1]] = true;
+            }
+        }
+    }
+
+    /**
+     * Find the display name with a given case-folded form.
+     *
+     * @param displayNames the display names to search
+     * @param key the case-folded name
+     * @return the first of the display names with that case-folded form
+     */
+    @Nonnull private static String findName(@Nonnull final Set<String> displayNames, @Nonnull final String key) {
+        for (final String name : displayNames) {
+            if (name.toLowerCase().equals(key)) {
+                return name;
+            }
+        }
+        throw new IllegalStateException("no display name for " + key);
+    }
+
+    /**
+     * Extract the registration authority name for the given item, if any.
+     *
+     * @param item {@link Item} representing the registered entity
+     * @return the entity's registration authority, or <code>null</code>
+     */
+    @Nullable
+    private String extractRegistrationAuthority(@Nonnull final Item<Element> item) {
+        return UKEntityFacts.registrationAuthorityOf(item);
+    }
+
+    /**
+     * Determines whether any of the given display names is shared with another entity in the registry.
+     *
+     * @param registry the {@link IdPDisplayNameRegistry} holding all identity providers
+     * @param displayNames the display names to look up
+     * @return <code>true</code> if at least one of the names is used by more than one entity
+     */
+    private boolean hasSharedName(@Nonnull final IdPDisplayNameRegistry registry,
+            @Nonnull final Set<String> displayNames) {
+        for (final String name : displayNames) {
+            if (registry.countEntitiesWithFoldedName(getId(), name) > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
             throws StageProcessingException {
 
+        final IdPDisplayNameRegistry registry = getDisplayNameRegistry();
+
         /*
-         * Record of the items corresponding to the first entity seen with each display name.
+         * Identity providers and their display names.
          */
-        final Map<String, Item<Element>> ids = new HashMap<>(items.size());
-        
+        final List<Item<Element>> idps = new ArrayList<>();
+        final List<Set<String>> idpNames = new ArrayList<>();
+
         /*
-         * Remember which entities we have already marked with errors.
+         * The entityIDs seen, and whether any entity could not be told apart from the others by entityID
+         * in the registry. If so, we fall back to checking every identity provider.
          */
-        final Set<Item<Element>> markedItems = new HashSet<>();
+        final Set<String> entityIDs = new HashSet<>();
+        boolean checkAll = false;
         
         for (final Item<Element> item : items) {
            final Element entity = item.unwrap();
@@ -214,37 +350,51 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
            if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
                // all items must be EntityDescriptor elements
                metadata.put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
-           } else if (isIdentityProvider(entity)) {
+           } else if (isIdentityProvider(item)) {
                final Set<String> displayNames = extractDisplayNames(entity);
-               for (final String name: displayNames) {
-                   final String key = name.toLowerCase();
-                   final Item<Element> that = ids.get(key);
-                   if (that == null) {
-                       // all is well
-                       ids.put(key, item);
-                   } else if (that != item) {
-                       final var strategy = getIdentificationStrategy();
-                       final String thisId = strategy.getItemIdentifier(item);
-                       final String thatId = strategy.getItemIdentifier(that);
-                       
-                       metadata.put(makeError(getId(), name, thisId, thatId));
-                       markedItems.add(item);
-                       
-                       if (!markedItems.contains(that)) {
-                           // only label each entity once
-                           that.getItemMetadata().put(makeError(getId(), name, thatId, thisId));
-                           markedItems.add(that);
-                       }
+               if (registry != null) {
+                   final String entityID = AttributeSupport.getAttributeValue(entity, null, "entityID");
+                   if (entityID == null || !entityIDs.add(entityID)) {
+                       checkAll = true;
+                   } else {
+                       registry.update(getId(), entityID, extractRegistrationAuthority(item),
+                               new TreeSet<>(displayNames));
                    }
                }
+               idps.add(item);
+               idpNames.add(displayNames);
            }
            
         }
+
+        if (registry == null) {
+            reportClashes(idps, idpNames);
+        } else {
+            registry.retainUpdated(getId());
+
+            // Only the identity providers sharing a name with some other entity can clash.
+            final List<Item<Element>> sharing = new ArrayList<>();
+            final List<Set<String>> sharingNames = new ArrayList<>();
+            for (int i = 0; i < idps.size(); i++) {
+                if (checkAll || hasSharedName(registry, idpNames.get(i))) {
+                    sharing.add(idps.get(i));
+                    sharingNames.add(idpNames.get(i));
+                }
+            }
+            reportClashes(sharing, sharingNames);
+
+            try {
+                registry.save();
+            } catch (final IOException e) {
+                throw new StageProcessingException("could not save display name registry", e);
+            }
+        }
     }
     
     @Override
     protected void doDestroy() {
         identificationStrategy = null;
+        displayNameRegistry = null;
         super.doDestroy();
     }
 }
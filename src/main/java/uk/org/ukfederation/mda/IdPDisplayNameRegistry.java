@@ -0,0 +1,495 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * A registry of the discovery names used by identity provider entities, keyed by <code>entityID</code>.
+ *
+ * <p>
+ * The registry holds, for each identity provider, its registration authority and the list of
+ * discovery names it declares. It also maintains indexes from each name (both as given and
+ * folded to lower case) to the entities using it, so that clashes can be looked up directly
+ * rather than by rebuilding a set of names from scratch on each run.
+ * </p>
+ *
+ * <p>
+ * Entities are recorded in separate namespaces, so that stages which see different names for
+ * the same entities, such as the names as registered and the names once deconflicted, can share
+ * a registry without each undoing the other's updates. The stages use their identifiers as their
+ * namespaces.
+ * </p>
+ *
+ * <p>
+ * Each entity's registration authority and names are summarised by a 64-bit digest, and an
+ * update whose digest matches the one recorded is skipped without touching the index. Updates
+ * are made in passes, each ended by {@link #retainUpdated(String)}, which removes the entities
+ * which were not updated in the pass; when every recorded entity was updated, that costs nothing.
+ * Keeping an unchanged identity provider up to date therefore costs a lookup and a comparison.
+ * </p>
+ *
+ * <p>
+ * If a <code>registryFile</code> is configured, the registry is loaded from it on initialization
+ * and written back to it by {@link #save()}, so that unchanged entities cost nothing to re-index
+ * on subsequent runs. A file in an earlier format is ignored, and the registry rebuilt.
+ * </p>
+ *
+ * <p>
+ * Instances are shared between {@link IdPDisplayNameDuplicateDetectingStage} and
+ * {@link IdPDisplayNameDuplicateAvoidingStage} through their <code>displayNameRegistry</code>
+ * properties.
+ * </p>
+ */
+@ThreadSafe
+public class IdPDisplayNameRegistry extends AbstractInitializableComponent {
+
+    /** Magic number at the start of a registry file: "UKDN". */
+    private static final int MAGIC = 0x554B444E;
+
+    /** Version of the registry file format. */
+    private static final int VERSION = 2;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(IdPDisplayNameRegistry.class);
+
+    /** File to persist the registry to, or <code>null</code> to hold it in memory only. */
+    @Nullable @GuardedBy("this") private File registryFile;
+
+    /** Registry namespaces, indexed by name. */
+    @Nonnull @GuardedBy("this") private final Map<String, Namespace> namespaces = new HashMap<>();
+
+    /** Whether the registry has changed since it was last loaded or saved. */
+    @GuardedBy("this") private boolean dirty;
+
+    /**
+     * Get the file the registry is persisted to.
+     *
+     * @return the registry file, or <code>null</code>
+     */
+    @Nullable public final synchronized File getRegistryFile() {
+        return registryFile;
+    }
+
+    /**
+     * Set the file the registry is persisted to.
+     *
+     * @param file the registry file, or <code>null</code> to hold the registry in memory only
+     */
+    public final synchronized void setRegistryFile(@Nullable final File file) {
+        checkSetterPreconditions();
+        registryFile = file;
+    }
+
+    /**
+     * Compute the digest summarising an entity's registration authority and discovery names.
+     *
+     * <p>
+     * The digest depends on the order of the names.
+     * </p>
+     *
+     * @param registrationAuthority the entity's registration authority, or <code>null</code>
+     * @param names the entity's discovery names
+     * @return the digest
+     */
+    public static long digest(@Nullable final String registrationAuthority,
+            @Nonnull @NonnullElements final Collection<String> names) {
+        long digest = mix(0, registrationAuthority);
+        for (final String name : names) {
+            digest = mix(digest, name);
+        }
+        return digest;
+    }
+
+    /**
+     * Add a string, or its absence, to a digest.
+     *
+     * @param digest the digest so far
+     * @param s the string, or <code>null</code>
+     * @return the new digest
+     */
+    private static long mix(final long digest, @Nullable final String s) {
+        // FNV-1a over the characters, with the length (or -1 for null) marking the boundary
+        long h = (digest ^ (s == null ? -1 : s.length())) * 0x100000001b3L;
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Record the discovery names used by an entity.
+     *
+     * <p>
+     * If the entity is already registered in the namespace with the same digest of its
+     * registration authority and names, nothing is changed other than marking the entity as
+     * updated in the current pass.
+     * </p>
+     *
+     * @param namespace the namespace to record the entity in
+     * @param entityID the entity's <code>entityID</code>
+     * @param registrationAuthority the entity's registration authority, or <code>null</code>
+     * @param names the entity's discovery names, trimmed
+     * @return <code>true</code> if the registry was changed
+     */
+    public synchronized boolean update(@Nonnull final String namespace, @Nonnull final String entityID,
+            @Nullable final String registrationAuthority, @Nonnull @NonnullElements final Collection<String> names) {
+        final Namespace ns = namespaces.computeIfAbsent(namespace, k -> new Namespace());
+        final long digest = digest(registrationAuthority, names);
+        final Entry old = ns.entries.get(entityID);
+        if (old != null && old.digest == digest) {
+            ns.mark(old);
+            return false;
+        }
+        if (old != null) {
+            ns.unindex(entityID, old);
+        }
+        final Entry entry = new Entry(registrationAuthority, names, digest);
+        ns.entries.put(entityID, entry);
+        ns.index(entityID, entry);
+        ns.mark(entry);
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * End a pass of updates to a namespace, removing any entities which were not updated in it.
+     *
+     * @param namespace the namespace
+     */
+    public synchronized void retainUpdated(@Nonnull final String namespace) {
+        final Namespace ns = namespaces.get(namespace);
+        if (ns == null) {
+            return;
+        }
+        if (ns.updated < ns.entries.size()) {
+            final Iterator<Map.Entry<String, Entry>> iter = ns.entries.entrySet().iterator();
+            while (iter.hasNext()) {
+                final Map.Entry<String, Entry> e = iter.next();
+                if (e.getValue().pass != ns.pass) {
+                    ns.unindex(e.getKey(), e.getValue());
+                    iter.remove();
+                    dirty = true;
+                }
+            }
+        }
+        ns.pass++;
+        ns.updated = 0;
+    }
+
+    /**
+     * Returns the number of entities registered in a namespace.
+     *
+     * @param namespace the namespace
+     * @return the number of entities
+     */
+    public synchronized int size(@Nonnull final String namespace) {
+        final Namespace ns = namespaces.get(namespace);
+        return ns == null ? 0 : ns.entries.size();
+    }
+
+    /**
+     * Returns the discovery names recorded for an entity.
+     *
+     * @param namespace the namespace
+     * @param entityID the entity's <code>entityID</code>
+     * @return the entity's names, or <code>null</code> if the entity is not registered
+     */
+    @Nullable @NonnullElements public synchronized List<String> getNames(@Nonnull final String namespace,
+            @Nonnull final String entityID) {
+        final Namespace ns = namespaces.get(namespace);
+        final Entry entry = ns == null ? null : ns.entries.get(entityID);
+        return entry == null ? null : entry.names;
+    }
+
+    /**
+     * Returns the number of entities in a namespace using the given discovery name, ignoring case.
+     *
+     * @param namespace the namespace
+     * @param name the discovery name
+     * @return the number of entities using the name
+     */
+    public synchronized int countEntitiesWithFoldedName(@Nonnull final String namespace,
+            @Nonnull final String name) {
+        final Namespace ns = namespaces.get(namespace);
+        final Set<String> ids = ns == null ? null : ns.entitiesByFoldedName.get(name.toLowerCase());
+        return ids == null ? 0 : ids.size();
+    }
+
+    /**
+     * Determines whether any entity in a namespace registered by the given authority uses the
+     * given discovery name.
+     *
+     * @param namespace the namespace
+     * @param name the discovery name
+     * @param registrationAuthority the registration authority
+     * @return <code>true</code> if the name is used by an entity from the registration authority
+     */
+    public synchronized boolean isNameUsedByAuthority(@Nonnull final String namespace, @Nonnull final String name,
+            @Nonnull final String registrationAuthority) {
+        final Namespace ns = namespaces.get(namespace);
+        final Set<String> ids = ns == null ? null : ns.entitiesByName.get(name);
+        if (ids != null) {
+            for (final String id : ids) {
+                if (registrationAuthority.equals(ns.entries.get(id).registrationAuthority)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the registry to the registry file, if one is configured and the registry has changed.
+     *
+     * <p>
+     * The file is replaced atomically so that an interrupted write leaves the previous
+     * version in place.
+     * </p>
+     *
+     * @throws IOException if the registry file can not be written
+     */
+    public synchronized void save() throws IOException {
+        if (registryFile == null || !dirty) {
+            return;
+        }
+        FileSupport.writeAtomically(registryFile.toPath(), os -> {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(os)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(namespaces.size());
+                for (final Map.Entry<String, Namespace> n : namespaces.entrySet()) {
+                    out.writeUTF(n.getKey());
+                    out.writeInt(n.getValue().entries.size());
+                    for (final Map.Entry<String, Entry> e : n.getValue().entries.entrySet()) {
+                        final Entry entry = e.getValue();
+                        out.writeUTF(e.getKey());
+                        out.writeBoolean(entry.registrationAuthority != null);
+                        if (entry.registrationAuthority != null) {
+                            out.writeUTF(entry.registrationAuthority);
+                        }
+                        out.writeInt(entry.names.size());
+                        for (final String name : entry.names) {
+                            out.writeUTF(name);
+                        }
+                    }
+                }
+            }
+        });
+        dirty = false;
+        log.debug("saved {} namespaces to display name registry {}", namespaces.size(), registryFile);
+    }
+
+    /**
+     * Load the registry from the registry file.
+     *
+     * @param file the file to load from
+     * @throws IOException if the file can not be read, or is not a registry file
+     */
+    private void load(@Nonnull final File file) throws IOException {
+        try (InputStream is = Files.newInputStream(file.toPath());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(is)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a display name registry file: " + file);
+            }
+            if (in.readInt() != VERSION) {
+                log.warn("ignoring display name registry {} in an earlier format", file);
+                return;
+            }
+            final int namespaceCount = in.readInt();
+            for (int n = 0; n < namespaceCount; n++) {
+                final Namespace ns = new Namespace();
+                namespaces.put(in.readUTF(), ns);
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String entityID = in.readUTF();
+                    final String registrationAuthority = in.readBoolean() ? in.readUTF() : null;
+                    final int nameCount = in.readInt();
+                    final List<String> names = new ArrayList<>(nameCount);
+                    for (int j = 0; j < nameCount; j++) {
+                        names.add(in.readUTF());
+                    }
+                    final Entry entry = new Entry(registrationAuthority, names, digest(registrationAuthority, names));
+                    entry.pass = -1;
+                    ns.entries.put(entityID, entry);
+                    ns.index(entityID, entry);
+                }
+            }
+        }
+        log.debug("loaded {} namespaces from display name registry {}", namespaces.size(), file);
+    }
+
+    /**
+     * Remove an entity from one index entry, removing the entry if it becomes empty.
+     *
+     * @param index the index to remove from
+     * @param key the key of the index entry
+     * @param entityID the entity's <code>entityID</code>
+     */
+    private static void removeFromIndex(@Nonnull final Map<String, Set<String>> index, @Nonnull final String key,
+            @Nonnull final String entityID) {
+        final Set<String> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(entityID);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (registryFile != null && registryFile.exists()) {
+            try {
+                load(registryFile);
+            } catch (final IOException e) {
+                throw new ComponentInitializationException("could not load display name registry", e);
+            }
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        namespaces.clear();
+        registryFile = null;
+
+        super.doDestroy();
+    }
+
+    /** The entities recorded in one namespace, with their indexes. */
+    @NotThreadSafe
+    private static final class Namespace {
+
+        /** Registry entries, indexed by <code>entityID</code>. */
+        @Nonnull private final Map<String, Entry> entries = new HashMap<>();
+
+        /** Index from each discovery name to the entities using it. */
+        @Nonnull private final Map<String, Set<String>> entitiesByName = new HashMap<>();
+
+        /** Index from each lower-cased discovery name to the entities using it. */
+        @Nonnull private final Map<String, Set<String>> entitiesByFoldedName = new HashMap<>();
+
+        /** Number of the current pass of updates. */
+        private int pass;
+
+        /** Number of entities updated in the current pass. */
+        private int updated;
+
+        /**
+         * Mark an entry as updated in the current pass.
+         *
+         * @param entry the entry
+         */
+        private void mark(@Nonnull final Entry entry) {
+            if (entry.pass != pass) {
+                entry.pass = pass;
+                updated++;
+            }
+        }
+
+        /**
+         * Add an entity's names to the indexes.
+         *
+         * @param entityID the entity's <code>entityID</code>
+         * @param entry the entity's registry entry
+         */
+        private void index(@Nonnull final String entityID, @Nonnull final Entry entry) {
+            for (final String name : entry.names) {
+                entitiesByName.computeIfAbsent(name, k -> new HashSet<>(2)).add(entityID);
+                entitiesByFoldedName.computeIfAbsent(name.toLowerCase(), k -> new HashSet<>(2)).add(entityID);
+            }
+        }
+
+        /**
+         * Remove an entity's names from the indexes.
+         *
+         * @param entityID the entity's <code>entityID</code>
+         * @param entry the entity's registry entry
+         */
+        private void unindex(@Nonnull final String entityID, @Nonnull final Entry entry) {
+            for (final String name : entry.names) {
+                removeFromIndex(entitiesByName, name, entityID);
+                removeFromIndex(entitiesByFoldedName, name.toLowerCase(), entityID);
+            }
+        }
+    }
+
+    /** The recorded state of a single entity. */
+    @NotThreadSafe
+    private static final class Entry {
+
+        /** The entity's registration authority, or <code>null</code>. */
+        @Nullable private final String registrationAuthority;
+
+        /** The entity's discovery names. */
+        @Nonnull @NonnullElements private final List<String> names;
+
+        /** Digest of the registration authority and names. */
+        private final long digest;
+
+        /** Number of the pass in which the entity was last updated. */
+        private int pass;
+
+        /**
+         * Constructor.
+         *
+         * @param regAuth the entity's registration authority, or <code>null</code>
+         * @param entityNames the entity's discovery names
+         * @param entityDigest the digest of the registration authority and names
+         */
+        Entry(@Nullable final String regAuth, @Nonnull @NonnullElements final Collection<String> entityNames,
+                final long entityDigest) {
+            registrationAuthority = regAuth;
+            names = ImmutableList.copyOf(entityNames);
+            digest = entityDigest;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.StatusMetadata;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.xml.ParserPool;
+import net.shibboleth.shared.xml.SerializeSupport;
+import net.shibboleth.shared.xml.XMLParserException;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.DisableFlow;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.EnableFlow;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.FlowConstraint;
+import uk.org.ukfederation.mda.validate.x509.X509CertificateCache;
+
+/**
+ * Reads and writes checkpoints: a collection of items saved together with their item metadata,
+ * so that a later run can carry on from that point without repeating the stages before it.
+ *
+ * <p>
+ * A checkpoint is a gzip stream, compressed for speed rather than size, written and read in a
+ * single pass. After a header, each item is a serialised element followed by its metadata,
+ * each metadata entry being a tag byte and its values. The metadata saved is {@link ItemId},
+ * {@link UKId}, {@link RegistrationAuthority}, the {@link ErrorStatus}, {@link WarningStatus} and
+ * {@link InfoStatus} statuses, and the {@link EnableFlow} and {@link DisableFlow} flow constraints.
+ * </p>
+ *
+ * <p>
+ * {@link UKEntityFacts} is derived from the DOM and the metadata above, and is recreated by
+ * running a {@link UKEntityFactsPopulationStage} after resuming; the {@link X509CertificateCache}
+ * is rebuilt when next needed. Neither is saved. Any other metadata can not be saved, and writing
+ * a checkpoint of an item which carries it fails unless its class has been named as one to ignore,
+ * so that resuming never silently loses information.
+ * </p>
+ */
+public final class ItemCheckpoint {
+
+    /** Magic number at the start of a checkpoint: "UKCP". */
+    private static final int MAGIC = 0x554B4350;
+
+    /** Version of the checkpoint format. */
+    private static final int VERSION = 1;
+
+    /** Marker ending the items. */
+    private static final int END_OF_ITEMS = 0;
+
+    /** Marker introducing an item. */
+    private static final int ITEM = 1;
+
+    /** Tag ending an item's metadata. */
+    private static final int END_OF_METADATA = 0;
+
+    /** Tag for {@link ItemId}. */
+    private static final int ITEM_ID = 1;
+
+    /** Tag for {@link UKId}. */
+    private static final int UK_ID = 2;
+
+    /** Tag for {@link RegistrationAuthority}. */
+    private static final int REGISTRATION_AUTHORITY = 3;
+
+    /** Tag for {@link ErrorStatus}. */
+    private static final int ERROR_STATUS = 4;
+
+    /** Tag for {@link WarningStatus}. */
+    private static final int WARNING_STATUS = 5;
+
+    /** Tag for {@link InfoStatus}. */
+    private static final int INFO_STATUS = 6;
+
+    /** Tag for {@link EnableFlow}. */
+    private static final int ENABLE_FLOW = 7;
+
+    /** Tag for {@link DisableFlow}. */
+    private static final int DISABLE_FLOW = 8;
+
+    /** Size of the stream buffers. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Constructor. */
+    private ItemCheckpoint() {
+    }
+
+    /**
+     * Write a checkpoint of a collection of items to a file.
+     *
+     * <p>
+     * The checkpoint is written to a temporary file which then replaces <code>file</code>,
+     * so that an earlier checkpoint is not lost if writing fails part way through.
+     * </p>
+     *
+     * @param items the items to save
+     * @param file the file to write the checkpoint to
+     * @param ignored classes of item metadata which can not be saved but may be dropped
+     * @throws IOException if the checkpoint can not be written, or an item carries metadata
+     *      which can not be saved and is not ignored
+     */
+    public static void write(@Nonnull @NonnullElements final List<Item<Element>> items, @Nonnull final Path file,
+            @Nonnull @NonnullElements final Collection<Class<? extends ItemMetadata>> ignored) throws IOException {
+        FileSupport.writeAtomically(file, out -> write(items, out, ignored));
+    }
+
+    /**
+     * Write a checkpoint of a collection of items to a stream.
+     *
+     * @param items the items to save
+     * @param stream the stream to write the checkpoint to; it is not closed
+     * @param ignored classes of item metadata which can not be saved but may be dropped
+     * @throws IOException if the checkpoint can not be written, or an item carries metadata
+     *      which can not be saved and is not ignored
+     */
+    public static void write(@Nonnull @NonnullElements final List<Item<Element>> items,
+            @Nonnull final OutputStream stream,
+            @Nonnull @NonnullElements final Collection<Class<? extends ItemMetadata>> ignored) throws IOException {
+        final FastGZIPOutputStream zip = new FastGZIPOutputStream(stream);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(zip, BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        final ByteArrayOutputStream element = new ByteArrayOutputStream(BUFFER_SIZE);
+        for (final Item<Element> item : items) {
+            element.reset();
+            SerializeSupport.writeNode(item.unwrap(), element);
+            out.writeByte(ITEM);
+            out.writeInt(element.size());
+            element.writeTo(out);
+            for (final ItemMetadata metadata : item.getItemMetadata().values()) {
+                writeMetadata(out, metadata, ignored);
+            }
+            out.writeByte(END_OF_METADATA);
+        }
+        out.writeByte(END_OF_ITEMS);
+        out.flush();
+        zip.finish();
+    }
+
+    /**
+     * Write one item metadata entry.
+     *
+     * @param out the stream to write to
+     * @param metadata the metadata to write
+     * @param ignored classes of item metadata which can not be saved but may be dropped
+     * @throws IOException if the metadata can not be written, or can not be saved and is not ignored
+     */
+    private static void writeMetadata(@Nonnull final DataOutputStream out, @Nonnull final ItemMetadata metadata,
+            @Nonnull final Collection<Class<? extends ItemMetadata>> ignored) throws IOException {
+        if (metadata instanceof ItemId) {
+            out.writeByte(ITEM_ID);
+            writeString(out, ((ItemId) metadata).getId());
+        } else if (metadata instanceof UKId) {
+            out.writeByte(UK_ID);
+            writeString(out, ((UKId) metadata).getId());
+        } else if (metadata instanceof RegistrationAuthority) {
+            out.writeByte(REGISTRATION_AUTHORITY);
+            writeString(out, ((RegistrationAuthority) metadata).getRegistrationAuthority());
+        } else if (metadata instanceof StatusMetadata && statusTag((StatusMetadata) metadata) != 0) {
+            final StatusMetadata status = (StatusMetadata) metadata;
+            out.writeByte(statusTag(status));
+            writeString(out, status.getComponentId());
+            writeString(out, status.getStatusMessage());
+        } else if (metadata instanceof EnableFlow) {
+            out.writeByte(ENABLE_FLOW);
+            writeString(out, ((FlowConstraint) metadata).getFlowName());
+        } else if (metadata instanceof DisableFlow) {
+            out.writeByte(DISABLE_FLOW);
+            writeString(out, ((FlowConstraint) metadata).getFlowName());
+        } else if (!(metadata instanceof UKEntityFacts || metadata instanceof X509CertificateCache ||
+                isIgnored(metadata, ignored))) {
+            throw new IOException("item metadata of class " + metadata.getClass().getName() +
+                    " can not be saved in a checkpoint");
+        }
+    }
+
+    /**
+     * Whether a metadata entry belongs to one of the classes to ignore.
+     *
+     * @param metadata the metadata
+     * @param ignored classes of item metadata to ignore
+     * @return <code>true</code> if the metadata is an instance of one of the classes
+     */
+    private static boolean isIgnored(@Nonnull final ItemMetadata metadata,
+            @Nonnull @NonnullElements final Collection<Class<? extends ItemMetadata>> ignored) {
+        for (final Class<? extends ItemMetadata> c : ignored) {
+            if (c.isInstance(metadata)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the tag for a status.
+     *
+     * @param status the status
+     * @return the tag, or 0 if the status is of a kind that is not saved
+     */
+    private static int statusTag(@Nonnull final StatusMetadata status) {
+        if (status instanceof ErrorStatus) {
+            return ERROR_STATUS;
+        } else if (status instanceof WarningStatus) {
+            return WARNING_STATUS;
+        } else if (status instanceof InfoStatus) {
+            return INFO_STATUS;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Write a string as its length followed by its UTF-8 encoding.
+     *
+     * <p>
+     * {@link DataOutputStream#writeUTF(String)} is not used because it is limited to 64KB.
+     * </p>
+     *
+     * @param out the stream to write to
+     * @param s the string to write
+     * @throws IOException if the string can not be written
+     */
+    private static void writeString(@Nonnull final DataOutputStream out, @Nonnull final String s)
+            throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read the items in a checkpoint file.
+     *
+     * @param parserPool the parser pool used to parse the saved elements
+     * @param file the checkpoint file
+     * @param items the collection to add the items to
+     * @throws IOException if the checkpoint can not be read or is not a valid checkpoint
+     */
+    public static void read(@Nonnull final ParserPool parserPool, @Nonnull final Path file,
+            @Nonnull @NonnullElements final List<Item<Element>> items) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            read(parserPool, in, items);
+        }
+    }
+
+    /**
+     * Read the items in a checkpoint from a stream.
+     *
+     * <p>
+     * Items are added to <code>items</code> as they are read, in the order in which they were
+     * saved.
+     * </p>
+     *
+     * @param parserPool the parser pool used to parse the saved elements
+     * @param stream the stream to read the checkpoint from; it is not closed
+     * @param items the collection to add the items to
+     * @throws IOException if the checkpoint can not be read or is not a valid checkpoint
+     */
+    public static void read(@Nonnull final ParserPool parserPool, @Nonnull final InputStream stream,
+            @Nonnull @NonnullElements final List<Item<Element>> items) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(stream, BUFFER_SIZE), BUFFER_SIZE));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a checkpoint");
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported checkpoint version " + version);
+        }
+
+        while (true) {
+            final int marker = in.readUnsignedByte();
+            if (marker == END_OF_ITEMS) {
+                return;
+            } else if (marker != ITEM) {
+                throw new IOException("corrupt checkpoint: unexpected item marker " + marker);
+            }
+
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            final Document document;
+            try {
+                document = parserPool.parse(new ByteArrayInputStream(bytes));
+            } catch (final XMLParserException e) {
+                throw new IOException("corrupt checkpoint: could not parse saved element", e);
+            }
+            final Item<Element> item = new DOMElementItem(document);
+            readMetadata(in, item);
+            items.add(item);
+        }
+    }
+
+    /**
+     * Read an item's metadata entries, adding them to the item.
+     *
+     * @param in the stream to read from
+     * @param item the item to add the metadata to
+     * @throws IOException if the metadata can not be read
+     */
+    private static void readMetadata(@Nonnull final DataInputStream in, @Nonnull final Item<Element> item)
+            throws IOException {
+        while (true) {
+            final int tag = in.readUnsignedByte();
+            final ItemMetadata metadata;
+            switch (tag) {
+                case END_OF_METADATA:
+                    return;
+
+                case ITEM_ID:
+                    metadata = new ItemId(readString(in));
+                    break;
+
+                case UK_ID:
+                    metadata = new UKId(readString(in));
+                    break;
+
+                case REGISTRATION_AUTHORITY:
+                    metadata = new RegistrationAuthority(readString(in));
+                    break;
+
+                case ERROR_STATUS:
+                    metadata = new ErrorStatus(readString(in), readString(in));
+                    break;
+
+                case WARNING_STATUS:
+                    metadata = new WarningStatus(readString(in), readString(in));
+                    break;
+
+                case INFO_STATUS:
+                    metadata = new InfoStatus(readString(in), readString(in));
+                    break;
+
+                case ENABLE_FLOW:
+                    metadata = new EnableFlow(readString(in));
+                    break;
+
+                case DISABLE_FLOW:
+                    metadata = new DisableFlow(readString(in));
+                    break;
+
+                default:
+                    throw new IOException("corrupt checkpoint: unexpected metadata tag " + tag);
+            }
+            item.getItemMetadata().put(metadata);
+        }
+    }
+
+    /**
+     * Read a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param in the stream to read from
+     * @return the string
+     * @throws IOException if the string can not be read
+     */
+    @Nonnull private static String readString(@Nonnull final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A {@link GZIPOutputStream} using the fastest compression level, as checkpoints are written
+     * during a run and read back at most once.
+     */
+    private static final class FastGZIPOutputStream extends GZIPOutputStream {
+
+        /**
+         * Constructor.
+         *
+         * @param out the stream to write the compressed data to
+         * @throws IOException if the gzip header can not be written
+         */
+        FastGZIPOutputStream(@Nonnull final OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
+import net.shibboleth.shared.xml.AttributeSupport;
+import uk.org.ukfederation.mda.dom.ElementCursorSupport;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.DisableFlow;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.EnableFlow;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.UKFedLabelSupport;
+
+/**
+ * A compact, immutable summary of the facts about a UK federation entity which are
+ * consulted repeatedly during aggregation.
+ *
+ * <p>
+ * The record is built once per item by {@link UKEntityFactsPopulationStage}, after which
+ * components can consult it instead of going back to the individual item metadata or the DOM.
+ * </p>
+ *
+ * <p>
+ * The record keeps the {@link UKId}, {@link ItemId}, {@link RegistrationAuthority},
+ * {@link EnableFlow} and {@link DisableFlow} metadata objects it was built from, and
+ * {@link #find(Item)} only returns it while the item still carries exactly those objects. Once
+ * any of that metadata has been added, removed or replaced, callers go back to the metadata
+ * itself, so they never act on a stale copy. The roles and owner organization ID are taken from
+ * the DOM, and are not checked in this way: a stage which changes an entity's role descriptors or
+ * member label must be followed by another {@link UKEntityFactsPopulationStage}.
+ * </p>
+ *
+ * <p>
+ * Components which need only one of the summarised values should use {@link #ukIdOf(Item)},
+ * {@link #itemIdOf(Item)} or {@link #registrationAuthorityOf(Item)}, which read the metadata
+ * directly as that is never slower than checking the record.
+ * </p>
+ *
+ * <p>
+ * The entity's roles are held as a bitmask of the <code>ROLE_</code> constants. Flow names
+ * are held as integer identifiers allocated by {@link #flowId(String)}.
+ * </p>
+ */
+@Immutable
+public final class UKEntityFacts implements ItemMetadata {
+
+    /** Role bit for an entity with an <code>IDPSSODescriptor</code>. */
+    public static final int ROLE_IDP = 1;
+
+    /** Role bit for an entity with an <code>SPSSODescriptor</code>. */
+    public static final int ROLE_SP = 2;
+
+    /** Role bit for an entity with an <code>AttributeAuthorityDescriptor</code>. */
+    public static final int ROLE_AA = 4;
+
+    /** Flow identifiers allocated so far, indexed by flow name. */
+    @Nonnull private static final Map<String, Integer> FLOW_IDS = new ConcurrentHashMap<>();
+
+    /** Next flow identifier to allocate. */
+    @Nonnull private static final AtomicInteger NEXT_FLOW_ID = new AtomicInteger();
+
+    /** Empty flow identifier array. */
+    @Nonnull private static final int[] NO_FLOWS = new int[0];
+
+    /** Classes of the item metadata a record summarises, in the order its sources are held. */
+    @Nonnull private static final List<Class<? extends ItemMetadata>> SOURCE_CLASSES =
+            List.of(UKId.class, ItemId.class, RegistrationAuthority.class, EnableFlow.class, DisableFlow.class);
+
+    /** The item metadata the record was built from, in {@link #SOURCE_CLASSES} order. */
+    @Nonnull private final ItemMetadata[] sources;
+
+    /** The entity's UK federation fragment ID, if any. */
+    @Nullable private final String ukId;
+
+    /** The entity's item identifier, if any. */
+    @Nullable private final String itemId;
+
+    /** The entity's registration authority, if any. */
+    @Nullable private final String registrationAuthority;
+
+    /** The owner's organization ID, if any. */
+    @Nullable private final String orgID;
+
+    /** The entity's roles, as a bitmask. */
+    private final int roles;
+
+    /** Sorted identifiers of the flows explicitly enabled for the entity. */
+    @Nonnull private final int[] enabledFlows;
+
+    /** Sorted identifiers of the flows explicitly disabled for the entity. */
+    @Nonnull private final int[] disabledFlows;
+
+    /**
+     * Constructor.
+     *
+     * @param builder builder holding the facts to record
+     */
+    private UKEntityFacts(@Nonnull final Builder builder) {
+        sources = builder.sources;
+        ukId = builder.ukId;
+        itemId = builder.itemId;
+        registrationAuthority = builder.registrationAuthority;
+        orgID = builder.orgID;
+        roles = builder.roles;
+        enabledFlows = builder.enabledFlows;
+        disabledFlows = builder.disabledFlows;
+    }
+
+    /**
+     * Get the entity's UK federation fragment ID.
+     *
+     * @return the fragment ID, or <code>null</code> if the entity has none
+     */
+    @Nullable public String getUKId() {
+        return ukId;
+    }
+
+    /**
+     * Get the entity's item identifier.
+     *
+     * @return the item identifier, or <code>null</code> if the entity has none
+     */
+    @Nullable public String getItemId() {
+        return itemId;
+    }
+
+    /**
+     * Get the entity's registration authority.
+     *
+     * @return the registration authority, or <code>null</code> if the entity has none
+     */
+    @Nullable public String getRegistrationAuthority() {
+        return registrationAuthority;
+    }
+
+    /**
+     * Get the organization ID of the entity's owner.
+     *
+     * @return the organization ID, or <code>null</code> if the entity has none
+     */
+    @Nullable public String getOrgID() {
+        return orgID;
+    }
+
+    /**
+     * Get the entity's roles.
+     *
+     * @return the entity's roles, as a bitmask of the <code>ROLE_</code> constants
+     */
+    public int getRoles() {
+        return roles;
+    }
+
+    /**
+     * Get whether the entity has any of the given roles.
+     *
+     * @param mask bitmask of the <code>ROLE_</code> constants
+     * @return <code>true</code> if the entity has any of the roles
+     */
+    public boolean hasRole(final int mask) {
+        return (roles & mask) != 0;
+    }
+
+    /**
+     * Get whether the entity is an identity provider.
+     *
+     * @return <code>true</code> if the entity has an <code>IDPSSODescriptor</code>
+     */
+    public boolean isIdentityProvider() {
+        return hasRole(ROLE_IDP);
+    }
+
+    /**
+     * Get whether any flows are explicitly enabled for the entity.
+     *
+     * @return <code>true</code> if any flows are explicitly enabled
+     */
+    public boolean hasEnabledFlows() {
+        return enabledFlows.length != 0;
+    }
+
+    /**
+     * Get whether any flows are explicitly disabled for the entity.
+     *
+     * @return <code>true</code> if any flows are explicitly disabled
+     */
+    public boolean hasDisabledFlows() {
+        return disabledFlows.length != 0;
+    }
+
+    /**
+     * Get whether a flow is explicitly enabled for the entity.
+     *
+     * @param flow flow identifier, from {@link #flowId(String)}
+     * @return <code>true</code> if the flow is explicitly enabled
+     */
+    public boolean isFlowEnabled(final int flow) {
+        return Arrays.binarySearch(enabledFlows, flow) >= 0;
+    }
+
+    /**
+     * Get whether a flow is explicitly disabled for the entity.
+     *
+     * @param flow flow identifier, from {@link #flowId(String)}
+     * @return <code>true</code> if the flow is explicitly disabled
+     */
+    public boolean isFlowDisabled(final int flow) {
+        return Arrays.binarySearch(disabledFlows, flow) >= 0;
+    }
+
+    /**
+     * Get the identifier for a flow name, allocating one if necessary.
+     *
+     * <p>
+     * Identifiers are stable for the lifetime of the JVM.
+     * </p>
+     *
+     * @param flowName the name of the flow
+     * @return the flow's identifier
+     */
+    public static int flowId(@Nonnull final String flowName) {
+        return FLOW_IDS.computeIfAbsent(flowName, k -> NEXT_FLOW_ID.getAndIncrement());
+    }
+
+    /**
+     * Get whether the item still carries exactly the metadata this record was built from.
+     *
+     * @param item the item
+     * @return <code>true</code> if the record is current
+     */
+    private boolean isCurrent(@Nonnull final Item<?> item) {
+        final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
+        int index = 0;
+        for (final Class<? extends ItemMetadata> clazz : SOURCE_CLASSES) {
+            for (final ItemMetadata source : metadata.get(clazz)) {
+                if (index == sources.length || sources[index++] != source) {
+                    return false;
+                }
+            }
+        }
+        return index == sources.length;
+    }
+
+    /**
+     * Find an item's facts record, if it has one which is still current.
+     *
+     * @param item the item
+     * @return the item's facts record, or <code>null</code> if it has none or the metadata it
+     *  summarises has changed since it was built
+     */
+    @Nullable public static UKEntityFacts find(@Nonnull final Item<?> item) {
+        final List<UKEntityFacts> facts = item.getItemMetadata().get(UKEntityFacts.class);
+        if (facts.isEmpty() || !facts.get(0).isCurrent(item)) {
+            return null;
+        }
+        return facts.get(0);
+    }
+
+    /**
+     * Get an item's UK federation fragment ID.
+     *
+     * @param item the item
+     * @return the fragment ID from the item's first {@link UKId}, or <code>null</code> if it has none
+     */
+    @Nullable public static String ukIdOf(@Nonnull final Item<?> item) {
+        final List<UKId> ids = item.getItemMetadata().get(UKId.class);
+        return ids.isEmpty() ? null : ids.get(0).getId();
+    }
+
+    /**
+     * Get an item's item identifier.
+     *
+     * @param item the item
+     * @return the identifier from the item's first {@link ItemId}, or <code>null</code> if it has none
+     */
+    @Nullable public static String itemIdOf(@Nonnull final Item<?> item) {
+        final List<ItemId> ids = item.getItemMetadata().get(ItemId.class);
+        return ids.isEmpty() ? null : ids.get(0).getId();
+    }
+
+    /**
+     * Get an item's registration authority.
+     *
+     * @param item the item
+     * @return the authority from the item's first {@link RegistrationAuthority}, or <code>null</code>
+     *  if it has none
+     */
+    @Nullable public static String registrationAuthorityOf(@Nonnull final Item<?> item) {
+        final List<RegistrationAuthority> authorities = item.getItemMetadata().get(RegistrationAuthority.class);
+        return authorities.isEmpty() ? null : authorities.get(0).getRegistrationAuthority();
+    }
+
+    /**
+     * Get an entity's roles from its role descriptors.
+     *
+     * @param entity the <code>EntityDescriptor</code>
+     * @return the entity's roles, as a bitmask of the <code>ROLE_</code> constants
+     */
+    public static int rolesOf(@Nonnull final Element entity) {
+        int roles = 0;
+        for (Element child = ElementCursorSupport.firstChildElement(entity); child != null;
+                child = ElementCursorSupport.nextSiblingElement(child)) {
+            if (SAMLMetadataSupport.MD_NS.equals(child.getNamespaceURI())) {
+                final String localName = child.getLocalName();
+                if ("IDPSSODescriptor".equals(localName)) {
+                    roles |= ROLE_IDP;
+                } else if ("SPSSODescriptor".equals(localName)) {
+                    roles |= ROLE_SP;
+                } else if ("AttributeAuthorityDescriptor".equals(localName)) {
+                    roles |= ROLE_AA;
+                }
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * Get the organization ID of an entity's owner from its member label.
+     *
+     * @param entity the <code>EntityDescriptor</code>
+     * @return the organization ID, or <code>null</code> if the entity has none
+     */
+    @Nullable public static String orgIDOf(@Nonnull final Element entity) {
+        final Element memberLabel =
+                SAMLMetadataSupport.getDescriptorExtension(entity, UKFedLabelSupport.UK_FEDERATION_MEMBER_NAME);
+        return memberLabel == null ? null
+                : AttributeSupport.getAttributeValue(memberLabel, UKFedLabelSupport.UK_FEDERATION_MEMBER_ORGID);
+    }
+
+    /**
+     * Builder for {@link UKEntityFacts} records.
+     *
+     * <p>
+     * The values taken from item metadata are read from the item when the builder is created;
+     * only the values taken from the DOM are set through the builder.
+     * </p>
+     */
+    @NotThreadSafe
+    public static final class Builder {
+
+        /** The item metadata the record is built from. */
+        @Nonnull private final ItemMetadata[] sources;
+
+        /** The entity's UK federation fragment ID, if any. */
+        @Nullable private final String ukId;
+
+        /** The entity's item identifier, if any. */
+        @Nullable private final String itemId;
+
+        /** The entity's registration authority, if any. */
+        @Nullable private final String registrationAuthority;
+
+        /** The owner's organization ID, if any. */
+        @Nullable private String orgID;
+
+        /** The entity's roles, as a bitmask. */
+        private int roles;
+
+        /** Sorted identifiers of the flows explicitly enabled for the entity. */
+        @Nonnull private final int[] enabledFlows;
+
+        /** Sorted identifiers of the flows explicitly disabled for the entity. */
+        @Nonnull private final int[] disabledFlows;
+
+        /**
+         * Constructor.
+         *
+         * @param item the item whose metadata the record summarises
+         */
+        public Builder(@Nonnull final Item<?> item) {
+            final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
+            final List<ItemMetadata> found = new ArrayList<>();
+            for (final Class<? extends ItemMetadata> clazz : SOURCE_CLASSES) {
+                found.addAll(metadata.get(clazz));
+            }
+            sources = found.toArray(new ItemMetadata[0]);
+            ukId = ukIdOf(item);
+            itemId = itemIdOf(item);
+            registrationAuthority = registrationAuthorityOf(item);
+
+            final List<EnableFlow> enables = metadata.get(EnableFlow.class);
+            final List<String> enabled = new ArrayList<>(enables.size());
+            for (final EnableFlow enable : enables) {
+                enabled.add(enable.getFlowName());
+            }
+            enabledFlows = toFlowIds(enabled);
+
+            final List<DisableFlow> disables = metadata.get(DisableFlow.class);
+            final List<String> disabled = new ArrayList<>(disables.size());
+            for (final DisableFlow disable : disables) {
+                disabled.add(disable.getFlowName());
+            }
+            disabledFlows = toFlowIds(disabled);
+        }
+
+        /**
+         * Set the organization ID of the entity's owner.
+         *
+         * @param id the organization ID, or <code>null</code>
+         * @return this builder
+         */
+        @Nonnull public Builder setOrgID(@Nullable final String id) {
+            orgID = id;
+            return this;
+        }
+
+        /**
+         * Add roles to the entity.
+         *
+         * @param mask bitmask of the <code>ROLE_</code> constants
+         * @return this builder
+         */
+        @Nonnull public Builder addRoles(final int mask) {
+            roles |= mask;
+            return this;
+        }
+
+        /**
+         * Build the record.
+         *
+         * @return the new record
+         */
+        @Nonnull public UKEntityFacts build() {
+            return new UKEntityFacts(this);
+        }
+
+        /**
+         * Convert flow names to a sorted array of flow identifiers.
+         *
+         * @param flowNames the flow names
+         * @return sorted array of flow identifiers
+         */
+        @Nonnull private static int[] toFlowIds(@Nonnull final List<String> flowNames) {
+            if (flowNames.isEmpty()) {
+                return NO_FLOWS;
+            }
+            final int[] ids = new int[flowNames.size()];
+            int index = 0;
+            for (final String name : flowNames) {
+                ids[index++] = flowId(name);
+            }
+            Arrays.sort(ids);
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.DisableFlow;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.EnableFlow;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
+
+/**
+ * A stage which summarises the facts about each entity in the collection into a
+ * {@link UKEntityFacts} record in its item metadata, replacing any existing record.
+ *
+ * <p>
+ * The record is built from the item's {@link UKId}, {@link ItemId}, {@link RegistrationAuthority},
+ * {@link EnableFlow} and {@link DisableFlow} metadata, so this stage should follow the stages
+ * which populate those; a record is ignored once any of that metadata changes. The entity's roles
+ * and owner organization ID are taken from its DOM, so this stage should be run again after any
+ * stage which changes those.
+ * </p>
+ */
+@ThreadSafe
+public class UKEntityFactsPopulationStage extends AbstractParallelIteratingStage<Element> {
+
+    @Override
+    protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
+        final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
+        final UKEntityFacts.Builder builder = new UKEntityFacts.Builder(item);
+
+        final Element entity = item.unwrap();
+        if (SAMLMetadataSupport.isEntityDescriptor(entity)) {
+            builder.addRoles(UKEntityFacts.rolesOf(entity));
+            builder.setOrgID(UKEntityFacts.orgIDOf(entity));
+        }
+
+        metadata.remove(UKEntityFacts.class);
+        metadata.put(builder.build());
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+
+/**
+ * An ordering strategy producing the same order as {@link UKEntityOrderingStrategy}, optimised for
+ * collections made by concatenating collections which are each already in that order.
+ *
+ * <p>
+ * The collection is scanned once for maximal runs of items already in order, and the runs are
+ * then merged using a heap. For a collection made of <i>k</i> ordered parts this takes time
+ * proportional to <i>n</i> log <i>k</i> rather than <i>n</i> log <i>n</i>; a collection which is
+ * already entirely in order is simply copied.
+ * </p>
+ *
+ * <p>
+ * Items are compared using {@link UKEntityOrderingKey}, and where keys are equal the item
+ * appearing earlier in the collection comes first, so the result is identical to that of
+ * {@link UKEntityOrderingStrategy}.
+ * </p>
+ */
+@Immutable
+public class UKEntityMergeOrderingStrategy extends UKEntityOrderingStrategy {
+
+    @Override
+    @Nonnull public int[] orderPermutation(@Nonnull @NonnullElements final List<Item<Element>> items) {
+        final int n = items.size();
+        final UKEntityOrderingKey[] keys = new UKEntityOrderingKey[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = UKEntityOrderingKey.of(items.get(i));
+        }
+
+        // Find the start of each run; a run ends wherever a key is greater than the next.
+        final int[] runStarts = new int[n + 1];
+        int runs = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || keys[i - 1].compareTo(keys[i]) > 0) {
+                runStarts[runs++] = i;
+            }
+        }
+        runStarts[runs] = n;
+
+        // Each run's next position, and the heap of runs not yet exhausted.
+        final int[] next = new int[runs];
+        final int[] heap = new int[runs];
+        for (int r = 0; r < runs; r++) {
+            next[r] = runStarts[r];
+            heap[r] = r;
+        }
+        for (int i = runs / 2 - 1; i >= 0; i--) {
+            siftDown(heap, runs, i, next, keys);
+        }
+
+        final int[] permutation = new int[n];
+        int heapSize = runs;
+        for (int out = 0; out < n; out++) {
+            final int run = heap[0];
+            permutation[out] = next[run]++;
+            if (next[run] == runStarts[run + 1]) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, 0, next, keys);
+        }
+        return permutation;
+    }
+
+    /**
+     * Restore the heap property below a position in the heap of runs.
+     *
+     * @param heap the runs, as a binary heap
+     * @param size the number of runs in the heap
+     * @param from the position to sift down from
+     * @param next each run's next position in the collection
+     * @param keys the key of each item
+     */
+    private static void siftDown(@Nonnull final int[] heap, final int size, final int from,
+            @Nonnull final int[] next, @Nonnull final UKEntityOrderingKey[] keys) {
+        int parent = from;
+        while (true) {
+            final int left = 2 * parent + 1;
+            if (left >= size) {
+                return;
+            }
+            final int right = left + 1;
+            final int smaller = right < size && less(heap[right], heap[left], next, keys) ? right : left;
+            if (!less(heap[smaller], heap[parent], next, keys)) {
+                return;
+            }
+            final int swap = heap[parent];
+            heap[parent] = heap[smaller];
+            heap[smaller] = swap;
+            parent = smaller;
+        }
+    }
+
+    /**
+     * Determine whether one run's next item orders before another's.
+     *
+     * <p>
+     * Runs cover ascending ranges of positions, so on equal keys the lower position, which is
+     * in the earlier run, comes first.
+     * </p>
+     *
+     * @param a the first run
+     * @param b the second run
+     * @param next each run's next position in the collection
+     * @param keys the key of each item
+     * @return <code>true</code> if run <code>a</code>'s next item orders first
+     */
+    private static boolean less(final int a, final int b, @Nonnull final int[] next,
+            @Nonnull final UKEntityOrderingKey[] keys) {
+        final int compared = keys[next[a]].compareTo(keys[next[b]]);
+        return compared < 0 || compared == 0 && next[a] < next[b];
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+
+/**
+ * The key by which {@link UKEntityOrderingStrategy} orders items.
+ *
+ * <p>
+ * Keys are compared on the following fields in turn, with an item lacking a field ordered after
+ * one which has it:
+ * </p>
+ *
+ * <ol>
+ * <li>whether the item is an <code>EntitiesDescriptor</code>;</li>
+ * <li>the <code>Name</code> of an <code>EntitiesDescriptor</code>;</li>
+ * <li>the item's {@link UKId};</li>
+ * <li>the item's {@link ItemId}.</li>
+ * </ol>
+ *
+ * <p>
+ * Keys can be written to and read from a binary stream, so that large collections can be
+ * ordered without holding every key in memory.
+ * </p>
+ */
+@Immutable
+public final class UKEntityOrderingKey implements Comparable<UKEntityOrderingKey> {
+
+    /** Flag bit: the item is an <code>EntitiesDescriptor</code>. */
+    private static final int FLAG_ENTITIES = 1;
+
+    /** Flag bit: the key has a name. */
+    private static final int FLAG_NAME = 2;
+
+    /** Flag bit: the key has a UK federation identifier. */
+    private static final int FLAG_UKID = 4;
+
+    /** Flag bit: the key has an item identifier. */
+    private static final int FLAG_ITEMID = 8;
+
+    /** Whether the item is an <code>EntitiesDescriptor</code>. */
+    private final boolean entitiesDescriptor;
+
+    /** <code>Name</code> of an <code>EntitiesDescriptor</code>. */
+    @Nullable private final String name;
+
+    /** The item's UK federation identifier. */
+    @Nullable private final String ukId;
+
+    /** The item's item identifier. */
+    @Nullable private final String itemId;
+
+    /**
+     * Constructor.
+     *
+     * @param entities whether the item is an <code>EntitiesDescriptor</code>
+     * @param entitiesName <code>Name</code> of an <code>EntitiesDescriptor</code>, or <code>null</code>
+     * @param uk the item's UK federation identifier, or <code>null</code>
+     * @param item the item's item identifier, or <code>null</code>
+     */
+    public UKEntityOrderingKey(final boolean entities, @Nullable final String entitiesName,
+            @Nullable final String uk, @Nullable final String item) {
+        entitiesDescriptor = entities;
+        name = entitiesName;
+        ukId = uk;
+        itemId = item;
+    }
+
+    /**
+     * Extract the key for an item.
+     *
+     * @param item the item
+     * @return the item's key
+     */
+    @Nonnull public static UKEntityOrderingKey of(@Nonnull final Item<Element> item) {
+        final Element docElement = item.unwrap();
+        final boolean entities = SAMLMetadataSupport.isEntitiesDescriptor(docElement);
+        String entitiesName = null;
+        if (entities) {
+            // Named EntitiesDescriptors come before unnamed, in order of name
+            final Attr nameAttr = docElement.getAttributeNode("Name");
+            if (nameAttr != null) {
+                entitiesName = nameAttr.getTextContent();
+            }
+        }
+
+        return new UKEntityOrderingKey(entities, entitiesName, UKEntityFacts.ukIdOf(item),
+                UKEntityFacts.itemIdOf(item));
+    }
+
+    /**
+     * Get whether the item is an <code>EntitiesDescriptor</code>.
+     *
+     * @return <code>true</code> if the item is an <code>EntitiesDescriptor</code>
+     */
+    public boolean isEntitiesDescriptor() {
+        return entitiesDescriptor;
+    }
+
+    /**
+     * Get the <code>Name</code> of an <code>EntitiesDescriptor</code>.
+     *
+     * @return the name, or <code>null</code>
+     */
+    @Nullable public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the item's UK federation identifier.
+     *
+     * @return the identifier, or <code>null</code>
+     */
+    @Nullable public String getUKId() {
+        return ukId;
+    }
+
+    /**
+     * Get the item's item identifier.
+     *
+     * @return the identifier, or <code>null</code>
+     */
+    @Nullable public String getItemId() {
+        return itemId;
+    }
+
+    /**
+     * Compare a single field.
+     *
+     * @param sThis value of the field in this object
+     * @param sThat value of the field in the other object
+     * @return comparison value
+     */
+    private static int compareField(@Nullable final String sThis, @Nullable final String sThat) {
+        if (sThis != null) {
+            if (sThat != null) {
+                // both have this field; direct comparison
+                return sThis.compareTo(sThat);
+            } else {
+                // we have this field, other does not: we should order first
+                return -1;
+            }
+        } else if (sThat != null) {
+            // we do not have this field, other does: we should order last
+            return 1;
+        } else {
+            // neither has this field
+            return 0;
+        }
+    }
+
+    @Override
+    public int compareTo(@Nonnull final UKEntityOrderingKey o) {
+        if (entitiesDescriptor != o.entitiesDescriptor) {
+            // EntitiesDescriptors come before everything else
+            return entitiesDescriptor ? -1 : 1;
+        }
+        int compared = compareField(name, o.name);
+        if (compared == 0) {
+            compared = compareField(ukId, o.ukId);
+            if (compared == 0) {
+                compared = compareField(itemId, o.itemId);
+            }
+        }
+        return compared;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof UKEntityOrderingKey)) {
+            return false;
+        }
+        final UKEntityOrderingKey other = (UKEntityOrderingKey) obj;
+        return entitiesDescriptor == other.entitiesDescriptor && Objects.equals(name, other.name) &&
+                Objects.equals(ukId, other.ukId) && Objects.equals(itemId, other.itemId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(entitiesDescriptor, name, ukId, itemId);
+    }
+
+    /**
+     * Write the key to a binary stream.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the key can not be written
+     */
+    public void writeTo(@Nonnull final DataOutput out) throws IOException {
+        int flags = entitiesDescriptor ? FLAG_ENTITIES : 0;
+        if (name != null) {
+            flags |= FLAG_NAME;
+        }
+        if (ukId != null) {
+            flags |= FLAG_UKID;
+        }
+        if (itemId != null) {
+            flags |= FLAG_ITEMID;
+        }
+        out.writeByte(flags);
+        writeString(out, name);
+        writeString(out, ukId);
+        writeString(out, itemId);
+    }
+
+    /**
+     * Read a key written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in the stream to read from
+     * @return the key
+     * @throws IOException if the key can not be read
+     */
+    @Nonnull public static UKEntityOrderingKey readFrom(@Nonnull final DataInput in) throws IOException {
+        final int flags = in.readUnsignedByte();
+        final String entitiesName = (flags & FLAG_NAME) != 0 ? readString(in) : null;
+        final String uk = (flags & FLAG_UKID) != 0 ? readString(in) : null;
+        final String item = (flags & FLAG_ITEMID) != 0 ? readString(in) : null;
+        return new UKEntityOrderingKey((flags & FLAG_ENTITIES) != 0, entitiesName, uk, item);
+    }
+
+    /**
+     * Write an optional string as length-prefixed UTF-8.
+     *
+     * @param out the stream to write to
+     * @param s the string, or <code>null</code> to write nothing
+     * @throws IOException if the string can not be written
+     */
+    private static void writeString(@Nonnull final DataOutput out, @Nullable final String s) throws IOException {
+        if (s != null) {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a string written by {@link #writeString(DataOutput, String)}.
+     *
+     * @param in the stream to read from
+     * @return the string
+     * @throws IOException if the string can not be read
+     */
+    @Nonnull private static String readString(@Nonnull final DataInput in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
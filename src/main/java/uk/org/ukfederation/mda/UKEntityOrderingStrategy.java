@@ -14,22 +14,33 @@
 
 package uk.org.ukfederation.mda;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
-import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemId;
-import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
 import net.shibboleth.metadata.pipeline.ItemOrderingStrategy;
 import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.logic.Constraint;
+import uk.org.ukfederation.mda.EntityCatalogue.Column;
 
 /**
  * Implements an ordering strategy for UK federation aggregates.
@@ -42,123 +53,237 @@ import net.shibboleth.shared.annotation.constraint.NonnullElements;
  * Items with {@link ItemId} metadata come next, again in the natural ordering
  * for {@link ItemId}.  Items with neither {@link UKId} or {@link ItemId} come
  * last in the ordering.
+ * 
+ * The full ordering is defined by {@link UKEntityOrderingKey}.
+ * The ordering is stable: items with equal keys keep their original relative order.
+ *
+ * <p>
+ * Collections ordered in memory are ordered with {@link EntityCatalogue#sortPermutation}, sorting
+ * on the catalogue columns which correspond to the fields of the key.
+ * </p>
+ *
+ * <p>
+ * If constructed with a run size and a spill directory, collections larger than the run size
+ * are ordered by an external merge sort: the keys are extracted and sorted a run at a time, each
+ * sorted run of keys and item positions is written to a file in the spill directory, and the
+ * runs are then merged. At most one run of keys is held in memory, and each item is unwrapped
+ * only once, in collection order, which suits collections such as
+ * {@link uk.org.ukfederation.mda.dom.DiskBackedItemList}.
+ * </p>
  */
 @Immutable
 public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
-    
+
+    /** Number of keys to sort in memory at once; 0 for no limit. */
+    private final int runSize;
+
+    /** Directory in which to write sorted runs of keys, if any. */
+    @Nullable private final Path spillDirectory;
+
     /**
-     * Helper class which wraps an {@link Element} {@link Item} but extracts any
-     * associated {@link UKId} and {@link ItemId} for simpler comparisons.
+     * Constructor for a strategy which orders entirely in memory.
      */
-    private static class OrderableItem implements Comparable<OrderableItem> {
-        
-        /** Number of fields we are capable of comparing. */
-        private static final int NFIELDS = 4;
-        
-        /** The wrapped {@link Element} {@link Item}. */
-        private final Item<Element> item;
-        
-        /** Array of field values. */
-        private final String[] fields = new String[NFIELDS];
-        
-        /**
-         * Constructor.
-         * 
-         * @param domItem the {@link Element} {@link Item} to wrap.
-         */
-        public OrderableItem(@Nonnull final Item<Element> domItem) {
-            item = domItem;
-
-            final Element docElement = domItem.unwrap();
-            if (SAMLMetadataSupport.isEntitiesDescriptor(docElement)) {
-                // EntitiesDescriptors come before everything else
-                fields[0] = "yes";
-                
-                // Named EntitiesDescriptors come before unnamed, in order of name
-                final Attr nameAttr = docElement.getAttributeNode("Name");
-                if (nameAttr != null) {
-                    fields[1] = nameAttr.getTextContent();
+    public UKEntityOrderingStrategy() {
+        runSize = 0;
+        spillDirectory = null;
+    }
+
+    /**
+     * Constructor for a strategy which orders large collections by an external merge sort.
+     *
+     * @param size number of keys to sort in memory at once, at least 1
+     * @param directory directory in which to write sorted runs of keys
+     */
+    public UKEntityOrderingStrategy(final int size, @Nonnull final Path directory) {
+        Constraint.isTrue(size > 0, "run size must be at least 1");
+        runSize = size;
+        spillDirectory = Constraint.isNotNull(directory, "spill directory may not be null");
+    }
+
+    @Override
+    public List<Item<Element>> order(@Nonnull @NonnullElements final List<Item<Element>> items) {
+        final int[] permutation = orderPermutation(items);
+
+        // extract the result into a new collection
+        final List<Item<Element>> results = new ArrayList<>(items.size());
+        for (final int index : permutation) {
+            results.add(items.get(index));
+        }
+
+        return results;
+    }
+
+    /**
+     * Compute the order of a collection of items without reordering it.
+     *
+     * @param items the items to order
+     * @return the positions of the items in the collection, in their sorted order
+     */
+    @Nonnull public int[] orderPermutation(@Nonnull @NonnullElements final List<Item<Element>> items) {
+        if (spillDirectory == null || items.size() <= runSize) {
+            return EntityCatalogue.build(items).sortPermutation(Column.ENTITIES_DESCRIPTOR, Column.ENTITIES_NAME,
+                    Column.UKID, Column.ITEM_ID);
+        }
+        try {
+            return externalSort(items, spillDirectory);
+        } catch (final IOException e) {
+            throw new UncheckedIOException("could not order items using " + spillDirectory, e);
+        }
+    }
+
+    /**
+     * Sort the keys of a range of items in memory.
+     *
+     * @param items the items
+     * @param from position of the first item in the range
+     * @param to position after the last item in the range
+     * @return the sorted run of keys and item positions
+     */
+    @Nonnull private static Run sortRun(@Nonnull @NonnullElements final List<Item<Element>> items,
+            final int from, final int to) {
+        final int n = to - from;
+        final UKEntityOrderingKey[] keys = new UKEntityOrderingKey[n];
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = UKEntityOrderingKey.of(items.get(from + i));
+            order[i] = i;
+        }
+
+        // a stable sort, so that equal keys stay in collection order
+        Arrays.sort(order, (a, b) -> keys[a].compareTo(keys[b]));
+
+        final Run run = new Run(n);
+        for (int i = 0; i < n; i++) {
+            run.keys[i] = keys[order[i]];
+            run.indexes[i] = from + order[i];
+        }
+        return run;
+    }
+
+    /**
+     * Order a collection by sorting runs of keys, writing each to a file, and merging the files.
+     *
+     * @param items the items to order
+     * @param directory directory in which to write the runs
+     * @return the positions of the items in the collection, in their sorted order
+     * @throws IOException if a run can not be written or read
+     */
+    @Nonnull private int[] externalSort(@Nonnull @NonnullElements final List<Item<Element>> items,
+            @Nonnull final Path directory) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        final List<RunReader> readers = new ArrayList<>();
+        try {
+            for (int from = 0; from < items.size(); from += runSize) {
+                final Run run = sortRun(items, from, Math.min(items.size(), from + runSize));
+                final Path file = Files.createTempFile(directory, "order-", ".run");
+                files.add(file);
+                try (DataOutputStream out =
+                        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                    for (int i = 0; i < run.keys.length; i++) {
+                        run.keys[i].writeTo(out);
+                        out.writeInt(run.indexes[i]);
+                    }
                 }
             }
-            
-            final List<UKId> ukids = item.getItemMetadata().get(UKId.class);
-            if (ukids.size() != 0) {
-                fields[2] = ukids.get(0).getId();
-            }
 
-            final List<ItemId> itemids = item.getItemMetadata().get(ItemId.class);
-            if (itemids.size() != 0) {
-                fields[3] = itemids.get(0).getId();
+            // Merge the runs; ties go to the earlier position, keeping the sort stable.
+            final PriorityQueue<RunReader> heap = new PriorityQueue<>(files.size());
+            for (final Path file : files) {
+                final RunReader reader = new RunReader(file);
+                readers.add(reader);
+                if (reader.advance()) {
+                    heap.add(reader);
+                }
+            }
+            final int[] permutation = new int[items.size()];
+            int n = 0;
+            while (!heap.isEmpty()) {
+                final RunReader reader = heap.poll();
+                permutation[n++] = reader.index;
+                if (reader.advance()) {
+                    heap.add(reader);
+                }
+            }
+            return permutation;
+        } finally {
+            for (final RunReader reader : readers) {
+                reader.close();
+            }
+            for (final Path file : files) {
+                Files.deleteIfExists(file);
             }
         }
+    }
+
+    /** A sorted run of keys, with the positions of the items they came from. */
+    private static final class Run {
+
+        /** The keys, in sorted order. */
+        @Nonnull private final UKEntityOrderingKey[] keys;
+
+        /** The position of each key's item in the collection. */
+        @Nonnull private final int[] indexes;
 
         /**
-         * Compare a single field.
-         * 
-         * @param sThis value of the field in this object
-         * @param sThat value of the field in the other object
-         * @return comparison value
+         * Constructor.
+         *
+         * @param n number of keys in the run
          */
-        private int compareField(@Nullable final String sThis, @Nullable final String sThat) {
-            if (sThis != null) {
-                if (sThat != null) {
-                    // both have this field; direct comparison
-                    return sThis.compareTo(sThat);
-                } else {
-                    // we have this field, other does not: we should order first
-                    return -1;
-                }
-            } else if (sThat != null) {
-                // we do not have this field, other does: we should order last
-                return 1;
-            } else {
-                // neither has this field
-                return 0;
-            }
+        Run(final int n) {
+            keys = new UKEntityOrderingKey[n];
+            indexes = new int[n];
         }
-        
-        @Override
-        public int compareTo(@Nonnull final OrderableItem o) {
-            for (int fno = 0; fno < NFIELDS; fno++) {
-                final int compared = compareField(fields[fno], o.fields[fno]);
-                if (compared != 0) {
-                    return compared;
-                }
-            }
+    }
+
+    /** Reads a sorted run of keys back from a file. */
+    private static final class RunReader implements Comparable<RunReader>, Closeable {
+
+        /** The stream to read from. */
+        @Nonnull private final DataInputStream in;
+
+        /** The current key. */
+        @Nullable private UKEntityOrderingKey key;
+
+        /** The position of the current key's item in the collection. */
+        private int index;
 
-            // nothing to choose between them
-            return 0;
-        }
-        
         /**
-         * Unwrap the wrapped {@link Element} {@link Item}.
-         * 
-         * @return the wrapped {@link Element} {@link Item}.
+         * Constructor.
+         *
+         * @param file the file holding the run
+         * @throws IOException if the file can not be opened
          */
-        public Item<Element> unwrap() {
-            return item;
+        RunReader(@Nonnull final Path file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
         }
-    }
 
-    @Override
-    public List<Item<Element>> order(@Nonnull @NonnullElements final List<Item<Element>> items) {
-        
-        // Construct an orderable list wrapping the original items.
-        final List<OrderableItem> orderableList = new ArrayList<>(items.size());
-        for (final Item<Element> item : items) {
-            orderableList.add(new OrderableItem(item));
+        /**
+         * Move to the next key in the run.
+         *
+         * @return <code>false</code> if the run is exhausted
+         * @throws IOException if the file can not be read
+         */
+        boolean advance() throws IOException {
+            try {
+                key = UKEntityOrderingKey.readFrom(in);
+            } catch (final EOFException e) {
+                key = null;
+                return false;
+            }
+            index = in.readInt();
+            return true;
         }
-        
-        // sort the orderable list
-        Collections.sort(orderableList);
-        
-        // extract the result into a new collection
-        final List<Item<Element>> results = new ArrayList<>(items.size());
-        for (final OrderableItem result : orderableList) {
-            results.add(result.unwrap());
+
+        @Override
+        public int compareTo(@Nonnull final RunReader o) {
+            final int compared = key.compareTo(o.key);
+            return compared != 0 ? compared : Integer.compare(index, o.index);
         }
 
-        return results;
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
     }
 
 }
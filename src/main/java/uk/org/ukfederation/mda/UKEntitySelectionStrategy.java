@@ -19,14 +19,23 @@ import java.util.function.Predicate;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.Immutable;
 
-import net.shibboleth.metadata.dom.DOMElementItem;
+import org.w3c.dom.Element;
 
-/** An implementation of {@link Predicate} that selects entities with {@link UKId}s. */
+import net.shibboleth.metadata.Item;
+
+/**
+ * An implementation of {@link Predicate} that selects entities with {@link UKId}s.
+ *
+ * <p>
+ * Only the item metadata is consulted, so any kind of {@link Item}, such as a
+ * {@link uk.org.ukfederation.mda.dom.LazyDOMElementItem}, can be selected without parsing its element.
+ * </p>
+ */
 @Immutable
-public class UKEntitySelectionStrategy implements Predicate<DOMElementItem> {
+public class UKEntitySelectionStrategy implements Predicate<Item<Element>> {
 
     @Override
-    public boolean test(@Nonnull final DOMElementItem item) {
+    public boolean test(@Nonnull final Item<Element> item) {
         return item.getItemMetadata().containsKey(UKId.class);
     }
 
@@ -15,6 +15,7 @@
 package uk.org.ukfederation.mda;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import com.google.common.base.Objects;
@@ -28,6 +29,9 @@ import net.shibboleth.shared.primitive.StringSupport;
 @Immutable
 public class UKId implements ItemMetadata, Comparable<UKId> {
 
+    /** Number of digits in a UK federation identifier. */
+    private static final int UKID_DIGITS = 6;
+
     /** UK federation fragment ID for the Item. */
     private String id;
 
@@ -40,6 +44,39 @@ public class UKId implements ItemMetadata, Comparable<UKId> {
         id = Constraint.isNotNull(StringSupport.trimOrNull(ukid), "UK ID may not be null or empty");
     }
 
+    /**
+     * Get the numeric part of a UK federation identifier.
+     *
+     * @param id the identifier
+     * @return the numeric part of the identifier, or -1 if it is not of the form <code>uk</code>
+     *  followed by six decimal digits
+     */
+    public static int number(@Nullable final String id) {
+        if (id == null || id.length() != UKID_DIGITS + 2 || id.charAt(0) != 'u' || id.charAt(1) != 'k') {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 2; i < id.length(); i++) {
+            final char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Get the decimal digits of a UK federation identifier.
+     *
+     * @param id the identifier
+     * @return the six decimal digits following <code>uk</code>, or <code>null</code> if the identifier is not
+     *  of that form
+     */
+    @Nullable public static String digits(@Nullable final String id) {
+        return number(id) < 0 ? null : id.substring(2);
+    }
+
     /**
      * Gets a unique identifier for the data carried by the Item.
      * 
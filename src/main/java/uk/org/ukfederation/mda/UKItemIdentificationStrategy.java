@@ -14,8 +14,6 @@
 
 package uk.org.ukfederation.mda;
 
-import java.util.List;
-
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -36,12 +34,8 @@ public class UKItemIdentificationStrategy<T> extends RegistrationAuthorityItemId
 
     @Override
     @Nonnull protected String getBasicIdentifier(@Nonnull final Item<T> item) {
-        final List<UKId> itemIds = item.getItemMetadata().get(UKId.class);
-        if (itemIds != null && !itemIds.isEmpty()) {
-            return itemIds.get(0).getId();
-        } else {
-            return super.getBasicIdentifier(item);
-        }
+        final String ukId = UKEntityFacts.ukIdOf(item);
+        return ukId != null ? ukId : super.getBasicIdentifier(item);
     }
     
 }
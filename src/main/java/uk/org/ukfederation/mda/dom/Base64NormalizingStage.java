@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+
+import com.google.common.collect.ImmutableMap;
+
+import net.shibboleth.metadata.dom.AbstractElementVisitingStage;
+import net.shibboleth.metadata.dom.DOMTraversalContext;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.annotation.constraint.Unmodifiable;
+import uk.org.ukfederation.mda.dom.impl.Base64WrappingVisitor;
+
+/**
+ * Stage to normalise the assumed Base64 text content of several kinds of element
+ * within a {@link net.shibboleth.metadata.dom.DOMElementItem}, each according to its
+ * own {@link Base64WrappingPolicy}.
+ *
+ * <p>
+ * All of the configured elements are handled in a single traversal of each item's DOM.
+ * </p>
+ */
+@ThreadSafe
+public class Base64NormalizingStage extends AbstractElementVisitingStage {
+
+    /** Policies to apply, indexed by element name. */
+    @GuardedBy("this") @Nonnull @NonnullElements @Unmodifiable
+    private Map<QName, Base64WrappingPolicy> policies = ImmutableMap.of();
+
+    /** Policies to apply, indexed by namespace URI then by local name. */
+    @GuardedBy("this") @Nonnull private Map<String, Map<String, Base64WrappingPolicy>> policyIndex = Map.of();
+
+    /**
+     * Get the policies to apply, indexed by element name.
+     *
+     * @return the policies to apply
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public final synchronized Map<QName, Base64WrappingPolicy> getPolicies() {
+        return policies;
+    }
+
+    /**
+     * Set the policies to apply, indexed by element name.
+     *
+     * <p>
+     * This also sets the names of the elements to be visited.
+     * </p>
+     *
+     * @param newPolicies the policies to apply
+     */
+    public final synchronized void setPolicies(
+            @Nonnull @NonnullElements final Map<QName, Base64WrappingPolicy> newPolicies) {
+        checkSetterPreconditions();
+        policies = ImmutableMap.copyOf(newPolicies);
+
+        final Map<String, Map<String, Base64WrappingPolicy>> index = new HashMap<>();
+        for (final Map.Entry<QName, Base64WrappingPolicy> entry : policies.entrySet()) {
+            final QName name = entry.getKey();
+            index.computeIfAbsent(name.getNamespaceURI(), k -> new HashMap<>())
+                    .put(name.getLocalPart(), entry.getValue());
+        }
+        policyIndex = index;
+        setElementNames(policies.keySet());
+    }
+
+    /**
+     * Get the policy for a given element.
+     *
+     * @param element the element
+     * @return the policy, or <code>null</code> if there is none
+     */
+    @Nullable private synchronized Base64WrappingPolicy getPolicy(@Nonnull final Element element) {
+        final String namespace = element.getNamespaceURI();
+        final Map<String, Base64WrappingPolicy> byLocalName = policyIndex.get(namespace == null ? "" : namespace);
+        return byLocalName == null ? null : byLocalName.get(element.getLocalName());
+    }
+
+    @Override
+    protected void visit(@Nonnull final Element element, @Nonnull final DOMTraversalContext context) {
+        final Base64WrappingPolicy policy = getPolicy(element);
+        if (policy != null) {
+            final String stripped = Base64WrappingVisitor.stripWhitespace(element.getTextContent());
+            element.setTextContent(policy.apply(stripped));
+        }
+    }
+
+}
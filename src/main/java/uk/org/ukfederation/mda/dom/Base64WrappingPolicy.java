@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.shared.logic.Constraint;
+import uk.org.ukfederation.mda.dom.impl.Base64WrappingVisitor;
+
+/**
+ * A policy for the layout of normalised Base64 text.
+ *
+ * <p>
+ * The text, once its white space has been removed, is broken into lines of at most
+ * <code>lineLength</code> characters, or left as a single line if <code>lineLength</code>
+ * is 0. A newline can optionally be added before and after the text.
+ * </p>
+ */
+@Immutable
+public final class Base64WrappingPolicy {
+
+    /**
+     * The policy applied by {@link ElementBase64WrappingStage}: 64-character lines, with
+     * leading and trailing newlines.
+     */
+    @Nonnull public static final Base64WrappingPolicy DEFAULT = new Base64WrappingPolicy(64, true, true);
+
+    /** A policy collapsing the text to a single line with no surrounding white space. */
+    @Nonnull public static final Base64WrappingPolicy COLLAPSE = new Base64WrappingPolicy(0, false, false);
+
+    /** Maximum line length, or 0 for no line breaks. */
+    private final int lineLength;
+
+    /** Whether to add a newline before the text. */
+    private final boolean leadingNewline;
+
+    /** Whether to add a newline after the text. */
+    private final boolean trailingNewline;
+
+    /**
+     * Constructor.
+     *
+     * @param length maximum line length, or 0 for no line breaks
+     * @param leading whether to add a newline before the text
+     * @param trailing whether to add a newline after the text
+     */
+    public Base64WrappingPolicy(final int length, final boolean leading, final boolean trailing) {
+        Constraint.isTrue(length >= 0, "line length must not be negative");
+        lineLength = length;
+        leadingNewline = leading;
+        trailingNewline = trailing;
+    }
+
+    /**
+     * Get the maximum line length.
+     *
+     * @return the maximum line length, or 0 for no line breaks
+     */
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    /**
+     * Get whether a newline is added before the text.
+     *
+     * @return <code>true</code> if a newline is added before the text
+     */
+    public boolean isLeadingNewline() {
+        return leadingNewline;
+    }
+
+    /**
+     * Get whether a newline is added after the text.
+     *
+     * @return <code>true</code> if a newline is added after the text
+     */
+    public boolean isTrailingNewline() {
+        return trailingNewline;
+    }
+
+    /**
+     * Apply the policy to some Base64 text from which all white space has been removed.
+     *
+     * @param stripped the text, without white space
+     * @return the text laid out according to the policy
+     */
+    @Nonnull public String apply(@Nonnull final String stripped) {
+        final String wrapped = lineLength == 0 ? stripped : Base64WrappingVisitor.wrapStripped(stripped, lineLength);
+        if (!leadingNewline && !trailingNewline) {
+            return wrapped;
+        }
+        final StringBuilder result = new StringBuilder(wrapped.length() + 2);
+        if (leadingNewline) {
+            result.append('\n');
+        }
+        result.append(wrapped);
+        if (trailingNewline) {
+            result.append('\n');
+        }
+        return result.toString();
+    }
+}
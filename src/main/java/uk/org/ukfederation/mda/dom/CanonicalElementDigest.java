@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Computes a SHA-256 digest of an element which depends only on its content, not on
+ * how it happens to be serialized.
+ *
+ * <p>
+ * The digest covers each element's namespace URI and local name, its attributes in a fixed
+ * order, and its text. It ignores namespace prefixes and declarations, attribute order,
+ * comments, processing instructions, how text is split into nodes, and whitespace-only text
+ * between elements. Two elements with the same digest are therefore equivalent as metadata,
+ * although not necessarily identical as documents.
+ * </p>
+ */
+public final class CanonicalElementDigest {
+
+    /** Token starting an element. */
+    private static final byte ELEMENT_START = 1;
+
+    /** Token ending an element. */
+    private static final byte ELEMENT_END = 2;
+
+    /** Token starting an attribute. */
+    private static final byte ATTRIBUTE = 3;
+
+    /** Token starting text. */
+    private static final byte TEXT = 4;
+
+    /** Orders attributes by namespace URI and then local name. */
+    @Nonnull private static final Comparator<Attr> ATTRIBUTE_ORDER =
+            Comparator.comparing(Attr::getNamespaceURI, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+                .thenComparing(Attr::getLocalName, Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+
+    /** Constructor. */
+    private CanonicalElementDigest() {
+    }
+
+    /**
+     * Compute the digest of an element and its descendants.
+     *
+     * @param element the element to digest
+     * @return the SHA-256 digest
+     */
+    @Nonnull public static byte[] digest(@Nonnull final Element element) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        update(md, element);
+        return md.digest();
+    }
+
+    /**
+     * Add an element and its descendants to a digest.
+     *
+     * @param md the digest to update
+     * @param element the element to add
+     */
+    private static void update(@Nonnull final MessageDigest md, @Nonnull final Element element) {
+        md.update(ELEMENT_START);
+        updateString(md, element.getNamespaceURI());
+        updateString(md, element.getLocalName());
+
+        final NamedNodeMap attributeMap = element.getAttributes();
+        final Attr[] attributes = new Attr[attributeMap.getLength()];
+        int count = 0;
+        for (int i = 0; i < attributes.length; i++) {
+            final Attr attribute = (Attr) attributeMap.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+                attributes[count++] = attribute;
+            }
+        }
+        Arrays.sort(attributes, 0, count, ATTRIBUTE_ORDER);
+        for (int i = 0; i < count; i++) {
+            md.update(ATTRIBUTE);
+            updateString(md, attributes[i].getNamespaceURI());
+            updateString(md, attributes[i].getLocalName());
+            updateString(md, attributes[i].getValue());
+        }
+
+        // Adjacent text and CDATA nodes are treated as a single run of text.
+        final boolean elementContent = ElementCursorSupport.firstChildElement(element) != null;
+        final StringBuilder text = new StringBuilder();
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            final short type = child.getNodeType();
+            if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) {
+                text.append(child.getNodeValue());
+            } else if (type == Node.ELEMENT_NODE) {
+                updateText(md, text, elementContent);
+                update(md, (Element) child);
+            }
+        }
+        updateText(md, text, elementContent);
+
+        md.update(ELEMENT_END);
+    }
+
+    /**
+     * Add a run of text to a digest, unless it is ignorable whitespace, and clear it.
+     *
+     * @param md the digest to update
+     * @param text the run of text
+     * @param elementContent whether the text lies between child elements
+     */
+    private static void updateText(@Nonnull final MessageDigest md, @Nonnull final StringBuilder text,
+            final boolean elementContent) {
+        if (text.length() > 0) {
+            if (!elementContent || !text.toString().isBlank()) {
+                md.update(TEXT);
+                updateString(md, text.toString());
+            }
+            text.setLength(0);
+        }
+    }
+
+    /**
+     * Add a length-prefixed string to a digest.
+     *
+     * @param md the digest to update
+     * @param s the string, or <code>null</code>
+     */
+    private static void updateString(@Nonnull final MessageDigest md, @Nullable final String s) {
+        if (s == null) {
+            updateInt(md, -1);
+        } else {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            updateInt(md, bytes.length);
+            md.update(bytes);
+        }
+    }
+
+    /**
+     * Add a big-endian integer to a digest.
+     *
+     * @param md the digest to update
+     * @param value the value to add
+     */
+    private static void updateInt(@Nonnull final MessageDigest md, final int value) {
+        md.update((byte) (value >>> 24));
+        md.update((byte) (value >>> 16));
+        md.update((byte) (value >>> 8));
+        md.update((byte) value);
+    }
+}
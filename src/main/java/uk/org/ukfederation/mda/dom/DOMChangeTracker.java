@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import java.lang.ref.WeakReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+
+/**
+ * Records whether a DOM document has been changed since it began to be tracked.
+ *
+ * <p>
+ * The tracker listens for the DOM Level 2 <code>DOMSubtreeModified</code> mutation event, which
+ * the JDK's DOM implementation dispatches for every insertion, removal, attribute change and
+ * character data change once a listener is registered. This makes telling whether a document
+ * needs to be serialized again a matter of reading a flag. Renaming a node with
+ * {@link Document#renameNode(Node, String, String)} is not reported.
+ * </p>
+ *
+ * <p>
+ * Documents which do not support events can not be tracked, and callers must then assume that
+ * the document may have changed.
+ * </p>
+ *
+ * <p>
+ * The tracker refers to its document only weakly, so a document which is otherwise unreachable
+ * is not kept in memory by being tracked.
+ * </p>
+ */
+@ThreadSafe
+public final class DOMChangeTracker implements EventListener {
+
+    /** The mutation event listened for. */
+    @Nonnull private static final String SUBTREE_MODIFIED = "DOMSubtreeModified";
+
+    /** The document being tracked. */
+    @Nonnull private final WeakReference<EventTarget> target;
+
+    /** Whether the document has changed. */
+    private volatile boolean changed;
+
+    /**
+     * Constructor.
+     *
+     * @param document the document to track
+     */
+    private DOMChangeTracker(@Nonnull final EventTarget document) {
+        target = new WeakReference<>(document);
+    }
+
+    /**
+     * Start tracking changes to the document containing a node.
+     *
+     * @param node a node in the document to track, or the document itself
+     * @return the tracker, or <code>null</code> if the document does not support events
+     */
+    @Nullable public static DOMChangeTracker track(@Nonnull final Node node) {
+        final Document document =
+                node.getNodeType() == Node.DOCUMENT_NODE ? (Document) node : node.getOwnerDocument();
+        if (!(document instanceof EventTarget)) {
+            return null;
+        }
+        final DOMChangeTracker tracker = new DOMChangeTracker((EventTarget) document);
+        ((EventTarget) document).addEventListener(SUBTREE_MODIFIED, tracker, false);
+        return tracker;
+    }
+
+    /**
+     * Get whether the document has changed since tracking began.
+     *
+     * @return <code>true</code> if the document has changed
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Stop tracking the document.
+     *
+     * <p>
+     * {@link #isChanged()} continues to report any change seen before tracking stopped.
+     * </p>
+     */
+    public void stop() {
+        final EventTarget document = target.get();
+        if (document != null) {
+            document.removeEventListener(SUBTREE_MODIFIED, this, false);
+        }
+    }
+
+    @Override
+    public void handleEvent(@Nonnull final Event event) {
+        changed = true;
+    }
+}
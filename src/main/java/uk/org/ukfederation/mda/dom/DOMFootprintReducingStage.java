@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Stage which reduces the memory used by the DOM of each item in a collection.
+ *
+ * <p>
+ * Each item is walked once, and:
+ * </p>
+ *
+ * <ul>
+ * <li>whitespace-only text between elements is removed, except within any element carrying an
+ * enveloped <code>ds:Signature</code>, where it forms part of the signed content;</li>
+ * <li>attribute values and text no longer than <code>maximumLength</code> are replaced by a single
+ * shared instance of each distinct value, drawn from a pool used across the whole collection.</li>
+ * </ul>
+ *
+ * <p>
+ * Neither change alters the serialized form of an item other than by the removal of ignorable
+ * whitespace. The number of characters no longer held, a proxy for the memory saved whose exact
+ * size depends on how the JVM encodes each string, is logged for each execution.
+ * </p>
+ */
+@ThreadSafe
+public class DOMFootprintReducingStage extends AbstractStage<Element> {
+
+    /** Namespace of the XML digital signature elements. */
+    private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(DOMFootprintReducingStage.class);
+
+    /** Longest value to be shared. Default value: 256. */
+    @GuardedBy("this") private int maximumLength = 256;
+
+    /** Whether to remove whitespace-only text between elements. Default value: <code>true</code>. */
+    @GuardedBy("this") private boolean stripWhitespace = true;
+
+    /**
+     * Get the length of the longest value which will be shared.
+     *
+     * @return the maximum length in characters
+     */
+    public final synchronized int getMaximumLength() {
+        return maximumLength;
+    }
+
+    /**
+     * Set the length of the longest value which will be shared.
+     *
+     * <p>
+     * Longer values, such as certificates, are rarely repeated and are left alone.
+     * </p>
+     *
+     * @param length the maximum length in characters
+     */
+    public final synchronized void setMaximumLength(final int length) {
+        checkSetterPreconditions();
+        maximumLength = length;
+    }
+
+    /**
+     * Get whether whitespace-only text between elements is removed.
+     *
+     * @return <code>true</code> if whitespace is removed
+     */
+    public final synchronized boolean isStripWhitespace() {
+        return stripWhitespace;
+    }
+
+    /**
+     * Set whether whitespace-only text between elements is removed.
+     *
+     * @param strip <code>true</code> to remove whitespace
+     */
+    public final synchronized void setStripWhitespace(final boolean strip) {
+        checkSetterPreconditions();
+        stripWhitespace = strip;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final Reducer reducer = new Reducer(getMaximumLength(), isStripWhitespace());
+        for (final Item<Element> item : items) {
+            reducer.reduce(item.unwrap(), false);
+        }
+        log.info("{}: removed {} whitespace nodes and shared {} values among {} distinct, releasing {} characters",
+                getId(), reducer.whitespaceNodes, reducer.sharedValues, reducer.pool.size(), reducer.charactersSaved);
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (maximumLength < 0) {
+            throw new ComponentInitializationException("maximumLength must not be negative");
+        }
+    }
+
+    /**
+     * Determines whether a string consists only of XML whitespace.
+     *
+     * @param s the string to test
+     * @return <code>true</code> if the string is entirely whitespace
+     */
+    static boolean isWhitespace(@Nonnull final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c != ' ' && c != '\n' && c != '\t' && c != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Walks the items of a single execution, sharing a value pool between them. */
+    private static final class Reducer {
+
+        /** Longest value to be shared. */
+        private final int maximumLength;
+
+        /** Whether to remove whitespace-only text between elements. */
+        private final boolean stripWhitespace;
+
+        /** The canonical instance of each value seen. */
+        @Nonnull private final Map<String, String> pool = new HashMap<>();
+
+        /** Number of whitespace nodes removed. */
+        private long whitespaceNodes;
+
+        /** Number of values replaced by a shared instance. */
+        private long sharedValues;
+
+        /** Number of characters no longer held by the document. */
+        private long charactersSaved;
+
+        /**
+         * Constructor.
+         *
+         * @param maxLength longest value to be shared
+         * @param strip whether to remove whitespace-only text between elements
+         */
+        Reducer(final int maxLength, final boolean strip) {
+            maximumLength = maxLength;
+            stripWhitespace = strip;
+        }
+
+        /**
+         * Reduce an element and its descendants.
+         *
+         * @param element the element to reduce
+         * @param signed whether the element is within signed content
+         */
+        void reduce(@Nonnull final Element element, final boolean signed) {
+            final NamedNodeMap attributes = element.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                final Attr attribute = (Attr) attributes.item(i);
+                final String value = attribute.getValue();
+                final String shared = share(value);
+                if (shared != value) {
+                    attribute.setValue(shared);
+                }
+            }
+
+            final boolean inSigned = signed || ElementCursorSupport.hasChildElement(element, DSIG_NS, "Signature");
+            final boolean strip = stripWhitespace && !inSigned &&
+                    ElementCursorSupport.firstChildElement(element) != null;
+            Node child = element.getFirstChild();
+            while (child != null) {
+                final Node next = child.getNextSibling();
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    reduce((Element) child, inSigned);
+                } else if (child.getNodeType() == Node.TEXT_NODE) {
+                    final Text text = (Text) child;
+                    final String data = text.getData();
+                    if (strip && isWhitespace(data)) {
+                        element.removeChild(text);
+                        whitespaceNodes++;
+                        charactersSaved += data.length();
+                    } else {
+                        final String shared = share(data);
+                        if (shared != data) {
+                            text.setData(shared);
+                        }
+                    }
+                }
+                child = next;
+            }
+        }
+
+        /**
+         * Returns the shared instance of a value, recording it if it is new.
+         *
+         * @param value the value
+         * @return the shared instance
+         */
+        @Nonnull private String share(@Nonnull final String value) {
+            if (value.length() > maximumLength) {
+                return value;
+            }
+            final String shared = pool.putIfAbsent(value, value);
+            if (shared == null || shared == value) {
+                return value;
+            }
+            sharedValues++;
+            charactersSaved += value.length();
+            return shared;
+        }
+    }
+}
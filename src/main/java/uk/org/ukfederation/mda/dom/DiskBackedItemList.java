@@ -0,0 +1,546 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.xml.ParserPool;
+import net.shibboleth.shared.xml.SerializeSupport;
+import net.shibboleth.shared.xml.XMLParserException;
+
+/**
+ * A {@link List} of {@link Item}s whose elements are held in a memory-mapped local file rather
+ * than on the heap, for collections too large to keep entirely in memory.
+ *
+ * <p>
+ * Items added to the list are serialized into the file, and the list holds only small handles
+ * carrying each item's location and its item metadata. Unwrapping a handle parses its element
+ * directly from the mapped file. Only the <code>residentLimit</code> most recently unwrapped
+ * elements are kept; when another is unwrapped, the least recently used is spilled: its DOM is
+ * dropped and, only if it has changed since it was parsed, it is first serialized and written
+ * back. Changes are tracked with a {@link DOMChangeTracker}, so an unchanged element costs nothing
+ * to spill. A changed element is written over its previous copy when it fits there; otherwise it
+ * goes into the smallest region left free by earlier rewrites which will hold it, and only if there
+ * is none is it appended to the file.
+ * </p>
+ *
+ * <p>
+ * Stages which handle one item at a time on a single thread, such as those based on
+ * {@link net.shibboleth.metadata.pipeline.AbstractIteratingStage}, can be run against the list
+ * without change, as each element is finished with before the next is unwrapped. The list must
+ * not be used by stages which process several items at once, such as
+ * {@link uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage} or
+ * {@link uk.org.ukfederation.mda.pipeline.ConcurrentCompositeStage}: an element may then be
+ * spilled while another thread is still changing it, which is a data race. Although its methods
+ * are synchronized, the list is therefore not thread-safe in any useful sense.
+ * </p>
+ *
+ * <p>
+ * An element must not be kept and changed once other elements have been unwrapped, as it may have
+ * been spilled in the meantime and any change to it would be lost. The list keeps tracking a
+ * spilled DOM, and a change made to one is reported by an {@link IllegalStateException} the next
+ * time its item is unwrapped or spilled, or the list is closed. Renaming a node is not detected.
+ * </p>
+ *
+ * <p>
+ * Where the file system allows it, the backing file is unlinked as soon as it has been opened, so
+ * that its space is returned when the list is closed or the JVM exits, however it exits. Otherwise
+ * it is deleted when the list is closed or, failing that, when the JVM exits normally. Elements
+ * can no longer be unwrapped once the list has been closed.
+ * </p>
+ */
+@NotThreadSafe
+public class DiskBackedItemList extends AbstractList<Item<Element>> implements AutoCloseable {
+
+    /** Default number of elements to keep parsed. */
+    public static final int DEFAULT_RESIDENT_LIMIT = 16;
+
+    /** Default size in bytes of each mapped region of the file. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /** Parser pool used to parse elements from the file. */
+    @Nonnull private final ParserPool parserPool;
+
+    /** Maximum number of elements to keep parsed. */
+    private final int residentLimit;
+
+    /** Size in bytes of each mapped region of the file. */
+    private final int chunkSize;
+
+    /** Channel to the backing file. */
+    @GuardedBy("this") @Nonnull private final FileChannel channel;
+
+    /** Mapped regions of the backing file, in file order. */
+    @GuardedBy("this") @Nonnull private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    /** File offset at which the next region will be mapped. */
+    @GuardedBy("this") private long fileEnd;
+
+    /** Item handles, in list order. */
+    @GuardedBy("this") @Nonnull private final List<DiskItem> items = new ArrayList<>();
+
+    /** Items with parsed elements, least recently used first. */
+    @GuardedBy("this") @Nonnull private final LinkedHashSet<DiskItem> resident = new LinkedHashSet<>();
+
+    /** Regions of the file left free by rewritten items, as (chunk, offset) pairs indexed by length. */
+    @GuardedBy("this") @Nonnull private final TreeMap<Integer, ArrayDeque<long[]>> freeRegions = new TreeMap<>();
+
+    /** Total length of the regions in {@link #freeRegions}. */
+    @GuardedBy("this") private long freeSpace;
+
+    /** Whether the list has been closed. */
+    @GuardedBy("this") private boolean closed;
+
+    /**
+     * Constructor using the default resident limit and chunk size.
+     *
+     * @param pool parser pool used to parse elements from the file
+     * @param directory directory in which to create the backing file
+     * @throws IOException if the backing file can not be created
+     */
+    public DiskBackedItemList(@Nonnull final ParserPool pool, @Nonnull final Path directory) throws IOException {
+        this(pool, directory, DEFAULT_RESIDENT_LIMIT, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param pool parser pool used to parse elements from the file
+     * @param directory directory in which to create the backing file
+     * @param limit maximum number of elements to keep parsed, at least 1
+     * @param chunk size in bytes of each mapped region of the file; larger items are given a region
+     *  of their own
+     * @throws IOException if the backing file can not be created
+     */
+    public DiskBackedItemList(@Nonnull final ParserPool pool, @Nonnull final Path directory,
+            final int limit, final int chunk) throws IOException {
+        parserPool = Constraint.isNotNull(pool, "parser pool may not be null");
+        Constraint.isTrue(limit > 0, "resident limit must be at least 1");
+        Constraint.isTrue(chunk > 0, "chunk size must be at least 1");
+        residentLimit = limit;
+        chunkSize = chunk;
+        final Path file = Files.createTempFile(directory, "items-", ".spill");
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        try {
+            // The open channel keeps the file's contents until it is closed.
+            Files.delete(file);
+        } catch (final IOException e) {
+            // Not possible on this file system, so rely on DELETE_ON_CLOSE or, failing that, exit.
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    @Override
+    @Nonnull public synchronized Item<Element> get(final int index) {
+        return items.get(index);
+    }
+
+    @Override
+    public synchronized int size() {
+        return items.size();
+    }
+
+    @Override
+    @Nullable public synchronized Item<Element> set(final int index, @Nonnull final Item<Element> item) {
+        final DiskItem handle = adopt(item);
+        final DiskItem old = items.set(index, handle);
+        if (old != handle) {
+            resident.remove(old);
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized void add(final int index, @Nonnull final Item<Element> item) {
+        items.add(index, adopt(item));
+        modCount++;
+    }
+
+    @Override
+    @Nonnull public synchronized Item<Element> remove(final int index) {
+        final DiskItem old = items.remove(index);
+        resident.remove(old);
+        modCount++;
+        return old;
+    }
+
+    /**
+     * Returns the number of bytes of the backing file in use.
+     *
+     * @return the size of the backing file's mapped regions
+     */
+    public synchronized long getFileSize() {
+        return fileEnd;
+    }
+
+    /**
+     * Returns the number of bytes of the backing file left free by rewritten items and not yet reused.
+     *
+     * @return the total size of the free regions
+     */
+    public synchronized long getFreeSpace() {
+        return freeSpace;
+    }
+
+    /**
+     * Returns the number of elements currently parsed.
+     *
+     * @return the number of resident elements
+     */
+    public synchronized int getResidentCount() {
+        return resident.size();
+    }
+
+    /**
+     * Closes the list, deleting its backing file.
+     *
+     * @throws IOException if the file can not be closed
+     * @throws IllegalStateException if an element was changed after it had been spilled, once the
+     *  list has been closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            resident.clear();
+            chunks.clear();
+            freeRegions.clear();
+            channel.close();
+            for (final DiskItem handle : items) {
+                checkDetached(handle);
+            }
+        }
+    }
+
+    /**
+     * Returns a handle for an item, writing it to the file if it is not already one of ours.
+     *
+     * @param item the item to add
+     * @return the item's handle
+     */
+    @GuardedBy("this") @Nonnull private DiskItem adopt(@Nonnull final Item<Element> item) {
+        Constraint.isNotNull(item, "item may not be null");
+        if (item instanceof DiskItem && ((DiskItem) item).owner() == this) {
+            return (DiskItem) item;
+        }
+        final DiskItem handle = new DiskItem();
+        handle.getItemMetadata().putAll(item.getItemMetadata());
+        append(handle, serialize(item.unwrap()));
+        return handle;
+    }
+
+    /**
+     * Serialize an element.
+     *
+     * @param element the element to serialize
+     * @return the serialized element
+     */
+    @Nonnull private static byte[] serialize(@Nonnull final Element element) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SerializeSupport.writeNode(element, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a serialized element into a free region of the file or, if none is large enough, at its
+     * end, recording its location in a handle.
+     *
+     * @param handle the handle to record the location in
+     * @param data the serialized element
+     */
+    @GuardedBy("this") private void append(@Nonnull final DiskItem handle, @Nonnull final byte[] data) {
+        checkOpen();
+
+        // Reuse the smallest free region which will hold the element, keeping what is left over.
+        final Map.Entry<Integer, ArrayDeque<long[]>> free = freeRegions.ceilingEntry(data.length);
+        if (free != null) {
+            final long[] region = free.getValue().pop();
+            if (free.getValue().isEmpty()) {
+                freeRegions.remove(free.getKey());
+            }
+            freeSpace -= free.getKey();
+            handle.chunk = (int) region[0];
+            handle.offset = (int) region[1];
+            handle.length = data.length;
+            region(handle).put(data);
+            release(handle.chunk, handle.offset + data.length, free.getKey() - data.length);
+            return;
+        }
+
+
+        MappedByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < data.length) {
+            final int size = Math.max(chunkSize, data.length);
+            try {
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE, fileEnd, size);
+            } catch (final IOException e) {
+                throw new UncheckedIOException("could not extend item file", e);
+            }
+            fileEnd += size;
+            chunks.add(chunk);
+        }
+        handle.chunk = chunks.size() - 1;
+        handle.offset = chunk.position();
+        handle.length = data.length;
+        chunk.put(data);
+    }
+
+    /**
+     * Parse an item's element from the file, and make it resident.
+     *
+     * @param handle the item
+     * @return the parsed element
+     */
+    @GuardedBy("this") @Nonnull private Element materialize(@Nonnull final DiskItem handle) {
+        if (handle.element == null) {
+            checkOpen();
+            checkDetached(handle);
+            try {
+                handle.element = parserPool.parse(new ByteBufferInputStream(region(handle))).getDocumentElement();
+            } catch (final XMLParserException e) {
+                throw new IllegalStateException("could not parse spilled item", e);
+            }
+            handle.tracker = DOMChangeTracker.track(handle.element);
+        }
+
+        // Move to the most recently used end, then spill the least recently used if over the limit.
+        resident.remove(handle);
+        resident.add(handle);
+        if (resident.size() > residentLimit) {
+            final Iterator<DiskItem> eldest = resident.iterator();
+            final DiskItem victim = eldest.next();
+            eldest.remove();
+            spill(victim);
+        }
+        return handle.element;
+    }
+
+    /**
+     * Drop an item's parsed element, first writing it back to the file if it has changed.
+     *
+     * <p>
+     * The dropped DOM continues to be tracked, so that a change made to it afterwards can be reported.
+     * </p>
+     *
+     * @param handle the item
+     */
+    @GuardedBy("this") private void spill(@Nonnull final DiskItem handle) {
+        checkDetached(handle);
+        final Element element = handle.element;
+        final DOMChangeTracker tracker = handle.tracker;
+        handle.element = null;
+        handle.tracker = null;
+        if (tracker != null) {
+            tracker.stop();
+            handle.detached = DOMChangeTracker.track(element);
+            if (!tracker.isChanged()) {
+                return;
+            }
+        }
+
+        final byte[] data = serialize(element);
+        final ByteBuffer stored = region(handle);
+        if (tracker == null && data.length == handle.length && stored.equals(ByteBuffer.wrap(data))) {
+            return;
+        }
+        if (data.length <= handle.length) {
+            stored.put(data);
+            release(handle.chunk, handle.offset + data.length, handle.length - data.length);
+            handle.length = data.length;
+        } else {
+            release(handle.chunk, handle.offset, handle.length);
+            append(handle, data);
+        }
+    }
+
+    /**
+     * Get a view of the region of the file holding an item.
+     *
+     * @param handle the item
+     * @return a buffer positioned at the start of the item and limited to its end
+     */
+    @GuardedBy("this") @Nonnull private ByteBuffer region(@Nonnull final DiskItem handle) {
+        final ByteBuffer view = chunks.get(handle.chunk).duplicate();
+        view.limit(handle.offset + handle.length);
+        view.position(handle.offset);
+        return view;
+    }
+
+    /**
+     * Record a region of the file as free for reuse.
+     *
+     * @param chunk index of the mapped region
+     * @param offset offset of the free region within it
+     * @param length length of the free region; nothing is recorded if this is 0
+     */
+    @GuardedBy("this") private void release(final int chunk, final int offset, final int length) {
+        if (length > 0) {
+            freeRegions.computeIfAbsent(length, k -> new ArrayDeque<>()).push(new long[] {chunk, offset});
+            freeSpace += length;
+        }
+    }
+
+    /**
+     * Check that a DOM spilled from an item has not been changed since.
+     *
+     * <p>
+     * Stops tracking the spilled DOM.
+     * </p>
+     *
+     * @param handle the item
+     * @throws IllegalStateException if the spilled DOM has been changed
+     */
+    @GuardedBy("this") private void checkDetached(@Nonnull final DiskItem handle) {
+        final DOMChangeTracker detached = handle.detached;
+        if (detached != null) {
+            handle.detached = null;
+            detached.stop();
+            if (detached.isChanged()) {
+                throw new IllegalStateException("the element of item " + items.indexOf(handle) +
+                        " was changed after it had been spilled, and the change has been lost");
+            }
+        }
+    }
+
+    /**
+     * Check that the list has not been closed.
+     */
+    @GuardedBy("this") private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("item list has been closed");
+        }
+    }
+
+    /** Handle for an item held in the file. */
+    private final class DiskItem implements Item<Element> {
+
+        /** Metadata associated with the item. */
+        @Nonnull private final ClassToInstanceMultiMap<ItemMetadata> metadata = new ClassToInstanceMultiMap<>(true);
+
+        /** Index of the mapped region holding the item. */
+        @GuardedBy("DiskBackedItemList.this") private int chunk;
+
+        /** Offset of the item within its region. */
+        @GuardedBy("DiskBackedItemList.this") private int offset;
+
+        /** Length of the serialized item. */
+        @GuardedBy("DiskBackedItemList.this") private int length;
+
+        /** The parsed element, if resident. */
+        @GuardedBy("DiskBackedItemList.this") @Nullable private Element element;
+
+        /** Tracker for changes to {@link #element}, or <code>null</code> if it can not be tracked. */
+        @GuardedBy("DiskBackedItemList.this") @Nullable private DOMChangeTracker tracker;
+
+        /** Tracker for changes to the DOM last spilled from this item, if any. */
+        @GuardedBy("DiskBackedItemList.this") @Nullable private DOMChangeTracker detached;
+
+        @Override
+        @Nonnull public Element unwrap() {
+            synchronized (DiskBackedItemList.this) {
+                return materialize(this);
+            }
+        }
+
+        @Override
+        @Nonnull public ClassToInstanceMultiMap<ItemMetadata> getItemMetadata() {
+            return metadata;
+        }
+
+        @Override
+        @Nonnull public Item<Element> copy() {
+            final LazyDOMElementItem copy = new LazyDOMElementItem(parserPool, unwrap());
+            copy.getItemMetadata().putAll(metadata);
+            return copy;
+        }
+
+        /**
+         * Returns the list holding this item.
+         *
+         * @return the owning list
+         */
+        @Nonnull DiskBackedItemList owner() {
+            return DiskBackedItemList.this;
+        }
+    }
+
+    /** An {@link InputStream} reading the remaining bytes of a {@link ByteBuffer}. */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        /** The buffer to read from. */
+        @Nonnull private final ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         *
+         * @param source the buffer to read from
+         */
+        ByteBufferInputStream(@Nonnull final ByteBuffer source) {
+            buffer = source;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(@Nonnull final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -15,6 +15,7 @@
 package uk.org.ukfederation.mda.dom;
 
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.w3c.dom.Element;
@@ -22,21 +23,123 @@ import org.w3c.dom.Element;
 import net.shibboleth.metadata.dom.AbstractElementVisitingStage;
 import net.shibboleth.metadata.dom.DOMTraversalContext;
 import net.shibboleth.metadata.dom.ElementVisitor;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.component.ComponentInitializationException;
 import uk.org.ukfederation.mda.dom.impl.Base64WrappingVisitor;
+import uk.org.ukfederation.mda.dom.impl.X509CertificateCachingVisitor;
 
 /**
  * Stage to wrap the assumed Base64 text text content of named elements
  * within a {@link net.shibboleth.metadata.dom.DOMElementItem}.
+ *
+ * <p>
+ * If the <code>cacheCertificates</code> property is set, any <code>ds:X509Certificate</code>
+ * elements visited are also decoded and added to the item's
+ * {@link uk.org.ukfederation.mda.validate.x509.X509CertificateCache}, so that validators
+ * such as {@link uk.org.ukfederation.mda.validate.x509.X509ConsistentNameValidator} can take
+ * what they need from the cached certificates rather than decoding them again.
+ * </p>
+ *
+ * <p>
+ * If the <code>validating</code> property is set, the text is also checked for a valid Base64
+ * alphabet and padding as it is wrapped, as is its decoded length if <code>minimumDecodedLength</code>
+ * is set. Any problem results in an {@link net.shibboleth.metadata.ErrorStatus} on the item.
+ * </p>
  */
 @ThreadSafe
 public class ElementBase64WrappingStage extends AbstractElementVisitingStage {
 
+    /** Whether to cache decoded X.509 certificates. Default value: <code>false</code>. */
+    @GuardedBy("this") private boolean cacheCertificates;
+
+    /** Whether to check that the text is valid Base64. Default value: <code>false</code>. */
+    @GuardedBy("this") private boolean validating;
+
+    /** Minimum decoded length in bytes, if the text is checked. Default value: 0. */
+    @GuardedBy("this") private int minimumDecodedLength;
+
     /** Visitor to apply to each visited element. */
-    @Nonnull private final ElementVisitor visitor = new Base64WrappingVisitor();
+    @NonnullAfterInit private ElementVisitor visitor;
+
+    /**
+     * Get whether decoded X.509 certificates are cached in the item metadata.
+     *
+     * @return <code>true</code> if certificates are cached
+     */
+    public final synchronized boolean isCacheCertificates() {
+        return cacheCertificates;
+    }
+
+    /**
+     * Set whether decoded X.509 certificates are cached in the item metadata.
+     *
+     * @param cache <code>true</code> to cache certificates
+     */
+    public final synchronized void setCacheCertificates(final boolean cache) {
+        checkSetterPreconditions();
+        cacheCertificates = cache;
+    }
+
+    /**
+     * Get whether the text is checked to be valid Base64.
+     *
+     * @return <code>true</code> if the text is checked
+     */
+    public final synchronized boolean isValidating() {
+        return validating;
+    }
+
+    /**
+     * Set whether the text is checked to be valid Base64.
+     *
+     * @param validate <code>true</code> to check the text
+     */
+    public final synchronized void setValidating(final boolean validate) {
+        checkSetterPreconditions();
+        validating = validate;
+    }
+
+    /**
+     * Get the minimum decoded length in bytes required of checked text.
+     *
+     * @return the minimum decoded length
+     */
+    public final synchronized int getMinimumDecodedLength() {
+        return minimumDecodedLength;
+    }
+
+    /**
+     * Set the minimum decoded length in bytes required of checked text.
+     *
+     * <p>
+     * This has no effect unless the <code>validating</code> property is also set.
+     * </p>
+     *
+     * @param length the minimum decoded length
+     */
+    public final synchronized void setMinimumDecodedLength(final int length) {
+        checkSetterPreconditions();
+        minimumDecodedLength = length;
+    }
 
     @Override
     protected void visit(@Nonnull final Element e, @Nonnull final DOMTraversalContext context) {
         visitor.visitElement(e, context.getItem());
     }
 
+    @Override
+    protected void doDestroy() {
+        visitor = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        final String reportingId = validating ? getId() : null;
+        visitor = cacheCertificates
+                ? new X509CertificateCachingVisitor(reportingId, minimumDecodedLength)
+                : new Base64WrappingVisitor(reportingId, minimumDecodedLength);
+    }
+
 }
@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Allocation-free iteration over the child and descendant elements of a DOM element.
+ *
+ * <p>
+ * Each method returns the next matching element or <code>null</code>, so that iteration
+ * is written as a simple loop:
+ * </p>
+ *
+ * <pre>
+ * for (Element e = firstChildElement(parent, ns, name); e != null; e = nextSiblingElement(e, ns, name)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * <p>
+ * Unlike <code>ElementSupport.getChildElements</code> no list is built, and unlike
+ * <code>getElementsByTagNameNS</code> a descendant search can be bounded by depth so that it
+ * does not walk parts of the tree where a SAML metadata schema says the element cannot occur.
+ * </p>
+ *
+ * <p>
+ * Names are compared by identity before falling back to {@link String#equals(Object)}; parsers
+ * intern namespace URIs and local names, so the fallback is rarely needed when the names
+ * passed in are string constants. A <code>null</code> namespace URI matches elements in no namespace.
+ * </p>
+ */
+public final class ElementCursorSupport {
+
+    /** Depth value which does not limit a descendant search. */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /** Constructor. */
+    private ElementCursorSupport() {
+    }
+
+    /**
+     * Determines whether a node is an element with the given name.
+     *
+     * @param node the node to test
+     * @param namespaceURI namespace URI of the element, or <code>null</code> for no namespace
+     * @param localName local name of the element
+     * @return <code>true</code> if the node is a matching element
+     */
+    public static boolean isElement(@Nonnull final Node node, @Nullable final String namespaceURI,
+            @Nonnull final String localName) {
+        if (node.getNodeType() != Node.ELEMENT_NODE) {
+            return false;
+        }
+        final String nodeLocalName = node.getLocalName();
+        if (nodeLocalName != localName && !localName.equals(nodeLocalName)) {
+            return false;
+        }
+        final String nodeNamespaceURI = node.getNamespaceURI();
+        return nodeNamespaceURI == namespaceURI || namespaceURI != null && namespaceURI.equals(nodeNamespaceURI);
+    }
+
+    /**
+     * Returns the first child element of an element.
+     *
+     * @param parent the parent element
+     * @return the first child element, or <code>null</code> if there is none
+     */
+    @Nullable public static Element firstChildElement(@Nonnull final Node parent) {
+        return elementFrom(parent.getFirstChild());
+    }
+
+    /**
+     * Returns the next sibling element of an element.
+     *
+     * @param current the current element
+     * @return the next sibling element, or <code>null</code> if there is none
+     */
+    @Nullable public static Element nextSiblingElement(@Nonnull final Node current) {
+        return elementFrom(current.getNextSibling());
+    }
+
+    /**
+     * Returns the first child element of an element with the given name.
+     *
+     * @param parent the parent element
+     * @param namespaceURI namespace URI of the element, or <code>null</code> for no namespace
+     * @param localName local name of the element
+     * @return the first matching child element, or <code>null</code> if there is none
+     */
+    @Nullable public static Element firstChildElement(@Nonnull final Node parent,
+            @Nullable final String namespaceURI, @Nonnull final String localName) {
+        return matchingFrom(parent.getFirstChild(), namespaceURI, localName);
+    }
+
+    /**
+     * Returns the next sibling element of an element with the given name.
+     *
+     * @param current the current element
+     * @param namespaceURI namespace URI of the element, or <code>null</code> for no namespace
+     * @param localName local name of the element
+     * @return the next matching sibling element, or <code>null</code> if there is none
+     */
+    @Nullable public static Element nextSiblingElement(@Nonnull final Node current,
+            @Nullable final String namespaceURI, @Nonnull final String localName) {
+        return matchingFrom(current.getNextSibling(), namespaceURI, localName);
+    }
+
+    /**
+     * Determines whether an element has at least one child element with the given name.
+     *
+     * @param parent the parent element
+     * @param namespaceURI namespace URI of the element, or <code>null</code> for no namespace
+     * @param localName local name of the element
+     * @return <code>true</code> if there is a matching child element
+     */
+    public static boolean hasChildElement(@Nonnull final Node parent,
+            @Nullable final String namespaceURI, @Nonnull final String localName) {
+        return firstChildElement(parent, namespaceURI, localName) != null;
+    }
+
+    /**
+     * Returns the first descendant element of an element with the given name, in document order.
+     *
+     * @param root the element whose descendants are to be searched
+     * @param namespaceURI namespace URI of the element, or <code>null</code> for no namespace
+     * @param localName local name of the element
+     * @param maxDepth the maximum depth to search below <code>root</code>, where its children are
+     *  at depth 1, or {@link #UNBOUNDED}
+     * @return the first matching descendant element, or <code>null</code> if there is none
+     */
+    @Nullable public static Element firstDescendantElement(@Nonnull final Element root,
+            @Nullable final String namespaceURI, @Nonnull final String localName, final int maxDepth) {
+        return nextDescendantElement(root, root, namespaceURI, localName, maxDepth);
+    }
+
+    /**
+     * Returns the next descendant element of an element with the given name, in document order.
+     *
+     * @param root the element whose descendants are being searched
+     * @param current the current element, which must be <code>root</code> or one of its descendants
+     * @param namespaceURI namespace URI of the element, or <code>null</code> for no namespace
+     * @param localName local name of the element
+     * @param maxDepth the maximum depth to search below <code>root</code>, where its children are
+     *  at depth 1, or {@link #UNBOUNDED}
+     * @return the next matching descendant element, or <code>null</code> if there is none
+     */
+    @Nullable public static Element nextDescendantElement(@Nonnull final Element root, @Nonnull final Element current,
+            @Nullable final String namespaceURI, @Nonnull final String localName, final int maxDepth) {
+        int depth = 0;
+        for (Node n = current; n != root; n = n.getParentNode()) {
+            depth++;
+        }
+
+        Element node = current;
+        while (true) {
+            Element next = depth < maxDepth ? firstChildElement(node) : null;
+            if (next != null) {
+                depth++;
+            } else {
+                // No children to descend into, so move on to the next sibling of the nearest ancestor with one.
+                Element up = node;
+                while (next == null) {
+                    if (up == root) {
+                        return null;
+                    }
+                    next = nextSiblingElement(up);
+                    if (next == null) {
+                        up = (Element) up.getParentNode();
+                        depth--;
+                    }
+                }
+            }
+            if (isElement(next, namespaceURI, localName)) {
+                return next;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * Returns the first element in a chain of siblings.
+     *
+     * @param start the first node to consider, or <code>null</code>
+     * @return the first element, or <code>null</code> if there is none
+     */
+    @Nullable private static Element elementFrom(@Nullable final Node start) {
+        for (Node n = start; n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                return (Element) n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first matching element in a chain of siblings.
+     *
+     * @param start the first node to consider, or <code>null</code>
+     * @param namespaceURI namespace URI of the element, or <code>null</code> for no namespace
+     * @param localName local name of the element
+     * @return the first matching element, or <code>null</code> if there is none
+     */
+    @Nullable private static Element matchingFrom(@Nullable final Node start,
+            @Nullable final String namespaceURI, @Nonnull final String localName) {
+        for (Node n = start; n != null; n = n.getNextSibling()) {
+            if (isElement(n, namespaceURI, localName)) {
+                return (Element) n;
+            }
+        }
+        return null;
+    }
+}
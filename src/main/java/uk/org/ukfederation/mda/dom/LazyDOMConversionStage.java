@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import java.util.List;
+import java.util.ListIterator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.xml.ParserPool;
+
+/**
+ * Stage which replaces each item in the collection with a {@link LazyDOMElementItem}, so that
+ * its element is held in serialized form until a later stage unwraps it.
+ *
+ * <p>
+ * Items which are already {@link LazyDOMElementItem}s are released instead, dropping any DOM
+ * parsed since the last time. Placing this stage after a run of stages returns the collection
+ * to its compact form.
+ * </p>
+ *
+ * <p>
+ * By default, a released DOM which has changed is serialized again so that the changes are kept.
+ * If the stages since the last release should only have read the elements, setting
+ * <code>preserveChanges</code> to <code>false</code> discards each DOM instead, and a DOM which
+ * has changed causes the stage to fail rather than lose the changes.
+ * </p>
+ */
+@ThreadSafe
+public class LazyDOMConversionStage extends AbstractStage<Element> {
+
+    /** Parser pool used by the lazy items to parse their elements. */
+    @GuardedBy("this") @NonnullAfterInit private ParserPool parserPool;
+
+    /** Whether to serialize a released DOM again. Default value: <code>true</code>. */
+    @GuardedBy("this") private boolean preserveChanges = true;
+
+    /**
+     * Get the parser pool used by the lazy items to parse their elements.
+     *
+     * @return the parser pool
+     */
+    @NonnullAfterInit public final synchronized ParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * Set the parser pool used by the lazy items to parse their elements.
+     *
+     * @param pool the parser pool
+     */
+    public final synchronized void setParserPool(@Nonnull final ParserPool pool) {
+        checkSetterPreconditions();
+        parserPool = pool;
+    }
+
+    /**
+     * Get whether a released DOM is serialized again to preserve any changes.
+     *
+     * @return <code>true</code> if a released DOM is serialized again
+     */
+    public final synchronized boolean isPreserveChanges() {
+        return preserveChanges;
+    }
+
+    /**
+     * Set whether a released DOM is serialized again to preserve any changes.
+     *
+     * @param preserve <code>false</code> if the DOM can be discarded because it must not have been modified
+     */
+    public final synchronized void setPreserveChanges(final boolean preserve) {
+        checkSetterPreconditions();
+        preserveChanges = preserve;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final ParserPool pool = getParserPool();
+        final boolean preserve = isPreserveChanges();
+        for (final ListIterator<Item<Element>> iterator = items.listIterator(); iterator.hasNext();) {
+            final Item<Element> item = iterator.next();
+            if (item instanceof LazyDOMElementItem) {
+                final LazyDOMElementItem lazy = (LazyDOMElementItem) item;
+                if (preserve) {
+                    lazy.release();
+                } else {
+                    try {
+                        lazy.discard();
+                    } catch (final IllegalStateException e) {
+                        throw new StageProcessingException("changes to an item would be discarded", e);
+                    }
+                }
+            } else {
+                final LazyDOMElementItem lazy = new LazyDOMElementItem(pool, item.unwrap());
+                lazy.getItemMetadata().putAll(item.getItemMetadata());
+                iterator.set(lazy);
+            }
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        parserPool = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (parserPool == null) {
+            throw new ComponentInitializationException("parserPool must not be null");
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.xml.ParserPool;
+import net.shibboleth.shared.xml.SerializeSupport;
+import net.shibboleth.shared.xml.XMLParserException;
+
+/**
+ * An {@link Item} wrapping a DOM {@link Element} which is held in serialized form
+ * and only parsed when the item is unwrapped.
+ *
+ * <p>
+ * Once unwrapped, the item keeps its DOM until {@link #release()} or {@link #discard()}
+ * is called, after which the next call to {@link #unwrap()} parses the element again.
+ * Between those points the serialized form of a large entity is usually an order of magnitude
+ * smaller than its DOM.
+ * </p>
+ *
+ * <p>
+ * Changes to a parsed element are tracked with a {@link DOMChangeTracker}, so releasing or copying
+ * an element which has not been changed reuses its serialized form rather than serializing it
+ * again. A change made with {@link org.w3c.dom.Document#renameNode} alone is not seen.
+ * </p>
+ *
+ * <p>
+ * The item's metadata is held separately from the element, and is not affected by
+ * releasing the DOM.
+ * </p>
+ */
+@ThreadSafe
+public class LazyDOMElementItem implements Item<Element> {
+
+    /** Parser pool used to parse the serialized element. */
+    @Nonnull private final ParserPool parserPool;
+
+    /** Metadata associated with the item. */
+    @Nonnull private final ClassToInstanceMultiMap<ItemMetadata> metadata = new ClassToInstanceMultiMap<>(true);
+
+    /** Serialized form of the element, which may be stale while {@link #element} is present. */
+    @GuardedBy("this") @Nonnull private byte[] bytes;
+
+    /** The parsed element, if the item is currently materialized. */
+    @GuardedBy("this") @Nullable private Element element;
+
+    /** Tracker for changes to {@link #element}, or <code>null</code> if its document can not be tracked. */
+    @GuardedBy("this") @Nullable private DOMChangeTracker tracker;
+
+    /**
+     * Constructor.
+     *
+     * @param pool parser pool used to parse the element when it is unwrapped
+     * @param serialized the serialized element; the array is not copied
+     */
+    public LazyDOMElementItem(@Nonnull final ParserPool pool, @Nonnull final byte[] serialized) {
+        parserPool = Constraint.isNotNull(pool, "parser pool may not be null");
+        bytes = Constraint.isNotNull(serialized, "serialized element may not be null");
+    }
+
+    /**
+     * Constructor.
+     *
+     * <p>
+     * The element is serialized immediately, and no reference to it is kept.
+     * </p>
+     *
+     * @param pool parser pool used to parse the element when it is unwrapped
+     * @param wrapped the element to wrap
+     */
+    public LazyDOMElementItem(@Nonnull final ParserPool pool, @Nonnull final Element wrapped) {
+        this(pool, serialize(Constraint.isNotNull(wrapped, "wrapped element may not be null")));
+    }
+
+    /**
+     * Returns the element, parsing it from its serialized form if necessary.
+     *
+     * @return the element
+     * @throws IllegalStateException if the serialized element can not be parsed
+     */
+    @Override
+    @Nonnull public synchronized Element unwrap() {
+        if (element == null) {
+            try {
+                element = parserPool.parse(new ByteArrayInputStream(bytes)).getDocumentElement();
+                tracker = DOMChangeTracker.track(element);
+            } catch (final XMLParserException e) {
+                throw new IllegalStateException("could not parse serialized element", e);
+            }
+        }
+        return element;
+    }
+
+    @Override
+    @Nonnull public ClassToInstanceMultiMap<ItemMetadata> getItemMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns whether the item currently holds a parsed element.
+     *
+     * @return <code>true</code> if the element has been parsed and not released
+     */
+    public synchronized boolean isMaterialized() {
+        return element != null;
+    }
+
+    /**
+     * Returns the size of the item's serialized form.
+     *
+     * <p>
+     * If the item is materialized, this may not reflect changes made to the element since.
+     * </p>
+     *
+     * @return the number of bytes in the serialized element
+     */
+    public synchronized int getSerializedLength() {
+        return bytes.length;
+    }
+
+    /**
+     * Serializes the element if it has changed, preserving those changes, and drops the DOM.
+     *
+     * <p>
+     * Does nothing if the item is not materialized.
+     * </p>
+     */
+    public synchronized void release() {
+        if (element != null) {
+            if (isChanged()) {
+                bytes = serialize(element);
+            }
+            drop();
+        }
+    }
+
+    /**
+     * Drops the DOM without serializing it again.
+     *
+     * <p>
+     * Only to be used when the element has not been modified since it was unwrapped.
+     * </p>
+     *
+     * @throws IllegalStateException if the element has been modified, as the changes would be lost
+     */
+    public synchronized void discard() {
+        if (element != null) {
+            if (isChanged()) {
+                throw new IllegalStateException("element has been modified and can not be discarded");
+            }
+            drop();
+        }
+    }
+
+    @Override
+    @Nonnull public synchronized LazyDOMElementItem copy() {
+        final LazyDOMElementItem copy =
+                new LazyDOMElementItem(parserPool, element == null || !isChanged() ? bytes : serialize(element));
+        copy.getItemMetadata().putAll(metadata);
+        return copy;
+    }
+
+    /**
+     * Returns whether the parsed element may differ from the serialized form.
+     *
+     * <p>
+     * If the element's document can not be tracked, it is serialized to find out.
+     * </p>
+     *
+     * @return <code>true</code> if the element has changed since it was parsed
+     */
+    @GuardedBy("this") private boolean isChanged() {
+        return tracker != null ? tracker.isChanged() : !Arrays.equals(serialize(element), bytes);
+    }
+
+    /**
+     * Drops the parsed element.
+     */
+    @GuardedBy("this") private void drop() {
+        if (tracker != null) {
+            tracker.stop();
+            tracker = null;
+        }
+        element = null;
+    }
+
+    /**
+     * Serialize an element.
+     *
+     * @param element the element to serialize
+     * @return the serialized element
+     */
+    @Nonnull private static byte[] serialize(@Nonnull final Element element) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SerializeSupport.writeNode(element, out);
+        return out.toByteArray();
+    }
+}
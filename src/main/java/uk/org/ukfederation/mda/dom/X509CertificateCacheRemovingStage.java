@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
+import uk.org.ukfederation.mda.validate.x509.X509CertificateCache;
+
+/**
+ * Stage which removes each item's {@link X509CertificateCache}.
+ *
+ * <p>
+ * The cache holds the encoded and parsed form of every certificate in the item. Once the last
+ * X.509 validation stage has run it is no longer needed, and this stage should follow it so that
+ * the certificates are not held for the rest of the pipeline.
+ * </p>
+ */
+@ThreadSafe
+public class X509CertificateCacheRemovingStage extends AbstractIteratingStage<Element> {
+
+    @Override
+    protected void doExecute(@Nonnull final Item<Element> item) {
+        item.getItemMetadata().remove(X509CertificateCache.class);
+    }
+
+}
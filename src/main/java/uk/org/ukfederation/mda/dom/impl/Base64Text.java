@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The result of scanning some Base64 text: the text with all white space removed, and
+ * the first problem found, if any, with the text's alphabet, padding or length.
+ *
+ * <p>
+ * White space is as defined by {@link Character#isWhitespace(char)}. Only the standard
+ * Base64 alphabet of RFC 4648 is accepted, with up to two padding characters at the end.
+ * </p>
+ */
+@Immutable
+public final class Base64Text {
+
+    /** Character class for characters which are not valid in Base64 text. */
+    private static final byte INVALID = 0;
+
+    /** Character class for white space. */
+    private static final byte WHITESPACE = 1;
+
+    /** Character class for the Base64 alphabet. */
+    private static final byte ALPHABET = 2;
+
+    /** Character class for the Base64 padding character. */
+    private static final byte PAD = 3;
+
+    /** Classification of each ASCII character. */
+    private static final byte[] ASCII_CLASS = buildAsciiClass();
+
+    /** The text with all white space removed. */
+    @Nonnull private final String stripped;
+
+    /** Number of padding characters at the end of the text. */
+    private final int padding;
+
+    /** Description of the first problem found, or <code>null</code> if the text is valid. */
+    @Nullable private final String error;
+
+    /**
+     * Constructor.
+     *
+     * @param text the text with all white space removed
+     * @param pad number of padding characters at the end of the text
+     * @param problem description of the first problem found, or <code>null</code>
+     */
+    private Base64Text(@Nonnull final String text, final int pad, @Nullable final String problem) {
+        stripped = text;
+        padding = pad;
+        error = problem;
+    }
+
+    /**
+     * Get the text with all white space removed.
+     *
+     * @return the text with all white space removed
+     */
+    @Nonnull public String getStripped() {
+        return stripped;
+    }
+
+    /**
+     * Get whether the text is valid Base64.
+     *
+     * @return <code>true</code> if the text is valid Base64
+     */
+    public boolean isValid() {
+        return error == null;
+    }
+
+    /**
+     * Get a description of the first problem found with the text.
+     *
+     * @return a description of the problem, or <code>null</code> if the text is valid
+     */
+    @Nullable public String getError() {
+        return error;
+    }
+
+    /**
+     * Get the number of bytes the text would decode to.
+     *
+     * <p>
+     * This is only meaningful if the text is valid.
+     * </p>
+     *
+     * @return the decoded length in bytes
+     */
+    public int getDecodedLength() {
+        return stripped.length() / 4 * 3 - padding;
+    }
+
+    /**
+     * Scan some text, removing white space and checking that what remains is valid Base64.
+     *
+     * <p>
+     * The text is examined in a single pass.
+     * </p>
+     *
+     * @param s the text to scan
+     * @return the result of the scan
+     */
+    @Nonnull public static Base64Text scan(@Nonnull final String s) {
+        final int length = s.length();
+        final char[] chars = new char[length];
+        s.getChars(0, length, chars, 0);
+
+        int out = 0;
+        int pad = 0;
+        String problem = null;
+        for (int in = 0; in < length; in++) {
+            final char c = chars[in];
+            final byte cls = classify(c);
+            if (cls == WHITESPACE) {
+                continue;
+            }
+            if (problem == null) {
+                if (cls == INVALID) {
+                    problem = String.format("invalid character U+%04X", (int) c);
+                } else if (cls == PAD) {
+                    pad++;
+                } else if (pad != 0) {
+                    problem = "data after padding";
+                }
+            }
+            chars[out++] = c;
+        }
+
+        if (problem == null) {
+            if (out % 4 != 0) {
+                problem = "length " + out + " is not a multiple of 4";
+            } else if (pad > 2) {
+                problem = "too much padding";
+            }
+        }
+
+        final String text = out == length ? s : new String(chars, 0, out);
+        return new Base64Text(text, pad, problem);
+    }
+
+    /**
+     * Remove the white space from some text without checking that what remains is valid Base64.
+     *
+     * <p>
+     * This is cheaper than {@link #scan(String)}: text without white space is not copied. The result
+     * always reports itself as valid, and its decoded length is only meaningful if the text is in
+     * fact valid.
+     * </p>
+     *
+     * @param s the text to strip
+     * @return the result, without any check of the text
+     */
+    @Nonnull public static Base64Text strip(@Nonnull final String s) {
+        final String text = Base64WrappingVisitor.stripWhitespace(s);
+        int pad = 0;
+        while (pad < 2 && pad < text.length() && text.charAt(text.length() - 1 - pad) == '=') {
+            pad++;
+        }
+        return new Base64Text(text, pad, null);
+    }
+
+    /**
+     * Determine whether a character is white space, as {@link Character#isWhitespace(char)}.
+     *
+     * @param c character to test
+     * @return <code>true</code> if the character is white space
+     */
+    static boolean isWhitespace(final char c) {
+        return classify(c) == WHITESPACE;
+    }
+
+    /**
+     * Classify a character.
+     *
+     * <p>
+     * ASCII characters, which make up the whole of any well-formed Base64 text, are classified
+     * using a lookup table; other characters are either white space or invalid.
+     * </p>
+     *
+     * @param c character to classify
+     * @return the character's class
+     */
+    private static byte classify(final char c) {
+        if (c < ASCII_CLASS.length) {
+            return ASCII_CLASS[c];
+        }
+        return Character.isWhitespace(c) ? WHITESPACE : INVALID;
+    }
+
+    /**
+     * Build the lookup table classifying ASCII characters.
+     *
+     * @return table indexed by character
+     */
+    @Nonnull private static byte[] buildAsciiClass() {
+        final byte[] table = new byte[128];
+        for (char c = 0; c < table.length; c++) {
+            if (Character.isWhitespace(c)) {
+                table[c] = WHITESPACE;
+            } else if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '+' || c == '/') {
+                table[c] = ALPHABET;
+            } else if (c == '=') {
+                table[c] = PAD;
+            } else {
+                table[c] = INVALID;
+            }
+        }
+        return table;
+    }
+}
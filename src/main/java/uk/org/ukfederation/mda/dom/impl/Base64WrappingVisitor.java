@@ -15,24 +15,103 @@
 package uk.org.ukfederation.mda.dom.impl;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import org.w3c.dom.Element;
 
+import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.dom.ElementVisitor;
 
 /**
  * {@link Element} visitor which wraps the visited element's text content.
+ *
+ * <p>
+ * If constructed with a component identifier, the visitor also checks that the text is valid
+ * Base64 and, optionally, that it decodes to at least a minimum number of bytes. This is done
+ * during the same scan of the text used to remove its white space. Problems are reported by
+ * adding an {@link ErrorStatus} to the item; the text is wrapped in either case. Without a
+ * component identifier the text is only stripped of white space, which avoids copying text that
+ * has none.
+ * </p>
  */
 @Immutable
 public class Base64WrappingVisitor implements ElementVisitor {
 
+    /** Length of each line of wrapped output. */
+    private static final int LINE_LENGTH = 64;
+
+    /** Component identifier for error reports, or <code>null</code> if the text is not to be checked. */
+    @Nullable private final String componentId;
+
+    /** Minimum decoded length in bytes, if the text is to be checked. */
+    private final int minimumDecodedLength;
+
+    /** Constructor for a visitor which does not check the text. */
+    public Base64WrappingVisitor() {
+        this(null, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param id component identifier to use in error reports, or <code>null</code> if the
+     *  text is not to be checked
+     * @param minLength minimum decoded length in bytes, or 0 for no minimum
+     */
+    public Base64WrappingVisitor(@Nullable final String id, final int minLength) {
+        componentId = id;
+        minimumDecodedLength = minLength;
+    }
+
     @Override
     public void visitElement(@Nonnull final Element visited, @Nonnull final Item<Element> item) {
-        final String originalText = visited.getTextContent();
-        final String newText = "\n" + wrapBase64(originalText) + "\n";
+        // Only pay for the checking scan if the result is going to be reported.
+        final String content = visited.getTextContent();
+        final Base64Text text = componentId == null ? Base64Text.strip(content) : Base64Text.scan(content);
+        final String newText = "\n" + wrapStripped(text.getStripped()) + "\n";
         visited.setTextContent(newText);
+        if (componentId != null) {
+            final String error = checkText(text);
+            if (error != null) {
+                item.getItemMetadata().put(new ErrorStatus(componentId,
+                        "invalid Base64 text in " + visited.getLocalName() + ": " + error));
+            }
+        }
+        afterWrapping(visited, item, text);
+    }
+
+    /**
+     * Check the scanned text against the visitor's requirements.
+     *
+     * @param text the scanned text
+     * @return a description of the problem found, or <code>null</code> if there is none
+     */
+    @Nullable private String checkText(@Nonnull final Base64Text text) {
+        if (!text.isValid()) {
+            return text.getError();
+        }
+        if (text.getDecodedLength() < minimumDecodedLength) {
+            return "decoded length " + text.getDecodedLength() + " is less than the minimum of " +
+                    minimumDecodedLength;
+        }
+        return null;
+    }
+
+    /**
+     * Hook called after the visited element's text content has been wrapped.
+     *
+     * <p>
+     * The default implementation does nothing.
+     * </p>
+     *
+     * @param visited the visited element
+     * @param item the item containing the visited element
+     * @param text the result of scanning the element's original text content
+     */
+    protected void afterWrapping(@Nonnull final Element visited, @Nonnull final Item<Element> item,
+            @Nonnull final Base64Text text) {
     }
     
     /**
@@ -45,30 +124,83 @@ public class Base64WrappingVisitor implements ElementVisitor {
      */
     @Nonnull
     public static String wrapBase64(@Nonnull final String s) {
-        final StringBuilder result = new StringBuilder();
-        final StringBuilder line = new StringBuilder();
-        for (final char c : s.toCharArray()) {
+        return wrapStripped(stripWhitespace(s));
+    }
 
-            // Skip over any white space in the input string
-            if (Character.isWhitespace(c)) {
-                continue;
-            }
+    /**
+     * Remove all white space from a string.
+     *
+     * <p>
+     * White space is as defined by {@link Character#isWhitespace(char)}. ASCII characters,
+     * which make up the whole of any well-formed Base64 text, are classified using a lookup
+     * table. A string with no white space is returned unchanged.
+     * </p>
+     *
+     * @param s string to process
+     * @return the string with all white space removed
+     */
+    @Nonnull
+    public static String stripWhitespace(@Nonnull final String s) {
+        final int length = s.length();
 
-            if (line.length() == 64) {
-                if (result.length() != 0) {
-                    result.append('\n');
-                }
-                result.append(line);
-                line.setLength(0);
+        // Find the first white space character, if there is one.
+        int first = 0;
+        while (first < length && !Base64Text.isWhitespace(s.charAt(first))) {
+            first++;
+        }
+        if (first == length) {
+            return s;
+        }
+
+        // Copy the remaining characters in bulk, compacting out the white space.
+        final char[] chars = new char[length];
+        s.getChars(0, length, chars, 0);
+        int out = first;
+        for (int in = first + 1; in < length; in++) {
+            final char c = chars[in];
+            if (!Base64Text.isWhitespace(c)) {
+                chars[out++] = c;
             }
-            line.append(c);
         }
-        if (line.length() != 0) {
-            if (result.length() != 0) {
-                result.append('\n');
+        return new String(chars, 0, out);
+    }
+
+    /**
+     * Break a string which contains no white space into lines of 64 characters each.
+     *
+     * @param s string without white space
+     * @return string with line breaks
+     */
+    @Nonnull
+    public static String wrapStripped(@Nonnull final String s) {
+        return wrapStripped(s, LINE_LENGTH);
+    }
+
+    /**
+     * Break a string which contains no white space into lines of a given length.
+     *
+     * @param s string without white space
+     * @param lineLength maximum length of each line
+     * @return string with line breaks
+     */
+    @Nonnull
+    public static String wrapStripped(@Nonnull final String s, final int lineLength) {
+        final int length = s.length();
+        if (length <= lineLength) {
+            return s;
+        }
+
+        // Copy each line in bulk directly into the result.
+        final char[] result = new char[length + (length - 1) / lineLength];
+        int out = 0;
+        for (int start = 0; start < length; start += lineLength) {
+            if (start != 0) {
+                result[out++] = '\n';
             }
-            result.append(line);
+            final int end = Math.min(start + lineLength, length);
+            s.getChars(start, end, result, out);
+            out += end - start;
         }
-        return result.toString();
+        return new String(result);
     }
 }
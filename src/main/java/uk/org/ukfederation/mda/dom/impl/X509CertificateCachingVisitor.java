@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.impl;
+
+import java.security.cert.CertificateException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.validate.x509.DecodedX509Certificate;
+import uk.org.ukfederation.mda.validate.x509.X509CertificateCache;
+
+/**
+ * {@link Element} visitor which wraps the visited element's text content and, if the
+ * element is a <code>ds:X509Certificate</code>, adds the decoded certificate to the
+ * item's {@link X509CertificateCache}.
+ *
+ * <p>
+ * Certificates which can not be decoded are left out of the cache; reporting them
+ * is left to the validation stage.
+ * </p>
+ */
+@Immutable
+public class X509CertificateCachingVisitor extends Base64WrappingVisitor {
+
+    /** Namespace of the <code>ds:X509Certificate</code> element. */
+    private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    /** Local name of the <code>ds:X509Certificate</code> element. */
+    private static final String X509_CERTIFICATE = "X509Certificate";
+
+    /** Constructor for a visitor which does not check the text. */
+    public X509CertificateCachingVisitor() {
+        super();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param id component identifier to use in error reports, or <code>null</code> if the
+     *  text is not to be checked
+     * @param minLength minimum decoded length in bytes, or 0 for no minimum
+     */
+    public X509CertificateCachingVisitor(@Nullable final String id, final int minLength) {
+        super(id, minLength);
+    }
+
+    @Override
+    protected void afterWrapping(@Nonnull final Element visited, @Nonnull final Item<Element> item,
+            @Nonnull final Base64Text text) {
+        if (!text.isValid() ||
+                !DSIG_NS.equals(visited.getNamespaceURI()) || !X509_CERTIFICATE.equals(visited.getLocalName())) {
+            return;
+        }
+
+        final String base64 = text.getStripped();
+        final X509CertificateCache cache = X509CertificateCache.findOrCreate(item);
+        if (cache.get(base64) == null) {
+            try {
+                cache.put(base64, DecodedX509Certificate.decode(base64));
+            } catch (final CertificateException e) {
+                // leave it to be reported by validation
+            }
+        }
+    }
+
+}
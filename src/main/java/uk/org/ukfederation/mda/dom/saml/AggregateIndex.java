@@ -0,0 +1,906 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiPredicate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import uk.org.ukfederation.mda.FileSupport;
+import uk.org.ukfederation.mda.UKId;
+
+/**
+ * Random-access index of the entities in a serialised aggregate.
+ *
+ * <p>
+ * The index maps each top-level <code>EntityDescriptor</code>'s <code>entityID</code>, the SHA-1 hash of its
+ * <code>entityID</code>, and its UK federation identifier (the <code>ID</code> attribute, if it is a
+ * {@link uk.org.ukfederation.mda.UKId}) to the byte offset and length of the element in the aggregate file.
+ * The indexed bytes run from the <code>&lt;</code> of the start tag to the <code>&gt;</code> of the end tag;
+ * namespace declarations made on the aggregate's root element are not included.
+ * </p>
+ *
+ * <p>
+ * The index file is built by {@link #write(Path, Path)} from the aggregate file itself, so it describes
+ * exactly the bytes that were published. It has a fixed-width big-endian layout suitable for memory-mapping:
+ * </p>
+ *
+ * <pre>
+ * int magic, int version, int hashCount, int ukIdCount, long aggregateLength, long aggregateModified
+ * hashCount records:  byte[20] sha1(entityID), long offset, int length   (sorted by hash)
+ * ukIdCount records:  int ukIdNumber, long offset, int length            (sorted by number)
+ * </pre>
+ *
+ * <p>
+ * Lookups are binary searches over the mapped file. If an <code>entityID</code> or identifier appears more
+ * than once in the aggregate, the first occurrence is indexed.
+ * </p>
+ *
+ * <p>
+ * The header records the length and modification time, in milliseconds, of the aggregate file the index
+ * was built from. {@link #read(Path, Extent)} checks them against the aggregate file before reading, so that
+ * an index which has not been rebuilt since the aggregate was replaced is detected rather than returning
+ * the wrong bytes.
+ * </p>
+ */
+@ThreadSafe
+public final class AggregateIndex {
+
+    /** Magic number identifying an index file. */
+    private static final int MAGIC = 0x554B4149;
+
+    /** Version of the index file format. */
+    private static final int VERSION = 2;
+
+    /** Length of the file header. */
+    private static final int HEADER_LENGTH = 32;
+
+    /** Length of a SHA-1 hash. */
+    private static final int HASH_LENGTH = 20;
+
+    /** Length of a record in the hash table. */
+    private static final int HASH_RECORD_LENGTH = HASH_LENGTH + 12;
+
+    /** Length of a record in the identifier table. */
+    private static final int UKID_RECORD_LENGTH = 16;
+
+    /** Prefix of the MDQ protocol's transformed identifier form. */
+    private static final String SHA1_PREFIX = "{sha1}";
+
+    /** Local name of the indexed elements. */
+    private static final String ENTITY_DESCRIPTOR = "EntityDescriptor";
+
+    /** The mapped index file. */
+    @Nonnull private final ByteBuffer buffer;
+
+    /** Number of records in the hash table. */
+    private final int hashCount;
+
+    /** Number of records in the identifier table. */
+    private final int ukIdCount;
+
+    /** Offset of the identifier table. */
+    private final int ukIdTable;
+
+    /** Length of the aggregate file the index was built from. */
+    private final long aggregateLength;
+
+    /** Modification time in milliseconds of the aggregate file the index was built from. */
+    private final long aggregateModified;
+
+    /**
+     * Constructor.
+     *
+     * @param mapped the mapped index file
+     * @throws IOException if the buffer does not hold an index
+     */
+    private AggregateIndex(@Nonnull final ByteBuffer mapped) throws IOException {
+        buffer = mapped;
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("not an aggregate index");
+        }
+        hashCount = buffer.getInt(8);
+        ukIdCount = buffer.getInt(12);
+        aggregateLength = buffer.getLong(16);
+        aggregateModified = buffer.getLong(24);
+        ukIdTable = HEADER_LENGTH + hashCount * HASH_RECORD_LENGTH;
+        if (hashCount < 0 || ukIdCount < 0 || buffer.capacity() != ukIdTable + ukIdCount * UKID_RECORD_LENGTH) {
+            throw new IOException("aggregate index is truncated or corrupt");
+        }
+    }
+
+    /**
+     * Open an index file.
+     *
+     * @param indexFile the index file
+     * @return the index
+     * @throws IOException if the file can not be read, or is not an index
+     */
+    @Nonnull public static AggregateIndex open(@Nonnull final Path indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            return new AggregateIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Get the number of distinct <code>entityID</code>s in the index.
+     *
+     * @return the number of entities
+     */
+    public int size() {
+        return hashCount;
+    }
+
+    /**
+     * Find an entity by its <code>entityID</code>.
+     *
+     * @param entityID the <code>entityID</code>
+     * @return the entity's extent in the aggregate, or <code>null</code> if it is not indexed
+     */
+    @Nullable public Extent findByEntityID(@Nonnull final String entityID) {
+        return findByHash(sha1(entityID));
+    }
+
+    /**
+     * Find an entity by the hex SHA-1 hash of its <code>entityID</code>, with or without the
+     * MDQ protocol's <code>{sha1}</code> prefix.
+     *
+     * @param hex the hex hash
+     * @return the entity's extent in the aggregate, or <code>null</code> if it is not indexed
+     *      or the hash is malformed
+     */
+    @Nullable public Extent findBySHA1(@Nonnull final String hex) {
+        final String digits = hex.startsWith(SHA1_PREFIX) ? hex.substring(SHA1_PREFIX.length()) : hex;
+        if (digits.length() != 2 * HASH_LENGTH) {
+            return null;
+        }
+        final byte[] hash = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            final int high = Character.digit(digits.charAt(2 * i), 16);
+            final int low = Character.digit(digits.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            hash[i] = (byte) (high << 4 | low);
+        }
+        return findByHash(hash);
+    }
+
+    /**
+     * Find an entity by its UK federation identifier.
+     *
+     * @param ukId the identifier, such as <code>uk000123</code>
+     * @return the entity's extent in the aggregate, or <code>null</code> if it is not indexed
+     */
+    @Nullable public Extent findByUKId(@Nonnull final String ukId) {
+        final int number = UKId.number(ukId);
+        if (number < 0) {
+            return null;
+        }
+        int low = 0;
+        int high = ukIdCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int record = ukIdTable + mid * UKID_RECORD_LENGTH;
+            final int cmp = Integer.compare(buffer.getInt(record), number);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return new Extent(buffer.getLong(record + 4), buffer.getInt(record + 12));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find an entity by the SHA-1 hash of its <code>entityID</code>.
+     *
+     * @param hash the hash
+     * @return the entity's extent in the aggregate, or <code>null</code> if it is not indexed
+     */
+    @Nullable private Extent findByHash(@Nonnull final byte[] hash) {
+        final ByteBuffer key = ByteBuffer.wrap(hash);
+        int low = 0;
+        int high = hashCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int record = HEADER_LENGTH + mid * HASH_RECORD_LENGTH;
+            final int cmp = compareHash(record, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return new Extent(buffer.getLong(record + HASH_LENGTH), buffer.getInt(record + HASH_LENGTH + 8));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compare the hash in a record with a key, as unsigned bytes.
+     *
+     * @param record offset of the record
+     * @param key the key
+     * @return a negative, zero or positive value as the record's hash is less than, equal to
+     *      or greater than the key
+     */
+    private int compareHash(final int record, @Nonnull final ByteBuffer key) {
+        int cmp = Long.compareUnsigned(buffer.getLong(record), key.getLong(0));
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(buffer.getLong(record + 8), key.getLong(8));
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(buffer.getInt(record + 16), key.getInt(16));
+        }
+        return cmp;
+    }
+
+    /**
+     * Read the bytes of an entity from an aggregate file.
+     *
+     * @param aggregateFile the aggregate file the index was built from
+     * @param extent the entity's extent
+     * @return the entity's bytes
+     * @throws IOException if the file can not be read, or is not the one the index was built from
+     */
+    @Nonnull public byte[] read(@Nonnull final Path aggregateFile, @Nonnull final Extent extent)
+            throws IOException {
+        final ByteBuffer bytes = ByteBuffer.allocate(extent.getLength());
+        try (FileChannel channel = FileChannel.open(aggregateFile, StandardOpenOption.READ)) {
+            if (channel.size() != aggregateLength ||
+                    Files.getLastModifiedTime(aggregateFile).toMillis() != aggregateModified) {
+                throw new IOException("aggregate " + aggregateFile + " has changed since it was indexed");
+            }
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, extent.getOffset() + bytes.position()) < 0) {
+                    throw new IOException("aggregate is shorter than its index");
+                }
+            }
+        }
+        return bytes.array();
+    }
+
+    /**
+     * Build the index of an aggregate file.
+     *
+     * @param aggregateFile the serialised aggregate
+     * @param indexFile the index file to write; it is replaced atomically
+     * @throws IOException if either file can not be accessed, or the aggregate is not well-formed
+     */
+    public static void write(@Nonnull final Path aggregateFile, @Nonnull final Path indexFile) throws IOException {
+        final long length = Files.size(aggregateFile);
+        final long modified = Files.getLastModifiedTime(aggregateFile).toMillis();
+        final List<Entry> entries;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(aggregateFile))) {
+            entries = new Scanner(in).scan();
+        }
+        if (Files.size(aggregateFile) != length || Files.getLastModifiedTime(aggregateFile).toMillis() != modified) {
+            throw new IOException("aggregate " + aggregateFile + " changed while it was being indexed");
+        }
+
+        // Stable sorts keep the first occurrence of each key first.
+        final List<Entry> byHash = new ArrayList<>(entries);
+        byHash.sort(Comparator.comparing(Entry::getHash, Arrays::compareUnsigned));
+        final List<Entry> byUKId = new ArrayList<>();
+        for (final Entry entry : entries) {
+            if (entry.getUKIdNumber() >= 0) {
+                byUKId.add(entry);
+            }
+        }
+        byUKId.sort(Comparator.comparingInt(Entry::getUKIdNumber));
+        final List<Entry> hashes = distinct(byHash, (a, b) -> Arrays.equals(a.getHash(), b.getHash()));
+        final List<Entry> ukIds = distinct(byUKId, (a, b) -> a.getUKIdNumber() == b.getUKIdNumber());
+
+        FileSupport.writeAtomically(indexFile, os -> {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(hashes.size());
+                out.writeInt(ukIds.size());
+                out.writeLong(length);
+                out.writeLong(modified);
+                for (final Entry entry : hashes) {
+                    out.write(entry.getHash());
+                    out.writeLong(entry.getOffset());
+                    out.writeInt(entry.getLength());
+                }
+                for (final Entry entry : ukIds) {
+                    out.writeInt(entry.getUKIdNumber());
+                    out.writeLong(entry.getOffset());
+                    out.writeInt(entry.getLength());
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove all but the first of each run of equivalent entries from a sorted list.
+     *
+     * @param sorted the sorted entries
+     * @param same tests whether two entries have the same key
+     * @return the distinct entries
+     */
+    @Nonnull private static List<Entry> distinct(@Nonnull final List<Entry> sorted,
+            @Nonnull final BiPredicate<Entry, Entry> same) {
+        final List<Entry> result = new ArrayList<>(sorted.size());
+        for (final Entry entry : sorted) {
+            if (result.isEmpty() || !same.test(result.get(result.size() - 1), entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compute the SHA-1 hash of a string's UTF-8 encoding.
+     *
+     * @param s the string
+     * @return the hash
+     */
+    @Nonnull private static byte[] sha1(@Nonnull final String s) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    /**
+     * Read the <code>entityID</code> of a document whose root element is an <code>EntityDescriptor</code>,
+     * stopping at the end of the root element's start tag.
+     *
+     * @param in the document
+     * @return the <code>entityID</code>, or <code>null</code> if the root element is not an
+     *      <code>EntityDescriptor</code> with an <code>entityID</code>
+     * @throws IOException if the document can not be read or is not well-formed
+     */
+    @Nullable static String readRootEntityID(@Nonnull final InputStream in) throws IOException {
+        return new Scanner(in).rootEntityID();
+    }
+
+    /** The location of an entity in an aggregate file. */
+    @Immutable
+    public static final class Extent {
+
+        /** Byte offset of the entity's start tag. */
+        private final long offset;
+
+        /** Length in bytes of the entity. */
+        private final int length;
+
+        /**
+         * Constructor.
+         *
+         * @param off byte offset of the entity's start tag
+         * @param len length in bytes of the entity
+         */
+        public Extent(final long off, final int len) {
+            offset = off;
+            length = len;
+        }
+
+        /**
+         * Get the byte offset of the entity's start tag.
+         *
+         * @return the offset
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the length in bytes of the entity.
+         *
+         * @return the length
+         */
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Extent)) {
+                return false;
+            }
+            final Extent that = (Extent) other;
+            return offset == that.offset && length == that.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(offset) * 31 + length;
+        }
+
+        @Override
+        public String toString() {
+            return "Extent[" + offset + "+" + length + "]";
+        }
+    }
+
+    /** An entity found in an aggregate. */
+    @Immutable
+    private static final class Entry {
+
+        /** SHA-1 hash of the entity's <code>entityID</code>. */
+        @Nonnull private final byte[] hash;
+
+        /** Number of the entity's UK federation identifier, or -1. */
+        private final int ukIdNumber;
+
+        /** Byte offset of the entity. */
+        private final long offset;
+
+        /** Length in bytes of the entity. */
+        private final int length;
+
+        /**
+         * Constructor.
+         *
+         * @param entityHash SHA-1 hash of the entity's <code>entityID</code>
+         * @param number number of the entity's UK federation identifier, or -1
+         * @param off byte offset of the entity
+         * @param len length in bytes of the entity
+         */
+        Entry(@Nonnull final byte[] entityHash, final int number, final long off, final int len) {
+            hash = entityHash;
+            ukIdNumber = number;
+            offset = off;
+            length = len;
+        }
+
+        /**
+         * Get the SHA-1 hash of the entity's <code>entityID</code>.
+         *
+         * @return the hash
+         */
+        @Nonnull byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         * Get the number of the entity's UK federation identifier.
+         *
+         * @return the number, or -1
+         */
+        int getUKIdNumber() {
+            return ukIdNumber;
+        }
+
+        /**
+         * Get the byte offset of the entity.
+         *
+         * @return the offset
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the length in bytes of the entity.
+         *
+         * @return the length
+         */
+        int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Lexical scanner which finds the top-level <code>EntityDescriptor</code> elements in a serialised
+     * aggregate without building a DOM.
+     *
+     * <p>
+     * The scanner understands enough XML to track element depth through comments, processing
+     * instructions, <code>CDATA</code> sections and quoted attribute values; it does not support
+     * a document type declaration with an internal subset.
+     * </p>
+     */
+    private static final class Scanner {
+
+        /** The input. */
+        @Nonnull private final InputStream in;
+
+        /** Offset of the next byte to be read. */
+        private long position;
+
+        /**
+         * Constructor.
+         *
+         * @param input the input
+         */
+        Scanner(@Nonnull final InputStream input) {
+            in = input;
+        }
+
+        /**
+         * Scan the input.
+         *
+         * @return the entities found, in document order
+         * @throws IOException if the input can not be read or is not well-formed
+         */
+        @Nonnull List<Entry> scan() throws IOException {
+            final List<Entry> entries = new ArrayList<>();
+            int depth = 0;
+            long entityStart = -1;
+            int entityDepth = -1;
+            byte[] entityHash = null;
+            int entityUKId = -1;
+
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (b != '<') {
+                    continue;
+                }
+                final long start = position - 1;
+                final int c = next();
+                if (c == '?') {
+                    skipPast("?>");
+                } else if (c == '!') {
+                    final int d = next();
+                    if (d == '-') {
+                        skipPast("-->");
+                    } else if (d == '[') {
+                        skipPast("]]>");
+                    } else {
+                        skipPast(">");
+                    }
+                } else if (c == '/') {
+                    skipPast(">");
+                    depth--;
+                    if (depth == entityDepth) {
+                        entries.add(new Entry(entityHash, entityUKId, entityStart, length(entityStart)));
+                        entityDepth = -1;
+                    }
+                } else if (depth <= 1 && entityDepth < 0) {
+                    final String tag = readTag(c);
+                    final boolean empty = tag.endsWith("/");
+                    if (ENTITY_DESCRIPTOR.equals(localName(tag))) {
+                        final String entityID = attribute(tag, "entityID");
+                        if (entityID == null) {
+                            throw new IOException("EntityDescriptor without entityID at offset " + start);
+                        }
+                        entityHash = sha1(entityID);
+                        final String id = attribute(tag, "ID");
+                        entityUKId = id == null ? -1 : UKId.number(id);
+                        if (empty) {
+                            entries.add(new Entry(entityHash, entityUKId, start, length(start)));
+                        } else {
+                            entityStart = start;
+                            entityDepth = depth;
+                        }
+                    }
+                    if (!empty) {
+                        depth++;
+                    }
+                } else {
+                    if (!skipTag(c)) {
+                        depth++;
+                    }
+                }
+            }
+            if (depth != 0) {
+                throw new IOException("aggregate ends inside an element");
+            }
+            return entries;
+        }
+
+        /**
+         * Read the <code>entityID</code> of the root element, if it is an <code>EntityDescriptor</code>.
+         *
+         * @return the <code>entityID</code>, or <code>null</code>
+         * @throws IOException if the input can not be read or is not well-formed
+         */
+        @Nullable String rootEntityID() throws IOException {
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (b != '<') {
+                    continue;
+                }
+                final int c = next();
+                if (c == '?') {
+                    skipPast("?>");
+                } else if (c == '!') {
+                    skipPast(next() == '-' ? "-->" : ">");
+                } else {
+                    final String tag = readTag(c);
+                    return ENTITY_DESCRIPTOR.equals(localName(tag)) ? attribute(tag, "entityID") : null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Compute the length of an element ending at the current position.
+         *
+         * @param start offset of the element's start tag
+         * @return the length
+         * @throws IOException if the element is too long to index
+         */
+        private int length(final long start) throws IOException {
+            final long length = position - start;
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("entity at offset " + start + " is too long to index");
+            }
+            return (int) length;
+        }
+
+        /**
+         * Read the next byte.
+         *
+         * @return the byte
+         * @throws IOException if the input can not be read or has ended
+         */
+        private int next() throws IOException {
+            final int b = in.read();
+            if (b < 0) {
+                throw new IOException("aggregate ends inside markup");
+            }
+            position++;
+            return b;
+        }
+
+        /**
+         * Skip past the next occurrence of a delimiter.
+         *
+         * @param delimiter the delimiter, in ASCII
+         * @throws IOException if the input can not be read or has ended
+         */
+        private void skipPast(@Nonnull final String delimiter) throws IOException {
+            final int n = delimiter.length();
+            final int[] window = new int[n];
+            int seen = 0;
+            while (true) {
+                System.arraycopy(window, 1, window, 0, n - 1);
+                window[n - 1] = next();
+                seen++;
+                if (seen >= n && matches(window, delimiter)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Whether a window of bytes matches a delimiter.
+         *
+         * @param window the window
+         * @param delimiter the delimiter
+         * @return <code>true</code> if they match
+         */
+        private static boolean matches(@Nonnull final int[] window, @Nonnull final String delimiter) {
+            for (int i = 0; i < window.length; i++) {
+                if (window[i] != delimiter.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Skip the rest of a start tag.
+         *
+         * @param first the first byte of the tag's name
+         * @return <code>true</code> if the tag is an empty-element tag
+         * @throws IOException if the input can not be read or has ended
+         */
+        private boolean skipTag(final int first) throws IOException {
+            int previous = first;
+            int quote = 0;
+            while (true) {
+                final int b = next();
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    return previous == '/';
+                }
+                previous = b;
+            }
+        }
+
+        /**
+         * Read the rest of a start tag.
+         *
+         * @param first the first byte of the tag's name
+         * @return the tag's content between the angle brackets
+         * @throws IOException if the input can not be read or has ended
+         */
+        @Nonnull private String readTag(final int first) throws IOException {
+            final ByteArrayOutputStream tag = new ByteArrayOutputStream();
+            tag.write(first);
+            int quote = 0;
+            while (true) {
+                final int b = next();
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    return tag.toString(StandardCharsets.UTF_8);
+                }
+                tag.write(b);
+            }
+        }
+
+        /**
+         * Get the local name of the element a start tag opens.
+         *
+         * @param tag the tag's content
+         * @return the local name
+         */
+        @Nonnull private static String localName(@Nonnull final String tag) {
+            int end = 0;
+            while (end < tag.length() && !isSpace(tag.charAt(end)) && tag.charAt(end) != '/') {
+                end++;
+            }
+            final String name = tag.substring(0, end);
+            return name.substring(name.indexOf(':') + 1);
+        }
+
+        /**
+         * Get the value of an unprefixed attribute from a start tag.
+         *
+         * @param tag the tag's content
+         * @param name the attribute's name
+         * @return the attribute's value, or <code>null</code> if it is absent
+         * @throws IOException if the value contains a malformed character reference
+         */
+        @Nullable private static String attribute(@Nonnull final String tag, @Nonnull final String name)
+                throws IOException {
+            int i = 0;
+            final int n = tag.length();
+            while (i < n && !isSpace(tag.charAt(i))) {
+                i++;
+            }
+            while (i < n) {
+                while (i < n && (isSpace(tag.charAt(i)) || tag.charAt(i) == '/')) {
+                    i++;
+                }
+                final int nameStart = i;
+                while (i < n && tag.charAt(i) != '=' && !isSpace(tag.charAt(i))) {
+                    i++;
+                }
+                final String attrName = tag.substring(nameStart, i);
+                while (i < n && tag.charAt(i) != '"' && tag.charAt(i) != '\'') {
+                    i++;
+                }
+                if (i >= n) {
+                    return null;
+                }
+                final char quote = tag.charAt(i++);
+                final int valueStart = i;
+                while (i < n && tag.charAt(i) != quote) {
+                    i++;
+                }
+                if (attrName.equals(name)) {
+                    return unescape(tag.substring(valueStart, i));
+                }
+                i++;
+            }
+            return null;
+        }
+
+        /**
+         * Replace the predefined entity and character references in an attribute value.
+         *
+         * @param value the value as serialised
+         * @return the value
+         * @throws IOException if the value contains a malformed character reference
+         */
+        @Nonnull private static String unescape(@Nonnull final String value) throws IOException {
+            if (value.indexOf('&') < 0) {
+                return value;
+            }
+            final StringBuilder result = new StringBuilder(value.length());
+            int i = 0;
+            while (i < value.length()) {
+                final char c = value.charAt(i);
+                final int semi = c == '&' ? value.indexOf(';', i) : -1;
+                if (semi < 0) {
+                    result.append(c);
+                    i++;
+                    continue;
+                }
+                final String ref = value.substring(i + 1, semi);
+                if (ref.startsWith("#x")) {
+                    result.appendCodePoint(codePoint(ref, 2, 16));
+                } else if (ref.startsWith("#")) {
+                    result.appendCodePoint(codePoint(ref, 1, 10));
+                } else if ("lt".equals(ref)) {
+                    result.append('<');
+                } else if ("gt".equals(ref)) {
+                    result.append('>');
+                } else if ("amp".equals(ref)) {
+                    result.append('&');
+                } else if ("quot".equals(ref)) {
+                    result.append('"');
+                } else if ("apos".equals(ref)) {
+                    result.append('\'');
+                } else {
+                    result.append(value, i, semi + 1);
+                }
+                i = semi + 1;
+            }
+            return result.toString();
+        }
+
+        /**
+         * Get the code point a character reference refers to.
+         *
+         * @param ref the reference, without its <code>&amp;</code> and <code>;</code>
+         * @param start index of the first digit
+         * @param radix radix of the digits
+         * @return the code point
+         * @throws IOException if the reference is malformed or does not refer to a valid code point
+         */
+        private static int codePoint(@Nonnull final String ref, final int start, final int radix)
+                throws IOException {
+            final int codePoint;
+            try {
+                codePoint = Integer.parseInt(ref.substring(start), radix);
+            } catch (final NumberFormatException e) {
+                throw new IOException("malformed character reference &" + ref + ";", e);
+            }
+            if (codePoint < 0 || !Character.isValidCodePoint(codePoint)) {
+                throw new IOException("character reference &" + ref + "; is not a valid code point");
+            }
+            return codePoint;
+        }
+
+        /**
+         * Whether a character is XML white space.
+         *
+         * @param c the character
+         * @return <code>true</code> if it is white space
+         */
+        private static boolean isSpace(final char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Stage which writes an {@link AggregateIndex} for an aggregate that an earlier stage has serialised.
+ *
+ * <p>
+ * The index is built from the bytes of <code>aggregateFile</code> rather than from the collection,
+ * so that its offsets are those of the published file whatever serializer wrote it. The collection
+ * is not changed.
+ * </p>
+ */
+@ThreadSafe
+public class AggregateIndexingStage extends AbstractStage<Element> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AggregateIndexingStage.class);
+
+    /** The serialised aggregate to index. */
+    @GuardedBy("this") @NonnullAfterInit private File aggregateFile;
+
+    /** File to write the index to. */
+    @GuardedBy("this") @NonnullAfterInit private File indexFile;
+
+    /**
+     * Get the serialised aggregate to index.
+     *
+     * @return the aggregate file
+     */
+    @NonnullAfterInit public final synchronized File getAggregateFile() {
+        return aggregateFile;
+    }
+
+    /**
+     * Set the serialised aggregate to index.
+     *
+     * @param file the aggregate file
+     */
+    public final synchronized void setAggregateFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        aggregateFile = file;
+    }
+
+    /**
+     * Get the file to write the index to.
+     *
+     * @return the index file
+     */
+    @NonnullAfterInit public final synchronized File getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * Set the file to write the index to.
+     *
+     * @param file the index file
+     */
+    public final synchronized void setIndexFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        indexFile = file;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        try {
+            AggregateIndex.write(getAggregateFile().toPath(), getIndexFile().toPath());
+            log.debug("{}: indexed {}", getId(), getAggregateFile());
+        } catch (final IOException e) {
+            throw new StageProcessingException("could not index " + getAggregateFile(), e);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        aggregateFile = null;
+        indexFile = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (aggregateFile == null) {
+            throw new ComponentInitializationException("aggregateFile must not be null");
+        }
+        if (indexFile == null) {
+            throw new ComponentInitializationException("indexFile must not be null");
+        }
+    }
+}
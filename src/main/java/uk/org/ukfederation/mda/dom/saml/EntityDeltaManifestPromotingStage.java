@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.FileSupport;
+
+/**
+ * Stage which promotes the pending manifest written by an {@link EntityDeltaStage}, so that the
+ * next delta is computed against the collection it describes.
+ *
+ * <p>
+ * This stage should be placed after the stages which publish the delta, so that the manifest is
+ * only replaced once publication has succeeded. <code>pendingManifestFile</code> is moved over
+ * <code>manifestFile</code> atomically; it is an error for it not to exist. The collection is not
+ * changed.
+ * </p>
+ */
+@ThreadSafe
+public class EntityDeltaManifestPromotingStage extends AbstractStage<Element> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(EntityDeltaManifestPromotingStage.class);
+
+    /** File holding the manifest from the last published execution. */
+    @GuardedBy("this") @NonnullAfterInit private File manifestFile;
+
+    /** File holding the manifest describing the current collection. */
+    @GuardedBy("this") @NonnullAfterInit private File pendingManifestFile;
+
+    /**
+     * Get the file holding the manifest from the last published execution.
+     *
+     * @return the manifest file
+     */
+    @NonnullAfterInit public final synchronized File getManifestFile() {
+        return manifestFile;
+    }
+
+    /**
+     * Set the file holding the manifest from the last published execution.
+     *
+     * @param file the manifest file
+     */
+    public final synchronized void setManifestFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        manifestFile = file;
+    }
+
+    /**
+     * Get the file holding the manifest describing the current collection.
+     *
+     * @return the pending manifest file
+     */
+    @NonnullAfterInit public final synchronized File getPendingManifestFile() {
+        return pendingManifestFile;
+    }
+
+    /**
+     * Set the file holding the manifest describing the current collection.
+     *
+     * @param file the pending manifest file
+     */
+    public final synchronized void setPendingManifestFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        pendingManifestFile = file;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final File pending = getPendingManifestFile();
+        if (!pending.exists()) {
+            throw new StageProcessingException("no pending manifest to promote: " + pending);
+        }
+        try {
+            FileSupport.replace(pending.toPath(), getManifestFile().toPath());
+            log.debug("{}: promoted {} to {}", getId(), pending, getManifestFile());
+        } catch (final IOException e) {
+            throw new StageProcessingException("could not promote manifest " + pending, e);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        manifestFile = null;
+        pendingManifestFile = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (manifestFile == null) {
+            throw new ComponentInitializationException("manifestFile must not be null");
+        }
+        if (pendingManifestFile == null) {
+            throw new ComponentInitializationException("pendingManifestFile must not be null");
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.XMLConstants;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.xml.AttributeSupport;
+import net.shibboleth.shared.xml.ParserPool;
+import net.shibboleth.shared.xml.SerializeSupport;
+import net.shibboleth.shared.xml.XMLParserException;
+import uk.org.ukfederation.mda.UKEntityFacts;
+import uk.org.ukfederation.mda.FileSupport;
+import uk.org.ukfederation.mda.UKId;
+import uk.org.ukfederation.mda.dom.CanonicalElementDigest;
+
+/**
+ * Stage which writes a document describing how the entities in a collection differ from those
+ * seen the last time the stage was executed.
+ *
+ * <p>
+ * Each <code>EntityDescriptor</code> is keyed by its {@link UKId} if it has one, and otherwise by its
+ * <code>entityID</code>, and summarised by its {@link CanonicalElementDigest}. The keys and digests are
+ * compared with those recorded in <code>manifestFile</code> by the last published execution, and a
+ * delta document is written to <code>deltaFile</code>:
+ * </p>
+ *
+ * <pre>
+ * &lt;Delta xmlns="http://ukfederation.org.uk/2026/10/delta" previous="9f86d0..." current="60303a..."&gt;
+ *     &lt;Added key="uk000123"&gt;&lt;md:EntityDescriptor .../&gt;&lt;/Added&gt;
+ *     &lt;Changed key="uk000045"&gt;&lt;md:EntityDescriptor .../&gt;&lt;/Changed&gt;
+ *     &lt;Removed key="https://old.example.org/" entityID="https://old.example.org/"/&gt;
+ * &lt;/Delta&gt;
+ * </pre>
+ *
+ * <p>
+ * A manifest describing the current collection is written to <code>pendingManifestFile</code>. It
+ * does not replace <code>manifestFile</code> until an {@link EntityDeltaManifestPromotingStage}
+ * placed after the delta has been published promotes it, so that a later execution after a failed
+ * publication still reports every change since the last delta which was published. The
+ * <code>previous</code> and <code>current</code> attributes of the delta hold the lower-case hex
+ * SHA-256 digests of the manifest it was computed from and of the pending manifest, letting a
+ * consumer check that it applies the delta to the state it describes; <code>previous</code> is
+ * omitted if there is no manifest, in which case every entity is reported as added.
+ * </p>
+ *
+ * <p>
+ * The collection itself is not changed, other than by a {@link WarningStatus} on any entity whose
+ * key duplicates that of an earlier entity; such entities are left out of the delta. Both files
+ * are replaced atomically.
+ * </p>
+ */
+@ThreadSafe
+public class EntityDeltaStage extends AbstractStage<Element> {
+
+    /** Namespace of the delta document. */
+    public static final String DELTA_NS = "http://ukfederation.org.uk/2026/10/delta";
+
+    /** Magic number identifying a manifest file. */
+    private static final int MAGIC = 0x554B444D;
+
+    /** Version of the manifest file format. */
+    private static final int VERSION = 1;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(EntityDeltaStage.class);
+
+    /** File holding the manifest from the last published execution. */
+    @GuardedBy("this") @NonnullAfterInit private File manifestFile;
+
+    /** File to write the manifest describing the current collection to. */
+    @GuardedBy("this") @NonnullAfterInit private File pendingManifestFile;
+
+    /** File to write the delta document to. */
+    @GuardedBy("this") @NonnullAfterInit private File deltaFile;
+
+    /** Parser pool used to create the delta document. */
+    @GuardedBy("this") @NonnullAfterInit private ParserPool parserPool;
+
+    /**
+     * Get the file holding the manifest from the last published execution.
+     *
+     * @return the manifest file
+     */
+    @NonnullAfterInit public final synchronized File getManifestFile() {
+        return manifestFile;
+    }
+
+    /**
+     * Set the file holding the manifest from the last published execution.
+     *
+     * @param file the manifest file
+     */
+    public final synchronized void setManifestFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        manifestFile = file;
+    }
+
+    /**
+     * Get the file to write the manifest describing the current collection to.
+     *
+     * @return the pending manifest file
+     */
+    @NonnullAfterInit public final synchronized File getPendingManifestFile() {
+        return pendingManifestFile;
+    }
+
+    /**
+     * Set the file to write the manifest describing the current collection to.
+     *
+     * @param file the pending manifest file
+     */
+    public final synchronized void setPendingManifestFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        pendingManifestFile = file;
+    }
+
+    /**
+     * Get the file to write the delta document to.
+     *
+     * @return the delta file
+     */
+    @NonnullAfterInit public final synchronized File getDeltaFile() {
+        return deltaFile;
+    }
+
+    /**
+     * Set the file to write the delta document to.
+     *
+     * @param file the delta file
+     */
+    public final synchronized void setDeltaFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        deltaFile = file;
+    }
+
+    /**
+     * Get the parser pool used to create the delta document.
+     *
+     * @return the parser pool
+     */
+    @NonnullAfterInit public final synchronized ParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * Set the parser pool used to create the delta document.
+     *
+     * @param pool the parser pool
+     */
+    public final synchronized void setParserPool(@Nonnull final ParserPool pool) {
+        checkSetterPreconditions();
+        parserPool = pool;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        try {
+            final File manifest = getManifestFile();
+            final Map<String, Entry> previous = new LinkedHashMap<>();
+            final String previousId = manifest.exists() ? loadManifest(manifest, previous) : null;
+            final Map<String, Entry> current = new LinkedHashMap<>();
+
+            final Document delta = getParserPool().newDocument();
+            final Element root = delta.createElementNS(DELTA_NS, "Delta");
+            root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE, DELTA_NS);
+            delta.appendChild(root);
+
+            int added = 0;
+            int changed = 0;
+            for (final Item<Element> item : items) {
+                final Element entity = item.unwrap();
+                if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
+                    continue;
+                }
+                final String entityID = AttributeSupport.getAttributeValue(entity, null, "entityID");
+                if (entityID == null) {
+                    continue;
+                }
+                final String key = extractKey(item, entityID);
+                if (current.containsKey(key)) {
+                    item.getItemMetadata().put(new WarningStatus(getId(),
+                            "duplicate delta key " + key + "; entity left out of delta"));
+                    continue;
+                }
+                final Entry entry = new Entry(entityID, CanonicalElementDigest.digest(entity));
+                current.put(key, entry);
+
+                final Entry old = previous.remove(key);
+                if (old == null) {
+                    addEntity(root, "Added", key, entity);
+                    added++;
+                } else if (!Arrays.equals(old.getDigest(), entry.getDigest())) {
+                    addEntity(root, "Changed", key, entity);
+                    changed++;
+                }
+            }
+
+            // Whatever is left in the previous manifest has gone.
+            for (final Map.Entry<String, Entry> e : previous.entrySet()) {
+                final Element removed = delta.createElementNS(DELTA_NS, "Removed");
+                removed.setAttributeNS(null, "key", e.getKey());
+                removed.setAttributeNS(null, "entityID", e.getValue().getEntityID());
+                root.appendChild(removed);
+            }
+
+            if (previousId != null) {
+                root.setAttributeNS(null, "previous", previousId);
+            }
+            root.setAttributeNS(null, "current", saveManifest(getPendingManifestFile(), current));
+            FileSupport.writeAtomically(getDeltaFile().toPath(), out -> SerializeSupport.writeNode(delta, out));
+            log.debug("{}: {} added, {} changed, {} removed", getId(), added, changed, previous.size());
+        } catch (final IOException | XMLParserException e) {
+            throw new StageProcessingException("could not produce delta", e);
+        }
+    }
+
+    /**
+     * Get the key for an entity.
+     *
+     * @param item the entity's item
+     * @param entityID the entity's <code>entityID</code>
+     * @return the entity's {@link UKId}, or its <code>entityID</code> if it has none
+     */
+    @Nonnull private static String extractKey(@Nonnull final Item<Element> item, @Nonnull final String entityID) {
+        final String ukId = UKEntityFacts.ukIdOf(item);
+        return ukId != null ? ukId : entityID;
+    }
+
+    /**
+     * Add a copy of an entity to the delta document.
+     *
+     * @param root the delta document's root element
+     * @param kind local name of the wrapper element
+     * @param key the entity's key
+     * @param entity the entity
+     */
+    private static void addEntity(@Nonnull final Element root, @Nonnull final String kind,
+            @Nonnull final String key, @Nonnull final Element entity) {
+        final Document delta = root.getOwnerDocument();
+        final Element wrapper = delta.createElementNS(DELTA_NS, kind);
+        wrapper.setAttributeNS(null, "key", key);
+        wrapper.appendChild(delta.importNode(entity, true));
+        root.appendChild(wrapper);
+    }
+
+    /**
+     * Load a manifest.
+     *
+     * @param file the manifest file
+     * @param entries map to add the manifest's entries to, by key
+     * @return the manifest's identifier
+     * @throws IOException if the file can not be read, or is not a manifest
+     */
+    @Nonnull private static String loadManifest(@Nonnull final File file, @Nonnull final Map<String, Entry> entries)
+            throws IOException {
+        final MessageDigest md = newDigest();
+        try (InputStream is = Files.newInputStream(file.toPath());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new DigestInputStream(new GZIPInputStream(is), md)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not an entity delta manifest: " + file);
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final String entityID = in.readUTF();
+                final byte[] digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                entries.put(key, new Entry(entityID, digest));
+            }
+        }
+        return FileSupport.hex(md.digest());
+    }
+
+    /**
+     * Save a manifest.
+     *
+     * @param file the manifest file
+     * @param entries the entries, by key
+     * @return the manifest's identifier
+     * @throws IOException if the file can not be written
+     */
+    @Nonnull private static String saveManifest(@Nonnull final File file, @Nonnull final Map<String, Entry> entries)
+            throws IOException {
+        final MessageDigest md = newDigest();
+        FileSupport.writeAtomically(file.toPath(), os -> {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DigestOutputStream(new GZIPOutputStream(os), md)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue().getEntityID());
+                    out.writeByte(e.getValue().getDigest().length);
+                    out.write(e.getValue().getDigest());
+                }
+            }
+        });
+        return FileSupport.hex(md.digest());
+    }
+
+    /**
+     * Create the digest used to identify manifests, which is computed over their uncompressed content.
+     *
+     * @return a new SHA-256 digest
+     */
+    @Nonnull private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        manifestFile = null;
+        pendingManifestFile = null;
+        deltaFile = null;
+        parserPool = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (manifestFile == null) {
+            throw new ComponentInitializationException("manifestFile must not be null");
+        }
+        if (pendingManifestFile == null) {
+            throw new ComponentInitializationException("pendingManifestFile must not be null");
+        }
+        if (deltaFile == null) {
+            throw new ComponentInitializationException("deltaFile must not be null");
+        }
+        if (parserPool == null) {
+            throw new ComponentInitializationException("parserPool must not be null");
+        }
+    }
+
+    /** A manifest entry: an entity's <code>entityID</code> and digest. */
+    @Immutable
+    private static final class Entry {
+
+        /** The entity's <code>entityID</code>. */
+        @Nonnull private final String entityID;
+
+        /** The entity's canonical digest. */
+        @Nonnull private final byte[] digest;
+
+        /**
+         * Constructor.
+         *
+         * @param id the entity's <code>entityID</code>
+         * @param value the entity's canonical digest
+         */
+        Entry(@Nonnull final String id, @Nonnull final byte[] value) {
+            entityID = id;
+            digest = value;
+        }
+
+        /**
+         * Get the entity's <code>entityID</code>.
+         *
+         * @return the <code>entityID</code>
+         */
+        @Nonnull String getEntityID() {
+            return entityID;
+        }
+
+        /**
+         * Get the entity's canonical digest.
+         *
+         * @return the digest
+         */
+        @Nonnull byte[] getDigest() {
+            return digest;
+        }
+    }
+}
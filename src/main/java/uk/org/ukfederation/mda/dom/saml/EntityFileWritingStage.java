@@ -0,0 +1,359 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.xml.AttributeSupport;
+import net.shibboleth.shared.xml.SerializeSupport;
+import uk.org.ukfederation.mda.FileSupport;
+import uk.org.ukfederation.mda.UKEntityFacts;
+import uk.org.ukfederation.mda.UKId;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
+
+/**
+ * Stage which writes each <code>EntityDescriptor</code> in a collection to its own file,
+ * for per-entity publication.
+ *
+ * <p>
+ * Files are placed in a sharded directory tree below <code>directory</code>, so that no single
+ * directory holds too many files:
+ * </p>
+ *
+ * <ul>
+ * <li>an entity with a {@link UKId} such as <code>uk012345</code> is written to
+ * <code>uk/01/23/uk012345.xml</code>;</li>
+ * <li>any other entity is written to <code>sha1/ab/cd/abcd....xml</code>, named by the hex
+ * SHA-1 hash of its <code>entityID</code> as in the MDQ protocol's <code>{sha1}</code> form.</li>
+ * </ul>
+ *
+ * <p>
+ * Each file is written to a temporary file in the same directory and moved into place atomically,
+ * so readers never see a partly written file. A file whose content would not change is left
+ * alone, preserving its modification time. Items other than <code>EntityDescriptor</code>s are
+ * ignored.
+ * </p>
+ *
+ * <p>
+ * An entity whose file would be the same as that of an earlier entity, for example because both
+ * have the same <code>entityID</code>, is given an {@link ErrorStatus} and not written.
+ * </p>
+ *
+ * <p>
+ * The stage records the files it has written in a manifest, <code>.<em>id</em>.files</code> in
+ * the root directory, named after the stage's identifier. Once all files have been written, those
+ * in the previous manifest which are not in the current collection are deleted, so that entities
+ * which have left the collection are no longer published, along with any temporary files left
+ * behind by an earlier, interrupted, attempt to write any of the stage's files. Nothing else is
+ * deleted, so several stages with different identifiers can share a directory tree as long as
+ * they do not write files for the same entities. Nothing is deleted on the first run, when there
+ * is no manifest, or if writing any file fails.
+ * </p>
+ *
+ * <p>
+ * Entities are written in parallel according to the <code>executor</code>, <code>parallelism</code>
+ * and <code>virtualThreads</code> properties inherited from {@link AbstractParallelIteratingStage}.
+ * </p>
+ */
+@ThreadSafe
+public class EntityFileWritingStage extends AbstractParallelIteratingStage<Element> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(EntityFileWritingStage.class);
+
+    /** Root of the directory tree to write to. */
+    @GuardedBy("this") @NonnullAfterInit private File directory;
+
+    /**
+     * Get the root of the directory tree to write to.
+     *
+     * @return the directory
+     */
+    @NonnullAfterInit public final synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set the root of the directory tree to write to.
+     *
+     * @param dir the directory
+     */
+    public final synchronized void setDirectory(@Nonnull final File dir) {
+        checkSetterPreconditions();
+        directory = dir;
+    }
+
+    /**
+     * Get the manifest of the files this stage has written.
+     *
+     * @return the manifest's path
+     */
+    @Nonnull private Path getManifest() {
+        return getDirectory().toPath().resolve('.' + getId() + ".files");
+    }
+
+    /**
+     * Get the path, relative to the root directory, of the file for an entity.
+     *
+     * @param item the entity's item
+     * @return the relative path, or <code>null</code> if the item is not an entity with an <code>entityID</code>
+     */
+    @Nullable public static String relativePath(@Nonnull final Item<Element> item) {
+        final Element entity = item.unwrap();
+        if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
+            return null;
+        }
+
+        final String ukId = UKEntityFacts.ukIdOf(item);
+        if (ukId != null && UKId.number(ukId) >= 0) {
+            return ukIdPath(ukId);
+        }
+
+        final String entityID = AttributeSupport.getAttributeValue(entity, null, "entityID");
+        if (entityID == null) {
+            return null;
+        }
+        return hashPath(sha1Hex(entityID));
+    }
+
+    /**
+     * Get the relative path of the file for an entity with a UK federation identifier.
+     *
+     * @param ukId the identifier, such as <code>uk012345</code>, which must be well formed
+     * @return the relative path
+     */
+    @Nonnull static String ukIdPath(@Nonnull final String ukId) {
+        final String digits = UKId.digits(ukId);
+        return "uk/" + digits.substring(0, 2) + '/' + digits.substring(2, 4) + '/' + ukId + ".xml";
+    }
+
+    /**
+     * Get the relative path of the file for an entity without a UK federation identifier.
+     *
+     * @param hash the lower-case hex SHA-1 hash of the entity's <code>entityID</code>
+     * @return the relative path
+     */
+    @Nonnull static String hashPath(@Nonnull final String hash) {
+        return "sha1/" + hash.substring(0, 2) + '/' + hash.substring(2, 4) + '/' + hash + ".xml";
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final Set<String> paths = new HashSet<>();
+        final List<Item<Element>> unique = new ArrayList<>(items.size());
+        for (final Item<Element> item : items) {
+            final String relative = relativePath(item);
+            if (relative == null) {
+                continue;
+            }
+            if (paths.add(relative)) {
+                unique.add(item);
+            } else {
+                item.getItemMetadata().put(new ErrorStatus(getId(),
+                        "entity file " + relative + " is also that of an earlier entity; not written"));
+            }
+        }
+
+        super.doExecute(unique);
+        final int pruned = prune(paths);
+        log.debug("{}: {} entity files current, {} pruned", getId(), paths.size(), pruned);
+    }
+
+    /**
+     * Delete the entity files written last time which do not belong to the current collection,
+     * and any temporary files left behind while writing them, and record the current files in
+     * the manifest.
+     *
+     * <p>
+     * The manifest lists the files of both collections until the old ones have been deleted, so
+     * a failure part way through leaves them to be deleted next time.
+     * </p>
+     *
+     * @param paths relative paths of the current collection's files
+     * @return the number of entity files deleted
+     * @throws StageProcessingException if the manifest can not be read or written, or a file deleted
+     */
+    private int prune(@Nonnull final Set<String> paths) throws StageProcessingException {
+        final Path root = getDirectory().toPath();
+        final Path manifest = getManifest();
+        try {
+            final Set<String> previous = new TreeSet<>();
+            if (Files.exists(manifest)) {
+                previous.addAll(Files.readAllLines(manifest, StandardCharsets.UTF_8));
+            }
+            final Set<String> stale = new TreeSet<>(previous);
+            stale.removeAll(paths);
+            if (!stale.isEmpty()) {
+                final Set<String> all = new TreeSet<>(previous);
+                all.addAll(paths);
+                writeManifest(manifest, all);
+            }
+
+            int pruned = 0;
+            for (final String relative : stale) {
+                if (Files.deleteIfExists(root.resolve(relative))) {
+                    pruned++;
+                }
+            }
+            previous.addAll(paths);
+            deleteTemporaryFiles(root, previous);
+            writeManifest(manifest, new TreeSet<>(paths));
+            return pruned;
+        } catch (final IOException e) {
+            throw new StageProcessingException("could not prune entity files below " + root, e);
+        }
+    }
+
+    /**
+     * Delete the temporary files left behind while writing any of a set of files.
+     *
+     * @param root the root directory
+     * @param paths relative paths of the files
+     * @throws IOException if a directory can not be read or a file deleted
+     */
+    private static void deleteTemporaryFiles(@Nonnull final Path root, @Nonnull final Set<String> paths)
+            throws IOException {
+        final Set<Path> directories = new HashSet<>();
+        for (final String relative : paths) {
+            directories.add(root.resolve(relative).getParent());
+        }
+        for (final Path dir : directories) {
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                final List<Path> temporary = new ArrayList<>();
+                files.filter(FileSupport::isTemporary)
+                        .filter(p -> paths.contains(targetOf(root.relativize(p))))
+                        .forEach(temporary::add);
+                for (final Path file : temporary) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the relative path of the entity file a temporary file was written for.
+     *
+     * @param temporary relative path of the temporary file
+     * @return the relative path of the entity file, or <code>null</code> if there is none
+     */
+    @Nullable private static String targetOf(@Nonnull final Path temporary) {
+        final String path = temporary.toString().replace(File.separatorChar, '/');
+        final int end = path.lastIndexOf(".xml");
+        return end < 0 ? null : path.substring(0, end + 4);
+    }
+
+    /**
+     * Write the manifest.
+     *
+     * @param manifest the manifest's path
+     * @param paths relative paths of the files to list, in order
+     * @throws IOException if the manifest can not be written
+     */
+    private static void writeManifest(@Nonnull final Path manifest, @Nonnull final Set<String> paths)
+            throws IOException {
+        FileSupport.writeAtomically(manifest,
+                out -> out.write(String.join("\n", paths).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
+        final String relative = relativePath(item);
+        if (relative == null) {
+            return;
+        }
+        final Path target = getDirectory().toPath().resolve(relative);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SerializeSupport.writeNode(item.unwrap(), out);
+        final byte[] content = out.toByteArray();
+
+        try {
+            if (Files.exists(target) && Files.size(target) == content.length &&
+                    Arrays.equals(Files.readAllBytes(target), content)) {
+                return;
+            }
+
+            Files.createDirectories(target.getParent());
+            FileSupport.writeAtomically(target, os -> os.write(content));
+        } catch (final IOException e) {
+            throw new StageProcessingException("could not write entity file " + target, e);
+        }
+    }
+
+    /**
+     * Compute the hex SHA-1 hash of a string's UTF-8 encoding.
+     *
+     * @param s the string
+     * @return the lower-case hex hash
+     */
+    @Nonnull static String sha1Hex(@Nonnull final String s) {
+        final byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        return FileSupport.hex(hash);
+    }
+
+    @Override
+    protected void doDestroy() {
+        directory = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (directory == null) {
+            throw new ComponentInitializationException("directory must not be null");
+        }
+    }
+}
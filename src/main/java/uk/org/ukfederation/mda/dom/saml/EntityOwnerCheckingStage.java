@@ -14,38 +14,73 @@
 
 package uk.org.ukfederation.mda.dom.saml;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
-import javax.xml.namespace.QName;
 
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemMetadata;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
-import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
 import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.xml.AttributeSupport;
-import net.shibboleth.shared.xml.ElementSupport;
+import uk.org.ukfederation.mda.dom.ElementCursorSupport;
 import uk.org.ukfederation.mda.dom.saml.ukfedlabel.UKFedLabelSupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
 import uk.org.ukfederation.members.Members;
 import uk.org.ukfederation.members.jaxb.MemberElement;
 
 /**
  * Stage to check that each entity in a collection is owned by a UK federation member.
+ *
+ * <p>
+ * If the members document is also supplied as the <code>membersDocument</code> property,
+ * a {@link MemberNameIndex} is built from it on initialization and errors for unknown
+ * owner names include the closest member names and their organization IDs.
+ * </p>
+ *
+ * <p>
+ * If the <code>groupByOrganization</code> property is set, the entities in the collection are
+ * first grouped by their (<code>orgID</code>, <code>OrganizationName</code>) pair, and each distinct
+ * pair is checked against the members information only once. Any resulting error is then added to
+ * every entity in the group. The status messages are the same in either mode.
+ * </p>
  */
 @ThreadSafe
-public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
+public class EntityOwnerCheckingStage extends AbstractParallelIteratingStage<Element> {
+
+    /** Local name of the SAML metadata <code>OrganizationName</code> element. */
+    private static final String ORGANIZATION_NAME = "OrganizationName";
 
     /** Information about members of the UK federation. */
     @GuardedBy("this") @NonnullAfterInit private Members members;
+
+    /** The members document, from which owner name suggestions are drawn. */
+    @GuardedBy("this") @Nullable private Document membersDocument;
+
+    /** Maximum number of owner name suggestions to include in an error. Default: 3. */
+    @GuardedBy("this") private int suggestionCount = 3;
+
+    /** Index of member names, if suggestions are to be made. */
+    @GuardedBy("this") @Nullable private MemberNameIndex memberNameIndex;
+
+    /** Whether to check each distinct organization once for the whole collection. Default: <code>false</code>. */
+    @GuardedBy("this") private boolean groupByOrganization;
     
     /**
      * Get the members API object.
@@ -65,7 +100,104 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
     public final synchronized void setMembers(@Nonnull final Members m) {
         members = m;
     }
+
+    /**
+     * Get the members document used for owner name suggestions.
+     *
+     * @return the members document, or <code>null</code>
+     */
+    @Nullable
+    public final synchronized Document getMembersDocument() {
+        return membersDocument;
+    }
+
+    /**
+     * Set the members document used for owner name suggestions.
+     *
+     * @param document the members document, or <code>null</code> to make no suggestions
+     */
+    public final synchronized void setMembersDocument(@Nullable final Document document) {
+        checkSetterPreconditions();
+        membersDocument = document;
+    }
+
+    /**
+     * Get the maximum number of owner name suggestions included in an error.
+     *
+     * @return the maximum number of suggestions
+     */
+    public final synchronized int getSuggestionCount() {
+        return suggestionCount;
+    }
+
+    /**
+     * Set the maximum number of owner name suggestions included in an error.
+     *
+     * @param count the maximum number of suggestions
+     */
+    public final synchronized void setSuggestionCount(final int count) {
+        checkSetterPreconditions();
+        suggestionCount = count;
+    }
+
+    /**
+     * Get whether each distinct organization is checked once for the whole collection.
+     *
+     * @return <code>true</code> if entities are grouped by organization
+     */
+    public final synchronized boolean isGroupByOrganization() {
+        return groupByOrganization;
+    }
+
+    /**
+     * Set whether each distinct organization is checked once for the whole collection.
+     *
+     * @param group <code>true</code> to group entities by organization
+     */
+    public final synchronized void setGroupByOrganization(final boolean group) {
+        checkSetterPreconditions();
+        groupByOrganization = group;
+    }
+
+    /**
+     * Get the index of member names.
+     *
+     * @return the member name index, or <code>null</code> if suggestions are not being made
+     */
+    @Nullable
+    private synchronized MemberNameIndex getMemberNameIndex() {
+        return memberNameIndex;
+    }
     
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        if (!isGroupByOrganization()) {
+            super.doExecute(items);
+            return;
+        }
+
+        // Group the entities by owner, in order of first appearance.
+        final Map<Owner, List<ClassToInstanceMultiMap<ItemMetadata>>> groups = new LinkedHashMap<>();
+        for (final Item<Element> item : items) {
+            final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
+            final Owner owner = extractOwner(item.unwrap(), metadata);
+            if (owner != null) {
+                groups.computeIfAbsent(owner, k -> new ArrayList<>()).add(metadata);
+            }
+        }
+
+        // Check each owner once, applying any error to every entity it owns.
+        for (final Map.Entry<Owner, List<ClassToInstanceMultiMap<ItemMetadata>>> group : groups.entrySet()) {
+            final String error = checkOwner(group.getKey());
+            if (error != null) {
+                for (final ClassToInstanceMultiMap<ItemMetadata> metadata : group.getValue()) {
+                    addError(metadata, error);
+                }
+            }
+        }
+    }
+
     @Override
     protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
         doExecute(item.unwrap(), item.getItemMetadata());
@@ -79,10 +211,35 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
      */
     protected void doExecute(@Nonnull final Element entity,
             @Nonnull final ClassToInstanceMultiMap<ItemMetadata> metadata) {
+        final Owner owner = extractOwner(entity, metadata);
+        if (owner == null) {
+            return;
+        }
+
+        final String error = checkOwner(owner);
+        if (error != null) {
+            addError(metadata, error);
+        }
+    }
+
+    /**
+     * Extract the claimed owner of a single entity.
+     *
+     * <p>
+     * If the owner can not be determined, an appropriate error is added to the entity.
+     * </p>
+     *
+     * @param entity DOM {@link Element} containing the <code>EntityDescriptor</code>
+     * @param metadata item metadata collection for the entity
+     * @return the entity's claimed owner, or <code>null</code> if it could not be determined
+     */
+    @Nullable
+    private Owner extractOwner(@Nonnull final Element entity,
+            @Nonnull final ClassToInstanceMultiMap<ItemMetadata> metadata) {
         // Verify that we're dealing with an entity descriptor.
         if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
             metadata.put(new ErrorStatus(getId(), "item is not an EntityDescriptor"));
-            return;
+            return null;
         }
         
         // Acquire its UK federation organization ID
@@ -91,7 +248,7 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
         if (ukfMemberLabel == null) {
             addError(metadata, "entity has no " +
                     UKFedLabelSupport.UK_FEDERATION_MEMBER_NAME.getLocalPart() + " element");
-            return;
+            return null;
         }
         final String orgID = AttributeSupport.getAttributeValue(ukfMemberLabel,
                 UKFedLabelSupport.UK_FEDERATION_MEMBER_ORGID);
@@ -100,38 +257,79 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
                     UKFedLabelSupport.UK_FEDERATION_MEMBER_NAME.getLocalPart() +
                     " element has no " +
                     UKFedLabelSupport.UK_FEDERATION_MEMBER_ORGID + " attribute");
-            return;
+            return null;
         }
 
         // Acquire the Organization element.
-        final Element orgElement = ElementSupport.getFirstChildElement(entity,
-                new QName(SAMLMetadataSupport.MD_NS, "Organization"));
+        final Element orgElement =
+                ElementCursorSupport.firstChildElement(entity, SAMLMetadataSupport.MD_NS, "Organization");
         if (orgElement == null) {
             addError(metadata, "entity has no Organization element");
-            return;
+            return null;
         }
         
         // Extract the organization's name.
         final String orgName = extractOrganizationName(orgElement);
         if (orgName == null) {
             addError(metadata, "entity has no OrganizationName with xml:lang='en'");
-            return;
+            return null;
         }
-        
+
+        return new Owner(orgID, orgName);
+    }
+
+    /**
+     * Check a claimed owner against the members information.
+     *
+     * @param owner the claimed owner
+     * @return an error message, or <code>null</code> if the owner is valid
+     */
+    @Nullable
+    private String checkOwner(@Nonnull final Owner owner) {
         // Check that this is a valid organization name
-        final MemberElement member = getMembers().getMemberByName(orgName);
+        final MemberElement member = getMembers().getMemberByName(owner.getOrgName());
         if (member == null) {
-            addError(metadata, "unknown owner name: " + orgName);
-            return;
+            return "unknown owner name: " + owner.getOrgName() + suggestOwners(owner.getOrgName());
         }
 
         // Cross-check the entity's orgID against the value from members.xml.
-        if (!orgID.equals(member.getID())) {
-            addError(metadata, "mismatched orgID: " + orgID + " should be " + member.getID());
-            return;
+        if (!owner.getOrgID().equals(member.getID())) {
+            return "mismatched orgID: " + owner.getOrgID() + " should be " + member.getID();
         }
+
+        return null;
     }
     
+    /**
+     * Compose a list of suggested member names for an unknown owner name.
+     *
+     * @param orgName the unknown owner name
+     * @return a suffix for the error message, empty if there are no suggestions
+     */
+    @Nonnull
+    private String suggestOwners(@Nonnull final String orgName) {
+        final MemberNameIndex index = getMemberNameIndex();
+        if (index == null) {
+            return "";
+        }
+        final List<MemberNameIndex.Suggestion> suggestions = index.suggest(orgName, getSuggestionCount());
+        if (suggestions.isEmpty()) {
+            return "";
+        }
+        final StringBuilder b = new StringBuilder("; did you mean ");
+        boolean first = true;
+        for (final MemberNameIndex.Suggestion suggestion : suggestions) {
+            if (first) {
+                first = false;
+            } else {
+                b.append(", ");
+            }
+            b.append('\'').append(suggestion.getName()).append("' (").append(suggestion.getOrgID()).append(')');
+        }
+        b.append('?');
+        return b.toString();
+    }
+
     /**
      * Given an &lt;Organization&gt; element, extract the canonical name of the
      * organization owning the entity.
@@ -144,24 +342,25 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
      * @return the organization's name, or <code>null</code> if not present
      */
     private String extractOrganizationName(@Nonnull final Element orgElement) {
-        // Acquire all of the OrganizationName elements
-        final List<Element> orgNames = ElementSupport.getChildElements(orgElement,
-                new QName(SAMLMetadataSupport.MD_NS, "OrganizationName"));
-        
-        // Extract the first one with xml:lang = "en"
-        for (final Element orgName : orgNames) {
+        // Look for one with xml:lang = "en", remembering the first country-specific variant.
+        Element variant = null;
+        for (Element orgName = ElementCursorSupport.firstChildElement(orgElement, SAMLMetadataSupport.MD_NS,
+                    ORGANIZATION_NAME);
+                orgName != null;
+                orgName = ElementCursorSupport.nextSiblingElement(orgName, SAMLMetadataSupport.MD_NS,
+                        ORGANIZATION_NAME)) {
             final String lang = AttributeSupport.getXMLLang(orgName);
             if ("en".equals(lang)) {
                 return orgName.getTextContent();
             }
+            if (variant == null && lang != null && lang.startsWith("en-")) {
+                variant = orgName;
+            }
         }
-        
+
         // Perhaps there is a country-specific variant instead.
-        for (final Element orgName : orgNames) {
-            final String lang = AttributeSupport.getXMLLang(orgName);
-            if (lang != null && lang.startsWith("en-")) {
-                return orgName.getTextContent();
-            }
+        if (variant != null) {
+            return variant.getTextContent();
         }
         
         // No xml:lang="en" found.
@@ -182,6 +381,8 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
     @Override
     protected void doDestroy() {
         members = null;
+        membersDocument = null;
+        memberNameIndex = null;
 
         super.doDestroy();
     }
@@ -194,5 +395,66 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
             throw new ComponentInitializationException(
                     "members API object must be provided");
         }
+
+        if (membersDocument != null) {
+            memberNameIndex = MemberNameIndex.fromMembersDocument(membersDocument);
+        }
+    }
+
+    /** The owner claimed by an entity: its <code>orgID</code> and <code>OrganizationName</code>. */
+    @Immutable
+    private static final class Owner {
+
+        /** The organization ID from the entity's <code>UKFederationMember</code> extension. */
+        @Nonnull private final String orgID;
+
+        /** The entity's English <code>OrganizationName</code>. */
+        @Nonnull private final String orgName;
+
+        /**
+         * Constructor.
+         *
+         * @param id the organization ID
+         * @param name the organization name
+         */
+        Owner(@Nonnull final String id, @Nonnull final String name) {
+            orgID = id;
+            orgName = name;
+        }
+
+        /**
+         * Get the organization ID.
+         *
+         * @return the organization ID
+         */
+        @Nonnull String getOrgID() {
+            return orgID;
+        }
+
+        /**
+         * Get the organization name.
+         *
+         * @return the organization name
+         */
+        @Nonnull String getOrgName() {
+            return orgName;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(orgID, orgName);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Owner)) {
+                return false;
+            }
+            final Owner other = (Owner) obj;
+            return orgID.equals(other.orgID) && orgName.equals(other.orgName);
+        }
     }
 }
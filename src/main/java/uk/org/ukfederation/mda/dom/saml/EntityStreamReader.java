@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.shared.xml.ParserPool;
+import net.shibboleth.shared.xml.XMLParserException;
+
+/**
+ * Reads the <code>EntityDescriptor</code>s in a SAML metadata document one at a time, as the
+ * document is parsed, each as an item with its own DOM document.
+ *
+ * <p>
+ * The document is read with a StAX parser, so only the entity being read is held in memory.
+ * Every <code>EntityDescriptor</code> not inside another is returned, however deeply it is nested
+ * in <code>EntitiesDescriptor</code>s; everything outside them, including the
+ * <code>EntitiesDescriptor</code>s themselves, is skipped. Namespace declarations on enclosing
+ * elements are copied to each entity's document element so that prefixes used in attribute values,
+ * such as in <code>xsi:type</code>, still resolve. DTDs are not supported.
+ * </p>
+ */
+@NotThreadSafe
+public final class EntityStreamReader implements AutoCloseable {
+
+    /** Local name of an <code>EntityDescriptor</code>. */
+    private static final String ENTITY_DESCRIPTOR = "EntityDescriptor";
+
+    /** Parser pool used to create the documents. */
+    @Nonnull private final ParserPool parserPool;
+
+    /** The StAX parser. */
+    @Nonnull private final XMLStreamReader reader;
+
+    /** Namespace declarations, as prefix and URI pairs, on the enclosing elements outside any entity. */
+    @Nonnull private final List<String[]> declarations = new ArrayList<>();
+
+    /** Number of declarations made by each enclosing element, innermost last. */
+    @Nonnull private final Deque<Integer> declarationCounts = new ArrayDeque<>();
+
+    /**
+     * Constructor.
+     *
+     * @param in the stream to read the metadata document from; it is not closed
+     * @param pool the parser pool used to create the documents
+     * @throws XMLParserException if the parser can not be created
+     */
+    public EntityStreamReader(@Nonnull final InputStream in, @Nonnull final ParserPool pool)
+            throws XMLParserException {
+        parserPool = pool;
+        final XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        try {
+            reader = factory.createXMLStreamReader(in);
+        } catch (final XMLStreamException e) {
+            throw new XMLParserException("could not create stream parser", e);
+        }
+    }
+
+    /**
+     * Read the next entity.
+     *
+     * @return the next entity, or <code>null</code> at the end of the document
+     * @throws XMLParserException if the document can not be parsed
+     */
+    @Nullable public Item<Element> next() throws XMLParserException {
+        try {
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (ENTITY_DESCRIPTOR.equals(reader.getLocalName())
+                            && SAMLMetadataSupport.MD_NS.equals(reader.getNamespaceURI())) {
+                        return new DOMElementItem(readEntity());
+                    }
+                    final int count = reader.getNamespaceCount();
+                    for (int i = 0; i < count; i++) {
+                        declarations.add(new String[] {reader.getNamespacePrefix(i), reader.getNamespaceURI(i)});
+                    }
+                    declarationCounts.push(count);
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    final int count = declarationCounts.pop();
+                    for (int i = 0; i < count; i++) {
+                        declarations.remove(declarations.size() - 1);
+                    }
+                }
+            }
+            return null;
+        } catch (final XMLStreamException e) {
+            throw new XMLParserException("could not parse metadata", e);
+        }
+    }
+
+    /**
+     * Build a document from the entity starting at the current event.
+     *
+     * @return the document
+     * @throws XMLStreamException if the entity can not be parsed
+     * @throws XMLParserException if the document can not be created
+     */
+    @Nonnull private Document readEntity() throws XMLStreamException, XMLParserException {
+        final Document document = parserPool.newDocument();
+        final Element root = createElement(document);
+        document.appendChild(root);
+
+        // Innermost declarations win, and the entity's own declarations win over all of them.
+        final Set<String> declared = new HashSet<>();
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            declared.add(prefix(reader.getNamespacePrefix(i)));
+        }
+        for (int i = declarations.size() - 1; i >= 0; i--) {
+            final String[] declaration = declarations.get(i);
+            if (declared.add(prefix(declaration[0]))) {
+                declare(root, declaration[0], declaration[1]);
+            }
+        }
+
+        Node parent = root;
+        while (parent != document) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    final Element element = createElement(document);
+                    parent.appendChild(element);
+                    parent = element;
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    parent = parent.getParentNode();
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    parent.appendChild(document.createTextNode(reader.getText()));
+                    break;
+
+                case XMLStreamConstants.CDATA:
+                    parent.appendChild(document.createCDATASection(reader.getText()));
+                    break;
+
+                case XMLStreamConstants.COMMENT:
+                    parent.appendChild(document.createComment(reader.getText()));
+                    break;
+
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    parent.appendChild(document.createProcessingInstruction(reader.getPITarget(),
+                            reader.getPIData()));
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Create an element, with its namespace declarations and attributes, from the current
+     * <code>START_ELEMENT</code> event.
+     *
+     * @param document the document to create the element in
+     * @return the element
+     */
+    @Nonnull private Element createElement(@Nonnull final Document document) {
+        final Element element = document.createElementNS(emptyToNull(reader.getNamespaceURI()),
+                qualify(reader.getPrefix(), reader.getLocalName()));
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            declare(element, reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(i)),
+                    qualify(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                    reader.getAttributeValue(i));
+        }
+        return element;
+    }
+
+    /**
+     * Add a namespace declaration to an element.
+     *
+     * @param element the element
+     * @param prefix the prefix declared, or <code>null</code> or empty for the default namespace
+     * @param uri the namespace URI, or <code>null</code> to undeclare the default namespace
+     */
+    private static void declare(@Nonnull final Element element, @Nullable final String prefix,
+            @Nullable final String uri) {
+        final String name = prefix == null || prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE
+                : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+        element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name, uri == null ? "" : uri);
+    }
+
+    /**
+     * Build a qualified name.
+     *
+     * @param prefix the prefix, or <code>null</code> or empty for none
+     * @param localName the local name
+     * @return the qualified name
+     */
+    @Nonnull private static String qualify(@Nullable final String prefix, @Nonnull final String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * Normalise a namespace prefix so that the default namespace is always the empty string.
+     *
+     * @param prefix the prefix, or <code>null</code> for the default namespace
+     * @return the prefix, or the empty string for the default namespace
+     */
+    @Nonnull private static String prefix(@Nullable final String prefix) {
+        return prefix == null ? "" : prefix;
+    }
+
+    /**
+     * Convert an empty string to <code>null</code>, as the DOM expects for no namespace.
+     *
+     * @param s the string
+     * @return the string, or <code>null</code> if it is empty
+     */
+    @Nullable private static String emptyToNull(@Nullable final String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    @Override
+    public void close() throws XMLParserException {
+        try {
+            reader.close();
+        } catch (final XMLStreamException e) {
+            throw new XMLParserException("could not close stream parser", e);
+        }
+    }
+}
@@ -0,0 +1,684 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.component.DestructableComponent;
+import net.shibboleth.shared.xml.AttributeSupport;
+import net.shibboleth.shared.xml.ParserPool;
+import net.shibboleth.shared.xml.XMLParserException;
+import uk.org.ukfederation.mda.dom.CanonicalElementDigest;
+import uk.org.ukfederation.mda.dom.ElementCursorSupport;
+import uk.org.ukfederation.mda.pipeline.FileWatcher;
+
+/**
+ * Long-running aggregation which keeps its state warm and, when the members document or an input
+ * file changes, reprocesses only what the change affects.
+ *
+ * <p>
+ * Each of the <code>inputFiles</code> holds one entity. When loaded, it is run through the
+ * <code>preparationStages</code>, which must not depend on the members document; the result is kept.
+ * A copy of it is then run through the stages created by the <code>stageFactory</code> for the current
+ * members document, and that result is kept too. Whenever anything has been reprocessed, a copy of every
+ * entity's result, in input file order, is run through the <code>publicationStages</code>.
+ * </p>
+ *
+ * <ul>
+ * <li>When an input file changes, only that file is reloaded and reprocessed. If it has been deleted,
+ * its entity is left out until it reappears.</li>
+ * <li>When the members document changes, the members-dependent stages are recreated and only the
+ * affected entities are reprocessed: those whose <code>entityID</code>, or one of whose
+ * <code>OrganizationName</code>s, appears as a <code>Name</code> or <code>Scopes/Entity</code> in a
+ * <code>Member</code> which has been added, removed or changed.</li>
+ * </ul>
+ *
+ * <p>
+ * Everything is loaded and published when the component is initialized. If <code>watch</code> is set,
+ * a {@link FileWatcher} then calls {@link #filesChanged(Set)} as files change, until the component is
+ * destroyed; a change which can not be processed is logged, and the previous state is kept.
+ * </p>
+ *
+ * <p>
+ * Only the affected entities are given to the new members-dependent stages, so a stage whose result for
+ * one entity depends on other members must tolerate stale results for the rest. In particular, the
+ * nearest-name suggestions which {@link EntityOwnerCheckingStage} makes for an unknown owner are drawn
+ * from every member, so an entity judged unaffected keeps the suggestions made from the earlier members
+ * document until it is next reprocessed.
+ * </p>
+ *
+ * <p>
+ * Stages are expected to change items in place or remove them, not to replace them. Stages created by
+ * the factory belong to this class: they are destroyed when they are replaced, when a change they were
+ * created for can not be processed, and when the component is destroyed.
+ * </p>
+ */
+@ThreadSafe
+public class IncrementalAggregator extends AbstractInitializableComponent implements FileWatcher.Listener {
+
+    /** Local name of a member. */
+    private static final String MEMBER = "Member";
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(IncrementalAggregator.class);
+
+    /** The members document. */
+    @GuardedBy("this") @NonnullAfterInit private File membersFile;
+
+    /** The input files, each holding one entity. */
+    @GuardedBy("this") @Nonnull @NonnullElements private List<File> inputFiles = List.of();
+
+    /** Parser pool used to load files. */
+    @GuardedBy("this") @NonnullAfterInit private ParserPool parserPool;
+
+    /** Stages run on each newly loaded entity. */
+    @GuardedBy("this") @Nonnull @NonnullElements private List<Stage<Element>> preparationStages = List.of();
+
+    /** Creates the stages which depend on the members document. */
+    @GuardedBy("this") @NonnullAfterInit private MembersStageFactory stageFactory;
+
+    /** Stages run on a copy of all the results after any change. */
+    @GuardedBy("this") @Nonnull @NonnullElements private List<Stage<Element>> publicationStages = List.of();
+
+    /** Whether to watch the files for changes. Default value: <code>false</code>. */
+    @GuardedBy("this") private boolean watch;
+
+    /** The current members document. */
+    @GuardedBy("this") @Nullable private Document membersDocument;
+
+    /** The stages created for the current members document. */
+    @GuardedBy("this") @Nonnull @NonnullElements private List<Stage<Element>> membersStages = List.of();
+
+    /** State for each input file, in input file order. */
+    @GuardedBy("this") @Nonnull private final Map<Path, Entry> entries = new LinkedHashMap<>();
+
+    /** The file watcher, if watching. */
+    @GuardedBy("this") @Nullable private FileWatcher watcher;
+
+    /**
+     * Get the members document.
+     *
+     * @return the members file
+     */
+    @NonnullAfterInit public final synchronized File getMembersFile() {
+        return membersFile;
+    }
+
+    /**
+     * Set the members document.
+     *
+     * @param file the members file
+     */
+    public final synchronized void setMembersFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        membersFile = file;
+    }
+
+    /**
+     * Get the input files.
+     *
+     * @return the input files
+     */
+    @Nonnull @NonnullElements public final synchronized List<File> getInputFiles() {
+        return inputFiles;
+    }
+
+    /**
+     * Set the input files, each holding one entity.
+     *
+     * @param files the input files
+     */
+    public final synchronized void setInputFiles(@Nonnull @NonnullElements final List<File> files) {
+        checkSetterPreconditions();
+        inputFiles = List.copyOf(files);
+    }
+
+    /**
+     * Get the parser pool used to load files.
+     *
+     * @return the parser pool
+     */
+    @NonnullAfterInit public final synchronized ParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * Set the parser pool used to load files.
+     *
+     * @param pool the parser pool
+     */
+    public final synchronized void setParserPool(@Nonnull final ParserPool pool) {
+        checkSetterPreconditions();
+        parserPool = pool;
+    }
+
+    /**
+     * Get the stages run on each newly loaded entity.
+     *
+     * @return the preparation stages
+     */
+    @Nonnull @NonnullElements public final synchronized List<Stage<Element>> getPreparationStages() {
+        return preparationStages;
+    }
+
+    /**
+     * Set the stages run on each newly loaded entity. These must not depend on the members document.
+     *
+     * @param stages the preparation stages
+     */
+    public final synchronized void setPreparationStages(@Nonnull @NonnullElements final List<Stage<Element>> stages) {
+        checkSetterPreconditions();
+        preparationStages = List.copyOf(stages);
+    }
+
+    /**
+     * Get the factory for the stages which depend on the members document.
+     *
+     * @return the stage factory
+     */
+    @NonnullAfterInit public final synchronized MembersStageFactory getStageFactory() {
+        return stageFactory;
+    }
+
+    /**
+     * Set the factory for the stages which depend on the members document.
+     *
+     * @param factory the stage factory
+     */
+    public final synchronized void setStageFactory(@Nonnull final MembersStageFactory factory) {
+        checkSetterPreconditions();
+        stageFactory = factory;
+    }
+
+    /**
+     * Get the stages run on a copy of all the results after any change.
+     *
+     * @return the publication stages
+     */
+    @Nonnull @NonnullElements public final synchronized List<Stage<Element>> getPublicationStages() {
+        return publicationStages;
+    }
+
+    /**
+     * Set the stages run on a copy of all the results after any change.
+     *
+     * @param stages the publication stages
+     */
+    public final synchronized void setPublicationStages(@Nonnull @NonnullElements final List<Stage<Element>> stages) {
+        checkSetterPreconditions();
+        publicationStages = List.copyOf(stages);
+    }
+
+    /**
+     * Get whether the files are watched for changes.
+     *
+     * @return <code>true</code> if the files are watched
+     */
+    public final synchronized boolean isWatch() {
+        return watch;
+    }
+
+    /**
+     * Set whether the files are watched for changes.
+     *
+     * @param w <code>true</code> to watch the files
+     */
+    public final synchronized void setWatch(final boolean w) {
+        checkSetterPreconditions();
+        watch = w;
+    }
+
+    /**
+     * Get copies of the current results, in input file order.
+     *
+     * @return the results
+     */
+    @Nonnull @NonnullElements public synchronized List<Item<Element>> getResults() {
+        final List<Item<Element>> results = new ArrayList<>(entries.size());
+        for (final Entry entry : entries.values()) {
+            if (entry.result != null) {
+                results.add(entry.result.copy());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public synchronized void filesChanged(@Nonnull @NonnullElements final Set<Path> changed) {
+        if (!isInitialized() || isDestroyed()) {
+            return;
+        }
+        try {
+            update(changed);
+        } catch (final StageProcessingException e) {
+            log.error("could not process changes to {}", changed, e);
+        }
+    }
+
+    /**
+     * Reprocess what is affected by changes to some files.
+     *
+     * @param changed the files which have changed; files which are neither the members document
+     *      nor an input file are ignored
+     * @throws StageProcessingException if the changes can not be processed, in which case the
+     *      previous state is kept
+     */
+    public synchronized void update(@Nonnull @NonnullElements final Set<Path> changed)
+            throws StageProcessingException {
+        checkComponentActive();
+        doUpdate(changed);
+    }
+
+    /**
+     * Reprocess what is affected by changes to some files, without checking the component's state.
+     *
+     * @param changed the files which have changed
+     * @throws StageProcessingException if the changes can not be processed, in which case the
+     *      previous state is kept
+     */
+    @GuardedBy("this") private void doUpdate(@Nonnull @NonnullElements final Set<Path> changed)
+            throws StageProcessingException {
+        final Set<Path> normalized = new HashSet<>();
+        for (final Path path : changed) {
+            normalized.add(normalize(path));
+        }
+
+        // Work out everything that needs doing before changing any state.
+        Document newMembers = null;
+        List<Stage<Element>> newStages = membersStages;
+        final Set<Entry> affected = new LinkedHashSet<>();
+        if (normalized.contains(normalize(membersFile.toPath()))) {
+            newMembers = loadMembers();
+            newStages = createStages(newMembers);
+        }
+        final Map<Entry, Item<Element>> bases = new LinkedHashMap<>();
+        final Map<Entry, Item<Element>> results;
+        try {
+            if (newMembers != null) {
+                final Set<String> keys = changedMemberKeys(membersDocument, newMembers);
+                for (final Entry entry : entries.values()) {
+                    if (entry.base != null && isAffected(entry.base.unwrap(), keys)) {
+                        affected.add(entry);
+                    }
+                }
+            }
+            final Map<Entry, Item<Element>> reloaded = new HashMap<>();
+            for (final Map.Entry<Path, Entry> e : entries.entrySet()) {
+                if (normalized.contains(e.getKey())) {
+                    final Item<Element> item = loadInput(e.getKey());
+                    if (item != null) {
+                        reloaded.put(e.getValue(), item);
+                    }
+                    affected.add(e.getValue());
+                }
+            }
+
+            // Process affected entities using copies, so that a failure leaves the state alone.
+            for (final Entry entry : affected) {
+                final Item<Element> base = normalized.contains(entry.path) ? reloaded.get(entry) : entry.base;
+                if (base != null) {
+                    bases.put(entry, base);
+                }
+            }
+            results = affected.isEmpty() ? Map.of() : process(bases, newStages);
+        } catch (final StageProcessingException | RuntimeException e) {
+            if (newStages != membersStages) {
+                destroyStages(newStages);
+            }
+            throw e;
+        }
+
+        if (newMembers != null) {
+            destroyStages(membersStages);
+            membersDocument = newMembers;
+            membersStages = newStages;
+        }
+        if (affected.isEmpty()) {
+            return;
+        }
+        for (final Entry entry : affected) {
+            entry.base = bases.get(entry);
+            entry.result = results.get(entry);
+        }
+        log.info("reprocessed {} of {} entities", affected.size(), entries.size());
+        publish();
+    }
+
+    /**
+     * Run entities through the members-dependent stages.
+     *
+     * @param bases the prepared entities, by entry; these are not changed
+     * @param stages the members-dependent stages
+     * @return the results, by entry; entries whose entities were removed by a stage are absent
+     * @throws StageProcessingException if a stage fails
+     */
+    @Nonnull private static Map<Entry, Item<Element>> process(@Nonnull final Map<Entry, Item<Element>> bases,
+            @Nonnull @NonnullElements final List<Stage<Element>> stages) throws StageProcessingException {
+        final List<Item<Element>> work = new ArrayList<>(bases.size());
+        final Map<Item<Element>, Entry> owners = new IdentityHashMap<>();
+        for (final Map.Entry<Entry, Item<Element>> e : bases.entrySet()) {
+            final Item<Element> copy = e.getValue().copy();
+            work.add(copy);
+            owners.put(copy, e.getKey());
+        }
+        for (final Stage<Element> stage : stages) {
+            stage.execute(work);
+        }
+        final Map<Entry, Item<Element>> results = new HashMap<>();
+        for (final Item<Element> item : work) {
+            final Entry owner = owners.get(item);
+            if (owner != null) {
+                results.put(owner, item);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run a copy of every current result through the publication stages.
+     *
+     * @throws StageProcessingException if a stage fails
+     */
+    @GuardedBy("this") private void publish() throws StageProcessingException {
+        final List<Item<Element>> results = getResults();
+        for (final Stage<Element> stage : publicationStages) {
+            stage.execute(results);
+        }
+    }
+
+    /**
+     * Load the members document.
+     *
+     * @return the members document
+     * @throws StageProcessingException if it can not be loaded
+     */
+    @Nonnull private Document loadMembers() throws StageProcessingException {
+        try (InputStream in = Files.newInputStream(membersFile.toPath())) {
+            return parserPool.parse(in);
+        } catch (final IOException | XMLParserException e) {
+            throw new StageProcessingException("could not load members document " + membersFile, e);
+        }
+    }
+
+    /**
+     * Create the members-dependent stages.
+     *
+     * @param document the members document
+     * @return the stages
+     * @throws StageProcessingException if they can not be created
+     */
+    @Nonnull @NonnullElements private List<Stage<Element>> createStages(@Nonnull final Document document)
+            throws StageProcessingException {
+        try {
+            return List.copyOf(stageFactory.createStages(document));
+        } catch (final ComponentInitializationException e) {
+            throw new StageProcessingException("could not create members-dependent stages", e);
+        }
+    }
+
+    /**
+     * Destroy members-dependent stages which are no longer needed.
+     *
+     * @param stages the stages
+     */
+    private static void destroyStages(@Nonnull @NonnullElements final List<Stage<Element>> stages) {
+        for (final Stage<Element> stage : stages) {
+            if (stage instanceof DestructableComponent) {
+                ((DestructableComponent) stage).destroy();
+            }
+        }
+    }
+
+    /**
+     * Load an input file and run it through the preparation stages.
+     *
+     * @param path the input file
+     * @return the prepared entity, or <code>null</code> if the file does not exist or a stage removed it
+     * @throws StageProcessingException if the file can not be loaded or prepared
+     */
+    @Nullable private Item<Element> loadInput(@Nonnull final Path path) throws StageProcessingException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        final Document document;
+        try (InputStream in = Files.newInputStream(path)) {
+            document = parserPool.parse(in);
+        } catch (final IOException | XMLParserException e) {
+            throw new StageProcessingException("could not load input file " + path, e);
+        }
+        final List<Item<Element>> items = new ArrayList<>(List.of(new DOMElementItem(document)));
+        for (final Stage<Element> stage : preparationStages) {
+            stage.execute(items);
+        }
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    /**
+     * Collect the names and entity identifiers of the members which differ between two
+     * members documents.
+     *
+     * @param oldDocument the old members document, or <code>null</code>
+     * @param newDocument the new members document
+     * @return the <code>Name</code> and <code>Scopes/Entity</code> values of every member added,
+     *      removed or changed
+     */
+    @Nonnull @NonnullElements static Set<String> changedMemberKeys(@Nullable final Document oldDocument,
+            @Nonnull final Document newDocument) {
+        final Map<String, Element> oldMembers = membersByID(oldDocument);
+        final Map<String, Element> newMembers = membersByID(newDocument);
+        final Set<String> keys = new HashSet<>();
+        for (final Map.Entry<String, Element> e : newMembers.entrySet()) {
+            final Element old = oldMembers.remove(e.getKey());
+            if (old == null || !Arrays.equals(CanonicalElementDigest.digest(old),
+                    CanonicalElementDigest.digest(e.getValue()))) {
+                addMemberKeys(e.getValue(), keys);
+                if (old != null) {
+                    addMemberKeys(old, keys);
+                }
+            }
+        }
+        for (final Element removed : oldMembers.values()) {
+            addMemberKeys(removed, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Index the members in a members document by <code>ID</code>.
+     *
+     * @param document the members document, or <code>null</code>
+     * @return the members, by <code>ID</code>
+     */
+    @Nonnull private static Map<String, Element> membersByID(@Nullable final Document document) {
+        final Map<String, Element> members = new HashMap<>();
+        if (document != null) {
+            final String ns = MemberNameIndex.MEMBERS_NS;
+            for (Element m = ElementCursorSupport.firstChildElement(document.getDocumentElement(), ns, MEMBER);
+                    m != null; m = ElementCursorSupport.nextSiblingElement(m, ns, MEMBER)) {
+                members.put(m.getAttributeNS(null, "ID"), m);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Add a member's <code>Name</code> and <code>Scopes/Entity</code> values to a set.
+     *
+     * @param member the member
+     * @param keys the set to add to
+     */
+    private static void addMemberKeys(@Nonnull final Element member, @Nonnull @NonnullElements final Set<String> keys) {
+        final String ns = MemberNameIndex.MEMBERS_NS;
+        for (Element n = ElementCursorSupport.firstChildElement(member, ns, "Name"); n != null;
+                n = ElementCursorSupport.nextSiblingElement(n, ns, "Name")) {
+            keys.add(n.getTextContent().trim());
+        }
+        for (Element s = ElementCursorSupport.firstChildElement(member, ns, "Scopes"); s != null;
+                s = ElementCursorSupport.nextSiblingElement(s, ns, "Scopes")) {
+            for (Element e = ElementCursorSupport.firstChildElement(s, ns, "Entity"); e != null;
+                    e = ElementCursorSupport.nextSiblingElement(e, ns, "Entity")) {
+                keys.add(e.getTextContent().trim());
+            }
+        }
+    }
+
+    /**
+     * Whether an entity is affected by changes to members with the given keys.
+     *
+     * @param entity the entity
+     * @param keys the changed members' names and entity identifiers
+     * @return <code>true</code> if the entity's <code>entityID</code> or one of its
+     *      <code>OrganizationName</code>s is among the keys
+     */
+    static boolean isAffected(@Nonnull final Element entity, @Nonnull @NonnullElements final Set<String> keys) {
+        if (keys.isEmpty()) {
+            return false;
+        }
+        if (keys.contains(AttributeSupport.getAttributeValue(entity, null, "entityID"))) {
+            return true;
+        }
+        final String ns = SAMLMetadataSupport.MD_NS;
+        final Element org = ElementCursorSupport.firstChildElement(entity, ns, "Organization");
+        if (org != null) {
+            for (Element n = ElementCursorSupport.firstChildElement(org, ns, "OrganizationName"); n != null;
+                    n = ElementCursorSupport.nextSiblingElement(n, ns, "OrganizationName")) {
+                if (keys.contains(n.getTextContent().trim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Normalize a path for comparison.
+     *
+     * @param path the path
+     * @return the absolute, normalized path
+     */
+    @Nonnull private static Path normalize(@Nonnull final Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (watcher != null) {
+            watcher.destroy();
+            watcher = null;
+        }
+        entries.clear();
+        membersDocument = null;
+        destroyStages(membersStages);
+        membersStages = List.of();
+        membersFile = null;
+        parserPool = null;
+        stageFactory = null;
+        preparationStages = List.of();
+        publicationStages = List.of();
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (membersFile == null) {
+            throw new ComponentInitializationException("membersFile must not be null");
+        }
+        if (parserPool == null) {
+            throw new ComponentInitializationException("parserPool must not be null");
+        }
+        if (stageFactory == null) {
+            throw new ComponentInitializationException("stageFactory must not be null");
+        }
+
+        // A cold start: every input is new, and the members document is "changed" from nothing.
+        final Set<Path> all = new HashSet<>();
+        all.add(normalize(membersFile.toPath()));
+        for (final File file : inputFiles) {
+            final Path path = normalize(file.toPath());
+            entries.put(path, new Entry(path));
+            all.add(path);
+        }
+        try {
+            doUpdate(all);
+        } catch (final StageProcessingException e) {
+            throw new ComponentInitializationException("could not load aggregation", e);
+        }
+
+        if (watch) {
+            final List<File> files = new ArrayList<>(inputFiles);
+            files.add(membersFile);
+            watcher = new FileWatcher();
+            watcher.setFiles(files);
+            watcher.setListener(this);
+            watcher.initialize();
+        }
+    }
+
+    /** State for one input file. */
+    private static final class Entry {
+
+        /** The input file. */
+        @Nonnull private final Path path;
+
+        /** The entity after the preparation stages, or <code>null</code> if there is none. */
+        @Nullable private Item<Element> base;
+
+        /** The entity after the members-dependent stages, or <code>null</code> if there is none. */
+        @Nullable private Item<Element> result;
+
+        /**
+         * Constructor.
+         *
+         * @param file the input file
+         */
+        Entry(@Nonnull final Path file) {
+            path = file;
+        }
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.FileSupport;
+import uk.org.ukfederation.mda.UKId;
+
+/**
+ * Embedded HTTP responder for the metadata query (MDQ) protocol, serving the per-entity files
+ * written by {@link EntityFileWritingStage}.
+ *
+ * <p>
+ * The responder is built on the JDK's HTTP server, is bound to the loopback interface, and is
+ * started when the component is initialized and stopped when it is destroyed. It answers
+ * <code>GET</code> and <code>HEAD</code> requests for <code>/entities/{id}</code>, where the
+ * (percent-encoded) identifier is an <code>entityID</code>, the MDQ <code>{sha1}</code> form of one,
+ * or a UK federation identifier such as <code>uk012345</code>. Requests for the whole collection
+ * are not supported.
+ * </p>
+ *
+ * <p>
+ * Each response carries an <code>ETag</code> holding the SHA-256 digest of the content served, so
+ * it changes exactly when the entity's file does; a request whose <code>If-None-Match</code> header
+ * matches receives a <code>304</code> response. File content is memory-mapped rather than copied
+ * through the heap.
+ * </p>
+ *
+ * <p>
+ * Digests are cached by path, together with the size, modification time and file key (on most
+ * platforms, the inode) of the file they were computed from, and are reused for as long as a
+ * <code>stat</code> of the file returns the same attributes. As {@link EntityFileWritingStage}
+ * replaces each changed file with a new one, answering a conditional request for an unchanged
+ * entity only costs a <code>stat</code>.
+ * </p>
+ *
+ * <p>
+ * The JDK's server writes the headers and body of a response separately, so unless it sets
+ * <code>TCP_NODELAY</code> each small response waits for the client's delayed acknowledgement.
+ * Deployments should therefore start the JVM with <code>-Dsun.net.httpserver.nodelay=true</code>;
+ * the responder does not set this JVM-wide property itself.
+ * </p>
+ *
+ * <p>
+ * Entities written under their UK federation identifier are found by <code>entityID</code> through
+ * an in-memory table built from the output directory on initialization. The table is rebuilt when a
+ * request needs it and the modification time of the root directory has changed, which
+ * {@link EntityFileWritingStage} brings about on every run by replacing its manifest there. If the
+ * output is written in some other way, call {@link #refresh()} to pick up new entities.
+ * </p>
+ */
+@ThreadSafe
+public class MDQResponder extends AbstractInitializableComponent {
+
+    /** Path prefix under which entities are served. */
+    public static final String ENTITIES_PATH = "/entities/";
+
+    /** Media type of SAML metadata. */
+    public static final String SAML_METADATA_TYPE = "application/samlmetadata+xml";
+
+    /** Prefix of the MDQ protocol's transformed identifier form. */
+    private static final String SHA1_PREFIX = "{sha1}";
+
+    /** Length of a hex SHA-1 hash. */
+    private static final int HASH_DIGITS = 40;
+
+    /** System property which makes the JDK's HTTP server set <code>TCP_NODELAY</code> on its connections. */
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    /** Largest TCP port number. */
+    private static final int MAX_PORT = 65535;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MDQResponder.class);
+
+    /** Root of the directory tree written by {@link EntityFileWritingStage}. */
+    @GuardedBy("this") @NonnullAfterInit private File directory;
+
+    /** Port to listen on, or 0 to use any free port. Default value: 0. */
+    @GuardedBy("this") private int port;
+
+    /** {@link Executor} handling requests, or <code>null</code> to create one. */
+    @GuardedBy("this") @Nullable private Executor executor;
+
+    /** The running server. */
+    @GuardedBy("this") @Nullable private HttpServer server;
+
+    /** Executor created by the responder, to be shut down when it is destroyed. */
+    @GuardedBy("this") @Nullable private ExecutorService ownedExecutor;
+
+    /** Relative paths of files named by UK federation identifier, keyed by the hex hash of their entityID. */
+    @Nonnull private volatile Map<String, String> aliases = Map.of();
+
+    /** Modification time of the root directory when {@link #aliases} was built, if known. */
+    @Nullable private volatile FileTime aliasesTime;
+
+    /** Lock held while rebuilding {@link #aliases}. */
+    @Nonnull private final Object refreshLock = new Object();
+
+    /** Entity tags of the files served, indexed by path. */
+    @Nonnull private final Map<Path, EntityTag> entityTags = new ConcurrentHashMap<>();
+
+    /**
+     * Get the root of the directory tree to serve.
+     *
+     * @return the directory
+     */
+    @NonnullAfterInit public final synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set the root of the directory tree to serve.
+     *
+     * @param dir the directory
+     */
+    public final synchronized void setDirectory(@Nonnull final File dir) {
+        checkSetterPreconditions();
+        directory = dir;
+    }
+
+    /**
+     * Get the port to listen on.
+     *
+     * @return the port, or 0 to use any free port
+     */
+    public final synchronized int getPort() {
+        return port;
+    }
+
+    /**
+     * Set the port to listen on.
+     *
+     * @param p the port, or 0 to use any free port
+     */
+    public final synchronized void setPort(final int p) {
+        checkSetterPreconditions();
+        port = p;
+    }
+
+    /**
+     * Get the {@link Executor} handling requests.
+     *
+     * @return the executor, or <code>null</code> if the responder creates its own
+     */
+    @Nullable public final synchronized Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the {@link Executor} handling requests.
+     *
+     * <p>
+     * If none is supplied, the responder uses a fixed pool with a thread per available processor.
+     * The responder does not shut down an executor it was given.
+     * </p>
+     *
+     * @param exec the executor, or <code>null</code> if the responder should create its own
+     */
+    public final synchronized void setExecutor(@Nullable final Executor exec) {
+        checkSetterPreconditions();
+        executor = exec;
+    }
+
+    /**
+     * Get the address the responder is listening on.
+     *
+     * @return the address, or <code>null</code> if the responder is not running
+     */
+    @Nullable public final synchronized InetSocketAddress getAddress() {
+        return server == null ? null : server.getAddress();
+    }
+
+    /**
+     * Rebuild the table used to find entities written under their UK federation identifier
+     * by <code>entityID</code>.
+     *
+     * <p>
+     * Also forgets the entity tags of files which are no longer there.
+     * </p>
+     *
+     * @throws IOException if the output directory can not be read
+     */
+    public void refresh() throws IOException {
+        synchronized (refreshLock) {
+            final Path root = getDirectory().toPath();
+            // Read first, so that a change made while the table is built leads to another rebuild.
+            final FileTime time = Files.getLastModifiedTime(root);
+            buildAliases(root);
+            aliasesTime = time;
+            entityTags.keySet().removeIf(file -> !Files.exists(file));
+        }
+    }
+
+    /**
+     * Rebuild the alias table if the root directory has been modified since it was built.
+     *
+     * @throws IOException if the output directory can not be read
+     */
+    private void refreshIfModified() throws IOException {
+        final Path root = getDirectory().toPath();
+        if (!Files.getLastModifiedTime(root).equals(aliasesTime)) {
+            synchronized (refreshLock) {
+                if (!Files.getLastModifiedTime(root).equals(aliasesTime)) {
+                    log.debug("MDQ responder: {} has been modified", root);
+                    refresh();
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the table used to find entities written under their UK federation identifier
+     * by <code>entityID</code>.
+     *
+     * @param root the root of the directory tree
+     * @throws IOException if the output directory can not be read
+     */
+    private void buildAliases(@Nonnull final Path root) throws IOException {
+        final Map<String, String> table = new HashMap<>();
+        final Path ukRoot = root.resolve("uk");
+        if (Files.isDirectory(ukRoot)) {
+            try (Stream<Path> files = Files.walk(ukRoot)) {
+                for (final Path file : (Iterable<Path>) files::iterator) {
+                    if (!file.getFileName().toString().endsWith(".xml") || !Files.isRegularFile(file)) {
+                        continue;
+                    }
+                    final String entityID;
+                    try (InputStream in = Files.newInputStream(file)) {
+                        entityID = AggregateIndex.readRootEntityID(in);
+                    }
+                    if (entityID != null) {
+                        table.put(EntityFileWritingStage.sha1Hex(entityID),
+                                root.relativize(file).toString().replace(File.separatorChar, '/'));
+                    }
+                }
+            }
+        }
+        aliases = Map.copyOf(table);
+        log.debug("MDQ responder: {} entities with UK federation identifiers", table.size());
+    }
+
+    /**
+     * Find the file for an entity.
+     *
+     * @param identifier the entity's <code>entityID</code>, the <code>{sha1}</code> form of it,
+     *      or its UK federation identifier
+     * @return the entity's file, or <code>null</code> if there is none
+     */
+    @Nullable public Path resolve(@Nonnull final String identifier) {
+        final Path file = locate(identifier);
+        return file != null && Files.isRegularFile(file) ? file : null;
+    }
+
+    /**
+     * Find where the file for an entity would be.
+     *
+     * @param identifier the entity's <code>entityID</code>, the <code>{sha1}</code> form of it,
+     *      or its UK federation identifier
+     * @return the path of the entity's file, which may not exist, or <code>null</code> if the
+     *      identifier is malformed
+     */
+    @Nullable private Path locate(@Nonnull final String identifier) {
+        final String relative;
+        if (UKId.number(identifier) >= 0) {
+            relative = EntityFileWritingStage.ukIdPath(identifier);
+        } else {
+            final String hash;
+            if (identifier.startsWith(SHA1_PREFIX)) {
+                hash = identifier.substring(SHA1_PREFIX.length()).toLowerCase(Locale.ROOT);
+                if (!isHash(hash)) {
+                    return null;
+                }
+            } else {
+                hash = EntityFileWritingStage.sha1Hex(identifier);
+            }
+            try {
+                refreshIfModified();
+            } catch (final IOException e) {
+                log.warn("MDQ responder: could not refresh alias table", e);
+            }
+            final String alias = aliases.get(hash);
+            relative = alias != null ? alias : EntityFileWritingStage.hashPath(hash);
+        }
+        return getDirectory().toPath().resolve(relative);
+    }
+
+    /**
+     * Whether a string is a lower-case hex SHA-1 hash.
+     *
+     * @param s the string
+     * @return <code>true</code> if it is a hash
+     */
+    private static boolean isHash(@Nonnull final String s) {
+        if (s.length() != HASH_DIGITS) {
+            return false;
+        }
+        for (int i = 0; i < HASH_DIGITS; i++) {
+            final char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handle a request.
+     *
+     * @param exchange the request and response
+     * @throws IOException if the response can not be sent
+     */
+    private void handle(@Nonnull final HttpExchange exchange) throws IOException {
+        try {
+            final String method = exchange.getRequestMethod();
+            final boolean head = "HEAD".equals(method);
+            if (!head && !"GET".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            final String path = exchange.getRequestURI().getPath();
+            final Path file = path.startsWith(ENTITIES_PATH) && path.length() > ENTITIES_PATH.length() ?
+                    locate(path.substring(ENTITIES_PATH.length())) : null;
+            final BasicFileAttributes attributes = file == null ? null : readAttributes(file);
+            if (attributes == null || !attributes.isRegularFile()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            // An unchanged file's cached tag answers a conditional request without opening the file.
+            final String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            final EntityTag cached = entityTags.get(file);
+            if (cached != null && cached.isFor(attributes) && matches(ifNoneMatch, cached.getTag())) {
+                exchange.getResponseHeaders().set("ETag", cached.getTag());
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                final MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                final String etag;
+                if (cached != null && cached.isFor(attributes) && size == attributes.size()) {
+                    etag = cached.getTag();
+                } else {
+                    etag = '"' + digest(content) + '"';
+                    // Only keep the tag if the file was not replaced while it was being read.
+                    final BasicFileAttributes after = readAttributes(file);
+                    if (after != null && isSameFile(attributes, after) && after.size() == size) {
+                        entityTags.put(file, new EntityTag(after, etag));
+                    }
+                }
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (matches(ifNoneMatch, etag)) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", SAML_METADATA_TYPE);
+                if (head) {
+                    exchange.getResponseHeaders().set("Content-Length", Long.toString(size));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    final WritableByteChannel out = Channels.newChannel(body);
+                    while (content.hasRemaining()) {
+                        out.write(content);
+                    }
+                }
+            } catch (final NoSuchFileException e) {
+                // replaced or removed since it was resolved
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read a file's attributes.
+     *
+     * @param file the file
+     * @return the attributes, or <code>null</code> if the file does not exist
+     * @throws IOException if the attributes can not be read
+     */
+    @Nullable private static BasicFileAttributes readAttributes(@Nonnull final Path file) throws IOException {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether two sets of attributes describe the same, unmodified, file.
+     *
+     * @param a the first attributes
+     * @param b the second attributes
+     * @return <code>true</code> if the size, modification time and file key are the same
+     */
+    private static boolean isSameFile(@Nonnull final BasicFileAttributes a, @Nonnull final BasicFileAttributes b) {
+        return a.size() == b.size() && a.lastModifiedTime().equals(b.lastModifiedTime()) &&
+                Objects.equals(a.fileKey(), b.fileKey());
+    }
+
+    /**
+     * Compute the digest of a file's content, used as its entity tag.
+     *
+     * @param content the content, which is left unchanged
+     * @return the lower-case hex SHA-256 digest
+     */
+    @Nonnull private static String digest(@Nonnull final MappedByteBuffer content) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        md.update(content.duplicate());
+        return FileSupport.hex(md.digest());
+    }
+
+    /**
+     * Whether an <code>If-None-Match</code> header matches an entity tag.
+     *
+     * @param header the header value, or <code>null</code>
+     * @param etag the entity tag
+     * @return <code>true</code> if the header matches
+     */
+    private static boolean matches(@Nullable final String header, @Nonnull final String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (final String candidate : header.split(",")) {
+            final String tag = candidate.trim();
+            if ("*".equals(tag) || etag.equals(tag) || tag.startsWith("W/") && etag.equals(tag.substring(2))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+            ownedExecutor = null;
+        }
+        directory = null;
+        executor = null;
+        entityTags.clear();
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (directory == null) {
+            throw new ComponentInitializationException("directory must not be null");
+        }
+        if (port < 0 || port > MAX_PORT) {
+            throw new ComponentInitializationException("port must be between 0 and " + MAX_PORT);
+        }
+
+        if (!Boolean.getBoolean(NODELAY_PROPERTY)) {
+            log.info("MDQ responder: set -D{}=true to avoid delayed responses", NODELAY_PROPERTY);
+        }
+
+        try {
+            refresh();
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (final IOException e) {
+            throw new ComponentInitializationException("could not start MDQ responder", e);
+        }
+        server.createContext(ENTITIES_PATH, this::handle);
+        if (executor == null) {
+            ownedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            server.setExecutor(ownedExecutor);
+        } else {
+            server.setExecutor(executor);
+        }
+        server.start();
+        log.info("MDQ responder listening on {}", server.getAddress());
+    }
+
+    /** An entity tag, with the attributes of the file it was computed from. */
+    @Immutable
+    private static final class EntityTag {
+
+        /** Attributes of the file the tag was computed from. */
+        @Nonnull private final BasicFileAttributes attributes;
+
+        /** The entity tag, quoted. */
+        @Nonnull private final String tag;
+
+        /**
+         * Constructor.
+         *
+         * @param fileAttributes attributes of the file the tag was computed from
+         * @param entityTag the entity tag, quoted
+         */
+        EntityTag(@Nonnull final BasicFileAttributes fileAttributes, @Nonnull final String entityTag) {
+            attributes = fileAttributes;
+            tag = entityTag;
+        }
+
+        /**
+         * Whether the tag is for a file with the given attributes.
+         *
+         * @param current the file's current attributes
+         * @return <code>true</code> if the file is the one the tag was computed from, unmodified
+         */
+        boolean isFor(@Nonnull final BasicFileAttributes current) {
+            return isSameFile(attributes, current);
+        }
+
+        /**
+         * Get the entity tag.
+         *
+         * @return the entity tag, quoted
+         */
+        @Nonnull String getTag() {
+            return tag;
+        }
+    }
+}
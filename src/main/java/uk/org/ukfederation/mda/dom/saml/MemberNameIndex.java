@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import uk.org.ukfederation.mda.dom.ElementCursorSupport;
+
+/**
+ * A trigram index over the names of UK federation members, used to suggest likely
+ * alternatives for an organization name which does not match any member exactly.
+ *
+ * <p>
+ * Each name is normalised (lower-cased, with runs of white space collapsed) and padded,
+ * then broken into overlapping three-character sequences. A query is scored against each
+ * name sharing at least one trigram with it using the Dice coefficient, so only the
+ * posting lists for the query's own trigrams are examined rather than every member name.
+ * </p>
+ */
+@Immutable
+public final class MemberNameIndex {
+
+    /** Namespace of the members document. */
+    public static final String MEMBERS_NS = "http://ukfederation.org.uk/2007/01/members";
+
+    /** Minimum score for a name to be suggested. */
+    private static final double MINIMUM_SCORE = 0.3;
+
+    /** Member names, in document order. */
+    @Nonnull private final String[] names;
+
+    /** Organization IDs corresponding to each of the names. */
+    @Nonnull private final String[] orgIDs;
+
+    /** Number of distinct trigrams in each of the names. */
+    @Nonnull private final int[] trigramCounts;
+
+    /** Posting lists: for each trigram, the indexes of the names containing it. */
+    @Nonnull private final Map<Long, int[]> postings;
+
+    /**
+     * Constructor.
+     *
+     * @param memberNames the member names to index
+     * @param memberOrgIDs the organization ID corresponding to each member name
+     */
+    public MemberNameIndex(@Nonnull @NonnullElements final List<String> memberNames,
+            @Nonnull @NonnullElements final List<String> memberOrgIDs) {
+        if (memberNames.size() != memberOrgIDs.size()) {
+            throw new IllegalArgumentException("names and organization IDs must correspond");
+        }
+        names = memberNames.toArray(new String[0]);
+        orgIDs = memberOrgIDs.toArray(new String[0]);
+        trigramCounts = new int[names.length];
+
+        final Map<Long, List<Integer>> lists = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            final Set<Long> grams = trigrams(names[i]);
+            trigramCounts[i] = grams.size();
+            for (final Long gram : grams) {
+                lists.computeIfAbsent(gram, k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        postings = new HashMap<>(lists.size() * 4 / 3 + 1);
+        for (final Map.Entry<Long, List<Integer>> entry : lists.entrySet()) {
+            final List<Integer> list = entry.getValue();
+            final int[] posting = new int[list.size()];
+            for (int i = 0; i < posting.length; i++) {
+                posting[i] = list.get(i);
+            }
+            postings.put(entry.getKey(), posting);
+        }
+    }
+
+    /**
+     * Build an index from a UK federation members document.
+     *
+     * <p>
+     * Every <code>Name</code> of every <code>Member</code> is indexed against that
+     * member's <code>ID</code>.
+     * </p>
+     *
+     * @param document the members document
+     * @return the new index
+     */
+    @Nonnull public static MemberNameIndex fromMembersDocument(@Nonnull final Document document) {
+        final List<String> memberNames = new ArrayList<>();
+        final List<String> memberOrgIDs = new ArrayList<>();
+        for (Element m = ElementCursorSupport.firstChildElement(document.getDocumentElement(), MEMBERS_NS, "Member");
+                m != null; m = ElementCursorSupport.nextSiblingElement(m, MEMBERS_NS, "Member")) {
+            final String id = m.getAttributeNS(null, "ID");
+            for (Element n = ElementCursorSupport.firstChildElement(m, MEMBERS_NS, "Name"); n != null;
+                    n = ElementCursorSupport.nextSiblingElement(n, MEMBERS_NS, "Name")) {
+                memberNames.add(n.getTextContent().trim());
+                memberOrgIDs.add(id);
+            }
+        }
+        return new MemberNameIndex(memberNames, memberOrgIDs);
+    }
+
+    /**
+     * Returns the number of names in the index.
+     *
+     * @return the number of names
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Find the indexed names closest to the given name.
+     *
+     * @param name the name to look up
+     * @param limit the maximum number of suggestions to return
+     * @return the closest names, best first
+     */
+    @Nonnull @NonnullElements public List<Suggestion> suggest(@Nonnull final String name, final int limit) {
+        final Set<Long> grams = trigrams(name);
+        if (grams.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        // Count the trigrams each candidate shares with the query, in the order candidates are first seen
+        final Map<Integer, Integer> shared = new LinkedHashMap<>();
+        for (final Long gram : grams) {
+            final int[] posting = postings.get(gram);
+            if (posting != null) {
+                for (final int index : posting) {
+                    shared.merge(index, 1, Integer::sum);
+                }
+            }
+        }
+
+        // Keep the best few, ordered by score and then by name
+        final List<Suggestion> best = new ArrayList<>(limit + 1);
+        for (final Map.Entry<Integer, Integer> entry : shared.entrySet()) {
+            final int index = entry.getKey();
+            final double score = 2.0 * entry.getValue() / (grams.size() + trigramCounts[index]);
+            if (score < MINIMUM_SCORE) {
+                continue;
+            }
+            final Suggestion suggestion = new Suggestion(names[index], orgIDs[index], score);
+            int pos = best.size();
+            while (pos > 0 && suggestion.isBetterThan(best.get(pos - 1))) {
+                pos--;
+            }
+            if (pos < limit) {
+                best.add(pos, suggestion);
+                if (best.size() > limit) {
+                    best.remove(limit);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Break a name into its distinct trigrams.
+     *
+     * <p>
+     * Each trigram is packed into a {@link Long} as three 16-bit characters.
+     * </p>
+     *
+     * @param name the name to break up
+     * @return the set of trigrams
+     */
+    @Nonnull private static Set<Long> trigrams(@Nonnull final String name) {
+        final String normalised = "  " + name.trim().toLowerCase().replaceAll("\\s+", " ") + " ";
+        final Set<Long> grams = new HashSet<>();
+        if (normalised.length() > 3) {
+            for (int i = 0; i + 3 <= normalised.length(); i++) {
+                grams.add(((long) normalised.charAt(i) << 32) |
+                        ((long) normalised.charAt(i + 1) << 16) |
+                        normalised.charAt(i + 2));
+            }
+        }
+        return grams;
+    }
+
+    /** A suggested member name, with its organization ID and similarity score. */
+    @Immutable
+    public static final class Suggestion {
+
+        /** The member name. */
+        @Nonnull private final String name;
+
+        /** The member's organization ID. */
+        @Nonnull private final String orgID;
+
+        /** Similarity score between 0 and 1. */
+        private final double score;
+
+        /**
+         * Constructor.
+         *
+         * @param memberName the member name
+         * @param memberOrgID the member's organization ID
+         * @param similarity similarity score between 0 and 1
+         */
+        Suggestion(@Nonnull final String memberName, @Nonnull final String memberOrgID, final double similarity) {
+            name = memberName;
+            orgID = memberOrgID;
+            score = similarity;
+        }
+
+        /**
+         * Get the member name.
+         *
+         * @return the member name
+         */
+        @Nonnull public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the member's organization ID.
+         *
+         * @return the organization ID
+         */
+        @Nonnull public String getOrgID() {
+            return orgID;
+        }
+
+        /**
+         * Get the similarity score.
+         *
+         * @return similarity score between 0 and 1
+         */
+        public double getScore() {
+            return score;
+        }
+
+        /**
+         * Determines whether this suggestion should be ranked ahead of another.
+         *
+         * @param other the other suggestion
+         * @return <code>true</code> if this suggestion is better
+         */
+        boolean isBetterThan(@Nonnull final Suggestion other) {
+            if (score != other.score) {
+                return score > other.score;
+            }
+            return name.compareTo(other.name) < 0;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Creates the stages which depend on the UK federation members document, such as
+ * {@link EntityOwnerCheckingStage} and {@link ScopeInjectionStage}, for a given version of it.
+ *
+ * <p>
+ * Used by {@link IncrementalAggregator} to rebuild those stages when the members document changes.
+ * </p>
+ */
+@FunctionalInterface
+public interface MembersStageFactory {
+
+    /**
+     * Create the stages for a members document.
+     *
+     * @param membersDocument the members document
+     * @return the stages, initialized, in the order they are to be executed
+     * @throws ComponentInitializationException if the stages can not be created
+     */
+    @Nonnull @NonnullElements List<Stage<Element>> createStages(@Nonnull Document membersDocument)
+            throws ComponentInitializationException;
+}
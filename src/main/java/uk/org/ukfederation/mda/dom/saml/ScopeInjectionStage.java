@@ -33,19 +33,19 @@ import net.shibboleth.metadata.dom.ElementMatcher;
 import net.shibboleth.metadata.dom.SimpleElementMaker;
 import net.shibboleth.metadata.dom.SimpleElementMatcher;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
-import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.xml.AttributeSupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
 import uk.org.ukfederation.members.Members;
 
 /**
  * Stage to inject scope lists into IdP entities from the members.xml file.
  */
 @ThreadSafe
-public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
+public class ScopeInjectionStage extends AbstractParallelIteratingStage<Element> {
 
     /** Element matcher for the <code>Extensions</code> element. */
     private static final ElementMatcher EXTENSIONS_MATCHER =
@@ -0,0 +1,319 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.xml.ParserPool;
+import net.shibboleth.shared.xml.XMLParserException;
+import uk.org.ukfederation.mda.pipeline.StageProcessor;
+
+/**
+ * Stage which reads the entities in a metadata file and runs per-entity stages over each of them
+ * while the rest of the file is still being parsed, adding the entities which survive to the
+ * collection.
+ *
+ * <p>
+ * This takes the place of reading a metadata file, splitting it into its entities and then running
+ * each of the per-entity stages over the whole collection in turn. The file is read by an
+ * {@link EntityStreamReader}, which publishes each <code>EntityDescriptor</code> as soon as it has
+ * been parsed to a {@link StageProcessor} running <code>stages</code>, so that parsing and processing
+ * overlap and the DOM of the whole file is never built. At most <code>bufferSize</code> entities wait
+ * between parsing and processing; beyond that the parser waits.
+ * </p>
+ *
+ * <p>
+ * The entities are added to the collection in file order once the whole file has been processed,
+ * so every entity which survives the stages is held until the end of the file. Peak memory use is
+ * therefore not reduced: the DOMs of the surviving entities together take about as much as the DOM
+ * of the whole file would have. What is gained is the overlap of parsing with processing, and
+ * entities removed by the stages are released early.
+ * </p>
+ *
+ * <p>
+ * The <code>stages</code> must be ones that treat each entity independently of the others, as
+ * described for {@link StageProcessor}. The stages run on <code>executor</code>, but the processed
+ * entities are collected on a thread of this stage's own, so that a small executor cannot be
+ * exhausted by the stages waiting for their results to be collected. If a stage fails, or a
+ * processed entity is not collected within <code>timeout</code>, parsing stops and this stage
+ * fails with a {@link StageProcessingException}.
+ * </p>
+ */
+@ThreadSafe
+public class StreamingEntitySourceStage extends AbstractStage<Element> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(StreamingEntitySourceStage.class);
+
+    /** The metadata file to read. */
+    @GuardedBy("this") @NonnullAfterInit private File sourceFile;
+
+    /** Parser pool used to create the entities' documents. */
+    @GuardedBy("this") @NonnullAfterInit private ParserPool parserPool;
+
+    /** Stages run over each entity. */
+    @GuardedBy("this") @Nonnull @NonnullElements private List<Stage<Element>> stages = List.of();
+
+    /** {@link Executor} running the stages, or <code>null</code> to use the common pool. */
+    @GuardedBy("this") @Nullable private Executor executor;
+
+    /** Maximum number of entities waiting to be processed. Default value: {@link Flow#defaultBufferSize()}. */
+    @GuardedBy("this") private int bufferSize = Flow.defaultBufferSize();
+
+    /** How long to wait for each processed entity to be collected. Default value: 5 minutes. */
+    @GuardedBy("this") @Nonnull private Duration timeout = Duration.ofMinutes(5);
+
+    /**
+     * Get the metadata file to read.
+     *
+     * @return the source file
+     */
+    @NonnullAfterInit public final synchronized File getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * Set the metadata file to read.
+     *
+     * @param file the source file
+     */
+    public final synchronized void setSourceFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        sourceFile = file;
+    }
+
+    /**
+     * Get the parser pool used to create the entities' documents.
+     *
+     * @return the parser pool
+     */
+    @NonnullAfterInit public final synchronized ParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * Set the parser pool used to create the entities' documents.
+     *
+     * @param pool the parser pool
+     */
+    public final synchronized void setParserPool(@Nonnull final ParserPool pool) {
+        checkSetterPreconditions();
+        parserPool = pool;
+    }
+
+    /**
+     * Get the stages run over each entity.
+     *
+     * @return the stages
+     */
+    @Nonnull @NonnullElements public final synchronized List<Stage<Element>> getStages() {
+        return stages;
+    }
+
+    /**
+     * Set the stages run over each entity.
+     *
+     * @param stagesToRun the stages
+     */
+    public final synchronized void setStages(@Nonnull @NonnullElements final List<Stage<Element>> stagesToRun) {
+        checkSetterPreconditions();
+        stages = List.copyOf(stagesToRun);
+    }
+
+    /**
+     * Get the {@link Executor} running the stages.
+     *
+     * @return the executor, or <code>null</code> if the common pool is used
+     */
+    @Nullable public final synchronized Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the {@link Executor} running the stages.
+     *
+     * @param exec the executor, or <code>null</code> to use the common pool
+     */
+    public final synchronized void setExecutor(@Nullable final Executor exec) {
+        checkSetterPreconditions();
+        executor = exec;
+    }
+
+    /**
+     * Get the maximum number of entities waiting to be processed.
+     *
+     * @return the buffer size
+     */
+    public final synchronized int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set the maximum number of entities waiting to be processed.
+     *
+     * @param size the buffer size
+     */
+    public final synchronized void setBufferSize(final int size) {
+        checkSetterPreconditions();
+        bufferSize = size;
+    }
+
+    /**
+     * Get how long to wait for each processed entity to be collected.
+     *
+     * @return the timeout
+     */
+    @Nonnull public final synchronized Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set how long to wait for each processed entity to be collected.
+     *
+     * @param wait the timeout
+     */
+    public final synchronized void setTimeout(@Nonnull final Duration wait) {
+        checkSetterPreconditions();
+        timeout = wait;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final Executor exec = getExecutor() == null ? ForkJoinPool.commonPool() : getExecutor();
+        final List<Item<Element>> results = new ArrayList<>();
+        final ExecutorService collector = Executors.newSingleThreadExecutor();
+        try {
+            process(exec, collector, results);
+        } finally {
+            collector.shutdown();
+        }
+        items.addAll(results);
+    }
+
+    /**
+     * Read and process the entities.
+     *
+     * @param exec executor running the stages
+     * @param collector executor collecting the processed entities
+     * @param results collection to which the processed entities are added
+     * @throws StageProcessingException if reading or processing failed
+     */
+    private void process(@Nonnull final Executor exec, @Nonnull final Executor collector,
+            @Nonnull @NonnullElements final List<Item<Element>> results) throws StageProcessingException {
+        final SubmissionPublisher<Item<Element>> publisher = new SubmissionPublisher<>(exec, getBufferSize());
+        final StageProcessor<Element> processor =
+                new StageProcessor<>(getStages(), collector, getBufferSize(), getTimeout());
+        publisher.subscribe(processor);
+        final CompletableFuture<Void> done = processor.consume(results::add);
+
+        // Stop parsing early if processing has already failed.
+        int read = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(getSourceFile().toPath()));
+                EntityStreamReader reader = new EntityStreamReader(in, getParserPool())) {
+            Item<Element> item;
+            while (!done.isDone() && (item = reader.next()) != null) {
+                publisher.submit(item);
+                read++;
+            }
+        } catch (final IOException | XMLParserException e) {
+            publisher.closeExceptionally(e);
+            // Let any entity already being processed finish before failing.
+            done.handle((result, failure) -> null).join();
+            throw new StageProcessingException("could not read " + getSourceFile(), e);
+        }
+        publisher.close();
+
+        await(done);
+        log.debug("{}: read {} entities from {}, {} kept", getId(), read, getSourceFile(), results.size());
+    }
+
+    /**
+     * Wait for processing to finish.
+     *
+     * @param done completed when the last entity has been processed
+     * @throws StageProcessingException if processing failed or was interrupted
+     */
+    private void await(@Nonnull final CompletableFuture<Void> done) throws StageProcessingException {
+        try {
+            done.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StageProcessingException("interrupted while processing " + getSourceFile(), e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof StageProcessingException) {
+                throw (StageProcessingException) e.getCause();
+            }
+            throw new StageProcessingException("could not process " + getSourceFile(), e.getCause());
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        sourceFile = null;
+        parserPool = null;
+        stages = List.of();
+        executor = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (sourceFile == null) {
+            throw new ComponentInitializationException("sourceFile must not be null");
+        }
+        if (parserPool == null) {
+            throw new ComponentInitializationException("parserPool must not be null");
+        }
+        if (bufferSize <= 0) {
+            throw new ComponentInitializationException("bufferSize must be positive");
+        }
+        if (timeout == null || timeout.isNegative() || timeout.isZero()) {
+            throw new ComponentInitializationException("timeout must be positive");
+        }
+    }
+}
@@ -29,7 +29,7 @@ public class DisableFlow extends FlowConstraint {
      *
      * @param flow name of the flow this constraint applies to
      */
-    DisableFlow(@Nonnull final String flow) {
+    public DisableFlow(@Nonnull final String flow) {
         super(flow);
     }
 
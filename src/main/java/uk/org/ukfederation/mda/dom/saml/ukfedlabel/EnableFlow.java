@@ -29,7 +29,7 @@ public class EnableFlow extends FlowConstraint {
      *
      * @param flow name of the flow this constraint applies to
      */
-    EnableFlow(@Nonnull final String flow) {
+    public EnableFlow(@Nonnull final String flow) {
         super(flow);
     }
 
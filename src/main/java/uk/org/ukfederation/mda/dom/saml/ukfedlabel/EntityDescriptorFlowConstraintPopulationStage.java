@@ -23,15 +23,15 @@ import org.w3c.dom.Element;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
-import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
 
 /**
  * A stage which extracts flow constraint extensions from each entity in the collection,
  * then adds {@link EnableFlow} and {@link DisableFlow} instances to the item metadata.
  */
 @ThreadSafe
-public class EntityDescriptorFlowConstraintPopulationStage extends AbstractIteratingStage<Element> {
+public class EntityDescriptorFlowConstraintPopulationStage extends AbstractParallelIteratingStage<Element> {
 
     @Override
     protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
@@ -28,11 +28,18 @@ import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.shared.annotation.constraint.NonnullElements;
 import net.shibboleth.shared.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.UKEntityFacts;
 import uk.org.ukfederation.mda.UKItemIdentificationStrategy;
 
 /**
  * A {@link Stage} to apply flow constraints to entities.
  *
+ * <p>
+ * If an item has a current {@link UKEntityFacts} record, its flow constraints are taken from that
+ * rather than from the individual {@link EnableFlow} and {@link DisableFlow} metadata. A record
+ * whose metadata has changed since it was built is ignored.
+ * </p>
+ *
  * @param <T> type of item being processed
  */
 @ThreadSafe
@@ -54,6 +61,9 @@ public class FlowConstraintApplyingStage<T> extends AbstractFilteringStage<T> {
     @GuardedBy("this") @NonnullAfterInit
     private String flowName;
 
+    /** The {@link UKEntityFacts} identifier for the flow this stage is controlling. */
+    @GuardedBy("this") private int flowId;
+
     /**
      * Returns the designated item identification strategy.
      *
@@ -82,8 +92,22 @@ public class FlowConstraintApplyingStage<T> extends AbstractFilteringStage<T> {
         flowName = newFlowName;
     }
 
+    /**
+     * Get the {@link UKEntityFacts} identifier for the flow this stage is controlling.
+     *
+     * @return the flow identifier
+     */
+    private synchronized int getFlowId() {
+        return flowId;
+    }
+
     @Override
     protected boolean doExecute(@Nonnull @NonnullElements final Item<T> item) throws StageProcessingException {
+        final UKEntityFacts facts = UKEntityFacts.find(item);
+        if (facts != null) {
+            return applyFacts(item, facts);
+        }
+
         final List<EnableFlow> enables = item.getItemMetadata().get(EnableFlow.class);
         final List<DisableFlow> disables = item.getItemMetadata().get(DisableFlow.class);
         
@@ -119,6 +143,26 @@ public class FlowConstraintApplyingStage<T> extends AbstractFilteringStage<T> {
         return true;
     }
 
+    /**
+     * Apply the flow constraints recorded in an item's {@link UKEntityFacts}.
+     *
+     * @param item the item being processed
+     * @param facts the item's facts record
+     * @return <code>true</code> if the item should be preserved
+     * @throws StageProcessingException if the item has both enables and disables
+     */
+    private boolean applyFacts(@Nonnull final Item<T> item, @Nonnull final UKEntityFacts facts)
+            throws StageProcessingException {
+        if (facts.hasEnabledFlows()) {
+            if (facts.hasDisabledFlows()) {
+                throw new StageProcessingException("item " + getIdStrategy().getItemIdentifier(item)
+                    + " has both enables and disables");
+            }
+            return facts.isFlowEnabled(getFlowId());
+        }
+        return !facts.isFlowDisabled(getFlowId());
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -126,6 +170,7 @@ public class FlowConstraintApplyingStage<T> extends AbstractFilteringStage<T> {
         if (flowName == null) {
             throw new ComponentInitializationException("flowName must not be null");
         }
+        flowId = UKEntityFacts.flowId(flowName);
     }
 
 }
@@ -0,0 +1,284 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * A variant of {@link AbstractIteratingStage} which can process the items in a collection concurrently.
+ *
+ * <p>
+ * Each item is passed to {@link #doExecute(Item)} exactly once, as in the superclass. Subclasses must
+ * therefore only modify the item they are given, and any shared state they consult must be safe
+ * for concurrent reads. Items are assumed not to share mutable state such as a common DOM document.
+ * </p>
+ *
+ * <p>
+ * With the default configuration (no <code>executor</code> and a <code>parallelism</code> of 1)
+ * the items are processed sequentially in the calling thread, exactly as by the superclass.
+ * Otherwise:
+ * </p>
+ *
+ * <ul>
+ * <li>If an <code>executor</code> has been supplied, items are submitted to it. The stage does not
+ * shut down an executor it was given.</li>
+ * <li>If no <code>executor</code> has been supplied, one is created for each execution and shut down
+ * afterwards. This uses virtual threads if <code>virtualThreads</code> is set and the platform
+ * provides them, and a pool of <code>parallelism</code> platform threads otherwise.</li>
+ * </ul>
+ *
+ * <p>
+ * At most <code>parallelism</code> items are in flight at any one time. Once an item has failed no
+ * further items are submitted. The stage always waits for the items already submitted to
+ * complete, and then throws the exception from the earliest failing item in the collection:
+ * this is the same exception that sequential execution would have thrown.
+ * </p>
+ *
+ * @param <T> type of item processed by the stage
+ */
+@ThreadSafe
+public abstract class AbstractParallelIteratingStage<T> extends AbstractIteratingStage<T> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AbstractParallelIteratingStage.class);
+
+    /** {@link Executor} to which items are submitted, or <code>null</code> to create one as required. */
+    @GuardedBy("this") @Nullable private Executor executor;
+
+    /** Maximum number of items in flight at any one time. Default value: 1. */
+    @GuardedBy("this") private int parallelism = 1;
+
+    /** Whether to use virtual threads if the stage creates its own executor. Default value: <code>false</code>. */
+    @GuardedBy("this") private boolean virtualThreads;
+
+    /**
+     * Get the {@link Executor} to which items are submitted.
+     *
+     * @return the executor, or <code>null</code> if the stage creates its own
+     */
+    @Nullable public final synchronized Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the {@link Executor} to which items are submitted.
+     *
+     * @param exec the executor, or <code>null</code> if the stage should create its own
+     */
+    public final synchronized void setExecutor(@Nullable final Executor exec) {
+        checkSetterPreconditions();
+        executor = exec;
+    }
+
+    /**
+     * Get the maximum number of items in flight at any one time.
+     *
+     * @return the maximum number of items in flight
+     */
+    public final synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the maximum number of items in flight at any one time.
+     *
+     * <p>
+     * If the stage creates its own platform thread executor, this is also the number of threads used.
+     * </p>
+     *
+     * @param n the maximum number of items in flight
+     */
+    public final synchronized void setParallelism(final int n) {
+        checkSetterPreconditions();
+        parallelism = n;
+    }
+
+    /**
+     * Get whether virtual threads are used if the stage creates its own executor.
+     *
+     * @return <code>true</code> if virtual threads are used when available
+     */
+    public final synchronized boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Set whether virtual threads are used if the stage creates its own executor.
+     *
+     * <p>
+     * Virtual threads are only available on Java 21 and above; on earlier platforms
+     * a pool of platform threads is used instead.
+     * </p>
+     *
+     * @param virtual <code>true</code> to use virtual threads when available
+     */
+    public final synchronized void setVirtualThreads(final boolean virtual) {
+        checkSetterPreconditions();
+        virtualThreads = virtual;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
+            throws StageProcessingException {
+        final Executor configured = getExecutor();
+        final int window = getParallelism();
+        if (configured == null && window == 1) {
+            super.doExecute(items);
+            return;
+        }
+
+        final ExecutorService owned = configured == null ? newExecutorService(window) : null;
+        try {
+            executeConcurrently(items, configured == null ? owned : configured, window);
+        } finally {
+            if (owned != null) {
+                owned.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Process the items concurrently using the given executor.
+     *
+     * @param items the items to process
+     * @param exec the executor to submit items to
+     * @param window maximum number of items in flight
+     * @throws StageProcessingException if the processing of any item fails
+     */
+    private void executeConcurrently(@Nonnull @NonnullElements final List<Item<T>> items,
+            @Nonnull final Executor exec, final int window) throws StageProcessingException {
+        final Semaphore permits = new Semaphore(window);
+        final Throwable[] failures = new Throwable[items.size()];
+        final AtomicBoolean failed = new AtomicBoolean();
+        boolean interrupted = false;
+
+        try {
+            int index = 0;
+            for (final Item<T> item : items) {
+                if (failed.get()) {
+                    break;
+                }
+                permits.acquire();
+                final int thisIndex = index++;
+                try {
+                    exec.execute(() -> {
+                        try {
+                            doExecute(item);
+                        } catch (final Throwable t) {
+                            failures[thisIndex] = t;
+                            failed.set(true);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (final RejectedExecutionException e) {
+                    permits.release();
+                    failures[thisIndex] = new StageProcessingException("executor rejected item", e);
+                    break;
+                }
+            }
+        } catch (final InterruptedException e) {
+            interrupted = true;
+        } finally {
+            // Wait for all submitted items to complete, as they may still be modifying their items.
+            permits.acquireUninterruptibly(window);
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new StageProcessingException("interrupted while processing items");
+        }
+
+        // Releasing a permit happens-before its acquisition, so all failures are visible here.
+        for (final Throwable t : failures) {
+            if (t != null) {
+                rethrow(t);
+            }
+        }
+    }
+
+    /**
+     * Rethrow a failure captured from the processing of an item.
+     *
+     * @param t the captured failure
+     * @throws StageProcessingException if the failure was a {@link StageProcessingException}
+     *  or a checked exception
+     */
+    private static void rethrow(@Nonnull final Throwable t) throws StageProcessingException {
+        if (t instanceof StageProcessingException) {
+            throw (StageProcessingException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else {
+            throw new StageProcessingException(t);
+        }
+    }
+
+    /**
+     * Create an {@link ExecutorService} for a single execution of the stage.
+     *
+     * @param threads number of platform threads to use if virtual threads are not in use
+     * @return a new {@link ExecutorService}
+     */
+    @Nonnull private ExecutorService newExecutorService(final int threads) {
+        if (isVirtualThreads()) {
+            try {
+                // Looked up reflectively: virtual threads need Java 21, newer than the platform this is built for.
+                final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (final ReflectiveOperationException e) {
+                log.debug("{}: virtual threads not available, using platform threads", getId());
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    @Override
+    protected void doDestroy() {
+        executor = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (parallelism < 1) {
+            throw new ComponentInitializationException("parallelism must be at least 1");
+        }
+    }
+}
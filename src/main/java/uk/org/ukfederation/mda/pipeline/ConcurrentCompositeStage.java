@@ -0,0 +1,441 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
+import uk.org.ukfederation.mda.dom.DOMChangeTracker;
+import uk.org.ukfederation.mda.validate.x509.X509CertificateCache;
+
+/**
+ * A composite stage which runs a set of read-only stages at the same time over the same collection.
+ *
+ * <p>
+ * The stages must only examine the items and add item metadata to them, such as checking stages which
+ * add statuses; they must not change the items' DOMs or depend on each other's results. Each stage is
+ * given its own view of each item, with a private metadata map starting with the item's metadata. The
+ * first stage's views share the original items' elements; every other stage's views hold copies of
+ * the elements, made with {@link Item#copy()} before any stage starts, so that no DOM document is
+ * used by more than one thread. Once all the stages have completed, the item metadata each stage
+ * added to its views is added to the original items, one stage at a time in the order the stages are
+ * listed, so the result is the same as running the stages one after another.
+ * </p>
+ *
+ * <p>
+ * While the stages run, there are therefore one fewer copies of each DOM document than there are
+ * stages, on top of the originals: running three stages over a collection needs about three times the
+ * memory of the collection itself. The copies are made one at a time before any stage starts, and
+ * that time is not recovered, so the stages should each take substantially longer than copying the
+ * collection.
+ * </p>
+ *
+ * <p>
+ * Item metadata of the classes listed in <code>singleInstanceMetadata</code>, by default
+ * {@link X509CertificateCache}, is only added to an item which does not already have metadata of
+ * that class, so that a per-item cache created by several stages is not added several times.
+ * </p>
+ *
+ * <p>
+ * The removal of metadata from a view is discarded. A stage which removes, adds or replaces items
+ * fails the composite stage, as does any stage which fails; the exception thrown is that of the first
+ * failing stage in the list, and in either case no metadata is added to the original items.
+ * </p>
+ *
+ * <p>
+ * A stage which changes the DOM of any of its items also fails the composite stage. Changes are
+ * detected with a {@link DOMChangeTracker} on each item's document, whose element is obtained before
+ * any stage starts; items which are not DOM nodes, or whose documents do not support mutation events,
+ * are not checked. As the first stage works on the original elements, a change it makes has already
+ * been made to them when the composite stage fails, and can not be undone.
+ * </p>
+ *
+ * <p>
+ * If an <code>executor</code> has been supplied, the stages are submitted to it; the stage does not
+ * shut down an executor it was given. Otherwise a pool with a thread for each stage is created for
+ * each execution and shut down afterwards.
+ * </p>
+ *
+ * @param <T> type of item processed by the stage
+ */
+@ThreadSafe
+public class ConcurrentCompositeStage<T> extends AbstractStage<T> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ConcurrentCompositeStage.class);
+
+    /** The read-only stages to run. */
+    @GuardedBy("this") @Nonnull @NonnullElements private List<Stage<T>> stages = List.of();
+
+    /** {@link Executor} to which stages are submitted, or <code>null</code> to create one as required. */
+    @GuardedBy("this") @Nullable private Executor executor;
+
+    /** Classes of item metadata of which an item should have at most one instance. */
+    @GuardedBy("this") @Nonnull @NonnullElements
+    private List<Class<? extends ItemMetadata>> singleInstanceMetadata = List.of(X509CertificateCache.class);
+
+    /**
+     * Get the read-only stages to run.
+     *
+     * @return the stages
+     */
+    @Nonnull @NonnullElements public final synchronized List<Stage<T>> getStages() {
+        return stages;
+    }
+
+    /**
+     * Set the read-only stages to run.
+     *
+     * @param stagesToRun the stages
+     */
+    public final synchronized void setStages(@Nonnull @NonnullElements final List<Stage<T>> stagesToRun) {
+        checkSetterPreconditions();
+        stages = List.copyOf(stagesToRun);
+    }
+
+    /**
+     * Get the {@link Executor} to which stages are submitted.
+     *
+     * @return the executor, or <code>null</code> if the stage creates its own
+     */
+    @Nullable public final synchronized Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the {@link Executor} to which stages are submitted.
+     *
+     * @param exec the executor, or <code>null</code> if the stage should create its own
+     */
+    public final synchronized void setExecutor(@Nullable final Executor exec) {
+        checkSetterPreconditions();
+        executor = exec;
+    }
+
+    /**
+     * Get the classes of item metadata of which an item should have at most one instance.
+     *
+     * @return the metadata classes
+     */
+    @Nonnull @NonnullElements
+    public final synchronized List<Class<? extends ItemMetadata>> getSingleInstanceMetadata() {
+        return singleInstanceMetadata;
+    }
+
+    /**
+     * Set the classes of item metadata of which an item should have at most one instance.
+     *
+     * @param classes the metadata classes
+     */
+    public final synchronized void setSingleInstanceMetadata(
+            @Nonnull @NonnullElements final List<Class<? extends ItemMetadata>> classes) {
+        checkSetterPreconditions();
+        singleInstanceMetadata = List.copyOf(classes);
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
+            throws StageProcessingException {
+        final List<Stage<T>> toRun = getStages();
+        if (toRun.isEmpty()) {
+            return;
+        }
+
+        // Copies are made here, in one thread, as even reading a DOM document is not thread-safe.
+        // Only the first stage uses the original elements, so no copy is needed for it.
+        final List<List<Item<T>>> copies = new ArrayList<>(toRun.size());
+        for (int s = 0; s < toRun.size(); s++) {
+            final List<Item<T>> copy = new ArrayList<>(items.size());
+            for (final Item<T> item : items) {
+                copy.add(new StageItem<>(s == 0 ? item : item.copy(), item.getItemMetadata()));
+            }
+            copies.add(copy);
+        }
+
+        // Trackers are also registered here, before any stage can be using the documents.
+        final List<List<DOMChangeTracker>> trackers = new ArrayList<>(toRun.size());
+        for (final List<Item<T>> copy : copies) {
+            trackers.add(track(copy));
+        }
+
+        final Executor configured = getExecutor();
+        final ExecutorService owned = configured == null ? Executors.newFixedThreadPool(toRun.size()) : null;
+        final List<List<Item<T>>> results;
+        try {
+            results = executeConcurrently(toRun, copies, configured == null ? owned : configured);
+        } finally {
+            if (owned != null) {
+                owned.shutdown();
+            }
+            for (final List<DOMChangeTracker> stageTrackers : trackers) {
+                for (final DOMChangeTracker tracker : stageTrackers) {
+                    tracker.stop();
+                }
+            }
+        }
+
+        for (int s = 0; s < toRun.size(); s++) {
+            checkUnchanged(toRun.get(s), copies.get(s), results.get(s), trackers.get(s));
+        }
+        merge(items, results, getSingleInstanceMetadata());
+        log.debug("{}: ran {} stages over {} items", getId(), toRun.size(), items.size());
+    }
+
+    /**
+     * Run each stage over its own collection using the given executor.
+     *
+     * @param toRun the stages to run
+     * @param copies each stage's copy of the collection
+     * @param exec the executor to submit stages to
+     * @return each stage's collection after it has run
+     * @throws StageProcessingException if any stage fails
+     */
+    @Nonnull private List<List<Item<T>>> executeConcurrently(@Nonnull @NonnullElements final List<Stage<T>> toRun,
+            @Nonnull final List<List<Item<T>>> copies, @Nonnull final Executor exec)
+            throws StageProcessingException {
+        final List<List<Item<T>>> results = new ArrayList<>(toRun.size());
+        final Throwable[] failures = new Throwable[toRun.size()];
+        final Semaphore completed = new Semaphore(0);
+        int submitted = 0;
+
+        for (int s = 0; s < toRun.size(); s++) {
+            final Stage<T> stage = toRun.get(s);
+            final List<Item<T>> collection = new ArrayList<>(copies.get(s));
+            results.add(collection);
+            final int thisIndex = s;
+            try {
+                exec.execute(() -> {
+                    try {
+                        stage.execute(collection);
+                    } catch (final Throwable t) {
+                        failures[thisIndex] = t;
+                    } finally {
+                        completed.release();
+                    }
+                });
+                submitted++;
+            } catch (final RejectedExecutionException e) {
+                failures[thisIndex] = new StageProcessingException("executor rejected stage " + stage.getId(), e);
+                break;
+            }
+        }
+
+        // Releasing a permit happens-before its acquisition, so each stage's results are visible here.
+        completed.acquireUninterruptibly(submitted);
+
+        for (final Throwable t : failures) {
+            if (t != null) {
+                rethrow(t);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Start tracking changes to the DOM documents of a stage's views.
+     *
+     * @param views the stage's views of the items
+     * @return trackers for the documents which can be tracked
+     */
+    @Nonnull private static <T> List<DOMChangeTracker> track(@Nonnull @NonnullElements final List<Item<T>> views) {
+        final List<DOMChangeTracker> trackers = new ArrayList<>();
+        for (final Item<T> view : views) {
+            final T element = view.unwrap();
+            if (element instanceof Node) {
+                final DOMChangeTracker tracker = DOMChangeTracker.track((Node) element);
+                if (tracker != null) {
+                    trackers.add(tracker);
+                }
+            }
+        }
+        return trackers;
+    }
+
+    /**
+     * Check that a stage has not changed its collection or the DOM of its items.
+     *
+     * @param stage the stage
+     * @param before the stage's collection before it ran
+     * @param after the stage's collection after it ran
+     * @param trackers trackers for the documents of the stage's items
+     * @throws StageProcessingException if the collection or an item's DOM has been changed
+     */
+    private static <T> void checkUnchanged(@Nonnull final Stage<T> stage,
+            @Nonnull @NonnullElements final List<Item<T>> before, @Nonnull @NonnullElements final List<Item<T>> after,
+            @Nonnull @NonnullElements final List<DOMChangeTracker> trackers)
+            throws StageProcessingException {
+        boolean unchanged = before.size() == after.size();
+        for (int i = 0; unchanged && i < before.size(); i++) {
+            unchanged = before.get(i) == after.get(i);
+        }
+        if (!unchanged) {
+            throw new StageProcessingException("stage " + stage.getId()
+                    + " is not read-only: it changed the collection");
+        }
+        for (final DOMChangeTracker tracker : trackers) {
+            if (tracker.isChanged()) {
+                throw new StageProcessingException("stage " + stage.getId()
+                        + " is not read-only: it changed the DOM of an item");
+            }
+        }
+    }
+
+    /**
+     * Add the item metadata each stage added to its views to the original items, in stage order.
+     *
+     * @param items the original items
+     * @param results each stage's views of the items
+     * @param singleInstance classes of metadata of which an item should have at most one instance
+     */
+    private static <T> void merge(@Nonnull @NonnullElements final List<Item<T>> items,
+            @Nonnull final List<List<Item<T>>> results,
+            @Nonnull @NonnullElements final List<Class<? extends ItemMetadata>> singleInstance) {
+        for (int i = 0; i < items.size(); i++) {
+            final Item<T> item = items.get(i);
+
+            // Views share the original's metadata objects, so anything not among them was added by the stage.
+            final Set<ItemMetadata> original = Collections.newSetFromMap(new IdentityHashMap<>());
+            original.addAll(item.getItemMetadata().values());
+            final Set<Class<?>> present = new HashSet<>();
+            for (final Class<? extends ItemMetadata> clazz : singleInstance) {
+                if (!item.getItemMetadata().get(clazz).isEmpty()) {
+                    present.add(clazz);
+                }
+            }
+            for (final List<Item<T>> result : results) {
+                for (final ItemMetadata metadata : result.get(i).getItemMetadata().values()) {
+                    if (!original.contains(metadata) && !isRepeated(metadata, singleInstance, present)) {
+                        item.getItemMetadata().put(metadata);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether an item already has metadata of a single-instance class, recording it if not.
+     *
+     * @param metadata the metadata about to be added to the item
+     * @param singleInstance classes of metadata of which an item should have at most one instance
+     * @param present the single-instance classes of which the item already has metadata
+     * @return <code>true</code> if the metadata should not be added
+     */
+    private static boolean isRepeated(@Nonnull final ItemMetadata metadata,
+            @Nonnull @NonnullElements final List<Class<? extends ItemMetadata>> singleInstance,
+            @Nonnull final Set<Class<?>> present) {
+        for (final Class<? extends ItemMetadata> clazz : singleInstance) {
+            if (clazz.isInstance(metadata) && !present.add(clazz)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rethrow a failure captured from a stage.
+     *
+     * @param t the captured failure
+     * @throws StageProcessingException if the failure was a {@link StageProcessingException}
+     *  or a checked exception
+     */
+    private static void rethrow(@Nonnull final Throwable t) throws StageProcessingException {
+        if (t instanceof StageProcessingException) {
+            throw (StageProcessingException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else {
+            throw new StageProcessingException(t);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        stages = List.of();
+        executor = null;
+        singleInstanceMetadata = List.of();
+        super.doDestroy();
+    }
+
+    /**
+     * A stage's view of an item, holding the element to be used by that stage and a private
+     * metadata map.
+     *
+     * @param <T> type of the wrapped element
+     */
+    private static final class StageItem<T> implements Item<T> {
+
+        /** The item whose element this view holds: the original item, or a copy of it. */
+        @Nonnull private final Item<T> source;
+
+        /** The stage's metadata for the item. */
+        @Nonnull private final ClassToInstanceMultiMap<ItemMetadata> metadata = new ClassToInstanceMultiMap<>(true);
+
+        /**
+         * Constructor.
+         *
+         * @param item the item whose element the view holds
+         * @param initial the metadata the view starts with
+         */
+        StageItem(@Nonnull final Item<T> item, @Nonnull final ClassToInstanceMultiMap<ItemMetadata> initial) {
+            source = item;
+            metadata.putAll(initial);
+        }
+
+        @Override
+        @Nonnull public T unwrap() {
+            return source.unwrap();
+        }
+
+        @Override
+        @Nonnull public ClassToInstanceMultiMap<ItemMetadata> getItemMetadata() {
+            return metadata;
+        }
+
+        @Override
+        @Nonnull public Item<T> copy() {
+            final Item<T> copy = source.copy();
+            copy.getItemMetadata().clear();
+            copy.getItemMetadata().putAll(metadata);
+            return copy;
+        }
+    }
+}
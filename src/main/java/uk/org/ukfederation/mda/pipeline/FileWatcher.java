@@ -0,0 +1,257 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.component.AbstractInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Watches a set of files using a {@link WatchService}, and tells a {@link Listener} which of them
+ * have changed.
+ *
+ * <p>
+ * Watching starts when the component is initialized and stops when it is destroyed. Changes are
+ * reported on the watcher's own thread once no further change has been seen for
+ * <code>quietPeriod</code> milliseconds, so that a file being written in several steps, or a set of
+ * files being updated together, is reported once. A file replaced by renaming another over it is
+ * reported as changed, as is a file that is deleted.
+ * </p>
+ */
+@ThreadSafe
+public class FileWatcher extends AbstractInitializableComponent {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(FileWatcher.class);
+
+    /** The files to watch. */
+    @GuardedBy("this") @Nonnull @NonnullElements private List<File> files = List.of();
+
+    /** The listener to tell about changes. */
+    @GuardedBy("this") @NonnullAfterInit private Listener listener;
+
+    /** Time in milliseconds without further changes before changes are reported. Default value: 500. */
+    @GuardedBy("this") private long quietPeriod = 500;
+
+    /** The watch service, while watching. */
+    @GuardedBy("this") @Nullable private WatchService watchService;
+
+    /** The thread waiting for changes, while watching. */
+    @GuardedBy("this") @Nullable private Thread thread;
+
+    /**
+     * Get the files to watch.
+     *
+     * @return the files
+     */
+    @Nonnull @NonnullElements public final synchronized List<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * Set the files to watch.
+     *
+     * @param watched the files
+     */
+    public final synchronized void setFiles(@Nonnull @NonnullElements final Collection<File> watched) {
+        checkSetterPreconditions();
+        files = List.copyOf(watched);
+    }
+
+    /**
+     * Get the listener to tell about changes.
+     *
+     * @return the listener
+     */
+    @NonnullAfterInit public final synchronized Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * Set the listener to tell about changes.
+     *
+     * @param l the listener
+     */
+    public final synchronized void setListener(@Nonnull final Listener l) {
+        checkSetterPreconditions();
+        listener = l;
+    }
+
+    /**
+     * Get the time without further changes before changes are reported.
+     *
+     * @return the time in milliseconds
+     */
+    public final synchronized long getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    /**
+     * Set the time without further changes before changes are reported.
+     *
+     * @param period the time in milliseconds
+     */
+    public final synchronized void setQuietPeriod(final long period) {
+        checkSetterPreconditions();
+        quietPeriod = period;
+    }
+
+    /**
+     * Wait for changes and report them, until the watch service is closed.
+     *
+     * @param service the watch service
+     * @param watched the absolute paths of the watched files
+     * @param l the listener
+     * @param period the quiet period in milliseconds
+     */
+    private void watch(@Nonnull final WatchService service, @Nonnull @NonnullElements final Set<Path> watched,
+            @Nonnull final Listener l, final long period) {
+        try {
+            while (true) {
+                final Set<Path> changed = new HashSet<>();
+                WatchKey key = service.take();
+                while (key != null) {
+                    collect(key, watched, changed);
+                    key = changed.isEmpty() ? service.take() : service.poll(period, TimeUnit.MILLISECONDS);
+                }
+                log.debug("files changed: {}", changed);
+                try {
+                    l.filesChanged(Set.copyOf(changed));
+                } catch (final RuntimeException e) {
+                    log.error("file change listener failed", e);
+                }
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException e) {
+            // destroyed
+        }
+    }
+
+    /**
+     * Collect the watched files affected by the events on a key, and reset the key.
+     *
+     * @param key the key
+     * @param watched the absolute paths of the watched files
+     * @param changed the set to add affected files to
+     */
+    private static void collect(@Nonnull final WatchKey key, @Nonnull @NonnullElements final Set<Path> watched,
+            @Nonnull @NonnullElements final Set<Path> changed) {
+        final Path directory = (Path) key.watchable();
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, so anything in this directory may have changed
+                for (final Path file : watched) {
+                    if (file.getParent().equals(directory)) {
+                        changed.add(file);
+                    }
+                }
+            } else {
+                final Path file = directory.resolve((Path) event.context());
+                if (watched.contains(file)) {
+                    changed.add(file);
+                }
+            }
+        }
+        key.reset();
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (final IOException e) {
+                log.warn("could not close watch service", e);
+            }
+            watchService = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        listener = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (listener == null) {
+            throw new ComponentInitializationException("listener must not be null");
+        }
+        if (quietPeriod < 0) {
+            throw new ComponentInitializationException("quietPeriod must not be negative");
+        }
+
+        final Set<Path> watched = new HashSet<>();
+        final Set<Path> directories = new HashSet<>();
+        for (final File file : files) {
+            final Path path = file.toPath().toAbsolutePath().normalize();
+            watched.add(path);
+            directories.add(path.getParent());
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            for (final Path directory : directories) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        } catch (final IOException e) {
+            throw new ComponentInitializationException("could not watch files", e);
+        }
+
+        final WatchService service = watchService;
+        final Listener l = listener;
+        final long period = quietPeriod;
+        thread = new Thread(() -> watch(service, watched, l, period), "FileWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Told which watched files have changed. */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * Called when watched files have changed.
+         *
+         * @param changed the absolute paths of the files which have changed
+         */
+        void filesChanged(@Nonnull @NonnullElements Set<Path> changed);
+    }
+}
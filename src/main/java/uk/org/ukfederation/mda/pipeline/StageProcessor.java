@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+
+/**
+ * A {@link Flow.Processor} which runs a sequence of stages over each item as it arrives, and
+ * publishes the items which survive them.
+ *
+ * <p>
+ * Each item is passed through the stages on its own, as a collection of one item, so only stages
+ * whose treatment of an item does not depend on the other items in the collection are suitable:
+ * checking and annotating stages such as those derived from <code>AbstractIteratingStage</code>,
+ * validators, and filters which remove items. Items are processed in the order they arrive, one at
+ * a time.
+ * </p>
+ *
+ * <p>
+ * One item is requested from upstream at a time, and a further one only once the results of the
+ * last have been accepted downstream. Results are passed on with
+ * {@link #offer(Object, long, TimeUnit, java.util.function.BiPredicate)}, which waits while a
+ * subscriber's buffer is full, so a slow subscriber holds back this processor, which in turn holds
+ * back its publisher. The wait is bounded by <code>offerTimeout</code>: that wait ties up the thread
+ * delivering to this processor, and if subscribers are delivered to by the same bounded executor they
+ * may never get a thread to drain their buffers. The executor given here should therefore not be one
+ * the upstream publisher delivers on, unless it can always provide another thread.
+ * </p>
+ *
+ * <p>
+ * If a stage fails, or a result is not accepted within <code>offerTimeout</code>, the upstream
+ * subscription is cancelled and subscribers are sent a {@link StageProcessingException} through
+ * <code>onError</code>.
+ * </p>
+ *
+ * @param <T> type of the items processed
+ */
+@ThreadSafe
+public class StageProcessor<T> extends SubmissionPublisher<Item<T>> implements Flow.Processor<Item<T>, Item<T>> {
+
+    /** The stages to run over each item. */
+    @Nonnull @NonnullElements private final List<Stage<T>> stages;
+
+    /**
+     * The upstream subscription.
+     *
+     * <p>
+     * Only used from the subscriber methods, which the publisher calls one at a time.
+     * </p>
+     */
+    private Flow.Subscription subscription;
+
+    /** How long to wait for subscribers to accept each result. */
+    @Nonnull private final Duration offerTimeout;
+
+    /** Whether a stage has failed, after which further items are ignored. */
+    private boolean failed;
+
+    /**
+     * Constructor.
+     *
+     * @param stagesToRun the stages to run over each item
+     * @param executor the executor used to deliver items to subscribers
+     * @param maxBufferCapacity the maximum number of items buffered for each subscriber
+     * @param timeout how long to wait for subscribers to accept each result
+     */
+    public StageProcessor(@Nonnull @NonnullElements final List<Stage<T>> stagesToRun,
+            @Nonnull final Executor executor, final int maxBufferCapacity, @Nonnull final Duration timeout) {
+        super(executor, maxBufferCapacity);
+        stages = List.copyOf(stagesToRun);
+        offerTimeout = timeout;
+    }
+
+    @Override
+    public void onSubscribe(@Nonnull final Flow.Subscription s) {
+        subscription = s;
+        s.request(1);
+    }
+
+    @Override
+    public void onNext(@Nonnull final Item<T> item) {
+        if (failed) {
+            return;
+        }
+        final List<Item<T>> items = new ArrayList<>(1);
+        items.add(item);
+        try {
+            for (final Stage<T> stage : stages) {
+                stage.execute(items);
+            }
+        } catch (final StageProcessingException e) {
+            fail(e);
+            return;
+        }
+        for (final Item<T> result : items) {
+            // Drop rather than retry, so that a full buffer fails the processing instead of hanging it.
+            if (offer(result, offerTimeout.toNanos(), TimeUnit.NANOSECONDS, (subscriber, dropped) -> false) < 0) {
+                fail(new StageProcessingException("item not accepted by subscribers within " + offerTimeout));
+                return;
+            }
+        }
+        subscription.request(1);
+    }
+
+    /**
+     * Stop processing after a failure.
+     *
+     * @param e the failure to send to subscribers
+     */
+    private void fail(@Nonnull final StageProcessingException e) {
+        failed = true;
+        subscription.cancel();
+        closeExceptionally(e);
+    }
+
+    @Override
+    public void onError(@Nonnull final Throwable throwable) {
+        closeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        close();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.validate.x509;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import uk.org.ukfederation.mda.FileSupport;
+
+/**
+ * An X.509 certificate decoded from its Base64 representation, together with
+ * its DER encoding and the SHA-256 digest of that encoding.
+ *
+ * <p>
+ * Validators can also keep values they derive from the certificate here, such as names decoded
+ * from its extensions, so that they are derived once however often the certificate is validated.
+ * </p>
+ */
+@ThreadSafe
+public final class DecodedX509Certificate {
+
+    /** The DER encoding of the certificate. */
+    @Nonnull private final byte[] encoded;
+
+    /** The parsed certificate. */
+    @Nonnull private final X509Certificate certificate;
+
+    /** The SHA-256 digest of the DER encoding, as lower-case hexadecimal. */
+    @Nonnull private final String digest;
+
+    /** Values derived from the certificate, indexed by key. */
+    @Nonnull private final Map<String, Object> derived = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param der the DER encoding of the certificate
+     * @param cert the parsed certificate
+     * @param hash the SHA-256 digest of the DER encoding, as lower-case hexadecimal
+     */
+    private DecodedX509Certificate(@Nonnull final byte[] der, @Nonnull final X509Certificate cert,
+            @Nonnull final String hash) {
+        encoded = der;
+        certificate = cert;
+        digest = hash;
+    }
+
+    /**
+     * Get the DER encoding of the certificate.
+     *
+     * @return a copy of the DER encoding
+     */
+    @Nonnull public byte[] getEncoded() {
+        return encoded.clone();
+    }
+
+    /**
+     * Get the parsed certificate.
+     *
+     * @return the parsed certificate
+     */
+    @Nonnull public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    /**
+     * Get the SHA-256 digest of the certificate's DER encoding.
+     *
+     * @return the digest, as lower-case hexadecimal
+     */
+    @Nonnull public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Get a value derived from the certificate, deriving it on first use.
+     *
+     * <p>
+     * Each key must always be used with a function returning the same type, and should be
+     * qualified by the name of the class using it.
+     * </p>
+     *
+     * @param <T> type of the derived value
+     * @param key the key identifying the value
+     * @param function derives the value from the certificate; it must not return <code>null</code>
+     * @return the derived value
+     */
+    @SuppressWarnings("unchecked")
+    @Nonnull public <T> T derive(@Nonnull final String key, @Nonnull final Function<X509Certificate, T> function) {
+        return (T) derived.computeIfAbsent(key, k -> function.apply(certificate));
+    }
+
+    /**
+     * Decode a certificate from its Base64 representation.
+     *
+     * @param base64 the Base64 representation of the certificate, without white space
+     * @return the decoded certificate
+     * @throws CertificateException if the text can not be decoded or parsed as an X.509 certificate
+     */
+    @Nonnull public static DecodedX509Certificate decode(@Nonnull final String base64)
+            throws CertificateException {
+        final byte[] der;
+        try {
+            der = Base64.getDecoder().decode(base64);
+        } catch (final IllegalArgumentException e) {
+            throw new CertificateException("invalid Base64 encoding", e);
+        }
+
+        final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        final X509Certificate cert =
+                (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der));
+
+        final byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(der);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new CertificateException("SHA-256 digest not available", e);
+        }
+
+        return new DecodedX509Certificate(der, cert, FileSupport.hex(hash));
+    }
+}
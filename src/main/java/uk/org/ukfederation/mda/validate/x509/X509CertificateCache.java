@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.validate.x509;
+
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
+
+/**
+ * Item metadata caching the X.509 certificates which have been decoded from an item.
+ *
+ * <p>
+ * Certificates are keyed by their Base64 representation with all white space removed, so that a
+ * cached entry can only be returned for a certificate with exactly the same content. This keeps
+ * the cache correct if the item's DOM is later modified, or if the cache is shared with a copy
+ * of the item.
+ * </p>
+ *
+ * <p>
+ * Validators, which are given a certificate already decoded by the stage driving them, can look
+ * up the cached entry for the same certificate with {@link #lookup(Item, X509Certificate)} and
+ * take from it anything they have derived from the certificate before.
+ * </p>
+ */
+@ThreadSafe
+public final class X509CertificateCache implements ItemMetadata {
+
+    /** Decoded certificates, indexed by Base64 representation. */
+    @GuardedBy("this") @Nonnull private final Map<String, DecodedX509Certificate> certificates = new HashMap<>();
+
+    /** Decoded certificates, indexed by parsed certificate, which compare by their DER encoding. */
+    @GuardedBy("this") @Nonnull private final Map<X509Certificate, DecodedX509Certificate> byCertificate =
+            new HashMap<>();
+
+    /**
+     * Get the decoded certificate for a Base64 representation, if present.
+     *
+     * @param base64 the Base64 representation of the certificate, without white space
+     * @return the decoded certificate, or <code>null</code> if it is not in the cache
+     */
+    @Nullable public synchronized DecodedX509Certificate get(@Nonnull final String base64) {
+        return certificates.get(base64);
+    }
+
+    /**
+     * Get the decoded certificate with the same DER encoding as a parsed certificate, if present.
+     *
+     * @param certificate the parsed certificate
+     * @return the decoded certificate, or <code>null</code> if it is not in the cache
+     */
+    @Nullable public synchronized DecodedX509Certificate get(@Nonnull final X509Certificate certificate) {
+        return byCertificate.get(certificate);
+    }
+
+    /**
+     * Add a decoded certificate to the cache.
+     *
+     * @param base64 the Base64 representation of the certificate, without white space
+     * @param certificate the decoded certificate
+     */
+    public synchronized void put(@Nonnull final String base64, @Nonnull final DecodedX509Certificate certificate) {
+        certificates.put(base64, certificate);
+        byCertificate.putIfAbsent(certificate.getCertificate(), certificate);
+    }
+
+    /**
+     * Get the number of certificates in the cache.
+     *
+     * @return the number of certificates in the cache
+     */
+    public synchronized int size() {
+        return certificates.size();
+    }
+
+    /**
+     * Find an item's certificate cache, if it has one.
+     *
+     * @param item the item
+     * @return the item's certificate cache, or <code>null</code> if it has none
+     */
+    @Nullable public static X509CertificateCache find(@Nonnull final Item<?> item) {
+        final List<X509CertificateCache> caches = item.getItemMetadata().get(X509CertificateCache.class);
+        return caches.isEmpty() ? null : caches.get(0);
+    }
+
+    /**
+     * Find the cached entry for a certificate in an item's certificate cache.
+     *
+     * @param item the item
+     * @param certificate the parsed certificate
+     * @return the decoded certificate, or <code>null</code> if the item has no cache or it does not
+     *  hold the certificate
+     */
+    @Nullable public static DecodedX509Certificate lookup(@Nonnull final Item<?> item,
+            @Nonnull final X509Certificate certificate) {
+        final X509CertificateCache cache = find(item);
+        return cache == null ? null : cache.get(certificate);
+    }
+
+    /**
+     * Find an item's certificate cache, creating one if necessary.
+     *
+     * @param item the item
+     * @return the item's certificate cache
+     */
+    @Nonnull public static X509CertificateCache findOrCreate(@Nonnull final Item<?> item) {
+        final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
+        final List<X509CertificateCache> caches = metadata.get(X509CertificateCache.class);
+        if (!caches.isEmpty()) {
+            return caches.get(0);
+        }
+        final X509CertificateCache cache = new X509CertificateCache();
+        metadata.put(cache);
+        return cache;
+    }
+}
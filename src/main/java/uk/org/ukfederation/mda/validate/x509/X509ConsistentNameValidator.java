@@ -51,6 +51,11 @@ import com.google.common.net.InetAddresses;
  * 
  * A bean property controls whether a failure results in an error or warning status.
  * The default is to add an {@link net.shibboleth.metadata.ErrorStatus}.
+ *
+ * <p>
+ * If the item's {@link X509CertificateCache} holds the certificate, the names are decoded once
+ * and kept with the cached certificate, rather than decoded again each time it is validated.
+ * </p>
  */
 @ThreadSafe
 public class X509ConsistentNameValidator extends AbstractX509Validator {
@@ -201,6 +206,12 @@ public class X509ConsistentNameValidator extends AbstractX509Validator {
     }
     // Checkstyle: CyclomaticComplexity ON
     
+    /** Key for the DNS subjectAltNames kept with a cached certificate. */
+    private static final String DNS_ALT_NAMES = X509ConsistentNameValidator.class.getName() + ".dnsAltNames";
+
+    /** Key for the CNs kept with a cached certificate. */
+    private static final String COMMON_NAMES = X509ConsistentNameValidator.class.getName() + ".commonNames";
+
     /**
      * Whether an {@link net.shibboleth.metadata.ErrorStatus} should be added on failure.
      * 
@@ -234,18 +245,43 @@ public class X509ConsistentNameValidator extends AbstractX509Validator {
         return error;
     }
     
+    /**
+     * Get the DNS subjectAltNames of a certificate.
+     *
+     * @param cert the certificate
+     * @return the DNS subjectAltNames
+     */
+    @Nonnull private static List<?> getDNSAltNames(@Nonnull final X509Certificate cert) {
+        return X509Support.getAltNames(cert, new Integer[]{X509Support.DNS_ALT_NAME});
+    }
+
+    /**
+     * Get the CNs of a certificate's subject.
+     *
+     * @param cert the certificate
+     * @return the CNs, most specific first
+     */
+    @Nonnull private static List<String> getCommonNames(@Nonnull final X509Certificate cert) {
+        return X509Support.getCommonNames(cert.getSubjectX500Principal());
+    }
+
     @Override
     public void doValidate(@Nonnull final X509Certificate cert, @Nonnull final Item<?> item,
             @Nonnull final String stageId) {
         
+        // Take the names from the item's certificate cache, if the certificate is there.
+        final DecodedX509Certificate decoded = X509CertificateCache.lookup(item, cert);
+
         // Extract the DNS subjectAltNames. If we don't have any, there can't be a problem.
-        final List<?> altNames = X509Support.getAltNames(cert, new Integer[]{X509Support.DNS_ALT_NAME});
+        final List<?> altNames = decoded == null ? getDNSAltNames(cert) :
+                decoded.derive(DNS_ALT_NAMES, X509ConsistentNameValidator::getDNSAltNames);
         if (altNames.isEmpty()) {
             return;
         }
         
         // Extract the CNs. Again, none of those means no problem here.
-        final List<String> commonNames = X509Support.getCommonNames(cert.getSubjectX500Principal());
+        final List<String> commonNames = decoded == null ? getCommonNames(cert) :
+                decoded.derive(COMMON_NAMES, X509ConsistentNameValidator::getCommonNames);
         if (commonNames.isEmpty()) {
             return;
         }
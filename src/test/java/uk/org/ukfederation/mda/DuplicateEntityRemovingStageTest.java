@@ -0,0 +1,100 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+
+public class DuplicateEntityRemovingStageTest extends BaseDOMTest {
+
+    private static final String UK = "http://ukfederation.org.uk";
+
+    private static final String INCOMMON = "https://incommon.org";
+
+    private static final String OTHER = "https://other.example.org";
+
+    protected DuplicateEntityRemovingStageTest() {
+        super(DuplicateEntityRemovingStage.class);
+    }
+
+    private Item<Element> item(final String which, final String authority, final String ukId) throws Exception {
+        final Item<Element> item = readDOMItem(which);
+        item.getItemMetadata().put(new RegistrationAuthority(authority));
+        if (ukId != null) {
+            item.getItemMetadata().put(new UKId(ukId));
+        }
+        return item;
+    }
+
+    private DuplicateEntityRemovingStage makeStage(final boolean preferUKId) throws Exception {
+        final DuplicateEntityRemovingStage stage = new DuplicateEntityRemovingStage();
+        stage.setId("dedup");
+        stage.setRegistrationAuthorities(List.of(UK, INCOMMON));
+        stage.setPreferUKId(preferUKId);
+        stage.initialize();
+        return stage;
+    }
+
+    @Test
+    public void testPrecedence() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item("a.xml", OTHER, null));
+        items.add(item("b.xml", OTHER, null));
+        items.add(item("a.xml", INCOMMON, "uk000001"));
+        items.add(item("b.xml", INCOMMON, null));
+        items.add(item("a.xml", UK, null));
+        final Item<Element> dropped = items.get(4);
+
+        makeStage(true).execute(items);
+
+        // The copy with a UKId wins for a; the listed authority wins for b; order is preserved.
+        Assert.assertEquals(items.size(), 2);
+        Assert.assertEquals(items.get(0).getItemMetadata().get(RegistrationAuthority.class).get(0)
+                .getRegistrationAuthority(), INCOMMON);
+        Assert.assertEquals(items.get(0).unwrap().getAttributeNS(null, "entityID"), "https://a.example.org/entity");
+        Assert.assertEquals(items.get(1).unwrap().getAttributeNS(null, "entityID"), "https://b.example.org/entity");
+
+        final List<InfoStatus> kept = items.get(0).getItemMetadata().get(InfoStatus.class);
+        Assert.assertEquals(kept.size(), 1);
+        Assert.assertEquals(kept.get(0).getStatusMessage(),
+                "kept in preference to duplicates from " + OTHER + ", " + UK);
+        final List<InfoStatus> removed = dropped.getItemMetadata().get(InfoStatus.class);
+        Assert.assertEquals(removed.size(), 1);
+        Assert.assertEquals(removed.get(0).getStatusMessage(),
+                "duplicate of entity https://a.example.org/entity from " + INCOMMON + "; removed");
+    }
+
+    @Test
+    public void testAuthorityOnly() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item("a.xml", INCOMMON, "uk000001"));
+        items.add(item("a.xml", UK, null));
+        items.add(item("a.xml", UK, null));
+
+        makeStage(false).execute(items);
+
+        // Without UKId preference, the first copy from the most preferred authority wins.
+        Assert.assertEquals(items.size(), 1);
+        Assert.assertEquals(items.get(0).getItemMetadata().get(RegistrationAuthority.class).get(0)
+                .getRegistrationAuthority(), UK);
+        Assert.assertTrue(items.get(0).getItemMetadata().get(UKId.class).isEmpty());
+    }
+
+    @Test
+    public void testNoDuplicates() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item("a.xml", OTHER, null));
+        items.add(item("b.xml", OTHER, null));
+
+        makeStage(true).execute(items);
+
+        Assert.assertEquals(items.size(), 2);
+        Assert.assertTrue(items.get(0).getItemMetadata().get(InfoStatus.class).isEmpty());
+    }
+}
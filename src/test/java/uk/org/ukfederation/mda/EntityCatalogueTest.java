@@ -0,0 +1,128 @@
+package uk.org.ukfederation.mda;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import uk.org.ukfederation.mda.EntityCatalogue.Column;
+
+public class EntityCatalogueTest extends BaseDOMTest {
+
+    protected EntityCatalogueTest() {
+        super(EntityCatalogue.class);
+    }
+
+    private List<Item<Element>> readItems() throws Exception {
+        final List<Item<Element>> items = readDOMItems(new String[] {"a.xml", "b.xml", "c.xml"});
+        items.get(0).getItemMetadata().put(new UKId("uk000003"));
+        items.get(1).getItemMetadata().put(new UKId("uk000001"));
+        items.get(2).getItemMetadata().put(new UKId("uk000003"));
+        items.get(0).getItemMetadata().put(new RegistrationAuthority("http://ukfederation.org.uk"));
+        items.get(2).getItemMetadata().put(new RegistrationAuthority("http://example.org/ra"));
+        return items;
+    }
+
+    @Test
+    public void testColumns() throws Exception {
+        final EntityCatalogue catalogue = EntityCatalogue.build(readItems());
+        Assert.assertEquals(catalogue.size(), 3);
+        Assert.assertTrue(catalogue.isEntityDescriptor(0));
+        Assert.assertFalse(catalogue.isEntitiesDescriptor(0));
+        Assert.assertEquals(catalogue.getValue(1, Column.ENTITY_ID), "https://b.example.org/entity");
+        Assert.assertEquals(catalogue.getUKId(0), 3);
+        Assert.assertEquals(catalogue.getUKId(1), 1);
+        Assert.assertEquals(catalogue.getValue(0, Column.UKID), "uk000003");
+        Assert.assertEquals(catalogue.getValue(0, Column.REGISTRATION_AUTHORITY), "http://ukfederation.org.uk");
+        Assert.assertNull(catalogue.getValue(1, Column.REGISTRATION_AUTHORITY));
+        Assert.assertEquals(catalogue.getValue(2, Column.ORG_ID), "ukforg1");
+        Assert.assertEquals(catalogue.getRoles(0), UKEntityFacts.ROLE_IDP);
+        Assert.assertEquals(catalogue.getRoles(1), UKEntityFacts.ROLE_SP);
+    }
+
+    @Test
+    public void testGroupBy() throws Exception {
+        final EntityCatalogue catalogue = EntityCatalogue.build(readItems());
+        final int[][] groups = catalogue.groupBy(Column.ORG_ID);
+        Assert.assertEquals(groups.length, 2);
+        Assert.assertEquals(groups[0], new int[] {0, 2});
+        Assert.assertEquals(groups[1], new int[] {1});
+
+        // row 1 has no registration authority
+        Assert.assertEquals(catalogue.groupBy(Column.REGISTRATION_AUTHORITY).length, 2);
+    }
+
+    @Test
+    public void testFindDuplicates() throws Exception {
+        final EntityCatalogue catalogue = EntityCatalogue.build(readItems());
+        final int[][] dups = catalogue.findDuplicates(Column.UKID);
+        Assert.assertEquals(dups.length, 1);
+        Assert.assertEquals(dups[0], new int[] {0, 2});
+        Assert.assertEquals(catalogue.findDuplicates(Column.ENTITY_ID).length, 0);
+    }
+
+    @Test
+    public void testSortPermutation() throws Exception {
+        final EntityCatalogue catalogue = EntityCatalogue.build(readItems());
+        // stable for equal keys
+        Assert.assertEquals(catalogue.sortPermutation(Column.UKID), new int[] {1, 0, 2});
+        // missing values last
+        Assert.assertEquals(catalogue.sortPermutation(Column.REGISTRATION_AUTHORITY), new int[] {2, 0, 1});
+        // later columns break ties in earlier ones
+        Assert.assertEquals(catalogue.sortPermutation(Column.UKID, Column.ENTITY_ID), new int[] {1, 0, 2});
+        Assert.assertEquals(catalogue.sortPermutation(Column.ORG_ID, Column.REGISTRATION_AUTHORITY),
+                new int[] {2, 0, 1});
+    }
+
+    @Test
+    public void testEntitiesDescriptor() throws Exception {
+        final List<Item<Element>> items = readItems();
+        items.add(readDOMItem("group.xml"));
+        items.get(1).getItemMetadata().put(new ItemId("https://b.example.org/entity"));
+        final EntityCatalogue catalogue = EntityCatalogue.build(items);
+        Assert.assertTrue(catalogue.isEntitiesDescriptor(3));
+        Assert.assertFalse(catalogue.isEntityDescriptor(3));
+        Assert.assertEquals(catalogue.getValue(3, Column.ENTITIES_NAME), "http://example.org/group");
+        Assert.assertEquals(catalogue.getValue(1, Column.ITEM_ID), "https://b.example.org/entity");
+        Assert.assertEquals(catalogue.groupBy(Column.ENTITIES_DESCRIPTOR), new int[][] {{3}});
+        Assert.assertEquals(catalogue.sortPermutation(Column.ENTITIES_DESCRIPTOR, Column.UKID),
+                new int[] {3, 1, 0, 2});
+    }
+
+    @Test
+    public void testDisplayNameClashes() throws Exception {
+        final List<Item<Element>> items = readItems();
+        final EntityCatalogue catalogue = EntityCatalogue.build(items, List.of(
+                List.of("Example", "Alpha"), Collections.singletonList("EXAMPLE"), List.of("example", "Example")));
+        Assert.assertEquals(catalogue.getDisplayNameKeys(0), List.of("alpha", "example"));
+        Assert.assertEquals(catalogue.getDisplayNameKeys(2), Collections.singletonList("example"));
+
+        final Map<String, int[]> all = catalogue.findDisplayNameClashes(0);
+        Assert.assertEquals(all.keySet(), Set.of("example"));
+        Assert.assertEquals(all.get("example"), new int[] {0, 1, 2});
+
+        final Map<String, int[]> idps = catalogue.findDisplayNameClashes(UKEntityFacts.ROLE_IDP);
+        Assert.assertEquals(idps.size(), 1);
+        Assert.assertEquals(idps.get("example"), new int[] {0, 2});
+    }
+
+    @Test
+    public void testSeveralDisplayNameClashes() throws Exception {
+        final List<Item<Element>> items = readItems();
+        final EntityCatalogue catalogue = EntityCatalogue.build(items, List.of(
+                List.of("Beta", "Alpha"), List.of("alpha", "beta"), List.of("Gamma")));
+
+        // the two groups share their first row, so come in order of display name
+        final Map<String, int[]> clashes = catalogue.findDisplayNameClashes(0);
+        Assert.assertEquals(List.copyOf(clashes.keySet()), List.of("alpha", "beta"));
+        Assert.assertEquals(clashes.get("alpha"), new int[] {0, 1});
+        Assert.assertEquals(clashes.get("beta"), new int[] {0, 1});
+    }
+}
@@ -0,0 +1,46 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+
+public class EntityDescriptorUKIdPopulationStageTest extends BaseDOMTest {
+
+    protected EntityDescriptorUKIdPopulationStageTest() {
+        super(EntityDescriptorUKIdPopulationStage.class);
+    }
+
+    @Test
+    public void testPopulation() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        for (final String name : new String[] {"a.xml", "b.xml", "c.xml", "d.xml"}) {
+            items.add(readDOMItem(name));
+        }
+
+        final EntityDescriptorUKIdPopulationStage stage = new EntityDescriptorUKIdPopulationStage();
+        stage.setId("test");
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        Assert.assertEquals(UKEntityFacts.ukIdOf(items.get(0)), "uk000001");
+        Assert.assertTrue(items.get(0).getItemMetadata().get(ErrorStatus.class).isEmpty());
+        Assert.assertEquals(UKEntityFacts.ukIdOf(items.get(1)), "uk000002");
+
+        // the second entity with an ID value loses it
+        Assert.assertNull(UKEntityFacts.ukIdOf(items.get(2)));
+        final List<ErrorStatus> errors = items.get(2).getItemMetadata().get(ErrorStatus.class);
+        Assert.assertEquals(errors.size(), 1);
+        Assert.assertEquals(errors.get(0).getStatusMessage(),
+                "EntityDescriptor https://c.example.org/entity has duplicate ID value uk000001");
+
+        Assert.assertNull(UKEntityFacts.ukIdOf(items.get(3)));
+        Assert.assertEquals(items.get(3).getItemMetadata().get(ErrorStatus.class).size(), 1);
+    }
+}
@@ -0,0 +1,54 @@
+package uk.org.ukfederation.mda;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FileSupportTest {
+
+    @Test
+    public void testWriteAtomically() throws Exception {
+        final Path dir = Files.createTempDirectory("FileSupportTest");
+        final Path file = dir.resolve("file.txt");
+        try {
+            FileSupport.writeAtomically(file, out -> out.write("one".getBytes(StandardCharsets.UTF_8)));
+            FileSupport.writeAtomically(file, out -> out.write("two".getBytes(StandardCharsets.UTF_8)));
+            Assert.assertEquals(Files.readString(file), "two");
+
+            // A failed write keeps the old content and leaves no temporary file behind.
+            try {
+                FileSupport.writeAtomically(file, out -> {
+                    out.write("three".getBytes(StandardCharsets.UTF_8));
+                    throw new IOException("failed");
+                });
+                Assert.fail("expected exception");
+            } catch (final IOException e) {
+                Assert.assertEquals(e.getMessage(), "failed");
+            }
+            Assert.assertEquals(Files.readString(file), "two");
+            try (Stream<Path> files = Files.list(dir)) {
+                Assert.assertEquals(files.count(), 1);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testIsTemporary() {
+        Assert.assertTrue(FileSupport.isTemporary(Path.of("uk", "01", "uk012345.xml1234.tmp")));
+        Assert.assertFalse(FileSupport.isTemporary(Path.of("uk", "01", "uk012345.xml")));
+    }
+
+    @Test
+    public void testHex() {
+        Assert.assertEquals(FileSupport.hex(new byte[] {0, 1, (byte) 0xab, (byte) 0xff}), "0001abff");
+        Assert.assertEquals(FileSupport.hex(new byte[0]), "");
+    }
+}
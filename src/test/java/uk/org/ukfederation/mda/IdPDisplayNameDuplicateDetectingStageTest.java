@@ -1,5 +1,6 @@
 package uk.org.ukfederation.mda;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -140,6 +141,32 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
         Assert.assertEquals(countErrors(dup), 1, "deliberate duplicate");
     }
 
+    /**
+     * A duplicated OrganizationDisplayName appearing in a role descriptor's Organization.
+     * 
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void duplicateODNRoleLevel() throws Exception {
+        final DOMElementItem item1 = makeItem("sv-and-en-1");
+        final DOMElementItem item2 = makeItem("sv-and-en-2");
+        final DOMElementItem dup   = makeItem("dup-odn-role");
+        
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+        items.add(dup);
+        
+        final IdPDisplayNameDuplicateDetectingStage stage = makeStage();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+        
+        Assert.assertEquals(countErrors(item1), 0, "first item");
+        Assert.assertEquals(countErrors(item2), 1, "second item");
+        Assert.assertEquals(countErrors(dup), 1, "deliberate duplicate");
+    }
+
     /**
      * A duplicated OrganizationDisplayName, if you allow for white space at start and end of names.
      * 
@@ -303,4 +330,50 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
         Assert.assertEquals(countErrors(item2), 0, "second item");
     }
 
+    /**
+     * Using a registry gives the same results as not using one, both on the first run
+     * and on a second run where the registry has been loaded from disk.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void duplicateAllWithRegistry() throws Exception {
+        final File file = File.createTempFile("registry", ".bin");
+        file.delete();
+        try {
+            for (int run = 0; run < 2; run++) {
+                final IdPDisplayNameRegistry registry = new IdPDisplayNameRegistry();
+                registry.setRegistryFile(file);
+                registry.initialize();
+                Assert.assertEquals(registry.size("test"), run == 0 ? 0 : 5);
+
+                final DOMElementItem item1 = makeItem("sv-and-en-1");
+                final DOMElementItem item2 = makeItem("sv-and-en-2");
+                final DOMElementItem dupA  = makeItem("dup-mdui");
+                final DOMElementItem dupB  = makeItem("dup-odn");
+                final DOMElementItem dupC  = makeItem("dup-both");
+                final List<Item<Element>> items = List.of(item1, item2, dupA, dupB, dupC);
+
+                final IdPDisplayNameDuplicateDetectingStage stage = new IdPDisplayNameDuplicateDetectingStage();
+                stage.setId("test");
+                stage.setDisplayNameRegistry(registry);
+                stage.initialize();
+                populateIdentifiers(items);
+                stage.execute(items);
+
+                Assert.assertEquals(countErrors(item1), 1, "first item");
+                Assert.assertEquals(countErrors(item2), 1, "second item");
+                Assert.assertEquals(countErrors(dupA), 1, "deliberate duplicate 1");
+                Assert.assertEquals(countErrors(dupB), 1, "deliberate duplicate 2");
+                Assert.assertEquals(countErrors(dupC), 2, "deliberate duplicate 3");
+                Assert.assertTrue(file.exists());
+
+                stage.destroy();
+                registry.destroy();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
 }
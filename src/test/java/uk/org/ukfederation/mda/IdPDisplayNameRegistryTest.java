@@ -0,0 +1,129 @@
+package uk.org.ukfederation.mda;
+
+import java.io.File;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** Unit tests for the {@link IdPDisplayNameRegistry} class. */
+public class IdPDisplayNameRegistryTest {
+
+    private static final String NS = "ns";
+
+    @Test
+    public void testUpdate() throws Exception {
+        final IdPDisplayNameRegistry registry = new IdPDisplayNameRegistry();
+        registry.initialize();
+
+        Assert.assertTrue(registry.update(NS, "https://a.example.org", "http://ukfederation.org.uk",
+                List.of("Example")));
+        Assert.assertFalse(registry.update(NS, "https://a.example.org", "http://ukfederation.org.uk",
+                List.of("Example")));
+        Assert.assertTrue(registry.update(NS, "https://b.example.org", "https://www.wayf.dk", List.of("EXAMPLE", "B")));
+
+        Assert.assertEquals(registry.countEntitiesWithFoldedName(NS, "example"), 2);
+        Assert.assertEquals(registry.countEntitiesWithFoldedName(NS, "b"), 1);
+        Assert.assertEquals(registry.countEntitiesWithFoldedName(NS, "c"), 0);
+        Assert.assertTrue(registry.isNameUsedByAuthority(NS, "Example", "http://ukfederation.org.uk"));
+        Assert.assertFalse(registry.isNameUsedByAuthority(NS, "EXAMPLE", "http://ukfederation.org.uk"));
+
+        // Changing an entity's names removes the old ones from the index
+        Assert.assertTrue(registry.update(NS, "https://b.example.org", "https://www.wayf.dk", List.of("B")));
+        Assert.assertEquals(registry.countEntitiesWithFoldedName(NS, "example"), 1);
+
+        // So does changing its registration authority
+        Assert.assertTrue(registry.update(NS, "https://b.example.org", null, List.of("B")));
+        Assert.assertFalse(registry.isNameUsedByAuthority(NS, "B", "https://www.wayf.dk"));
+
+        registry.destroy();
+    }
+
+    @Test
+    public void testRetainUpdated() throws Exception {
+        final IdPDisplayNameRegistry registry = new IdPDisplayNameRegistry();
+        registry.initialize();
+
+        registry.update(NS, "https://a.example.org", null, List.of("Example"));
+        registry.update(NS, "https://b.example.org", null, List.of("B"));
+        registry.retainUpdated(NS);
+        Assert.assertEquals(registry.size(NS), 2);
+
+        // An entity left out of a pass is removed, whether or not the others changed
+        registry.update(NS, "https://b.example.org", null, List.of("B"));
+        registry.retainUpdated(NS);
+        Assert.assertEquals(registry.size(NS), 1);
+        Assert.assertEquals(registry.countEntitiesWithFoldedName(NS, "example"), 0);
+        Assert.assertNull(registry.getNames(NS, "https://a.example.org"));
+        Assert.assertEquals(registry.getNames(NS, "https://b.example.org"), List.of("B"));
+
+        registry.retainUpdated(NS);
+        Assert.assertEquals(registry.size(NS), 0);
+
+        registry.destroy();
+    }
+
+    @Test
+    public void testNamespaces() throws Exception {
+        final IdPDisplayNameRegistry registry = new IdPDisplayNameRegistry();
+        registry.initialize();
+
+        // Each namespace keeps its own names for the same entity
+        for (int run = 0; run < 2; run++) {
+            Assert.assertEquals(registry.update("raw", "https://a.example.org", null, List.of("Example")), run == 0);
+            registry.retainUpdated("raw");
+            Assert.assertEquals(registry.update("deconflicted", "https://a.example.org", null,
+                    List.of("[DK] Example")), run == 0);
+            registry.retainUpdated("deconflicted");
+        }
+        Assert.assertEquals(registry.getNames("raw", "https://a.example.org"), List.of("Example"));
+        Assert.assertEquals(registry.getNames("deconflicted", "https://a.example.org"), List.of("[DK] Example"));
+        Assert.assertEquals(registry.countEntitiesWithFoldedName("raw", "[dk] example"), 0);
+        Assert.assertEquals(registry.size("other"), 0);
+
+        registry.destroy();
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        final File file = File.createTempFile("registry", ".bin");
+        file.delete();
+        try {
+            final IdPDisplayNameRegistry registry = new IdPDisplayNameRegistry();
+            registry.setRegistryFile(file);
+            registry.initialize();
+            registry.update(NS, "https://a.example.org", null, List.of("A1", "A2"));
+            registry.update(NS, "https://b.example.org", "https://www.wayf.dk", List.of("B"));
+            registry.update("other", "https://a.example.org", null, List.of("A"));
+            registry.save();
+            registry.destroy();
+
+            final IdPDisplayNameRegistry reloaded = new IdPDisplayNameRegistry();
+            reloaded.setRegistryFile(file);
+            reloaded.initialize();
+            Assert.assertEquals(reloaded.size(NS), 2);
+            Assert.assertEquals(reloaded.size("other"), 1);
+            Assert.assertEquals(reloaded.getNames(NS, "https://a.example.org"), List.of("A1", "A2"));
+            Assert.assertTrue(reloaded.isNameUsedByAuthority(NS, "B", "https://www.wayf.dk"));
+            Assert.assertFalse(reloaded.update(NS, "https://a.example.org", null, List.of("A1", "A2")));
+
+            // Only the reloaded entity was updated in this pass
+            reloaded.retainUpdated(NS);
+            Assert.assertEquals(reloaded.size(NS), 1);
+            reloaded.destroy();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDigest() {
+        Assert.assertEquals(IdPDisplayNameRegistry.digest("ra", List.of("A", "B")),
+                IdPDisplayNameRegistry.digest("ra", List.of("A", "B")));
+        Assert.assertNotEquals(IdPDisplayNameRegistry.digest("ra", List.of("AB")),
+                IdPDisplayNameRegistry.digest("ra", List.of("A", "B")));
+        Assert.assertNotEquals(IdPDisplayNameRegistry.digest(null, List.of("A")),
+                IdPDisplayNameRegistry.digest("", List.of("A")));
+    }
+
+}
@@ -0,0 +1,164 @@
+package uk.org.ukfederation.mda;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.DisableFlow;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.EnableFlow;
+
+public class ItemCheckpointTest extends BaseDOMTest {
+
+    protected ItemCheckpointTest() {
+        super(ItemCheckpoint.class);
+    }
+
+    /** Item metadata which checkpoints can not save. */
+    private static class UnsavedMetadata implements ItemMetadata {
+    }
+
+    private Item<Element> makeItem() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        item.getItemMetadata().put(new ItemId("https://idp.example.org/idp/shibboleth"));
+        item.getItemMetadata().put(new UKId("uk001234"));
+        item.getItemMetadata().put(new RegistrationAuthority("http://ukfederation.org.uk"));
+        item.getItemMetadata().put(new ErrorStatus("owner", "no owner for entity"));
+        item.getItemMetadata().put(new WarningStatus("scope", "scope looks odd: caf\u00e9.example.org"));
+        item.getItemMetadata().put(new InfoStatus("dedup", "kept in preference to duplicates"));
+        item.getItemMetadata().put(new EnableFlow("edugain"));
+        item.getItemMetadata().put(new DisableFlow("export"));
+        return item;
+    }
+
+    private void assertSameItem(final Item<Element> actual, final Item<Element> expected) throws Exception {
+        assertXMLEqual(expected.unwrap(), actual.unwrap());
+        Assert.assertEquals(actual.getItemMetadata().get(ItemId.class).get(0).getId(),
+                "https://idp.example.org/idp/shibboleth");
+        Assert.assertEquals(actual.getItemMetadata().get(UKId.class).get(0), new UKId("uk001234"));
+        Assert.assertEquals(actual.getItemMetadata().get(RegistrationAuthority.class).get(0)
+                .getRegistrationAuthority(), "http://ukfederation.org.uk");
+
+        final List<ErrorStatus> errors = actual.getItemMetadata().get(ErrorStatus.class);
+        Assert.assertEquals(errors.size(), 1);
+        Assert.assertEquals(errors.get(0).getComponentId(), "owner");
+        Assert.assertEquals(errors.get(0).getStatusMessage(), "no owner for entity");
+        final List<WarningStatus> warnings = actual.getItemMetadata().get(WarningStatus.class);
+        Assert.assertEquals(warnings.size(), 1);
+        Assert.assertEquals(warnings.get(0).getStatusMessage(), "scope looks odd: caf\u00e9.example.org");
+        final List<InfoStatus> infos = actual.getItemMetadata().get(InfoStatus.class);
+        Assert.assertEquals(infos.size(), 1);
+        Assert.assertEquals(infos.get(0).getComponentId(), "dedup");
+
+        Assert.assertEquals(actual.getItemMetadata().get(EnableFlow.class).get(0).getFlowName(), "edugain");
+        Assert.assertEquals(actual.getItemMetadata().get(DisableFlow.class).get(0).getFlowName(), "export");
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Item<Element> item = makeItem();
+        final List<Item<Element>> items = new ArrayList<>(List.of(item, item.copy()));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ItemCheckpoint.write(items, out, List.of());
+
+        final List<Item<Element>> read = new ArrayList<>();
+        ItemCheckpoint.read(getParserPool(), new ByteArrayInputStream(out.toByteArray()), read);
+        Assert.assertEquals(read.size(), 2);
+        assertSameItem(read.get(0), item);
+        assertSameItem(read.get(1), item);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ItemCheckpoint.write(List.of(), out, List.of());
+
+        final List<Item<Element>> read = new ArrayList<>();
+        ItemCheckpoint.read(getParserPool(), new ByteArrayInputStream(out.toByteArray()), read);
+        Assert.assertTrue(read.isEmpty());
+    }
+
+    @Test
+    public void testNotCheckpoint() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(new GZIPOutputStream(out))) {
+            data.writeInt(0x12345678);
+        }
+        try {
+            ItemCheckpoint.read(getParserPool(), new ByteArrayInputStream(out.toByteArray()), new ArrayList<>());
+            Assert.fail("expected exception");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnsavedMetadata() throws Exception {
+        final Item<Element> item = makeItem();
+        item.getItemMetadata().put(new UnsavedMetadata());
+        final List<Item<Element>> items = List.of(item);
+
+        try {
+            ItemCheckpoint.write(items, new ByteArrayOutputStream(), List.of());
+            Assert.fail("expected exception");
+        } catch (final IOException e) {
+            // expected
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ItemCheckpoint.write(items, out, List.of(UnsavedMetadata.class));
+        final List<Item<Element>> read = new ArrayList<>();
+        ItemCheckpoint.read(getParserPool(), new ByteArrayInputStream(out.toByteArray()), read);
+        Assert.assertEquals(read.size(), 1);
+        Assert.assertTrue(read.get(0).getItemMetadata().get(UnsavedMetadata.class).isEmpty());
+        assertSameItem(read.get(0), makeItem());
+    }
+
+    @Test
+    public void testStages() throws Exception {
+        final Path directory = Files.createTempDirectory("ItemCheckpointTest");
+        final Path file = directory.resolve("checkpoint.gz");
+        try {
+            final Item<Element> item = makeItem();
+            final List<Item<Element>> items = new ArrayList<>(List.of(item));
+
+            final CheckpointWritingStage writer = new CheckpointWritingStage();
+            writer.setId("writer");
+            writer.setCheckpointFile(file.toFile());
+            writer.initialize();
+            writer.execute(items);
+            Assert.assertEquals(items.size(), 1);
+            Assert.assertTrue(Files.exists(file));
+
+            final CheckpointResumingStage resumer = new CheckpointResumingStage();
+            resumer.setId("resumer");
+            resumer.setCheckpointFile(file.toFile());
+            resumer.setParserPool(getParserPool());
+            resumer.initialize();
+            final List<Item<Element>> resumed = new ArrayList<>();
+            resumer.execute(resumed);
+            Assert.assertEquals(resumed.size(), 1);
+            assertSameItem(resumed.get(0), item);
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.EntityDescriptorFlowConstraintPopulationStage;
+
+public class UKEntityFactsPopulationStageTest extends BaseDOMTest {
+
+    protected UKEntityFactsPopulationStageTest() {
+        super(UKEntityFactsPopulationStage.class);
+    }
+
+    @Test
+    public void testPopulation() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        item.getItemMetadata().put(new UKId("uk001234"));
+        item.getItemMetadata().put(new ItemId("https://idp1.example.org/idp/shibboleth"));
+        item.getItemMetadata().put(new RegistrationAuthority("http://ukfederation.org.uk"));
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        final EntityDescriptorFlowConstraintPopulationStage flows = new EntityDescriptorFlowConstraintPopulationStage();
+        flows.setId("flows");
+        flows.initialize();
+        flows.execute(items);
+
+        final UKEntityFactsPopulationStage stage = new UKEntityFactsPopulationStage();
+        stage.setId("test");
+        stage.initialize();
+        stage.execute(items);
+        // a second execution replaces the record rather than adding another
+        stage.execute(items);
+        stage.destroy();
+
+        Assert.assertEquals(item.getItemMetadata().get(UKEntityFacts.class).size(), 1);
+        final UKEntityFacts facts = UKEntityFacts.find(item);
+        Assert.assertNotNull(facts);
+        Assert.assertEquals(facts.getUKId(), "uk001234");
+        Assert.assertEquals(facts.getItemId(), "https://idp1.example.org/idp/shibboleth");
+        Assert.assertEquals(facts.getRegistrationAuthority(), "http://ukfederation.org.uk");
+        Assert.assertEquals(facts.getOrgID(), "ukforg123");
+        Assert.assertEquals(facts.getRoles(), UKEntityFacts.ROLE_IDP | UKEntityFacts.ROLE_AA);
+        Assert.assertTrue(facts.isIdentityProvider());
+        Assert.assertFalse(facts.hasRole(UKEntityFacts.ROLE_SP));
+        Assert.assertFalse(facts.hasEnabledFlows());
+        Assert.assertTrue(facts.hasDisabledFlows());
+        Assert.assertTrue(facts.isFlowDisabled(UKEntityFacts.flowId("wibble")));
+        Assert.assertTrue(facts.isFlowDisabled(UKEntityFacts.flowId("wobble")));
+        Assert.assertFalse(facts.isFlowDisabled(UKEntityFacts.flowId("other")));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        final UKEntityFactsPopulationStage stage = new UKEntityFactsPopulationStage();
+        stage.setId("test");
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        final UKEntityFacts facts = UKEntityFacts.find(item);
+        Assert.assertNotNull(facts);
+        Assert.assertNull(facts.getUKId());
+        Assert.assertNull(facts.getItemId());
+        Assert.assertNull(facts.getRegistrationAuthority());
+        Assert.assertFalse(facts.hasDisabledFlows());
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        item.getItemMetadata().put(new UKId("uk001234"));
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        final UKEntityFactsPopulationStage stage = new UKEntityFactsPopulationStage();
+        stage.setId("test");
+        stage.initialize();
+        stage.execute(items);
+        Assert.assertNotNull(UKEntityFacts.find(item));
+
+        // replacing the identifier makes the record stale
+        item.getItemMetadata().remove(UKId.class);
+        item.getItemMetadata().put(new UKId("uk005678"));
+        Assert.assertNull(UKEntityFacts.find(item));
+        Assert.assertEquals(UKEntityFacts.ukIdOf(item), "uk005678");
+
+        // adding metadata it was built from does too
+        stage.execute(items);
+        Assert.assertNotNull(UKEntityFacts.find(item));
+        item.getItemMetadata().put(new RegistrationAuthority("http://ukfederation.org.uk"));
+        Assert.assertNull(UKEntityFacts.find(item));
+        Assert.assertEquals(UKEntityFacts.registrationAuthorityOf(item), "http://ukfederation.org.uk");
+
+        // running the stage again brings it up to date
+        stage.execute(items);
+        stage.destroy();
+        final UKEntityFacts facts = UKEntityFacts.find(item);
+        Assert.assertNotNull(facts);
+        Assert.assertEquals(facts.getUKId(), "uk005678");
+        Assert.assertEquals(facts.getRegistrationAuthority(), "http://ukfederation.org.uk");
+    }
+
+    @Test
+    public void testFlowIds() {
+        Assert.assertEquals(UKEntityFacts.flowId("alpha"), UKEntityFacts.flowId("alpha"));
+        Assert.assertNotEquals(UKEntityFacts.flowId("alpha"), UKEntityFacts.flowId("beta"));
+    }
+}
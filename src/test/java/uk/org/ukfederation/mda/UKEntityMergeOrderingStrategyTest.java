@@ -0,0 +1,71 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.DOMElementItem;
+
+public class UKEntityMergeOrderingStrategyTest extends BaseDOMTest {
+
+    public UKEntityMergeOrderingStrategyTest() {
+        super(UKEntityMergeOrderingStrategy.class);
+    }
+
+    private Item<Element> makeItem(final String ukId, final String itemId) throws Exception {
+        final Item<Element> item = new DOMElementItem(readXMLData("trivial.xml"));
+        if (ukId != null) {
+            item.getItemMetadata().put(new UKId(ukId));
+        }
+        if (itemId != null) {
+            item.getItemMetadata().put(new ItemId(itemId));
+        }
+        return item;
+    }
+
+    @Test
+    public void testMergeRuns() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        // UK registrations, already in order
+        items.add(makeItem("uk000001", "https://a.example.org"));
+        items.add(makeItem("uk000004", "https://d.example.org"));
+        items.add(makeItem(null, "https://z.example.org"));
+        // an imported federation, already in order
+        items.add(makeItem(null, "https://b.example.org"));
+        items.add(makeItem(null, "https://c.example.org"));
+        items.add(makeItem(null, null));
+        // another, in order, including a key equal to an earlier item
+        items.add(makeItem("uk000002", "https://e.example.org"));
+        items.add(makeItem(null, "https://b.example.org"));
+
+        final List<Item<Element>> expected = new UKEntityOrderingStrategy().order(items);
+        final List<Item<Element>> actual = new UKEntityMergeOrderingStrategy().order(items);
+        Assert.assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertSame(actual.get(i), expected.get(i));
+        }
+
+        // equal keys keep their original relative order
+        Assert.assertSame(actual.get(3), items.get(3));
+        Assert.assertSame(actual.get(4), items.get(7));
+    }
+
+    @Test
+    public void testAlreadyOrdered() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(makeItem("uk000001", null));
+        items.add(makeItem("uk000002", null));
+        items.add(makeItem(null, "https://a.example.org"));
+        Assert.assertEquals(new UKEntityMergeOrderingStrategy().orderPermutation(items), new int[] {0, 1, 2});
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertEquals(new UKEntityMergeOrderingStrategy().order(new ArrayList<>()).size(), 0);
+    }
+}
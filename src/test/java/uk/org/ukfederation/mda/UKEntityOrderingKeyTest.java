@@ -0,0 +1,51 @@
+package uk.org.ukfederation.mda;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class UKEntityOrderingKeyTest {
+
+    @Test
+    public void testCompare() {
+        final UKEntityOrderingKey named = new UKEntityOrderingKey(true, "name", null, null);
+        final UKEntityOrderingKey unnamed = new UKEntityOrderingKey(true, null, null, null);
+        final UKEntityOrderingKey uk1 = new UKEntityOrderingKey(false, null, "uk000001", "z");
+        final UKEntityOrderingKey uk2 = new UKEntityOrderingKey(false, null, "uk000002", "a");
+        final UKEntityOrderingKey item = new UKEntityOrderingKey(false, null, null, "a");
+        final UKEntityOrderingKey none = new UKEntityOrderingKey(false, null, null, null);
+
+        final UKEntityOrderingKey[] ordered = {named, unnamed, uk1, uk2, item, none};
+        for (int i = 0; i < ordered.length; i++) {
+            for (int j = 0; j < ordered.length; j++) {
+                Assert.assertEquals(Integer.signum(ordered[i].compareTo(ordered[j])), Integer.compare(i, j));
+            }
+        }
+        Assert.assertEquals(new UKEntityOrderingKey(false, null, "uk000001", "z"), uk1);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final UKEntityOrderingKey[] keys = {
+                new UKEntityOrderingKey(true, "name", null, null),
+                new UKEntityOrderingKey(false, null, "uk000001", "https://example.org/\u00e9"),
+                new UKEntityOrderingKey(false, null, null, null),
+        };
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (final UKEntityOrderingKey key : keys) {
+                key.writeTo(out);
+            }
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            for (final UKEntityOrderingKey key : keys) {
+                Assert.assertEquals(UKEntityOrderingKey.readFrom(in), key);
+            }
+            Assert.assertEquals(in.read(), -1);
+        }
+    }
+}
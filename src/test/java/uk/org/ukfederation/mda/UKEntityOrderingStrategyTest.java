@@ -1,7 +1,10 @@
 package uk.org.ukfederation.mda;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -26,6 +29,37 @@ public class UKEntityOrderingStrategyTest extends BaseDOMTest {
      */
     @Test
     public void testOrder() throws Exception {
+        checkOrder(new UKEntityOrderingStrategy());
+    }
+
+    /**
+     * Test the ordering strategy using an external merge sort.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testExternalOrder() throws Exception {
+        final Path directory = Files.createTempDirectory("UKEntityOrderingStrategyTest");
+        try {
+            // runs of three items, so three runs to merge
+            checkOrder(new UKEntityOrderingStrategy(3, directory));
+
+            // run files are removed afterwards
+            try (Stream<Path> files = Files.list(directory)) {
+                Assert.assertEquals(files.count(), 0L);
+            }
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Check that a strategy puts a collection of items in the expected order.
+     *
+     * @param strat the strategy to check
+     * @throws Exception if something goes wrong
+     */
+    private void checkOrder(final UKEntityOrderingStrategy strat) throws Exception {
         // Create a trivial DOM Document as a placeholder
         final Element trivialDoc = readXMLData("trivial.xml");
         
@@ -66,7 +100,6 @@ public class UKEntityOrderingStrategyTest extends BaseDOMTest {
         items.add(i2);
         
         // Order the collection
-        final UKEntityOrderingStrategy strat = new UKEntityOrderingStrategy();
         final List<Item<Element>>items2 = strat.order(items);
         
         // Check that everything is in the right place afterwards
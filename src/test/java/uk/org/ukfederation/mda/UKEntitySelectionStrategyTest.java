@@ -0,0 +1,58 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import uk.org.ukfederation.mda.dom.LazyDOMConversionStage;
+import uk.org.ukfederation.mda.dom.LazyDOMElementItem;
+
+public class UKEntitySelectionStrategyTest extends BaseDOMTest {
+
+    protected UKEntitySelectionStrategyTest() {
+        super(UKEntitySelectionStrategy.class);
+    }
+
+    private List<Item<Element>> makeItems() throws Exception {
+        final Element trivialDoc = readXMLData("trivial.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        final DOMElementItem selected = new DOMElementItem(trivialDoc);
+        selected.getItemMetadata().put(new UKId("uk000001"));
+        items.add(selected);
+        items.add(new DOMElementItem(trivialDoc));
+        return items;
+    }
+
+    @Test
+    public void testSelection() throws Exception {
+        final Predicate<Item<Element>> strategy = new UKEntitySelectionStrategy();
+        final List<Item<Element>> items = makeItems();
+        Assert.assertTrue(strategy.test(items.get(0)));
+        Assert.assertFalse(strategy.test(items.get(1)));
+    }
+
+    @Test
+    public void testLazySelection() throws Exception {
+        final List<Item<Element>> items = makeItems();
+        final LazyDOMConversionStage stage = new LazyDOMConversionStage();
+        stage.setId("lazy");
+        stage.setParserPool(getParserPool());
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        final List<Item<Element>> selected =
+                items.stream().filter(new UKEntitySelectionStrategy()).collect(Collectors.toList());
+        Assert.assertEquals(selected.size(), 1);
+        Assert.assertSame(selected.get(0), items.get(0));
+        // selection does not need the element
+        Assert.assertFalse(((LazyDOMElementItem) selected.get(0)).isMaterialized());
+    }
+}
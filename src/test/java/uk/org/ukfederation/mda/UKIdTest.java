@@ -29,6 +29,24 @@ public class UKIdTest {
         }
     }
     
+    /** Tests for extracting the numeric part of an identifier. */
+    @Test
+    public void testNumber() {
+        Assert.assertEquals(UKId.number("uk012345"), 12345);
+        Assert.assertEquals(UKId.number("uk01234"), -1);
+        Assert.assertEquals(UKId.number("uk01234x"), -1);
+        Assert.assertEquals(UKId.number("xx012345"), -1);
+        Assert.assertEquals(UKId.number(null), -1);
+    }
+
+    /** Tests for extracting the digits of an identifier. */
+    @Test
+    public void testDigits() {
+        Assert.assertEquals(UKId.digits("uk012345"), "012345");
+        Assert.assertNull(UKId.digits("uk01234x"));
+        Assert.assertNull(UKId.digits(null));
+    }
+
     /**
      * Test the implementation of the <code>Comparable</code> interface.
      */
@@ -0,0 +1,65 @@
+package uk.org.ukfederation.mda.dom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.xml.namespace.QName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class Base64NormalizingStageTest extends BaseDOMTest {
+
+    private static final String DS_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    protected Base64NormalizingStageTest() {
+        super(Base64NormalizingStage.class);
+    }
+
+    @Nonnull
+    private String text(@Nonnull final Element root, @Nonnull final String localName) {
+        return root.getElementsByTagNameNS(DS_NS, localName).item(0).getTextContent();
+    }
+
+    @Test
+    public void testPolicies() throws Exception {
+        final Item<Element> item = readDOMItem("in.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        final Map<QName, Base64WrappingPolicy> policies = new HashMap<>();
+        policies.put(new QName(DS_NS, "X509Certificate"), Base64WrappingPolicy.DEFAULT);
+        policies.put(new QName(DS_NS, "DigestValue"), Base64WrappingPolicy.COLLAPSE);
+        policies.put(new QName(DS_NS, "SignatureValue"), new Base64WrappingPolicy(40, false, true));
+
+        final Base64NormalizingStage stage = new Base64NormalizingStage();
+        stage.setId("test");
+        stage.setPolicies(policies);
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        final Element root = item.unwrap();
+        Assert.assertEquals(text(root, "X509Certificate"), "\nQUJDREVG\n");
+        Assert.assertEquals(text(root, "DigestValue"), "QUJDREVGR0hJSktM");
+        Assert.assertEquals(text(root, "SignatureValue"),
+                "QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVphYmNk\n" +
+                "ZWZnaGlqa2xtbm9wcXJzdHV2d3h5ejAxMjM0NTY3\n" +
+                "ODk=\n");
+        Assert.assertEquals(text(root, "KeyName"), " not Base64 ");
+    }
+
+    @Test
+    public void testDefaultMatchesWrappingStage() {
+        final String stripped = "QUJDREVG";
+        Assert.assertEquals(Base64WrappingPolicy.DEFAULT.apply(stripped), "\nQUJDREVG\n");
+        Assert.assertEquals(Base64WrappingPolicy.COLLAPSE.apply(stripped), stripped);
+    }
+}
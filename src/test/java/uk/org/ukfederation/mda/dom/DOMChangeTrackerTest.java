@@ -0,0 +1,57 @@
+package uk.org.ukfederation.mda.dom;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class DOMChangeTrackerTest extends BaseDOMTest {
+
+    protected DOMChangeTrackerTest() {
+        super(DOMChangeTracker.class);
+    }
+
+    @Test
+    public void testAttribute() throws Exception {
+        final Element element = readXMLData("entity.xml");
+        final DOMChangeTracker tracker = DOMChangeTracker.track(element);
+        Assert.assertNotNull(tracker);
+        Assert.assertFalse(tracker.isChanged());
+
+        // reading does not count as a change
+        element.getAttributeNS(null, "ID");
+        element.getTextContent();
+        Assert.assertFalse(tracker.isChanged());
+
+        element.setAttributeNS(null, "ID", "uk005678");
+        Assert.assertTrue(tracker.isChanged());
+    }
+
+    @Test
+    public void testDescendants() throws Exception {
+        final Element element = readXMLData("entity.xml");
+        final DOMChangeTracker tracker = DOMChangeTracker.track(element.getOwnerDocument());
+        Assert.assertNotNull(tracker);
+        final Element child = ElementCursorSupport.firstChildElement(element);
+        Assert.assertNotNull(child);
+        element.removeChild(child);
+        Assert.assertTrue(tracker.isChanged());
+
+        final DOMChangeTracker second = DOMChangeTracker.track(element);
+        Assert.assertNotNull(second);
+        element.appendChild(child);
+        child.setTextContent("text");
+        Assert.assertTrue(second.isChanged());
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        final Element element = readXMLData("entity.xml");
+        final DOMChangeTracker tracker = DOMChangeTracker.track(element);
+        Assert.assertNotNull(tracker);
+        tracker.stop();
+        element.setAttributeNS(null, "ID", "uk005678");
+        Assert.assertFalse(tracker.isChanged());
+    }
+}
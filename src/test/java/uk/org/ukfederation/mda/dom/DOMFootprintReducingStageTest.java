@@ -0,0 +1,135 @@
+package uk.org.ukfederation.mda.dom;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class DOMFootprintReducingStageTest extends BaseDOMTest {
+
+    protected DOMFootprintReducingStageTest() {
+        super(DOMFootprintReducingStage.class);
+    }
+
+    private DOMFootprintReducingStage makeStage() throws Exception {
+        final DOMFootprintReducingStage stage = new DOMFootprintReducingStage();
+        stage.setId("test");
+        return stage;
+    }
+
+    private int countTextNodes(final Node node) {
+        int count = 0;
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.TEXT_NODE) {
+                count++;
+            } else {
+                count += countTextNodes(child);
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testWhitespace() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        final DOMFootprintReducingStage stage = makeStage();
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        // only the three names remain
+        Assert.assertEquals(countTextNodes(item.unwrap()), 3);
+        final Element org = ElementCursorSupport.firstChildElement(item.unwrap(), SAMLMetadataSupport.MD_NS,
+                "Organization");
+        Assert.assertNotNull(org);
+        Assert.assertEquals(org.getTextContent(), "ExampleExamplehttps://example.org/");
+    }
+
+    @Test
+    public void testWhitespaceDisabled() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        final int before = countTextNodes(item.unwrap());
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        final DOMFootprintReducingStage stage = makeStage();
+        stage.setStripWhitespace(false);
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        Assert.assertEquals(countTextNodes(item.unwrap()), before);
+    }
+
+    @Test
+    public void testSignedContent() throws Exception {
+        final Item<Element> item = readDOMItem("signed.xml");
+        final Element expected = (Element) item.unwrap().cloneNode(true);
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        final DOMFootprintReducingStage stage = makeStage();
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        // nothing within the signed element is changed
+        Assert.assertTrue(expected.isEqualNode(item.unwrap()));
+    }
+
+    @Test
+    public void testSharing() throws Exception {
+        final Item<Element> item1 = readDOMItem("entity.xml");
+        final Item<Element> item2 = readDOMItem("entity.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+
+        final DOMFootprintReducingStage stage = makeStage();
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        final String entityID1 = item1.unwrap().getAttributeNS(null, "entityID");
+        final String entityID2 = item2.unwrap().getAttributeNS(null, "entityID");
+        Assert.assertEquals(entityID1, entityID2);
+        Assert.assertSame(entityID1, entityID2);
+    }
+
+    @Test
+    public void testMaximumLength() throws Exception {
+        final Item<Element> item1 = readDOMItem("entity.xml");
+        final Item<Element> item2 = readDOMItem("entity.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+
+        final DOMFootprintReducingStage stage = makeStage();
+        stage.setMaximumLength(10);
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        // the entityID is too long to be shared
+        Assert.assertNotSame(item1.unwrap().getAttributeNS(null, "entityID"),
+                item2.unwrap().getAttributeNS(null, "entityID"));
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNegativeMaximumLength() throws Exception {
+        final DOMFootprintReducingStage stage = makeStage();
+        stage.setMaximumLength(-1);
+        stage.initialize();
+    }
+}
@@ -0,0 +1,197 @@
+package uk.org.ukfederation.mda.dom;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class DiskBackedItemListTest extends BaseDOMTest {
+
+    private Path directory;
+
+    protected DiskBackedItemListTest() {
+        super(DiskBackedItemList.class);
+    }
+
+    @BeforeClass
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("DiskBackedItemListTest");
+    }
+
+    @AfterClass
+    public void deleteDirectory() throws Exception {
+        Files.delete(directory);
+    }
+
+    private Item<Element> makeItem(final int n) throws Exception {
+        final Element element = (Element) readXMLData("entity.xml").cloneNode(true);
+        element.setAttributeNS(null, "ID", String.format("uk%06d", n));
+        final Item<Element> item = new DOMElementItem(element);
+        item.getItemMetadata().put(new ItemId("item" + n));
+        return item;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        try (DiskBackedItemList list = new DiskBackedItemList(getParserPool(), directory)) {
+            final Item<Element> original = makeItem(1);
+            list.add(original);
+            Assert.assertEquals(list.size(), 1);
+            Assert.assertEquals(list.getResidentCount(), 0);
+
+            final Item<Element> item = list.get(0);
+            Assert.assertNotSame(item, original);
+            Assert.assertEquals(item.getItemMetadata().get(ItemId.class).get(0).getId(), "item1");
+            assertXMLEqual(original.unwrap(), item.unwrap());
+            Assert.assertEquals(list.getResidentCount(), 1);
+        }
+    }
+
+    @Test
+    public void testSpilling() throws Exception {
+        // a small chunk size forces several mapped regions
+        try (DiskBackedItemList list = new DiskBackedItemList(getParserPool(), directory, 2, 1024)) {
+            for (int i = 0; i < 10; i++) {
+                list.add(makeItem(i));
+            }
+            for (final Item<Element> item : list) {
+                item.unwrap().setAttributeNS(null, "validUntil", "2030-01-01T00:00:00Z");
+                Assert.assertTrue(list.getResidentCount() <= 2);
+            }
+
+            // changes made while resident survive spilling
+            for (int i = 0; i < 10; i++) {
+                final Element element = list.get(i).unwrap();
+                Assert.assertEquals(element.getAttributeNS(null, "ID"), String.format("uk%06d", i));
+                Assert.assertEquals(element.getAttributeNS(null, "validUntil"), "2030-01-01T00:00:00Z");
+            }
+            Assert.assertTrue(list.getFileSize() > 1024);
+        }
+    }
+
+    @Test
+    public void testUnchangedNotRewritten() throws Exception {
+        try (DiskBackedItemList list = new DiskBackedItemList(getParserPool(), directory, 1, 1024)) {
+            for (int i = 0; i < 3; i++) {
+                list.add(makeItem(i));
+            }
+            final long size = list.getFileSize();
+            for (int round = 0; round < 3; round++) {
+                for (final Item<Element> item : list) {
+                    Assert.assertTrue(item.unwrap().hasAttributeNS(null, "ID"));
+                }
+            }
+            Assert.assertEquals(list.getFileSize(), size);
+
+            // a change which makes an element smaller is written over its previous copy
+            list.get(1).unwrap().removeAttributeNS(null, "ID");
+            list.get(0).unwrap();
+            Assert.assertEquals(list.getFileSize(), size);
+            Assert.assertFalse(list.get(1).unwrap().hasAttributeNS(null, "ID"));
+        }
+    }
+
+    @Test
+    public void testRemoveAndSet() throws Exception {
+        try (DiskBackedItemList list = new DiskBackedItemList(getParserPool(), directory, 1, 4096)) {
+            for (int i = 0; i < 5; i++) {
+                list.add(makeItem(i));
+            }
+            list.removeIf(item -> item.unwrap().getAttributeNS(null, "ID").equals("uk000002"));
+            Assert.assertEquals(list.size(), 4);
+            list.set(0, makeItem(99));
+
+            final List<String> ids = new ArrayList<>();
+            for (final Item<Element> item : list) {
+                ids.add(item.unwrap().getAttributeNS(null, "ID"));
+            }
+            Assert.assertEquals(ids, List.of("uk000099", "uk000001", "uk000003", "uk000004"));
+
+            // an item can be moved within the list without being written again
+            final long size = list.getFileSize();
+            list.set(3, list.get(0));
+            Assert.assertEquals(list.getFileSize(), size);
+        }
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        try (DiskBackedItemList list = new DiskBackedItemList(getParserPool(), directory)) {
+            list.add(makeItem(7));
+            final Item<Element> copy = list.get(0).copy();
+            Assert.assertEquals(copy.getItemMetadata().get(ItemId.class).size(), 1);
+            Assert.assertEquals(copy.unwrap().getAttributeNS(null, "ID"), "uk000007");
+            Assert.assertNotSame(copy.unwrap(), list.get(0).unwrap());
+        }
+    }
+
+    @Test
+    public void testFreeSpaceReused() throws Exception {
+        try (DiskBackedItemList list = new DiskBackedItemList(getParserPool(), directory, 1, 64 * 1024)) {
+            for (int i = 0; i < 2; i++) {
+                list.add(makeItem(i));
+            }
+            final long size = list.getFileSize();
+
+            // each element grows in turn, leaving its previous copy free for the other
+            for (int round = 0; round < 20; round++) {
+                final Element element = list.get(round % 2).unwrap();
+                element.setAttributeNS(null, "round", Integer.toString(round));
+                list.get((round + 1) % 2).unwrap();
+            }
+            Assert.assertEquals(list.getFileSize(), size);
+            Assert.assertTrue(list.getFreeSpace() > 0);
+
+            for (int i = 0; i < 2; i++) {
+                final Element element = list.get(i).unwrap();
+                Assert.assertEquals(element.getAttributeNS(null, "ID"), String.format("uk%06d", i));
+                Assert.assertEquals(element.getAttributeNS(null, "round"), Integer.toString(18 + i));
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testChangeAfterSpill() throws Exception {
+        try (DiskBackedItemList list = new DiskBackedItemList(getParserPool(), directory, 1, 4096)) {
+            for (int i = 0; i < 2; i++) {
+                list.add(makeItem(i));
+            }
+            final Element stale = list.get(0).unwrap();
+            list.get(1).unwrap();
+
+            // the element has been spilled, so this change would be lost
+            stale.setAttributeNS(null, "validUntil", "2030-01-01T00:00:00Z");
+            list.get(0).unwrap();
+        }
+    }
+
+    @Test
+    public void testNoFileLeft() throws Exception {
+        final DiskBackedItemList list = new DiskBackedItemList(getParserPool(), directory);
+        list.add(makeItem(1));
+        try (var files = Files.list(directory)) {
+            Assert.assertEquals(files.count(), 0L);
+        }
+        Assert.assertEquals(list.get(0).unwrap().getAttributeNS(null, "ID"), "uk000001");
+        list.close();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testClosed() throws Exception {
+        final DiskBackedItemList list = new DiskBackedItemList(getParserPool(), directory);
+        list.add(makeItem(1));
+        list.close();
+        list.get(0).unwrap();
+    }
+}
@@ -1,15 +1,23 @@
 package uk.org.ukfederation.mda.dom;
 
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 
 import javax.xml.namespace.QName;
 
+import org.testng.Assert;
 import org.testng.annotations.Test;
 import org.w3c.dom.Element;
 
+import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
 import uk.org.ukfederation.mda.BaseDOMTest;
+import uk.org.ukfederation.mda.validate.x509.DecodedX509Certificate;
+import uk.org.ukfederation.mda.validate.x509.X509CertificateCache;
 
 public class ElementBase64WrappingStageTest extends BaseDOMTest {
 
@@ -82,4 +90,113 @@ public class ElementBase64WrappingStageTest extends BaseDOMTest {
         final Element expected = readXMLData("out-3.xml");
         assertXMLEqual(expected, data.unwrap());
     }
+
+    /*
+     * Test that certificate caching leaves the output unchanged, and that the certificate
+     * which appears twice in the input is only cached once.
+     */
+    @Test
+    public void testCertificateCache() throws Exception {
+
+        final Item<Element> data = readDOMItem("in-3.xml");
+        final List<Item<Element>> coll = new ArrayList<>();
+        coll.add(data);
+
+        final ElementBase64WrappingStage stage = new ElementBase64WrappingStage();
+        stage.setId("test");
+        stage.setElementName(certQName);
+        stage.setCacheCertificates(true);
+        stage.initialize();
+        stage.execute(coll);
+        
+        final Element expected = readXMLData("out-3.xml");
+        assertXMLEqual(expected, data.unwrap());
+
+        final X509CertificateCache cache = X509CertificateCache.find(data);
+        Assert.assertNotNull(cache);
+        Assert.assertEquals(cache.size(), 1);
+
+        // a validator given the certificate decoded again finds the cached entry
+        final String text = data.unwrap().getElementsByTagNameNS(certQName.getNamespaceURI(),
+                certQName.getLocalPart()).item(0).getTextContent();
+        final X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(Base64.getMimeDecoder().decode(text)));
+        final DecodedX509Certificate decoded = X509CertificateCache.lookup(data, cert);
+        Assert.assertNotNull(decoded);
+        Assert.assertEquals(decoded.getCertificate(), cert);
+
+        // and values derived from it are kept
+        final String subject = decoded.derive("test", c -> c.getSubjectX500Principal().getName());
+        Assert.assertSame(decoded.derive("test", c -> "other"), subject);
+    }
+
+    /*
+     * Test that valid certificates pass validation.
+     */
+    @Test
+    public void testValidating() throws Exception {
+
+        final Item<Element> data = readDOMItem("in-1.xml");
+        final List<Item<Element>> coll = new ArrayList<>();
+        coll.add(data);
+
+        final ElementBase64WrappingStage stage = new ElementBase64WrappingStage();
+        stage.setId("test");
+        stage.setElementName(certQName);
+        stage.setValidating(true);
+        stage.setMinimumDecodedLength(100);
+        stage.initialize();
+        stage.execute(coll);
+
+        Assert.assertEquals(countErrors(data), 0);
+        final Element expected = readXMLData("out-1.xml");
+        assertXMLEqual(expected, data.unwrap());
+    }
+
+    /*
+     * Test that an invalid character is reported, but the text is still wrapped.
+     */
+    @Test
+    public void testInvalid() throws Exception {
+
+        final Item<Element> data = readDOMItem("invalid.xml");
+        final List<Item<Element>> coll = new ArrayList<>();
+        coll.add(data);
+
+        final ElementBase64WrappingStage stage = new ElementBase64WrappingStage();
+        stage.setId("test");
+        stage.setElementName(certQName);
+        stage.setValidating(true);
+        stage.initialize();
+        stage.execute(coll);
+
+        final List<ErrorStatus> errors = data.getItemMetadata().get(ErrorStatus.class);
+        Assert.assertEquals(errors.size(), 2);
+        Assert.assertEquals(errors.get(0).getComponentId(), "test");
+        Assert.assertEquals(errors.get(0).getStatusMessage(),
+                "invalid Base64 text in X509Certificate: invalid character U+0021");
+    }
+
+    /*
+     * Test the minimum decoded length.
+     */
+    @Test
+    public void testMinimumDecodedLength() throws Exception {
+
+        final Item<Element> data = readDOMItem("in-1.xml");
+        final List<Item<Element>> coll = new ArrayList<>();
+        coll.add(data);
+
+        final ElementBase64WrappingStage stage = new ElementBase64WrappingStage();
+        stage.setId("test");
+        stage.setElementName(certQName);
+        stage.setValidating(true);
+        stage.setMinimumDecodedLength(1000);
+        stage.initialize();
+        stage.execute(coll);
+
+        final List<ErrorStatus> errors = data.getItemMetadata().get(ErrorStatus.class);
+        Assert.assertEquals(errors.size(), 2);
+        Assert.assertTrue(errors.get(0).getStatusMessage().endsWith("decoded length 845 is less than the minimum of 1000"));
+    }
 }
@@ -0,0 +1,89 @@
+package uk.org.ukfederation.mda.dom;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdui.MDUISupport;
+import net.shibboleth.metadata.dom.testing.BaseDOMTest;
+
+public class ElementCursorSupportTest extends BaseDOMTest {
+
+    protected ElementCursorSupportTest() {
+        super(ElementCursorSupport.class);
+    }
+
+    private List<String> descendantText(final Element root, final String ns, final String localName,
+            final int maxDepth) {
+        final List<String> result = new ArrayList<>();
+        for (Element e = ElementCursorSupport.firstDescendantElement(root, ns, localName, maxDepth); e != null;
+                e = ElementCursorSupport.nextDescendantElement(root, e, ns, localName, maxDepth)) {
+            result.add(e.getTextContent());
+        }
+        return result;
+    }
+
+    @Test
+    public void testChildElements() throws Exception {
+        final Element entity = readXMLData("entity.xml");
+
+        final Element first = ElementCursorSupport.firstChildElement(entity);
+        Assert.assertNotNull(first);
+        Assert.assertEquals(first.getLocalName(), "IDPSSODescriptor");
+        final Element second = ElementCursorSupport.nextSiblingElement(first);
+        Assert.assertNotNull(second);
+        Assert.assertEquals(second.getLocalName(), "AttributeAuthorityDescriptor");
+
+        final Element org = ElementCursorSupport.firstChildElement(entity, SAMLMetadataSupport.MD_NS, "Organization");
+        Assert.assertNotNull(org);
+        Assert.assertNull(ElementCursorSupport.nextSiblingElement(org));
+        Assert.assertNull(ElementCursorSupport.nextSiblingElement(org, SAMLMetadataSupport.MD_NS, "Organization"));
+
+        Assert.assertTrue(ElementCursorSupport.hasChildElement(entity, SAMLMetadataSupport.MD_NS, "IDPSSODescriptor"));
+        Assert.assertFalse(ElementCursorSupport.hasChildElement(entity, SAMLMetadataSupport.MD_NS, "SPSSODescriptor"));
+        // wrong namespace
+        Assert.assertFalse(ElementCursorSupport.hasChildElement(entity, MDUISupport.MDUI_NS, "IDPSSODescriptor"));
+        // no namespace
+        Assert.assertFalse(ElementCursorSupport.hasChildElement(entity, null, "IDPSSODescriptor"));
+    }
+
+    @Test
+    public void testNamesNotInterned() throws Exception {
+        final Element entity = readXMLData("entity.xml");
+        final String ns = new String(SAMLMetadataSupport.MD_NS.toCharArray());
+        final String localName = new String("Organization".toCharArray());
+        Assert.assertTrue(ElementCursorSupport.hasChildElement(entity, ns, localName));
+    }
+
+    @Test
+    public void testDescendantElements() throws Exception {
+        final Element entity = readXMLData("entity.xml");
+        final List<String> all = descendantText(entity, MDUISupport.MDUI_NS, "DisplayName",
+                ElementCursorSupport.UNBOUNDED);
+        Assert.assertEquals(all, List.of("First", "Second", "Third"));
+
+        // DisplayName elements are at depth 4
+        Assert.assertEquals(descendantText(entity, MDUISupport.MDUI_NS, "DisplayName", 4), all);
+        Assert.assertTrue(descendantText(entity, MDUISupport.MDUI_NS, "DisplayName", 3).isEmpty());
+
+        Assert.assertEquals(descendantText(entity, SAMLMetadataSupport.MD_NS, "OrganizationDisplayName", 2),
+                List.of("Example Org"));
+        Assert.assertTrue(descendantText(entity, SAMLMetadataSupport.MD_NS, "EntityDescriptor",
+                ElementCursorSupport.UNBOUNDED).isEmpty());
+    }
+
+    @Test
+    public void testDescendantsWithinRoot() throws Exception {
+        final Element entity = readXMLData("entity.xml");
+        final Element idp = ElementCursorSupport.firstChildElement(entity, SAMLMetadataSupport.MD_NS,
+                "IDPSSODescriptor");
+        Assert.assertNotNull(idp);
+        // the search does not escape the root element
+        Assert.assertEquals(descendantText(idp, MDUISupport.MDUI_NS, "DisplayName", ElementCursorSupport.UNBOUNDED),
+                List.of("First", "Second"));
+    }
+}
@@ -0,0 +1,135 @@
+package uk.org.ukfederation.mda.dom;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class LazyDOMConversionStageTest extends BaseDOMTest {
+
+    protected LazyDOMConversionStageTest() {
+        super(LazyDOMConversionStage.class);
+    }
+
+    private LazyDOMConversionStage makeStage(final boolean preserve) throws Exception {
+        final LazyDOMConversionStage stage = new LazyDOMConversionStage();
+        stage.setId("test");
+        stage.setParserPool(getParserPool());
+        stage.setPreserveChanges(preserve);
+        stage.initialize();
+        return stage;
+    }
+
+    @Test
+    public void testConversion() throws Exception {
+        final Item<Element> original = readDOMItem("entity.xml");
+        original.getItemMetadata().put(new ItemId("https://idp.example.org/idp/shibboleth"));
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(original);
+
+        final LazyDOMConversionStage stage = makeStage(true);
+        stage.execute(items);
+
+        Assert.assertEquals(items.size(), 1);
+        Assert.assertTrue(items.get(0) instanceof LazyDOMElementItem);
+        final LazyDOMElementItem lazy = (LazyDOMElementItem) items.get(0);
+        Assert.assertFalse(lazy.isMaterialized());
+        Assert.assertEquals(lazy.getItemMetadata().get(ItemId.class).size(), 1);
+
+        final Element element = lazy.unwrap();
+        Assert.assertTrue(lazy.isMaterialized());
+        Assert.assertEquals(element.getAttributeNS(null, "ID"), "uk001234");
+        // the same DOM is returned until the item is released
+        Assert.assertSame(lazy.unwrap(), element);
+        assertXMLEqual(original.unwrap(), element);
+
+        stage.execute(items);
+        Assert.assertSame(items.get(0), lazy);
+        Assert.assertFalse(lazy.isMaterialized());
+        stage.destroy();
+    }
+
+    @Test
+    public void testReleasePreservesChanges() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(readDOMItem("entity.xml"));
+        final LazyDOMConversionStage stage = makeStage(true);
+        stage.execute(items);
+
+        items.get(0).unwrap().setAttributeNS(null, "ID", "uk005678");
+        stage.execute(items);
+        Assert.assertEquals(items.get(0).unwrap().getAttributeNS(null, "ID"), "uk005678");
+        stage.destroy();
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(readDOMItem("entity.xml"));
+        final LazyDOMConversionStage stage = makeStage(false);
+        stage.execute(items);
+
+        final LazyDOMElementItem lazy = (LazyDOMElementItem) items.get(0);
+        final int length = lazy.getSerializedLength();
+        Assert.assertEquals(lazy.unwrap().getAttributeNS(null, "ID"), "uk001234");
+        stage.execute(items);
+        Assert.assertFalse(lazy.isMaterialized());
+        Assert.assertEquals(lazy.getSerializedLength(), length);
+        stage.destroy();
+    }
+
+    @Test(expectedExceptions = StageProcessingException.class)
+    public void testDiscardChanged() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(readDOMItem("entity.xml"));
+        final LazyDOMConversionStage stage = makeStage(false);
+        stage.execute(items);
+
+        // a change would be lost, so is refused
+        items.get(0).unwrap().setAttributeNS(null, "ID", "uk005678");
+        stage.execute(items);
+    }
+
+    @Test
+    public void testReleaseUnchanged() throws Exception {
+        final LazyDOMElementItem lazy = new LazyDOMElementItem(getParserPool(), readXMLData("entity.xml"));
+        final int length = lazy.getSerializedLength();
+        lazy.unwrap();
+        lazy.discard();
+        lazy.release();
+        Assert.assertFalse(lazy.isMaterialized());
+
+        lazy.unwrap().appendChild(lazy.unwrap().getOwnerDocument().createElementNS(null, "extra"));
+        lazy.release();
+        Assert.assertTrue(lazy.getSerializedLength() > length);
+        Assert.assertEquals(lazy.unwrap().getLastChild().getLocalName(), "extra");
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        final LazyDOMElementItem lazy = new LazyDOMElementItem(getParserPool(), readXMLData("entity.xml"));
+        lazy.getItemMetadata().put(new ItemId("id"));
+        lazy.unwrap().setAttributeNS(null, "ID", "uk005678");
+
+        final LazyDOMElementItem copy = lazy.copy();
+        Assert.assertFalse(copy.isMaterialized());
+        Assert.assertEquals(copy.getItemMetadata().get(ItemId.class).size(), 1);
+        Assert.assertEquals(copy.unwrap().getAttributeNS(null, "ID"), "uk005678");
+        Assert.assertNotSame(copy.unwrap(), lazy.unwrap());
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoParserPool() throws Exception {
+        final LazyDOMConversionStage stage = new LazyDOMConversionStage();
+        stage.setId("test");
+        stage.initialize();
+    }
+}
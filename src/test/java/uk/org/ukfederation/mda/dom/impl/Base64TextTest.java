@@ -0,0 +1,64 @@
+package uk.org.ukfederation.mda.dom.impl;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class Base64TextTest {
+
+    @Test
+    public void testValid() {
+        final Base64Text text = Base64Text.scan(" QUJD\n REVG ");
+        Assert.assertTrue(text.isValid());
+        Assert.assertNull(text.getError());
+        Assert.assertEquals(text.getStripped(), "QUJDREVG");
+        Assert.assertEquals(text.getDecodedLength(), 6);
+    }
+
+    @Test
+    public void testStrip() {
+        final String unwrapped = "QUJDREVG";
+        Assert.assertSame(Base64Text.strip(unwrapped).getStripped(), unwrapped);
+        final Base64Text text = Base64Text.strip(" QUJD\n QQ== ");
+        Assert.assertTrue(text.isValid());
+        Assert.assertEquals(text.getStripped(), "QUJDQQ==");
+        Assert.assertEquals(text.getDecodedLength(), 4);
+        Assert.assertTrue(Base64Text.strip("QU-D").isValid());
+    }
+
+    @Test
+    public void testPadding() {
+        Assert.assertEquals(Base64Text.scan("QUI=").getDecodedLength(), 2);
+        Assert.assertEquals(Base64Text.scan("QQ==").getDecodedLength(), 1);
+        Assert.assertTrue(Base64Text.scan("QQ\n==").isValid());
+        Assert.assertEquals(Base64Text.scan("Q===").getError(), "too much padding");
+        Assert.assertEquals(Base64Text.scan("QQ==QUJD").getError(), "data after padding");
+    }
+
+    @Test
+    public void testEmpty() {
+        final Base64Text text = Base64Text.scan("  \n  ");
+        Assert.assertTrue(text.isValid());
+        Assert.assertEquals(text.getStripped(), "");
+        Assert.assertEquals(text.getDecodedLength(), 0);
+    }
+
+    @Test
+    public void testInvalidCharacter() {
+        final Base64Text text = Base64Text.scan("QU-D");
+        Assert.assertFalse(text.isValid());
+        Assert.assertEquals(text.getError(), "invalid character U+002D");
+        Assert.assertEquals(text.getStripped(), "QU-D");
+        Assert.assertEquals(Base64Text.scan("QUJ\u00e9").getError(), "invalid character U+00E9");
+    }
+
+    @Test
+    public void testLength() {
+        Assert.assertEquals(Base64Text.scan("QUJDR").getError(), "length 5 is not a multiple of 4");
+    }
+
+    @Test
+    public void testUnchanged() {
+        final String s = "QUJDREVG";
+        Assert.assertSame(Base64Text.scan(s).getStripped(), s);
+    }
+}
@@ -46,4 +46,20 @@ public class Base64WrappingVisitorTest {
         testCase(sixtyFour + sixtyFour + "wibble",
                 sixtyFour + "\n" + sixtyFour +"\n" + "wibble");
     }
+
+    @Test
+    public void testUnusualWhitespace() {
+        // ASCII separators and non-ASCII white space are stripped, non-breaking space is not
+        testCase("ab\u001c\u001dcd\u001e\u001f", "abcd");
+        testCase("ab\u2003cd\u3000", "abcd");
+        testCase("ab\u00a0cd", "ab\u00a0cd");
+        testCase("\t" + sixtyFour + "\u000b\f\r\n" + sixtyFour + "\u2028",
+                sixtyFour + "\n" + sixtyFour);
+    }
+
+    @Test
+    public void testStripWhitespace() {
+        Assert.assertSame(Base64WrappingVisitor.stripWhitespace(sixtyFour), sixtyFour);
+        Assert.assertEquals(Base64WrappingVisitor.stripWhitespace(" " + ten + "\n" + ten + " "), ten + ten);
+    }
 }
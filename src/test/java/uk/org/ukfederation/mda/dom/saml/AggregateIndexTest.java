@@ -0,0 +1,124 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class AggregateIndexTest extends BaseDOMTest {
+
+    protected AggregateIndexTest() {
+        super(AggregateIndex.class);
+    }
+
+    private static String text(final AggregateIndex idx, final Path aggregate, final AggregateIndex.Extent extent)
+            throws Exception {
+        return new String(idx.read(aggregate, extent), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        final Path directory = Files.createTempDirectory("AggregateIndexTest");
+        final Path aggregate = directory.resolve("aggregate.xml");
+        final Path index = directory.resolve("aggregate.idx");
+        try {
+            try (InputStream in = getClasspathResource("aggregate.xml").getInputStream()) {
+                Files.copy(in, aggregate);
+            }
+            AggregateIndex.write(aggregate, index);
+            final AggregateIndex idx = AggregateIndex.open(index);
+            Assert.assertEquals(idx.size(), 3);
+
+            final AggregateIndex.Extent a = idx.findByEntityID("https://a.example.org/entity");
+            Assert.assertNotNull(a);
+            final String aText = text(idx, aggregate, a);
+            Assert.assertTrue(aText.startsWith("<md:EntityDescriptor ID=\"uk000001\""));
+            Assert.assertTrue(aText.endsWith("</md:Organization>\n    </md:EntityDescriptor>"));
+            Assert.assertEquals(idx.findByUKId("uk000001"), a);
+            // SHA-1 of "https://a.example.org/entity"
+            Assert.assertEquals(idx.findBySHA1("e6f02a2089b562a9f350b201c9bc93d1c8ee6df8"), a);
+            Assert.assertEquals(idx.findBySHA1("{sha1}E6F02A2089B562A9F350B201C9BC93D1C8EE6DF8"), a);
+
+            // Attribute values are unescaped, and empty-element tags are indexed.
+            final AggregateIndex.Extent b = idx.findByEntityID("https://b.example.org/entity?x=1&y=2");
+            Assert.assertNotNull(b);
+            Assert.assertTrue(text(idx, aggregate, b).startsWith("<md:EntityDescriptor entityID="));
+            Assert.assertTrue(text(idx, aggregate, b).endsWith("ID='uk000002'/>"));
+            Assert.assertEquals(idx.findByUKId("uk000002"), b);
+
+            // An ID which is not a UKId is not indexed as one.
+            final AggregateIndex.Extent c = idx.findByEntityID("https://c.example.org/entity");
+            Assert.assertNotNull(c);
+            Assert.assertTrue(text(idx, aggregate, c).endsWith("</md:EntityDescriptor>"));
+
+            Assert.assertNull(idx.findByEntityID("x"));
+            Assert.assertNull(idx.findByUKId("uk000003"));
+            Assert.assertNull(idx.findByUKId("_c"));
+            Assert.assertNull(idx.findBySHA1("not a hash"));
+        } finally {
+            Files.deleteIfExists(index);
+            Files.deleteIfExists(aggregate);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        final Path directory = Files.createTempDirectory("AggregateIndexTest");
+        final Path aggregate = directory.resolve("aggregate.xml");
+        final Path index = directory.resolve("aggregate.idx");
+        try {
+            try (InputStream in = getClasspathResource("aggregate.xml").getInputStream()) {
+                Files.copy(in, aggregate);
+            }
+            AggregateIndex.write(aggregate, index);
+            final AggregateIndex idx = AggregateIndex.open(index);
+            final AggregateIndex.Extent a = idx.findByEntityID("https://a.example.org/entity");
+            Assert.assertNotNull(a);
+
+            // Same length, but replaced since the index was built.
+            Files.setLastModifiedTime(aggregate,
+                    FileTime.fromMillis(Files.getLastModifiedTime(aggregate).toMillis() + 1000));
+            try {
+                idx.read(aggregate, a);
+                Assert.fail("stale index not detected");
+            } catch (final IOException e) {
+                // expected
+            }
+        } finally {
+            Files.deleteIfExists(index);
+            Files.deleteIfExists(aggregate);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void testMalformedReference() throws Exception {
+        final Path directory = Files.createTempDirectory("AggregateIndexTest");
+        final Path aggregate = directory.resolve("aggregate.xml");
+        final Path index = directory.resolve("aggregate.idx");
+        try {
+            for (final String ref : new String[] {"&#xZZ;", "&#99999999;", "&#;"}) {
+                Files.writeString(aggregate, "<EntitiesDescriptor><EntityDescriptor entityID='https://x.example.org/"
+                        + ref + "'/></EntitiesDescriptor>");
+                try {
+                    AggregateIndex.write(aggregate, index);
+                    Assert.fail("malformed reference " + ref + " not detected");
+                } catch (final IOException e) {
+                    // expected
+                }
+            }
+        } finally {
+            Files.deleteIfExists(index);
+            Files.deleteIfExists(aggregate);
+            Files.deleteIfExists(directory);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.WarningStatus;
+import uk.org.ukfederation.mda.BaseDOMTest;
+import uk.org.ukfederation.mda.UKId;
+import uk.org.ukfederation.mda.dom.ElementCursorSupport;
+
+public class EntityDeltaStageTest extends BaseDOMTest {
+
+    protected EntityDeltaStageTest() {
+        super(EntityDeltaStage.class);
+    }
+
+    private Element runStage(final Path directory, final List<Item<Element>> items) throws Exception {
+        return runStage(directory, items, true);
+    }
+
+    private Element runStage(final Path directory, final List<Item<Element>> items, final boolean publish)
+            throws Exception {
+        final EntityDeltaStage stage = new EntityDeltaStage();
+        stage.setId("delta");
+        stage.setManifestFile(directory.resolve("manifest").toFile());
+        stage.setPendingManifestFile(directory.resolve("manifest.pending").toFile());
+        stage.setDeltaFile(directory.resolve("delta.xml").toFile());
+        stage.setParserPool(getParserPool());
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+        if (publish) {
+            final EntityDeltaManifestPromotingStage promote = new EntityDeltaManifestPromotingStage();
+            promote.setId("promote");
+            promote.setManifestFile(directory.resolve("manifest").toFile());
+            promote.setPendingManifestFile(directory.resolve("manifest.pending").toFile());
+            promote.initialize();
+            promote.execute(items);
+            promote.destroy();
+        }
+        try (InputStream in = Files.newInputStream(directory.resolve("delta.xml"))) {
+            return getParserPool().parse(in).getDocumentElement();
+        }
+    }
+
+    private List<String> keys(final Element delta, final String kind) {
+        final List<String> keys = new ArrayList<>();
+        for (Element e = ElementCursorSupport.firstChildElement(delta, EntityDeltaStage.DELTA_NS, kind); e != null;
+                e = ElementCursorSupport.nextSiblingElement(e, EntityDeltaStage.DELTA_NS, kind)) {
+            keys.add(e.getAttributeNS(null, "key"));
+        }
+        return keys;
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        final Path directory = Files.createTempDirectory("EntityDeltaStageTest");
+        try {
+            // First run: everything is new.
+            final List<Item<Element>> first = new ArrayList<>();
+            first.add(readDOMItem("a.xml"));
+            first.add(readDOMItem("b.xml"));
+            first.get(1).getItemMetadata().put(new UKId("uk000002"));
+            final Element delta1 = runStage(directory, first);
+            Assert.assertFalse(delta1.hasAttributeNS(null, "previous"));
+            Assert.assertEquals(delta1.getAttributeNS(null, "current").length(), 64);
+            Assert.assertEquals(keys(delta1, "Added"), List.of("https://a.example.org/entity", "uk000002"));
+            Assert.assertTrue(keys(delta1, "Changed").isEmpty());
+            Assert.assertTrue(keys(delta1, "Removed").isEmpty());
+            final Element added = ElementCursorSupport.firstChildElement(delta1, EntityDeltaStage.DELTA_NS, "Added");
+            Assert.assertNotNull(added);
+            assertXMLEqual(first.get(0).unwrap(), ElementCursorSupport.firstChildElement(added));
+
+            // Second run: a is only reformatted, b changes, c is new.
+            final List<Item<Element>> second = new ArrayList<>();
+            second.add(readDOMItem("a-reformatted.xml"));
+            second.add(readDOMItem("b.xml"));
+            second.get(1).getItemMetadata().put(new UKId("uk000002"));
+            second.get(1).unwrap().setAttributeNS(null, "validUntil", "2030-01-01T00:00:00Z");
+            second.add(readDOMItem("c.xml"));
+            final Element delta2 = runStage(directory, second);
+            Assert.assertEquals(delta2.getAttributeNS(null, "previous"), delta1.getAttributeNS(null, "current"));
+            Assert.assertEquals(keys(delta2, "Added"), List.of("https://c.example.org/entity"));
+            Assert.assertEquals(keys(delta2, "Changed"), List.of("uk000002"));
+            Assert.assertTrue(keys(delta2, "Removed").isEmpty());
+
+            // Third run: only c is left.
+            final List<Item<Element>> third = new ArrayList<>();
+            third.add(readDOMItem("c.xml"));
+            final Element delta3 = runStage(directory, third);
+            Assert.assertTrue(keys(delta3, "Added").isEmpty());
+            Assert.assertTrue(keys(delta3, "Changed").isEmpty());
+            Assert.assertEquals(keys(delta3, "Removed"), List.of("https://a.example.org/entity", "uk000002"));
+        } finally {
+            for (final File file : directory.toFile().listFiles()) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testUnpublished() throws Exception {
+        final Path directory = Files.createTempDirectory("EntityDeltaStageTest");
+        try {
+            final List<Item<Element>> first = new ArrayList<>();
+            first.add(readDOMItem("a.xml"));
+            final Element delta1 = runStage(directory, first);
+
+            // This delta is never published, so the next is computed against the first collection again.
+            final List<Item<Element>> second = new ArrayList<>();
+            second.add(readDOMItem("a.xml"));
+            second.add(readDOMItem("b.xml"));
+            final Element delta2 = runStage(directory, second, false);
+            Assert.assertEquals(keys(delta2, "Added"), List.of("https://b.example.org/entity"));
+
+            final List<Item<Element>> third = new ArrayList<>();
+            third.add(readDOMItem("a.xml"));
+            third.add(readDOMItem("b.xml"));
+            third.add(readDOMItem("c.xml"));
+            final Element delta3 = runStage(directory, third);
+            Assert.assertEquals(keys(delta3, "Added"),
+                    List.of("https://b.example.org/entity", "https://c.example.org/entity"));
+            Assert.assertEquals(delta3.getAttributeNS(null, "previous"), delta1.getAttributeNS(null, "current"));
+            Assert.assertNotEquals(delta3.getAttributeNS(null, "current"), delta2.getAttributeNS(null, "current"));
+        } finally {
+            for (final File file : directory.toFile().listFiles()) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testDuplicateKey() throws Exception {
+        final Path directory = Files.createTempDirectory("EntityDeltaStageTest");
+        try {
+            final List<Item<Element>> items = new ArrayList<>();
+            items.add(readDOMItem("a.xml"));
+            items.add(readDOMItem("a.xml"));
+            final Element delta = runStage(directory, items);
+            Assert.assertEquals(keys(delta, "Added").size(), 1);
+            Assert.assertTrue(items.get(0).getItemMetadata().get(WarningStatus.class).isEmpty());
+            Assert.assertEquals(items.get(1).getItemMetadata().get(WarningStatus.class).size(), 1);
+        } finally {
+            for (final File file : directory.toFile().listFiles()) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(directory);
+        }
+    }
+}
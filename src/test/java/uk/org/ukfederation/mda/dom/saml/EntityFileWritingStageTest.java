@@ -0,0 +1,166 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.BaseDOMTest;
+import uk.org.ukfederation.mda.UKId;
+
+public class EntityFileWritingStageTest extends BaseDOMTest {
+
+    protected EntityFileWritingStageTest() {
+        super(EntityFileWritingStage.class);
+    }
+
+    private void runStage(final Path directory, final List<Item<Element>> items) throws Exception {
+        final EntityFileWritingStage stage = new EntityFileWritingStage();
+        stage.setId("writer");
+        stage.setDirectory(directory.toFile());
+        stage.setParallelism(2);
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+    }
+
+    private List<Item<Element>> readItems() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(readDOMItem("a.xml"));
+        items.add(readDOMItem("b.xml"));
+        items.get(1).getItemMetadata().put(new UKId("uk012345"));
+        return items;
+    }
+
+    private static void deleteTree(final Path directory) throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testRelativePath() throws Exception {
+        final List<Item<Element>> items = readItems();
+        Assert.assertEquals(EntityFileWritingStage.relativePath(items.get(0)),
+                "sha1/e6/f0/e6f02a2089b562a9f350b201c9bc93d1c8ee6df8.xml");
+        Assert.assertEquals(EntityFileWritingStage.relativePath(items.get(1)), "uk/01/23/uk012345.xml");
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        final Path directory = Files.createTempDirectory("EntityFileWritingStageTest");
+        try {
+            final List<Item<Element>> items = readItems();
+            runStage(directory, items);
+
+            final Path a = directory.resolve("sha1/e6/f0/e6f02a2089b562a9f350b201c9bc93d1c8ee6df8.xml");
+            final Path b = directory.resolve("uk/01/23/uk012345.xml");
+            for (int i = 0; i < 2; i++) {
+                try (InputStream in = Files.newInputStream(i == 0 ? a : b)) {
+                    assertXMLEqual(items.get(i).unwrap(), getParserPool().parse(in).getDocumentElement());
+                }
+            }
+            // Only the two entity files and the manifest, no temporary files left behind.
+            try (Stream<Path> paths = Files.walk(directory)) {
+                Assert.assertEquals(paths.filter(Files::isRegularFile).count(), 3);
+            }
+            Assert.assertEquals(Files.readAllLines(directory.resolve(".writer.files")),
+                    List.of("sha1/e6/f0/e6f02a2089b562a9f350b201c9bc93d1c8ee6df8.xml", "uk/01/23/uk012345.xml"));
+
+            // A second run leaves unchanged files alone but rewrites changed ones.
+            final FileTime old = FileTime.fromMillis(0);
+            Files.setLastModifiedTime(a, old);
+            Files.setLastModifiedTime(b, old);
+            final List<Item<Element>> again = readItems();
+            again.get(1).unwrap().setAttributeNS(null, "validUntil", "2030-01-01T00:00:00Z");
+            runStage(directory, again);
+            Assert.assertEquals(Files.getLastModifiedTime(a), old);
+            Assert.assertNotEquals(Files.getLastModifiedTime(b), old);
+            try (InputStream in = Files.newInputStream(b)) {
+                assertXMLEqual(again.get(1).unwrap(), getParserPool().parse(in).getDocumentElement());
+            }
+        } finally {
+            deleteTree(directory);
+        }
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        final Path directory = Files.createTempDirectory("EntityFileWritingStageTest");
+        try {
+            runStage(directory, readItems());
+            final Path a = directory.resolve("sha1/e6/f0/e6f02a2089b562a9f350b201c9bc93d1c8ee6df8.xml");
+            final Path b = directory.resolve("uk/01/23/uk012345.xml");
+            final Path other = directory.resolve("index.xml");
+            Files.write(other, new byte[0]);
+            // written by another stage sharing the directory
+            final Path shared = directory.resolve("uk/01/23/uk012346.xml");
+            Files.write(shared, new byte[0]);
+            // left behind by interrupted writes of this stage and of the other one
+            final Path temporary = directory.resolve("uk/01/23/uk012345.xml12345.tmp");
+            Files.write(temporary, new byte[0]);
+            final Path sharedTemporary = directory.resolve("uk/01/23/uk012346.xml12345.tmp");
+            Files.write(sharedTemporary, new byte[0]);
+
+            // b has left the collection, so its file goes; files the stage did not write are left alone.
+            final List<Item<Element>> items = readItems();
+            items.remove(1);
+            runStage(directory, items);
+            Assert.assertTrue(Files.exists(a));
+            Assert.assertFalse(Files.exists(b));
+            Assert.assertFalse(Files.exists(temporary));
+            Assert.assertTrue(Files.exists(other));
+            Assert.assertTrue(Files.exists(shared));
+            Assert.assertTrue(Files.exists(sharedTemporary));
+            Assert.assertEquals(Files.readAllLines(directory.resolve(".writer.files")),
+                    List.of("sha1/e6/f0/e6f02a2089b562a9f350b201c9bc93d1c8ee6df8.xml"));
+        } finally {
+            deleteTree(directory);
+        }
+    }
+
+    @Test
+    public void testFirstRun() throws Exception {
+        final Path directory = Files.createTempDirectory("EntityFileWritingStageTest");
+        try {
+            // without a manifest, nothing is known to be stale
+            final Path old = directory.resolve("uk/01/23/uk012346.xml");
+            Files.createDirectories(old.getParent());
+            Files.write(old, new byte[0]);
+            runStage(directory, readItems());
+            Assert.assertTrue(Files.exists(old));
+        } finally {
+            deleteTree(directory);
+        }
+    }
+
+    @Test
+    public void testDuplicatePath() throws Exception {
+        final Path directory = Files.createTempDirectory("EntityFileWritingStageTest");
+        try {
+            final List<Item<Element>> items = readItems();
+            items.add(readDOMItem("a.xml"));
+            runStage(directory, items);
+            Assert.assertEquals(countErrors(items.get(0)), 0);
+            Assert.assertEquals(countErrors(items.get(2)), 1);
+            Assert.assertEquals(items.get(2).getItemMetadata().get(ErrorStatus.class).get(0).getComponentId(),
+                    "writer");
+            try (InputStream in = Files.newInputStream(
+                    directory.resolve("sha1/e6/f0/e6f02a2089b562a9f350b201c9bc93d1c8ee6df8.xml"))) {
+                assertXMLEqual(items.get(0).unwrap(), getParserPool().parse(in).getDocumentElement());
+            }
+        } finally {
+            deleteTree(directory);
+        }
+    }
+}
@@ -110,4 +110,48 @@ public class EntityOwnerCheckingStageTest extends BaseDOMTest {
         checkError(item, "has no orgID attribute");
     }
 
+    @Test
+    public void unknownNameSuggestion() throws Exception {
+        final Item<Element> item = readDOMItem("unknown.xml");
+        final Element membersElement = readXMLData("members.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+        final EntityOwnerCheckingStage stage = new EntityOwnerCheckingStage();
+        stage.setId("test");
+        stage.setMembers(new Members(membersElement.getOwnerDocument()));
+        stage.setMembersDocument(membersElement.getOwnerDocument());
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+        checkError(item, "unknown owner name: Unknown Organization");
+        checkError(item, "did you mean 'Example Organization' (ukforg123)?");
+    }
+
+    @Test
+    public void groupByOrganization() throws Exception {
+        final Item<Element> ok1 = readDOMItem("ok.xml");
+        final Item<Element> ok2 = readDOMItem("en-GB.xml");
+        final Item<Element> unknown1 = readDOMItem("unknown.xml");
+        final Item<Element> unknown2 = readDOMItem("unknown.xml");
+        final Item<Element> noOrg = readDOMItem("noOrg.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(ok1);
+        items.add(unknown1);
+        items.add(noOrg);
+        items.add(ok2);
+        items.add(unknown2);
+        final EntityOwnerCheckingStage stage = new EntityOwnerCheckingStage();
+        stage.setId("test");
+        stage.setMembers(getMembers());
+        stage.setGroupByOrganization(true);
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+        Assert.assertEquals(countErrors(ok1), 0);
+        Assert.assertEquals(countErrors(ok2), 0);
+        checkError(unknown1, "unknown owner name: Unknown Organization");
+        checkError(unknown2, "unknown owner name: Unknown Organization");
+        checkError(noOrg, "entity has no Organization element");
+    }
+
 }
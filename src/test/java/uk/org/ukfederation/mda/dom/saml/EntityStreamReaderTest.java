@@ -0,0 +1,90 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.shared.xml.XMLParserException;
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class EntityStreamReaderTest extends BaseDOMTest {
+
+    protected EntityStreamReaderTest() {
+        super(EntityStreamReader.class);
+    }
+
+    private List<Item<Element>> readAll(final InputStream in) throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        try (EntityStreamReader reader = new EntityStreamReader(in, getParserPool())) {
+            Item<Element> item;
+            while ((item = reader.next()) != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private Element thing(final Item<Element> item) {
+        return (Element) item.unwrap().getElementsByTagNameNS("*", "Thing").item(0);
+    }
+
+    @Test
+    public void testNested() throws Exception {
+        final List<Item<Element>> items;
+        try (InputStream in = getClasspathResource("nested.xml").getInputStream()) {
+            items = readAll(in);
+        }
+        Assert.assertEquals(items.size(), 3);
+        Assert.assertEquals(items.get(0).unwrap().getAttributeNS(null, "entityID"), "https://a.example.org/entity");
+        Assert.assertEquals(items.get(1).unwrap().getAttributeNS(null, "entityID"), "https://b.example.org/entity");
+        Assert.assertEquals(items.get(2).unwrap().getAttributeNS(null, "entityID"), "https://c.example.org/entity");
+
+        // Each entity is the document element of its own document.
+        for (final Item<Element> item : items) {
+            Assert.assertSame(item.unwrap().getOwnerDocument().getDocumentElement(), item.unwrap());
+        }
+
+        // Prefixes declared on enclosing elements resolve, innermost first.
+        final Element a = thing(items.get(0));
+        Assert.assertEquals(a.getNamespaceURI(), "urn:example:outer");
+        Assert.assertEquals(a.lookupNamespaceURI("xsi"), "http://www.w3.org/2001/XMLSchema-instance");
+        Assert.assertEquals(a.getTextContent(), "a < b & c");
+        Assert.assertEquals(thing(items.get(1)).getNamespaceURI(), "urn:example:inner");
+        Assert.assertEquals(thing(items.get(1)).lookupNamespaceURI("ex"), "urn:example:inner");
+        Assert.assertEquals(thing(items.get(2)).lookupNamespaceURI("ex"), "urn:example:own");
+
+        // Comments inside an entity are kept.
+        final Node extensions = items.get(1).unwrap().getFirstChild().getNextSibling();
+        boolean comment = false;
+        for (Node node = extensions.getFirstChild(); node != null; node = node.getNextSibling()) {
+            comment |= node.getNodeType() == Node.COMMENT_NODE;
+        }
+        Assert.assertTrue(comment);
+    }
+
+    @Test
+    public void testSingleEntity() throws Exception {
+        final String xml = "<EntityDescriptor xmlns='urn:oasis:names:tc:SAML:2.0:metadata'"
+                + " entityID='https://x.example.org/entity'><Extensions/></EntityDescriptor>";
+        final List<Item<Element>> items = readAll(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(items.size(), 1);
+        Assert.assertEquals(items.get(0).unwrap().getAttributeNS(null, "entityID"), "https://x.example.org/entity");
+        Assert.assertEquals(items.get(0).unwrap().getFirstChild().getNamespaceURI(),
+                "urn:oasis:names:tc:SAML:2.0:metadata");
+    }
+
+    @Test(expectedExceptions = XMLParserException.class)
+    public void testMalformed() throws Exception {
+        final String xml = "<md:EntitiesDescriptor xmlns:md='urn:oasis:names:tc:SAML:2.0:metadata'>"
+                + "<md:EntityDescriptor entityID='x'></md:EntitiesDescriptor>";
+        readAll(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
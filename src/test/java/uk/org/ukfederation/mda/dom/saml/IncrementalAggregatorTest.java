@@ -0,0 +1,150 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.component.DestroyedComponentException;
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class IncrementalAggregatorTest extends BaseDOMTest {
+
+    protected IncrementalAggregatorTest() {
+        super(IncrementalAggregator.class);
+    }
+
+    /** Stage which records the entityIDs of the items it sees. */
+    private static class RecordingStage extends AbstractStage<Element> {
+
+        private final List<String> seen = new ArrayList<>();
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<Element>> items) {
+            for (final Item<Element> item : items) {
+                seen.add(item.unwrap().getAttributeNS(null, "entityID"));
+            }
+        }
+    }
+
+    private static RecordingStage newStage(final String id) throws Exception {
+        final RecordingStage stage = new RecordingStage();
+        stage.setId(id);
+        stage.initialize();
+        return stage;
+    }
+
+    private void install(final Path directory, final String which, final String name) throws Exception {
+        try (InputStream in = getClasspathResource(which).getInputStream()) {
+            Files.copy(in, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Test
+    public void testChangedMemberKeys() throws Exception {
+        final Element members1 = readXMLData("members1.xml");
+        final Element members2 = readXMLData("members2.xml");
+        Assert.assertEquals(IncrementalAggregator.changedMemberKeys(members1.getOwnerDocument(),
+                members1.getOwnerDocument()), Set.of());
+        final Set<String> keys = IncrementalAggregator.changedMemberKeys(members1.getOwnerDocument(),
+                members2.getOwnerDocument());
+        Assert.assertEquals(keys, Set.of("Organisation B"));
+        Assert.assertEquals(IncrementalAggregator.changedMemberKeys(null, members1.getOwnerDocument()),
+                Set.of("Organisation A", "https://a.example.org/entity", "Organisation B"));
+
+        Assert.assertFalse(IncrementalAggregator.isAffected(readXMLData("a.xml"), keys));
+        Assert.assertTrue(IncrementalAggregator.isAffected(readXMLData("b.xml"), keys));
+        Assert.assertTrue(IncrementalAggregator.isAffected(readXMLData("a.xml"),
+                Set.of("https://a.example.org/entity")));
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        final Path directory = Files.createTempDirectory("IncrementalAggregatorTest");
+        try {
+            install(directory, "members1.xml", "members.xml");
+            final List<File> inputs = new ArrayList<>();
+            for (final String name : List.of("a", "b", "c")) {
+                install(directory, name + ".xml", name + ".xml");
+                inputs.add(directory.resolve(name + ".xml").toFile());
+            }
+
+            final List<RecordingStage> membersStages = new ArrayList<>();
+            final RecordingStage publication = newStage("publish");
+            final IncrementalAggregator aggregator = new IncrementalAggregator();
+            aggregator.setMembersFile(directory.resolve("members.xml").toFile());
+            aggregator.setInputFiles(inputs);
+            aggregator.setParserPool(getParserPool());
+            aggregator.setStageFactory(document -> {
+                try {
+                    final RecordingStage stage = newStage("members" + membersStages.size());
+                    membersStages.add(stage);
+                    return List.<Stage<Element>>of(stage);
+                } catch (final Exception e) {
+                    throw new ComponentInitializationException(e);
+                }
+            });
+            aggregator.setPublicationStages(List.of(publication));
+            aggregator.initialize();
+
+            // Cold start processes and publishes everything.
+            Assert.assertEquals(membersStages.size(), 1);
+            Assert.assertEquals(membersStages.get(0).seen, List.of("https://a.example.org/entity",
+                    "https://b.example.org/entity", "https://c.example.org/entity"));
+            Assert.assertEquals(publication.seen.size(), 3);
+
+            // Changing member B reprocesses only b, with new stages, and republishes everything.
+            install(directory, "members2.xml", "members.xml");
+            aggregator.update(Set.of(directory.resolve("members.xml")));
+            Assert.assertEquals(membersStages.size(), 2);
+            Assert.assertEquals(membersStages.get(1).seen, List.of("https://b.example.org/entity"));
+            Assert.assertEquals(publication.seen.size(), 6);
+            Assert.assertTrue(membersStages.get(0).isDestroyed());
+            Assert.assertFalse(membersStages.get(1).isDestroyed());
+
+            // Changing an input reloads only that input.
+            install(directory, "a.xml", "c.xml");
+            aggregator.update(Set.of(directory.resolve("c.xml")));
+            Assert.assertEquals(membersStages.get(1).seen, List.of("https://b.example.org/entity",
+                    "https://a.example.org/entity"));
+
+            // Deleting an input drops its entity; unrelated files are ignored.
+            Files.delete(directory.resolve("b.xml"));
+            aggregator.update(Set.of(directory.resolve("b.xml"), directory.resolve("other.xml")));
+            final List<Item<Element>> results = aggregator.getResults();
+            Assert.assertEquals(results.size(), 2);
+            Assert.assertEquals(results.get(1).unwrap().getAttributeNS(null, "entityID"),
+                    "https://a.example.org/entity");
+            aggregator.destroy();
+            Assert.assertTrue(membersStages.get(1).isDestroyed());
+            Assert.assertFalse(publication.isDestroyed());
+            try {
+                aggregator.update(Set.of(directory.resolve("a.xml")));
+                Assert.fail("update after destruction");
+            } catch (final DestroyedComponentException e) {
+                // expected
+            }
+            aggregator.filesChanged(Set.of(directory.resolve("a.xml")));
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+}
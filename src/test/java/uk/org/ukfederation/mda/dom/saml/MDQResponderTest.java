@@ -0,0 +1,194 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class MDQResponderTest extends BaseDOMTest {
+
+    private Path directory;
+
+    private MDQResponder responder;
+
+    protected MDQResponderTest() {
+        super(MDQResponder.class);
+    }
+
+    private void install(final String which, final String relative) throws Exception {
+        final Path file = directory.resolve(relative);
+        Files.createDirectories(file.getParent());
+        try (InputStream in = getClasspathResource(which).getInputStream()) {
+            Files.copy(in, file);
+        }
+    }
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("MDQResponderTest");
+        // a has no UKId; b is written under uk012345.
+        install("a.xml", "sha1/e6/f0/e6f02a2089b562a9f350b201c9bc93d1c8ee6df8.xml");
+        install("b.xml", "uk/01/23/uk012345.xml");
+
+        responder = new MDQResponder();
+        responder.setDirectory(directory.toFile());
+        responder.initialize();
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        responder.destroy();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private String read(final String which) throws Exception {
+        try (InputStream in = getClasspathResource(which).getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private HttpURLConnection open(final String id) throws Exception {
+        final InetSocketAddress address = responder.getAddress();
+        Assert.assertNotNull(address);
+        final URL url = new URL("http", address.getHostString(), address.getPort(), "/entities/" + id);
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        final Path a = directory.resolve("sha1/e6/f0/e6f02a2089b562a9f350b201c9bc93d1c8ee6df8.xml");
+        final Path b = directory.resolve("uk/01/23/uk012345.xml");
+        Assert.assertEquals(responder.resolve("https://a.example.org/entity"), a);
+        Assert.assertEquals(responder.resolve("{sha1}e6f02a2089b562a9f350b201c9bc93d1c8ee6df8"), a);
+        Assert.assertEquals(responder.resolve("{sha1}E6F02A2089B562A9F350B201C9BC93D1C8EE6DF8"), a);
+        Assert.assertEquals(responder.resolve("uk012345"), b);
+        Assert.assertEquals(responder.resolve("https://b.example.org/entity"), b);
+        Assert.assertNull(responder.resolve("https://c.example.org/entity"));
+        Assert.assertNull(responder.resolve("uk999999"));
+        Assert.assertNull(responder.resolve("{sha1}xyz"));
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        final HttpURLConnection connection = open("https%3A%2F%2Fb.example.org%2Fentity");
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        Assert.assertEquals(connection.getContentType(), MDQResponder.SAML_METADATA_TYPE);
+        final String etag = connection.getHeaderField("ETag");
+        Assert.assertNotNull(etag);
+        try (InputStream in = connection.getInputStream()) {
+            assertXMLEqual(readXMLData("b.xml"), getParserPool().parse(in).getDocumentElement());
+        }
+
+        // The same entity by UKId has the same tag, and a conditional request is not modified.
+        final HttpURLConnection conditional = open("uk012345");
+        conditional.setRequestProperty("If-None-Match", etag);
+        Assert.assertEquals(conditional.getResponseCode(), 304);
+        Assert.assertEquals(conditional.getHeaderField("ETag"), etag);
+
+        final HttpURLConnection other = open("%7Bsha1%7De6f02a2089b562a9f350b201c9bc93d1c8ee6df8");
+        other.setRequestProperty("If-None-Match", etag);
+        Assert.assertEquals(other.getResponseCode(), 200);
+        try (InputStream in = other.getInputStream()) {
+            assertXMLEqual(readXMLData("a.xml"), getParserPool().parse(in).getDocumentElement());
+        }
+    }
+
+    @Test
+    public void testETagFollowsContent() throws Exception {
+        final Path b = directory.resolve("uk/01/23/uk012345.xml");
+        final HttpURLConnection first = open("uk012345");
+        Assert.assertEquals(first.getResponseCode(), 200);
+        final String etag = first.getHeaderField("ETag");
+        first.getInputStream().close();
+
+        // Touching the file without changing its content leaves the tag alone.
+        Files.setLastModifiedTime(b, FileTime.fromMillis(Files.getLastModifiedTime(b).toMillis() + 1000));
+        final HttpURLConnection touched = open("uk012345");
+        touched.setRequestProperty("If-None-Match", etag);
+        Assert.assertEquals(touched.getResponseCode(), 304);
+        Assert.assertEquals(touched.getHeaderField("ETag"), etag);
+    }
+
+    @Test
+    public void testETagCached() throws Exception {
+        final Path c = directory.resolve("uk/01/23/uk012398.xml");
+        try {
+            Files.writeString(c, read("b.xml"));
+            final FileTime time = Files.getLastModifiedTime(c);
+            final HttpURLConnection first = open("uk012398");
+            Assert.assertEquals(first.getResponseCode(), 200);
+            final String etag = first.getHeaderField("ETag");
+            first.getInputStream().close();
+
+            // The tag is cached against the file's attributes, so an in-place change that keeps them is not seen.
+            Files.writeString(c, read("b.xml").replace("Organization b", "Organization c"));
+            Files.setLastModifiedTime(c, time);
+            final HttpURLConnection conditional = open("uk012398");
+            conditional.setRequestProperty("If-None-Match", etag);
+            Assert.assertEquals(conditional.getResponseCode(), 304);
+            Assert.assertEquals(conditional.getHeaderField("ETag"), etag);
+        } finally {
+            Files.deleteIfExists(c);
+        }
+    }
+
+    @Test
+    public void testDirectoryChanged() throws Exception {
+        final String b = read("b.xml");
+        final Path d = directory.resolve("uk/01/23/uk012399.xml");
+        try {
+            // A new entity is found by entityID once the root directory has been modified.
+            Files.writeString(d, b.replace("b.example.org", "d.example.org"));
+            Assert.assertNull(responder.resolve("https://d.example.org/entity"));
+            Files.setLastModifiedTime(directory,
+                    FileTime.fromMillis(Files.getLastModifiedTime(directory).toMillis() + 1000));
+            Assert.assertEquals(responder.resolve("https://d.example.org/entity"), d);
+
+            final HttpURLConnection first = open("https%3A%2F%2Fd.example.org%2Fentity");
+            Assert.assertEquals(first.getResponseCode(), 200);
+            final String etag = first.getHeaderField("ETag");
+            first.getInputStream().close();
+
+            // Replacing the file changes its tag.
+            final Path temporary = directory.resolve("uk/01/23/uk012399.xml.tmp");
+            Files.writeString(temporary, b.replace("b.example.org", "d.example.org").replace("Organization b",
+                    "Organization d"));
+            Files.move(temporary, d, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            final HttpURLConnection replaced = open("uk012399");
+            replaced.setRequestProperty("If-None-Match", etag);
+            Assert.assertEquals(replaced.getResponseCode(), 200);
+            Assert.assertNotEquals(replaced.getHeaderField("ETag"), etag);
+            replaced.getInputStream().close();
+        } finally {
+            Files.deleteIfExists(d);
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        Assert.assertEquals(open("https%3A%2F%2Fc.example.org%2Fentity").getResponseCode(), 404);
+        Assert.assertEquals(open("").getResponseCode(), 404);
+
+        final HttpURLConnection post = open("uk012345");
+        post.setRequestMethod("POST");
+        Assert.assertEquals(post.getResponseCode(), 405);
+        Assert.assertEquals(post.getHeaderField("Allow"), "GET, HEAD");
+    }
+}
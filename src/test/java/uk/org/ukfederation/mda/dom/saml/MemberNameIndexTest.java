@@ -0,0 +1,59 @@
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class MemberNameIndexTest extends BaseDOMTest {
+
+    protected MemberNameIndexTest() {
+        super(MemberNameIndex.class);
+    }
+
+    private MemberNameIndex makeIndex() {
+        return new MemberNameIndex(
+                List.of("University of Edinburgh", "Edinburgh Napier University", "University of Exeter",
+                        "Royal Academy of Music"),
+                List.of("ukforg1", "ukforg2", "ukforg3", "ukforg4"));
+    }
+
+    @Test
+    public void testSuggest() {
+        final MemberNameIndex index = makeIndex();
+        Assert.assertEquals(index.size(), 4);
+
+        final List<MemberNameIndex.Suggestion> suggestions = index.suggest("The University of Edinburgh", 2);
+        Assert.assertEquals(suggestions.size(), 2);
+        Assert.assertEquals(suggestions.get(0).getName(), "University of Edinburgh");
+        Assert.assertEquals(suggestions.get(0).getOrgID(), "ukforg1");
+        Assert.assertTrue(suggestions.get(0).getScore() >= suggestions.get(1).getScore());
+    }
+
+    @Test
+    public void testCaseAndWhitespace() {
+        final List<MemberNameIndex.Suggestion> suggestions = makeIndex().suggest("  royal   ACADEMY of music", 3);
+        Assert.assertEquals(suggestions.get(0).getName(), "Royal Academy of Music");
+        Assert.assertEquals(suggestions.get(0).getScore(), 1.0);
+    }
+
+    @Test
+    public void testNothingClose() {
+        Assert.assertTrue(makeIndex().suggest("zzzz", 3).isEmpty());
+        Assert.assertTrue(makeIndex().suggest("", 3).isEmpty());
+        Assert.assertTrue(makeIndex().suggest("University of Edinburgh", 0).isEmpty());
+    }
+
+    @Test
+    public void testFromMembersDocument() throws Exception {
+        final Element members = readXMLData("members.xml");
+        final MemberNameIndex index = MemberNameIndex.fromMembersDocument(members.getOwnerDocument());
+        Assert.assertEquals(index.size(), 2);
+        final List<MemberNameIndex.Suggestion> suggestions = index.suggest("Member2", 1);
+        Assert.assertEquals(suggestions.get(0).getOrgID(), "ukforg1234");
+    }
+}
@@ -0,0 +1,160 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnull;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class StreamingEntitySourceStageTest extends BaseDOMTest {
+
+    private Path directory;
+
+    private Path aggregate;
+
+    protected StreamingEntitySourceStageTest() {
+        super(StreamingEntitySourceStage.class);
+    }
+
+    /** Test stage which marks each item, and fails on the entity named. */
+    private static class MarkingStage extends AbstractStage<Element> {
+
+        private final String failOn;
+
+        MarkingStage(final String fail) {
+            failOn = fail;
+        }
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<Element>> items) throws StageProcessingException {
+            for (final Item<Element> item : items) {
+                final String entityID = item.unwrap().getAttributeNS(null, "entityID");
+                if (entityID.equals(failOn)) {
+                    throw new StageProcessingException("failed on " + entityID);
+                }
+                item.getItemMetadata().put(new InfoStatus(getId(), entityID));
+            }
+        }
+    }
+
+    /** Test stage which removes the entity named. */
+    private static class RemovingStage extends AbstractStage<Element> {
+
+        private final String remove;
+
+        RemovingStage(final String entityID) {
+            remove = entityID;
+        }
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<Element>> items) {
+            items.removeIf(item -> item.unwrap().getAttributeNS(null, "entityID").equals(remove));
+        }
+    }
+
+    @BeforeClass
+    private void setUp() throws Exception {
+        directory = Files.createTempDirectory("StreamingEntitySourceStageTest");
+        aggregate = directory.resolve("aggregate.xml");
+        try (InputStream in = getClasspathResource("aggregate.xml").getInputStream()) {
+            Files.copy(in, aggregate);
+        }
+    }
+
+    @AfterClass
+    private void tearDown() throws Exception {
+        Files.deleteIfExists(aggregate);
+        Files.deleteIfExists(directory);
+    }
+
+    private StreamingEntitySourceStage makeStage(final List<Stage<Element>> stages) throws Exception {
+        return makeStage(stages, null);
+    }
+
+    private StreamingEntitySourceStage makeStage(final List<Stage<Element>> stages, final ExecutorService executor)
+            throws Exception {
+        final StreamingEntitySourceStage stage = new StreamingEntitySourceStage();
+        stage.setExecutor(executor);
+        stage.setId("stream");
+        stage.setSourceFile(aggregate.toFile());
+        stage.setParserPool(getParserPool());
+        stage.setStages(stages);
+        stage.setBufferSize(1);
+        stage.initialize();
+        return stage;
+    }
+
+    private <T extends AbstractStage<Element>> T init(final T stage, final String id) throws Exception {
+        stage.setId(id);
+        stage.initialize();
+        return stage;
+    }
+
+    @Test
+    public void testStages() throws Exception {
+        final StreamingEntitySourceStage stage = makeStage(List.of(
+                init(new MarkingStage(null), "mark"),
+                init(new RemovingStage("https://c.example.org/entity"), "remove")));
+
+        final List<Item<Element>> items = new ArrayList<>();
+        stage.execute(items);
+
+        // Entities are added in file order, without the one removed, and each was marked once.
+        final String[] expected = {"a", "b", "d", "e"};
+        Assert.assertEquals(items.size(), expected.length);
+        for (int i = 0; i < expected.length; i++) {
+            final String entityID = "https://" + expected[i] + ".example.org/entity";
+            Assert.assertEquals(items.get(i).unwrap().getAttributeNS(null, "entityID"), entityID);
+            final List<InfoStatus> infos = items.get(i).getItemMetadata().get(InfoStatus.class);
+            Assert.assertEquals(infos.size(), 1);
+            Assert.assertEquals(infos.get(0).getStatusMessage(), entityID);
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final StreamingEntitySourceStage stage =
+                makeStage(List.of(init(new MarkingStage("https://b.example.org/entity"), "mark")));
+
+        final List<Item<Element>> items = new ArrayList<>();
+        try {
+            stage.execute(items);
+            Assert.fail("expected exception");
+        } catch (final StageProcessingException e) {
+            Assert.assertEquals(e.getMessage(), "failed on https://b.example.org/entity");
+        }
+        Assert.assertTrue(items.isEmpty());
+    }
+
+    @Test(timeOut = 30000)
+    public void testSingleThreadExecutor() throws Exception {
+        // The stages have the only thread, so collecting their results must not need it too.
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final StreamingEntitySourceStage stage =
+                    makeStage(List.of(init(new MarkingStage(null), "mark")), executor);
+            final List<Item<Element>> items = new ArrayList<>();
+            stage.execute(items);
+            Assert.assertEquals(items.size(), 5);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -14,6 +14,7 @@ import net.shibboleth.metadata.pipeline.Stage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.metadata.testing.MockItem;
 import net.shibboleth.shared.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.UKEntityFacts;
 
 public class FlowConstraintApplyingStageTest {
 
@@ -147,4 +148,63 @@ public class FlowConstraintApplyingStageTest {
         Assert.assertEquals(1, items.size());
     }
 
+    private List<Item<String>> makeFactsCollection(@Nonnull final FlowConstraint... constraints) {
+        final List<Item<String>> items = makeCollection();
+        final Item<String> item = items.get(0);
+        for (final FlowConstraint constraint : constraints) {
+            item.getItemMetadata().put(constraint);
+        }
+        item.getItemMetadata().put(new UKEntityFacts.Builder(item).build());
+        return items;
+    }
+
+    @Test
+    public void testFacts() throws Exception {
+        final Stage<String> stage = makeStage("test");
+
+        final List<Item<String>> enabled = makeFactsCollection(new EnableFlow("other"), new EnableFlow("test"));
+        stage.execute(enabled);
+        Assert.assertEquals(enabled.size(), 1);
+
+        final List<Item<String>> notEnabled = makeFactsCollection(new EnableFlow("other"));
+        stage.execute(notEnabled);
+        Assert.assertEquals(notEnabled.size(), 0);
+
+        final List<Item<String>> disabled = makeFactsCollection(new DisableFlow("test"));
+        stage.execute(disabled);
+        Assert.assertEquals(disabled.size(), 0);
+
+        final List<Item<String>> notDisabled = makeFactsCollection(new DisableFlow("other"));
+        stage.execute(notDisabled);
+        Assert.assertEquals(notDisabled.size(), 1);
+
+        final List<Item<String>> neither = makeFactsCollection();
+        stage.execute(neither);
+        Assert.assertEquals(neither.size(), 1);
+    }
+
+    @Test
+    public void testStaleFacts() throws Exception {
+        final Stage<String> stage = makeStage("test");
+
+        // A constraint added after the facts were built must still be honoured
+        final List<Item<String>> disabled = makeFactsCollection();
+        disabled.get(0).getItemMetadata().put(new DisableFlow("test"));
+        stage.execute(disabled);
+        Assert.assertEquals(disabled.size(), 0);
+
+        // ... as must the removal of one
+        final List<Item<String>> enabled = makeFactsCollection(new EnableFlow("other"));
+        enabled.get(0).getItemMetadata().remove(EnableFlow.class);
+        stage.execute(enabled);
+        Assert.assertEquals(enabled.size(), 1);
+    }
+
+    @Test(expectedExceptions = {StageProcessingException.class},
+            expectedExceptionsMessageRegExp = ".*has both enables and disables.*")
+    public void testFactsHasBothConstraints() throws Exception {
+        final Stage<String> stage = makeStage("test");
+        final List<Item<String>> items = makeFactsCollection(new EnableFlow("enable"), new DisableFlow("disable"));
+        stage.execute(items); // should throw
+    }
 }
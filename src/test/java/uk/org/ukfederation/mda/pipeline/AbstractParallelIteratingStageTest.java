@@ -0,0 +1,185 @@
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.testing.MockItem;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+public class AbstractParallelIteratingStageTest {
+
+    /** Test stage which records each item's value and fails on request. */
+    private static class TestStage extends AbstractParallelIteratingStage<String> {
+
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        protected void doExecute(@Nonnull final Item<String> item) throws StageProcessingException {
+            final int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            try {
+                Thread.sleep(2);
+                final String value = item.unwrap();
+                if (value.startsWith("fail")) {
+                    throw new StageProcessingException(value);
+                }
+                item.getItemMetadata().put(new InfoStatus(getId(), value));
+            } catch (final InterruptedException e) {
+                throw new StageProcessingException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /** Test stage whose items each wait until all of them have started. */
+    private static class LatchStage extends AbstractParallelIteratingStage<String> {
+
+        final CountDownLatch started;
+
+        LatchStage(final int items) {
+            started = new CountDownLatch(items);
+        }
+
+        @Override
+        protected void doExecute(@Nonnull final Item<String> item) throws StageProcessingException {
+            started.countDown();
+            try {
+                if (!started.await(10, TimeUnit.SECONDS)) {
+                    throw new StageProcessingException("items were not processed concurrently");
+                }
+            } catch (final InterruptedException e) {
+                throw new StageProcessingException(e);
+            }
+        }
+    }
+
+    private List<Item<String>> makeItems(final int n) {
+        final List<Item<String>> items = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            items.add(new MockItem("item" + i));
+        }
+        return items;
+    }
+
+    private void checkItems(@Nonnull final List<Item<String>> items) {
+        for (final Item<String> item : items) {
+            final List<InfoStatus> infos = item.getItemMetadata().get(InfoStatus.class);
+            Assert.assertEquals(infos.size(), 1);
+            Assert.assertEquals(infos.get(0).getStatusMessage(), item.unwrap());
+        }
+    }
+
+    @Test
+    public void testSequential() throws Exception {
+        final List<Item<String>> items = makeItems(20);
+        final TestStage stage = new TestStage();
+        stage.setId("test");
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+        checkItems(items);
+        Assert.assertEquals(stage.maxInFlight.get(), 1);
+    }
+
+    @Test
+    public void testPlatformThreads() throws Exception {
+        final List<Item<String>> items = makeItems(100);
+        final TestStage stage = new TestStage();
+        stage.setId("test");
+        stage.setParallelism(4);
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+        checkItems(items);
+        Assert.assertTrue(stage.maxInFlight.get() <= 4);
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        // Each item blocks until the other has started, so this only completes if they run at the same time.
+        final LatchStage stage = new LatchStage(2);
+        stage.setId("test");
+        stage.setParallelism(2);
+        stage.initialize();
+        stage.execute(makeItems(2));
+        stage.destroy();
+        Assert.assertEquals(stage.started.getCount(), 0);
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        final List<Item<String>> items = makeItems(100);
+        final TestStage stage = new TestStage();
+        stage.setId("test");
+        stage.setParallelism(8);
+        stage.setVirtualThreads(true);
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+        checkItems(items);
+        Assert.assertTrue(stage.maxInFlight.get() <= 8);
+    }
+
+    @Test
+    public void testSuppliedExecutor() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final List<Item<String>> items = makeItems(50);
+            final TestStage stage = new TestStage();
+            stage.setId("test");
+            stage.setExecutor(executor);
+            stage.setParallelism(2);
+            stage.initialize();
+            stage.execute(items);
+            stage.destroy();
+            checkItems(items);
+            Assert.assertTrue(stage.maxInFlight.get() <= 2);
+            Assert.assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEarliestFailureWins() throws Exception {
+        final List<Item<String>> items = makeItems(40);
+        items.set(30, new MockItem("fail30"));
+        items.set(7, new MockItem("fail7"));
+        items.set(9, new MockItem("fail9"));
+        final TestStage stage = new TestStage();
+        stage.setId("test");
+        stage.setParallelism(6);
+        stage.initialize();
+        try {
+            stage.execute(items);
+            Assert.fail("expected exception");
+        } catch (final StageProcessingException e) {
+            Assert.assertEquals(e.getMessage(), "fail7");
+        }
+        stage.destroy();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testBadParallelism() throws Exception {
+        final TestStage stage = new TestStage();
+        stage.setId("test");
+        stage.setParallelism(0);
+        stage.initialize();
+    }
+}
@@ -0,0 +1,329 @@
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.testing.MockItem;
+import net.shibboleth.shared.collection.ClassToInstanceMultiMap;
+import uk.org.ukfederation.mda.validate.x509.X509CertificateCache;
+
+public class ConcurrentCompositeStageTest {
+
+    /**
+     * Test stage which waits for all the test stages to start, optionally sleeps, then adds a status
+     * to each item. It removes the items if asked to, and fails if asked to.
+     */
+    private static class TestStage extends AbstractStage<String> {
+
+        private final CountDownLatch started;
+
+        private final long sleep;
+
+        private final boolean remove;
+
+        private final boolean fail;
+
+        TestStage(final CountDownLatch latch, final long millis, final boolean removeItems, final boolean failStage) {
+            started = latch;
+            sleep = millis;
+            remove = removeItems;
+            fail = failStage;
+        }
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<String>> items) throws StageProcessingException {
+            started.countDown();
+            try {
+                if (!started.await(10, TimeUnit.SECONDS)) {
+                    throw new StageProcessingException("stages were not run concurrently");
+                }
+                Thread.sleep(sleep);
+            } catch (final InterruptedException e) {
+                throw new StageProcessingException(e);
+            }
+            if (fail) {
+                throw new StageProcessingException(getId() + " failed");
+            }
+            for (final Item<String> item : items) {
+                item.getItemMetadata().put(new InfoStatus(getId(), item.unwrap()));
+            }
+            if (remove) {
+                items.clear();
+            }
+        }
+    }
+
+    /** Test stage which gives each item a certificate cache, creating one if it has none. */
+    private static class CachingStage extends AbstractStage<String> {
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<String>> items) {
+            for (final Item<String> item : items) {
+                X509CertificateCache.findOrCreate(item);
+            }
+        }
+    }
+
+    /** Test stage which adds a status to each item, and an attribute to its element if asked to. */
+    private static class ElementStage extends AbstractStage<Element> {
+
+        private final boolean change;
+
+        ElementStage(final boolean changeElements) {
+            change = changeElements;
+        }
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<Element>> items) {
+            for (final Item<Element> item : items) {
+                item.getItemMetadata().put(new InfoStatus(getId(), item.unwrap().getLocalName()));
+                if (change) {
+                    item.unwrap().setAttributeNS(null, "changed", "true");
+                }
+            }
+        }
+    }
+
+    /** Test item which counts the copies made of it. */
+    private static class CountingItem implements Item<String> {
+
+        private final String value;
+
+        private final AtomicInteger copies;
+
+        private final ClassToInstanceMultiMap<ItemMetadata> metadata = new ClassToInstanceMultiMap<>(true);
+
+        CountingItem(final String s, final AtomicInteger counter) {
+            value = s;
+            copies = counter;
+        }
+
+        @Override
+        public String unwrap() {
+            return value;
+        }
+
+        @Override
+        public ClassToInstanceMultiMap<ItemMetadata> getItemMetadata() {
+            return metadata;
+        }
+
+        @Override
+        public Item<String> copy() {
+            copies.incrementAndGet();
+            final CountingItem copy = new CountingItem(value, copies);
+            copy.getItemMetadata().putAll(metadata);
+            return copy;
+        }
+    }
+
+    private List<Item<String>> makeItems() {
+        final List<Item<String>> items = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final Item<String> item = new MockItem("item" + i);
+            item.getItemMetadata().put(new WarningStatus("before", "existing"));
+            items.add(item);
+        }
+        return items;
+    }
+
+    private ConcurrentCompositeStage<String> makeStage(final List<Stage<String>> stages) throws Exception {
+        final ConcurrentCompositeStage<String> stage = new ConcurrentCompositeStage<>();
+        stage.setId("composite");
+        stage.setStages(stages);
+        stage.initialize();
+        return stage;
+    }
+
+    private TestStage makeTestStage(final String id, final CountDownLatch latch, final long sleep,
+            final boolean remove, final boolean fail) throws Exception {
+        final TestStage stage = new TestStage(latch, sleep, remove, fail);
+        stage.setId(id);
+        stage.initialize();
+        return stage;
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        // The first stage finishes last, but its statuses still come first.
+        final ConcurrentCompositeStage<String> stage = makeStage(List.of(
+                makeTestStage("one", latch, 100, false, false),
+                makeTestStage("two", latch, 0, false, false),
+                makeTestStage("three", latch, 50, false, false)));
+
+        final List<Item<String>> items = makeItems();
+        final List<Item<String>> originals = new ArrayList<>(items);
+        stage.execute(items);
+
+        Assert.assertEquals(items, originals);
+        for (final Item<String> item : items) {
+            Assert.assertEquals(item.getItemMetadata().get(WarningStatus.class).size(), 1);
+            final List<InfoStatus> infos = item.getItemMetadata().get(InfoStatus.class);
+            Assert.assertEquals(infos.size(), 3);
+            Assert.assertEquals(infos.get(0).getComponentId(), "one");
+            Assert.assertEquals(infos.get(1).getComponentId(), "two");
+            Assert.assertEquals(infos.get(2).getComponentId(), "three");
+            Assert.assertEquals(infos.get(0).getStatusMessage(), item.unwrap());
+        }
+    }
+
+    @Test
+    public void testNotReadOnly() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final ConcurrentCompositeStage<String> stage = makeStage(List.of(
+                makeTestStage("one", latch, 0, false, false),
+                makeTestStage("remover", latch, 0, true, false)));
+
+        final List<Item<String>> items = makeItems();
+        try {
+            stage.execute(items);
+            Assert.fail("expected exception");
+        } catch (final StageProcessingException e) {
+            Assert.assertTrue(e.getMessage().contains("remover"));
+        }
+        Assert.assertEquals(items.size(), 5);
+        for (final Item<String> item : items) {
+            Assert.assertTrue(item.getItemMetadata().get(InfoStatus.class).isEmpty());
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        // Both later stages fail, the second after the third; the second's exception is thrown.
+        final ConcurrentCompositeStage<String> stage = makeStage(List.of(
+                makeTestStage("one", latch, 0, false, false),
+                makeTestStage("two", latch, 50, false, true),
+                makeTestStage("three", latch, 0, false, true)));
+
+        final List<Item<String>> items = makeItems();
+        try {
+            stage.execute(items);
+            Assert.fail("expected exception");
+        } catch (final StageProcessingException e) {
+            Assert.assertEquals(e.getMessage(), "two failed");
+        }
+        for (final Item<String> item : items) {
+            Assert.assertTrue(item.getItemMetadata().get(InfoStatus.class).isEmpty());
+        }
+    }
+
+    @Test
+    public void testCopies() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        final ConcurrentCompositeStage<String> stage = makeStage(List.of(
+                makeTestStage("one", latch, 0, false, false),
+                makeTestStage("two", latch, 0, false, false),
+                makeTestStage("three", latch, 0, false, false)));
+
+        final AtomicInteger copies = new AtomicInteger();
+        final List<Item<String>> items = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            items.add(new CountingItem("item" + i, copies));
+        }
+        stage.execute(items);
+
+        // The first stage uses the original items, so each item is copied once for each other stage.
+        Assert.assertEquals(copies.get(), 10);
+        for (final Item<String> item : items) {
+            Assert.assertEquals(item.getItemMetadata().get(InfoStatus.class).size(), 3);
+        }
+    }
+
+    @Test
+    public void testSingleInstanceMetadata() throws Exception {
+        final CachingStage one = new CachingStage();
+        one.setId("one");
+        one.initialize();
+        final CachingStage two = new CachingStage();
+        two.setId("two");
+        two.initialize();
+        final ConcurrentCompositeStage<String> stage = makeStage(List.of(one, two));
+
+        final List<Item<String>> items = makeItems();
+        final X509CertificateCache existing = X509CertificateCache.findOrCreate(items.get(0));
+        stage.execute(items);
+
+        // Each stage created its own cache for the items without one, but only one is kept.
+        for (final Item<String> item : items) {
+            Assert.assertEquals(item.getItemMetadata().get(X509CertificateCache.class).size(), 1);
+        }
+        Assert.assertSame(X509CertificateCache.find(items.get(0)), existing);
+    }
+
+    private List<Item<Element>> makeElementItems() throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final List<Item<Element>> items = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Document document = factory.newDocumentBuilder().newDocument();
+            document.appendChild(document.createElementNS(null, "item" + i));
+            items.add(new DOMElementItem(document.getDocumentElement()));
+        }
+        return items;
+    }
+
+    private ConcurrentCompositeStage<Element> makeElementStage(final boolean... changes) throws Exception {
+        final List<Stage<Element>> stages = new ArrayList<>();
+        for (int s = 0; s < changes.length; s++) {
+            final ElementStage stage = new ElementStage(changes[s]);
+            stage.setId("stage" + s);
+            stage.initialize();
+            stages.add(stage);
+        }
+        final ConcurrentCompositeStage<Element> stage = new ConcurrentCompositeStage<>();
+        stage.setId("composite");
+        stage.setStages(stages);
+        stage.initialize();
+        return stage;
+    }
+
+    @Test
+    public void testElements() throws Exception {
+        final ConcurrentCompositeStage<Element> stage = makeElementStage(false, false);
+        final List<Item<Element>> items = makeElementItems();
+        stage.execute(items);
+        for (final Item<Element> item : items) {
+            Assert.assertEquals(item.getItemMetadata().get(InfoStatus.class).size(), 2);
+        }
+    }
+
+    @Test
+    public void testDOMChanged() throws Exception {
+        // A change is rejected whether it is made to the original elements or to copies.
+        for (int changing = 0; changing < 2; changing++) {
+            final ConcurrentCompositeStage<Element> stage = makeElementStage(changing == 0, changing == 1);
+            final List<Item<Element>> items = makeElementItems();
+            try {
+                stage.execute(items);
+                Assert.fail("expected exception");
+            } catch (final StageProcessingException e) {
+                Assert.assertEquals(e.getMessage(), "stage stage" + changing +
+                        " is not read-only: it changed the DOM of an item");
+            }
+            for (final Item<Element> item : items) {
+                Assert.assertTrue(item.getItemMetadata().get(InfoStatus.class).isEmpty());
+            }
+        }
+    }
+}
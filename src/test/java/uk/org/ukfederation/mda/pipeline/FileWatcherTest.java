@@ -0,0 +1,50 @@
+package uk.org.ukfederation.mda.pipeline;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FileWatcherTest {
+
+    @Test
+    public void testWatch() throws Exception {
+        final Path directory = Files.createTempDirectory("FileWatcherTest");
+        final Path watched = directory.resolve("watched.xml");
+        final Path other = directory.resolve("other.xml");
+        Files.writeString(watched, "<a/>");
+        final BlockingQueue<Set<Path>> changes = new LinkedBlockingQueue<>();
+
+        final FileWatcher watcher = new FileWatcher();
+        watcher.setFiles(List.of(watched.toFile()));
+        watcher.setListener(changes::add);
+        watcher.setQuietPeriod(100);
+        watcher.initialize();
+        try {
+            // Changes to unwatched files are not reported.
+            Files.writeString(other, "<b/>");
+            Assert.assertNull(changes.poll(500, TimeUnit.MILLISECONDS));
+
+            // Several changes in quick succession are reported together.
+            Files.writeString(watched, "<a>1</a>");
+            Files.writeString(watched, "<a>2</a>");
+            final Set<Path> changed = changes.poll(10, TimeUnit.SECONDS);
+            Assert.assertEquals(changed, Set.of(watched.toAbsolutePath().normalize()));
+            Assert.assertNull(changes.poll(500, TimeUnit.MILLISECONDS));
+
+            Files.delete(watched);
+            Assert.assertEquals(changes.poll(10, TimeUnit.SECONDS), Set.of(watched.toAbsolutePath().normalize()));
+        } finally {
+            watcher.destroy();
+            Files.deleteIfExists(other);
+            Files.deleteIfExists(watched);
+            Files.deleteIfExists(directory);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package uk.org.ukfederation.mda.pipeline;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+
+import javax.annotation.Nonnull;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.testing.MockItem;
+
+public class StageProcessorTest {
+
+    private ExecutorService executor;
+
+    /** Test stage which marks each item, removes "drop" items and fails on "fail" items. */
+    private static class TestStage extends AbstractStage<String> {
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<String>> items) throws StageProcessingException {
+            items.removeIf(item -> item.unwrap().equals("drop"));
+            for (final Item<String> item : items) {
+                if (item.unwrap().equals("fail")) {
+                    throw new StageProcessingException("failed");
+                }
+                item.getItemMetadata().put(new InfoStatus(getId(), item.unwrap()));
+            }
+        }
+    }
+
+    @BeforeClass
+    private void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterClass
+    private void tearDown() {
+        executor.shutdown();
+    }
+
+    private List<Stage<String>> makeStages() throws Exception {
+        final TestStage stage = new TestStage();
+        stage.setId("test");
+        stage.initialize();
+        return List.of(stage);
+    }
+
+    private CompletableFuture<Void> run(final List<String> values, final List<Item<String>> results)
+            throws Exception {
+        final StageProcessor<String> processor = new StageProcessor<>(makeStages(), executor, 2, Duration.ofSeconds(30));
+        final CompletableFuture<Void> done = processor.consume(results::add);
+        try (SubmissionPublisher<Item<String>> publisher = new SubmissionPublisher<>(executor, 2)) {
+            publisher.subscribe(processor);
+            for (final String value : values) {
+                publisher.submit(new MockItem(value));
+            }
+        }
+        return done;
+    }
+
+    @Test
+    public void testProcessing() throws Exception {
+        final List<String> values = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            values.add(i % 10 == 3 ? "drop" : "item" + i);
+        }
+        final List<Item<String>> results = Collections.synchronizedList(new ArrayList<>());
+        run(values, results).get();
+
+        // Items arrive in order, without those removed, each marked by the stage.
+        values.removeIf(value -> value.equals("drop"));
+        Assert.assertEquals(results.size(), values.size());
+        for (int i = 0; i < values.size(); i++) {
+            Assert.assertEquals(results.get(i).unwrap(), values.get(i));
+            Assert.assertEquals(results.get(i).getItemMetadata().get(InfoStatus.class).get(0).getStatusMessage(),
+                    values.get(i));
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final List<Item<String>> results = Collections.synchronizedList(new ArrayList<>());
+        final CompletableFuture<Void> done = run(List.of("a", "b", "fail", "c", "d"), results);
+        try {
+            done.get();
+            Assert.fail("expected exception");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StageProcessingException);
+        }
+        Assert.assertFalse(results.stream().anyMatch(item -> item.unwrap().equals("c")));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final StageProcessor<String> processor =
+                new StageProcessor<>(makeStages(), executor, 1, Duration.ofMillis(100));
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Item<String>> results = Collections.synchronizedList(new ArrayList<>());
+        final CompletableFuture<Void> done = processor.consume(item -> {
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            results.add(item);
+        });
+        try (SubmissionPublisher<Item<String>> publisher = new SubmissionPublisher<>(executor, 1)) {
+            publisher.subscribe(processor);
+            for (final String value : List.of("a", "b", "c", "d")) {
+                publisher.submit(new MockItem(value));
+            }
+            // The stalled subscriber leaves the processor unable to pass on its results.
+            while (!processor.isClosed()) {
+                Thread.sleep(10);
+            }
+        }
+        release.countDown();
+        try {
+            done.get();
+            Assert.fail("expected exception");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StageProcessingException);
+        }
+        Assert.assertTrue(results.size() < 4);
+    }
+}
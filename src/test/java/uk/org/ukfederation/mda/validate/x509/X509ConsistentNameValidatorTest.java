@@ -2,6 +2,8 @@
 package uk.org.ukfederation.mda.validate.x509;
 
 import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.List;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -61,4 +63,24 @@ public class X509ConsistentNameValidatorTest extends BaseX509ValidatorTest {
         errorsAndWarnings(item, 0, 1);
     }
 
+    @Test
+    public void testCached() throws Exception {
+        final Item<String> item = new MockItem("foo");
+        final X509Certificate cert = getCertificate("ligo-old.pem");
+        final String base64 = Base64.getEncoder().encodeToString(cert.getEncoded());
+        final DecodedX509Certificate decoded = DecodedX509Certificate.decode(base64);
+        X509CertificateCache.findOrCreate(item).put(base64, decoded);
+
+        final X509ConsistentNameValidator val = new X509ConsistentNameValidator();
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(val.validate(cert, item, "stage"), Validator.Action.CONTINUE);
+        }
+        errorsAndWarnings(item, 2, 0);
+
+        // the names were decoded once and kept with the cached certificate
+        final List<?> altNames = decoded.derive(X509ConsistentNameValidator.class.getName() + ".dnsAltNames",
+                c -> List.of());
+        Assert.assertFalse(altNames.isEmpty());
+    }
+
 }